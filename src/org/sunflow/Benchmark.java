@@ -15,6 +15,7 @@ import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 import org.sunflow.system.BenchmarkFramework;
 import org.sunflow.system.BenchmarkTest;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UserInterface;
 import org.sunflow.system.UI.Module;
@@ -27,6 +28,8 @@ public class Benchmark implements BenchmarkTest, UserInterface, Display {
     private boolean saveOutput;
     private boolean showWindow;
     private int threads;
+    private boolean photonGrid;
+    private Timer renderTimer;
     private int[] referenceImage;
     private int[] validationImage;
     private int errorThreshold;
@@ -38,6 +41,8 @@ public class Benchmark implements BenchmarkTest, UserInterface, Display {
             System.out.println("  -bench [threads] [resolution] Run a single iteration of the benchmark using the specified thread count and image resolution");
             System.out.println("                                Default: threads=0 (auto-detect cpus), resolution=256");
             System.out.println("  -show                         Render the benchmark scene into a window without performing validation");
+            System.out.println("  -gridscaling [resolution]     Look up the grid photon map at every eye ray hit with 1, 2, 4, ... threads up to the number of cpus");
+            System.out.println("                                Default: resolution=128");
         } else if (args[0].equals("-regen")) {
             int[] sizes = { 32, 64, 96, 128, 256, 384, 512 };
             for (int s : sizes) {
@@ -58,6 +63,22 @@ public class Benchmark implements BenchmarkTest, UserInterface, Display {
         } else if (args[0].equals("-show")) {
             Benchmark benchmark = new Benchmark(512, true, true, false, 0, true);
             benchmark.kernelMain();
+        } else if (args[0].equals("-gridscaling")) {
+            int resolution = 128;
+            if (args.length > 1)
+                resolution = Integer.parseInt(args[1]);
+            int maxThreads = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1;; threads = Math.min(2 * threads, maxThreads)) {
+                Benchmark benchmark = new Benchmark(resolution, threads);
+                benchmark.kernelBegin();
+                Timer t = new Timer();
+                t.start();
+                benchmark.kernelMain();
+                t.end();
+                UI.printInfo(Module.BENCH, "Grid photon map, %d threads: %s (lookups: %s)", threads, t.toString(), benchmark.renderTimer.toString());
+                if (threads == maxThreads)
+                    break;
+            }
         }
     }
 
@@ -98,6 +119,25 @@ public class Benchmark implements BenchmarkTest, UserInterface, Display {
         }
     }
 
+    /**
+     * Creates a benchmark which shades every eye ray hit with a direct radiance
+     * estimate from a grid photon map, so the render time is dominated by
+     * photon map lookups rather than by final gathering. There is no reference
+     * image for this variant, so the output is not validated.
+     */
+    private Benchmark(int resolution, int threads) {
+        UI.set(this);
+        this.resolution = resolution;
+        showOutput = false;
+        showBenchmarkOutput = true;
+        saveOutput = false;
+        showWindow = false;
+        this.threads = threads;
+        photonGrid = true;
+        renderTimer = new Timer();
+        errorThreshold = 6;
+    }
+
     public void execute() {
         // 10 iterations maximum - 10 minute time limit
         BenchmarkFramework framework = new BenchmarkFramework(10, 600);
@@ -127,9 +167,21 @@ public class Benchmark implements BenchmarkTest, UserInterface, Display {
             parameter("bucket.order", "hilbert");
             parameter("bucket.size", 32);
             // gi options
-            parameter("gi.engine", "igi");
-            parameter("gi.igi.samples", 90);
-            parameter("gi.igi.c", 0.000008f);
+            if (photonGrid) {
+                // the irradiance cache only builds the photon map, all
+                // surfaces show the global photon map radiance directly
+                parameter("override.shader", "view_global");
+                parameter("override.photons", false);
+                parameter("gi.engine", "irr-cache");
+                parameter("gi.irr-cache.gmap", "grid");
+                parameter("gi.irr-cache.gmap.emit", 200000);
+                parameter("gi.irr-cache.gmap.gather", 50);
+                parameter("gi.irr-cache.gmap.radius", 10.0f);
+            } else {
+                parameter("gi.engine", "igi");
+                parameter("gi.igi.samples", 90);
+                parameter("gi.igi.c", 0.000008f);
+            }
             options(SunflowAPI.DEFAULT_OPTIONS);
             buildCornellBox();
         }
@@ -161,6 +213,8 @@ public class Benchmark implements BenchmarkTest, UserInterface, Display {
             shader("red_shader", "diffuse");
             parameter("diffuse", null, 0.25f, 0.25f, 0.80f);
             shader("blue_shader", "diffuse");
+            if (photonGrid)
+                shader("view_global", "view_global");
 
             // build walls
             parameter("triangles", indices);
@@ -257,10 +311,14 @@ public class Benchmark implements BenchmarkTest, UserInterface, Display {
 
     public void imageBegin(int w, int h, int bucketSize) {
         // we can assume w == h == resolution
+        if (renderTimer != null)
+            renderTimer.start();
     }
 
     public void imageEnd() {
         // nothing needs to be done - image verification is done externally
+        if (renderTimer != null)
+            renderTimer.end();
     }
 
     public void imageFill(int x, int y, int w, int h, Color c, float alpha) {
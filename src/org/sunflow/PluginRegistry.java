@@ -15,6 +15,7 @@ import org.sunflow.core.SceneParser;
 import org.sunflow.core.Shader;
 import org.sunflow.core.Tesselatable;
 import org.sunflow.core.accel.BoundingIntervalHierarchy;
+import org.sunflow.core.accel.BoundingVolumeHierarchy;
 import org.sunflow.core.accel.KDTree;
 import org.sunflow.core.accel.NullAccelerator;
 import org.sunflow.core.accel.UniformGrid;
@@ -62,6 +63,8 @@ import org.sunflow.core.parser.ShaveRibParser;
 import org.sunflow.core.photonmap.CausticPhotonMap;
 import org.sunflow.core.photonmap.GlobalPhotonMap;
 import org.sunflow.core.photonmap.GridPhotonMap;
+import org.sunflow.core.photonmap.PackedCausticPhotonMap;
+import org.sunflow.core.photonmap.PackedGlobalPhotonMap;
 import org.sunflow.core.primitive.Background;
 import org.sunflow.core.primitive.BanchoffSurface;
 import org.sunflow.core.primitive.Box;
@@ -122,6 +125,7 @@ import org.sunflow.core.tesselatable.Teapot;
 import org.sunflow.image.BitmapReader;
 import org.sunflow.image.BitmapWriter;
 import org.sunflow.image.readers.BMPBitmapReader;
+import org.sunflow.image.readers.EXRBitmapReader;
 import org.sunflow.image.readers.HDRBitmapReader;
 import org.sunflow.image.readers.IGIBitmapReader;
 import org.sunflow.image.readers.JPGBitmapReader;
@@ -265,6 +269,7 @@ public final class PluginRegistry {
     static {
         // accels
         accelPlugins.registerPlugin("bih", BoundingIntervalHierarchy.class);
+        accelPlugins.registerPlugin("bvh", BoundingVolumeHierarchy.class);
         accelPlugins.registerPlugin("kdtree", KDTree.class);
         accelPlugins.registerPlugin("null", NullAccelerator.class);
         accelPlugins.registerPlugin("uniformgrid", UniformGrid.class);
@@ -305,12 +310,14 @@ public final class PluginRegistry {
     static {
         // caustic photon maps
         causticPhotonMapPlugins.registerPlugin("kd", CausticPhotonMap.class);
+        causticPhotonMapPlugins.registerPlugin("packed", PackedCausticPhotonMap.class);
     }
 
     static {
         // global photon maps
         globalPhotonMapPlugins.registerPlugin("grid", GridPhotonMap.class);
         globalPhotonMapPlugins.registerPlugin("kd", GlobalPhotonMap.class);
+        globalPhotonMapPlugins.registerPlugin("packed", PackedGlobalPhotonMap.class);
     }
 
     static {
@@ -340,6 +347,7 @@ public final class PluginRegistry {
         bitmapReaderPlugins.registerPlugin("jpg", JPGBitmapReader.class);
         bitmapReaderPlugins.registerPlugin("bmp", BMPBitmapReader.class);
         bitmapReaderPlugins.registerPlugin("igi", IGIBitmapReader.class);
+        bitmapReaderPlugins.registerPlugin("exr", EXRBitmapReader.class);
     }
 
     static {
@@ -1,6 +1,8 @@
 package org.sunflow;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Locale;
 
@@ -24,6 +26,11 @@ final class RenderObjectMap {
     private FastHashMap<String, RenderObjectHandle> renderObjects;
     private boolean rebuildInstanceList;
     private boolean rebuildLightList;
+    // names declared since the current frame began, or null outside frames
+    private HashSet<String> frameObjects;
+    // names of the instances and lights last handed to the scene
+    private String[] instanceNames;
+    private String[] lightNames;
 
     enum RenderObjectType {
         UNKNOWN, SHADER, MODIFIER, GEOMETRY, INSTANCE, LIGHT, CAMERA, OPTIONS
@@ -32,12 +39,94 @@ final class RenderObjectMap {
     RenderObjectMap() {
         renderObjects = new FastHashMap<String, RenderObjectHandle>();
         rebuildInstanceList = rebuildLightList = false;
+        frameObjects = null;
+        instanceNames = lightNames = null;
     }
 
     final boolean has(String name) {
         return renderObjects.containsKey(name);
     }
 
+    /**
+     * Start declaring the objects of a new frame over those of the previous
+     * one. Until {@link #endFrame()} is called, names used in the previous
+     * frame may be declared again, and objects of the previous frame can not
+     * be looked up until they are.
+     */
+    final void beginFrame() {
+        frameObjects = new HashSet<String>();
+    }
+
+    /**
+     * Finish declaring a frame by removing all objects which were not
+     * declared or updated since {@link #beginFrame()}.
+     */
+    final void endFrame() {
+        ArrayList<String> unused = new ArrayList<String>();
+        for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects)
+            if (!frameObjects.contains(e.getKey()))
+                unused.add(e.getKey());
+        frameObjects = null;
+        for (String name : unused)
+            if (has(name))
+                remove(name);
+    }
+
+    /**
+     * Check if a new object can be declared with the specified name. Names
+     * must be unused, except for names of the previous frame which were not
+     * declared again yet.
+     * 
+     * @param name name of the new object
+     * @return <code>true</code> if the name may be declared
+     */
+    final boolean canDeclare(String name) {
+        if (frameObjects == null)
+            return !has(name);
+        return frameObjects.add(name);
+    }
+
+    /**
+     * Drop the object of the previous frame which is being declared again.
+     * The new declaration always creates a new object from its own
+     * parameters, so the caller must put one under this name. Objects of the
+     * previous frame which still refer to the dropped one are either declared
+     * again or removed at the end of the frame.
+     * 
+     * @param name name of the object being declared
+     * @param type kind of object being declared
+     * @param typeName plugin type of the declaration
+     * @return the dropped object if it has the same kind and type as the new
+     *         declaration, so data derived from it can be carried over,
+     *         <code>null</code> otherwise
+     */
+    final RenderObject redeclare(String name, RenderObjectType type, String typeName) {
+        RenderObjectHandle obj = renderObjects.get(name);
+        if (obj == null)
+            return null;
+        renderObjects.remove(name);
+        if (obj.type == RenderObjectType.INSTANCE)
+            rebuildInstanceList = true;
+        else if (obj.type == RenderObjectType.LIGHT)
+            rebuildLightList = true;
+        if (obj.type == type && (typeName == null ? obj.typeName == null : typeName.equals(obj.typeName))) {
+            UI.printDetailed(Module.API, "Redeclaring %s object \"%s\"", obj.typeName(), name);
+            return obj.getObject();
+        }
+        return null;
+    }
+
+    /**
+     * Get the handle of an object which can be used right now. While a frame
+     * is being declared, objects of the previous frame are hidden until they
+     * are declared again.
+     */
+    private RenderObjectHandle get(String name) {
+        if (frameObjects != null && !frameObjects.contains(name))
+            return null;
+        return renderObjects.get(name);
+    }
+
     final void remove(String name) {
         RenderObjectHandle obj = renderObjects.get(name);
         if (obj == null) {
@@ -93,7 +182,7 @@ final class RenderObjectMap {
     }
 
     final boolean update(String name, ParameterList pl, SunflowAPI api) {
-        RenderObjectHandle obj = renderObjects.get(name);
+        RenderObjectHandle obj = get(name);
         boolean success;
         if (obj == null) {
             UI.printError(Module.API, "Unable to update \"%s\" - object was not defined yet", name);
@@ -139,6 +228,7 @@ final class RenderObjectMap {
             }
             Instance[] infinite = new Instance[numInfinite];
             Instance[] instance = new Instance[numInstance];
+            String[] names = new String[numInstance];
             numInfinite = numInstance = 0;
             for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
                 Instance i = e.getValue().getInstance();
@@ -148,53 +238,61 @@ final class RenderObjectMap {
                         numInfinite++;
                     } else if (!i.getBounds().isEmpty()) {
                         instance[numInstance] = i;
+                        names[numInstance] = e.getKey();
                         numInstance++;
                     }
                 }
             }
-            scene.setInstanceLists(instance, infinite);
+            // instances declared again under the same names take the place
+            // of the previous ones, so the top level structure can be refit
+            scene.setInstanceLists(instance, infinite, Arrays.equals(names, instanceNames));
+            instanceNames = names;
             rebuildInstanceList = false;
         }
         if (rebuildLightList) {
             UI.printInfo(Module.API, "Building scene light list for rendering ...");
             ArrayList<LightSource> lightList = new ArrayList<LightSource>();
+            ArrayList<String> nameList = new ArrayList<String>();
             for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
                 LightSource light = e.getValue().getLight();
-                if (light != null)
+                if (light != null) {
                     lightList.add(light);
-
+                    nameList.add(e.getKey());
+                }
             }
-            scene.setLightList(lightList.toArray(new LightSource[lightList.size()]));
+            String[] names = nameList.toArray(new String[nameList.size()]);
+            scene.setLightList(lightList.toArray(new LightSource[lightList.size()]), Arrays.equals(names, lightNames));
+            lightNames = names;
             rebuildLightList = false;
         }
     }
 
-    final void put(String name, Shader shader) {
-        renderObjects.put(name, new RenderObjectHandle(shader));
+    final void put(String name, String typeName, Shader shader) {
+        renderObjects.put(name, new RenderObjectHandle(shader, typeName));
     }
 
-    final void put(String name, Modifier modifier) {
-        renderObjects.put(name, new RenderObjectHandle(modifier));
+    final void put(String name, String typeName, Modifier modifier) {
+        renderObjects.put(name, new RenderObjectHandle(modifier, typeName));
     }
 
-    final void put(String name, PrimitiveList primitives) {
-        renderObjects.put(name, new RenderObjectHandle(primitives));
+    final void put(String name, String typeName, PrimitiveList primitives) {
+        renderObjects.put(name, new RenderObjectHandle(primitives, typeName));
     }
 
-    final void put(String name, Tesselatable tesselatable) {
-        renderObjects.put(name, new RenderObjectHandle(tesselatable));
+    final void put(String name, String typeName, Tesselatable tesselatable) {
+        renderObjects.put(name, new RenderObjectHandle(tesselatable, typeName));
     }
 
     final void put(String name, Instance instance) {
         renderObjects.put(name, new RenderObjectHandle(instance));
     }
 
-    final void put(String name, LightSource light) {
-        renderObjects.put(name, new RenderObjectHandle(light));
+    final void put(String name, String typeName, LightSource light) {
+        renderObjects.put(name, new RenderObjectHandle(light, typeName));
     }
 
-    final void put(String name, Camera camera) {
-        renderObjects.put(name, new RenderObjectHandle(camera));
+    final void put(String name, String typeName, Camera camera) {
+        renderObjects.put(name, new RenderObjectHandle(camera, typeName));
     }
 
     final void put(String name, Options options) {
@@ -204,49 +302,49 @@ final class RenderObjectMap {
     final Geometry lookupGeometry(String name) {
         if (name == null)
             return null;
-        RenderObjectHandle handle = renderObjects.get(name);
+        RenderObjectHandle handle = get(name);
         return (handle == null) ? null : handle.getGeometry();
     }
 
     final Instance lookupInstance(String name) {
         if (name == null)
             return null;
-        RenderObjectHandle handle = renderObjects.get(name);
+        RenderObjectHandle handle = get(name);
         return (handle == null) ? null : handle.getInstance();
     }
 
     final Camera lookupCamera(String name) {
         if (name == null)
             return null;
-        RenderObjectHandle handle = renderObjects.get(name);
+        RenderObjectHandle handle = get(name);
         return (handle == null) ? null : handle.getCamera();
     }
 
     final Options lookupOptions(String name) {
         if (name == null)
             return null;
-        RenderObjectHandle handle = renderObjects.get(name);
+        RenderObjectHandle handle = get(name);
         return (handle == null) ? null : handle.getOptions();
     }
 
     final Shader lookupShader(String name) {
         if (name == null)
             return null;
-        RenderObjectHandle handle = renderObjects.get(name);
+        RenderObjectHandle handle = get(name);
         return (handle == null) ? null : handle.getShader();
     }
 
     final Modifier lookupModifier(String name) {
         if (name == null)
             return null;
-        RenderObjectHandle handle = renderObjects.get(name);
+        RenderObjectHandle handle = get(name);
         return (handle == null) ? null : handle.getModifier();
     }
 
     final LightSource lookupLight(String name) {
         if (name == null)
             return null;
-        RenderObjectHandle handle = renderObjects.get(name);
+        RenderObjectHandle handle = get(name);
         return (handle == null) ? null : handle.getLight();
     }
 
@@ -261,45 +359,55 @@ final class RenderObjectMap {
     private static final class RenderObjectHandle {
         private final RenderObject obj;
         private final RenderObjectType type;
+        // plugin type the object was declared with
+        private final String typeName;
 
-        private RenderObjectHandle(Shader shader) {
+        private RenderObjectHandle(Shader shader, String typeName) {
             obj = shader;
             type = RenderObjectType.SHADER;
+            this.typeName = typeName;
         }
 
-        private RenderObjectHandle(Modifier modifier) {
+        private RenderObjectHandle(Modifier modifier, String typeName) {
             obj = modifier;
             type = RenderObjectType.MODIFIER;
+            this.typeName = typeName;
         }
 
-        private RenderObjectHandle(Tesselatable tesselatable) {
+        private RenderObjectHandle(Tesselatable tesselatable, String typeName) {
             obj = new Geometry(tesselatable);
             type = RenderObjectType.GEOMETRY;
+            this.typeName = typeName;
         }
 
-        private RenderObjectHandle(PrimitiveList prims) {
+        private RenderObjectHandle(PrimitiveList prims, String typeName) {
             obj = new Geometry(prims);
             type = RenderObjectType.GEOMETRY;
+            this.typeName = typeName;
         }
 
         private RenderObjectHandle(Instance instance) {
             obj = instance;
             type = RenderObjectType.INSTANCE;
+            typeName = null;
         }
 
-        private RenderObjectHandle(LightSource light) {
+        private RenderObjectHandle(LightSource light, String typeName) {
             obj = light;
             type = RenderObjectType.LIGHT;
+            this.typeName = typeName;
         }
 
-        private RenderObjectHandle(Camera camera) {
+        private RenderObjectHandle(Camera camera, String typeName) {
             obj = camera;
             type = RenderObjectType.CAMERA;
+            this.typeName = typeName;
         }
 
         private RenderObjectHandle(Options options) {
             obj = options;
             type = RenderObjectType.OPTIONS;
+            typeName = null;
         }
 
         private boolean update(ParameterList pl, SunflowAPI api) {
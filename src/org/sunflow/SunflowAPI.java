@@ -12,6 +12,7 @@ import org.codehaus.janino.CompileException;
 import org.codehaus.janino.Scanner;
 import org.codehaus.janino.Parser.ParseException;
 import org.codehaus.janino.Scanner.ScanException;
+import org.sunflow.RenderObjectMap.RenderObjectType;
 import org.sunflow.core.Camera;
 import org.sunflow.core.CameraLens;
 import org.sunflow.core.Display;
@@ -28,6 +29,7 @@ import org.sunflow.core.Scene;
 import org.sunflow.core.SceneParser;
 import org.sunflow.core.Shader;
 import org.sunflow.core.Tesselatable;
+import org.sunflow.core.parser.SCParser;
 import org.sunflow.core.ParameterList.InterpolationType;
 import org.sunflow.image.ColorFactory;
 import org.sunflow.image.ColorFactory.ColorSpecificationException;
@@ -263,17 +265,18 @@ public class SunflowAPI implements SunflowAPIInterface {
     public final void shader(String name, String shaderType) {
         if (!isIncremental(shaderType)) {
             // we are declaring a shader for the first time
-            if (renderObjects.has(name)) {
+            if (!renderObjects.canDeclare(name)) {
                 UI.printError(Module.API, "Unable to declare shader \"%s\", name is already in use", name);
                 parameterList.clear(true);
                 return;
             }
+            renderObjects.redeclare(name, RenderObjectType.SHADER, shaderType);
             Shader shader = PluginRegistry.shaderPlugins.createObject(shaderType);
             if (shader == null) {
                 UI.printError(Module.API, "Unable to create shader of type \"%s\"", shaderType);
                 return;
             }
-            renderObjects.put(name, shader);
+            renderObjects.put(name, shaderType, shader);
         }
         // update existing shader (only if it is valid)
         if (lookupShader(name) != null)
@@ -287,17 +290,18 @@ public class SunflowAPI implements SunflowAPIInterface {
     public final void modifier(String name, String modifierType) {
         if (!isIncremental(modifierType)) {
             // we are declaring a shader for the first time
-            if (renderObjects.has(name)) {
+            if (!renderObjects.canDeclare(name)) {
                 UI.printError(Module.API, "Unable to declare modifier \"%s\", name is already in use", name);
                 parameterList.clear(true);
                 return;
             }
+            renderObjects.redeclare(name, RenderObjectType.MODIFIER, modifierType);
             Modifier modifier = PluginRegistry.modifierPlugins.createObject(modifierType);
             if (modifier == null) {
                 UI.printError(Module.API, "Unable to create modifier of type \"%s\"", modifierType);
                 return;
             }
-            renderObjects.put(name, modifier);
+            renderObjects.put(name, modifierType, modifier);
         }
         // update existing shader (only if it is valid)
         if (lookupModifier(name) != null)
@@ -311,11 +315,12 @@ public class SunflowAPI implements SunflowAPIInterface {
     public final void geometry(String name, String typeName) {
         if (!isIncremental(typeName)) {
             // we are declaring a geometry for the first time
-            if (renderObjects.has(name)) {
+            if (!renderObjects.canDeclare(name)) {
                 UI.printError(Module.API, "Unable to declare geometry \"%s\", name is already in use", name);
                 parameterList.clear(true);
                 return;
             }
+            RenderObject previous = renderObjects.redeclare(name, RenderObjectType.GEOMETRY, typeName);
             // check tesselatable first
             if (PluginRegistry.tesselatablePlugins.hasType(typeName)) {
                 Tesselatable tesselatable = PluginRegistry.tesselatablePlugins.createObject(typeName);
@@ -323,15 +328,19 @@ public class SunflowAPI implements SunflowAPIInterface {
                     UI.printError(Module.API, "Unable to create tesselatable object of type \"%s\"", typeName);
                     return;
                 }
-                renderObjects.put(name, tesselatable);
+                renderObjects.put(name, typeName, tesselatable);
             } else {
                 PrimitiveList primitives = PluginRegistry.primitivePlugins.createObject(typeName);
                 if (primitives == null) {
                     UI.printError(Module.API, "Unable to create primitive of type \"%s\"", typeName);
                     return;
                 }
-                renderObjects.put(name, primitives);
+                renderObjects.put(name, typeName, primitives);
             }
+            // the geometry of the previous frame only hands over its
+            // acceleration structure, which is kept if the bounds match
+            if (previous != null)
+                lookupGeometry(name).inheritAccel((Geometry) previous);
         }
         if (lookupGeometry(name) != null)
             update(name);
@@ -344,12 +353,13 @@ public class SunflowAPI implements SunflowAPIInterface {
     public final void instance(String name, String geoname) {
         if (!isIncremental(geoname)) {
             // we are declaring this instance for the first time
-            if (renderObjects.has(name)) {
+            if (!renderObjects.canDeclare(name)) {
                 UI.printError(Module.API, "Unable to declare instance \"%s\", name is already in use", name);
                 parameterList.clear(true);
                 return;
             }
             parameter("geometry", geoname);
+            renderObjects.redeclare(name, RenderObjectType.INSTANCE, null);
             renderObjects.put(name, new Instance());
         }
         if (lookupInstance(name) != null)
@@ -363,17 +373,18 @@ public class SunflowAPI implements SunflowAPIInterface {
     public final void light(String name, String lightType) {
         if (!isIncremental(lightType)) {
             // we are declaring this light for the first time
-            if (renderObjects.has(name)) {
+            if (!renderObjects.canDeclare(name)) {
                 UI.printError(Module.API, "Unable to declare light \"%s\", name is already in use", name);
                 parameterList.clear(true);
                 return;
             }
+            renderObjects.redeclare(name, RenderObjectType.LIGHT, lightType);
             LightSource light = PluginRegistry.lightSourcePlugins.createObject(lightType);
             if (light == null) {
                 UI.printError(Module.API, "Unable to create light source of type \"%s\"", lightType);
                 return;
             }
-            renderObjects.put(name, light);
+            renderObjects.put(name, lightType, light);
         }
         if (lookupLight(name) != null)
             update(name);
@@ -386,17 +397,18 @@ public class SunflowAPI implements SunflowAPIInterface {
     public final void camera(String name, String lensType) {
         if (!isIncremental(lensType)) {
             // we are declaring this camera for the first time
-            if (renderObjects.has(name)) {
+            if (!renderObjects.canDeclare(name)) {
                 UI.printError(Module.API, "Unable to declare camera \"%s\", name is already in use", name);
                 parameterList.clear(true);
                 return;
             }
+            renderObjects.redeclare(name, RenderObjectType.CAMERA, lensType);
             CameraLens lens = PluginRegistry.cameraLensPlugins.createObject(lensType);
             if (lens == null) {
                 UI.printError(Module.API, "Unable to create a camera lens of type \"%s\"", lensType);
                 return;
             }
-            renderObjects.put(name, new Camera(lens));
+            renderObjects.put(name, lensType, new Camera(lens));
         }
         // update existing shader (only if it is valid)
         if (lookupCamera(name) != null)
@@ -409,11 +421,12 @@ public class SunflowAPI implements SunflowAPIInterface {
 
     public final void options(String name) {
         if (lookupOptions(name) == null) {
-            if (renderObjects.has(name)) {
+            if (!renderObjects.canDeclare(name)) {
                 UI.printError(Module.API, "Unable to declare options \"%s\", name is already in use", name);
                 parameterList.clear(true);
                 return;
             }
+            renderObjects.redeclare(name, RenderObjectType.OPTIONS, null);
             renderObjects.put(name, new Options());
         }
         assert lookupOptions(name) != null;
@@ -618,6 +631,37 @@ public class SunflowAPI implements SunflowAPIInterface {
         return api;
     }
 
+    /**
+     * Declare the scene of another frame over the current one, from the file
+     * this API object was created from with {@link #create(String, int)}.
+     * Every declaration creates a new object, exactly as in a new scene, and
+     * objects which are not declared again are removed. Geometry whose
+     * primitive bounds are unchanged takes over the acceleration structure of
+     * the previous frame, and the scene refits its top level structure when
+     * the same instances are declared again.
+     * 
+     * @param filename filename the scene was created from
+     * @param frameNumber frame to declare
+     * @return <code>true</code> upon success, <code>false</code> otherwise
+     */
+    public final boolean redeclare(String filename, int frameNumber) {
+        boolean success = true;
+        renderObjects.beginFrame();
+        SCParser.resetGeneratedNames(this);
+        if (filename.endsWith(".java")) {
+            Timer t = new Timer();
+            UI.printInfo(Module.API, "Build script running ...");
+            t.start();
+            currentFrame(frameNumber);
+            build();
+            t.end();
+            UI.printInfo(Module.API, "Build script time: %s", t.toString());
+        } else
+            success = include(filename);
+        renderObjects.endFrame();
+        return success;
+    }
+
     /**
      * Translate specfied file into the native sunflow scene file format.
      * 
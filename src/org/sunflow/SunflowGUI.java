@@ -47,9 +47,11 @@ import javax.swing.plaf.metal.MetalLookAndFeel;
 import org.sunflow.Benchmark;
 import org.sunflow.RealtimeBenchmark;
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.AccelerationStructureCache;
 import org.sunflow.core.Display;
 import org.sunflow.core.RenderObject;
 import org.sunflow.core.TextureCache;
+import org.sunflow.core.accel.BoundingVolumeHierarchy;
 import org.sunflow.core.accel.KDTree;
 import org.sunflow.core.display.FileDisplay;
 import org.sunflow.core.display.FrameDisplay;
@@ -141,8 +143,11 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             System.out.println("  -threads n       Render using n threads");
             System.out.println("  -lopri           Set thread priority to low (default)");
             System.out.println("  -hipri           Set thread priority to high");
-            System.out.println("  -smallmesh       Load triangle meshes using triangles optimized for memory use");
+            System.out.println("  -smallmesh       Load triangle meshes using triangles and BVH nodes optimized for memory use");
             System.out.println("  -dumpkd          Dump KDTree to an obj file for visualization");
+            System.out.println("  -accelcache dir  Cache acceleration structures of large meshes in the specified directory");
+            System.out.println("  -texcache dir    Convert large textures to tiled files in the specified directory and load them on demand");
+            System.out.println("  -texmem mb       Set the memory budget for tiled textures in megabytes (default 256)");
             System.out.println("  -buildonly       Do not call render method after loading the scene");
             System.out.println("  -showaa          Display sampling levels per pixel for bucket renderer");
             System.out.println("  -nogi            Disable any global illumination engines in the scene");
@@ -231,10 +236,26 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                     i += 2;
                 } else if (args[i].equals("-smallmesh")) {
                     TriangleMesh.setSmallTriangles(true);
+                    BoundingVolumeHierarchy.setCompactNodes(true);
                     i++;
                 } else if (args[i].equals("-dumpkd")) {
                     KDTree.setDumpMode(true, "kdtree");
                     i++;
+                } else if (args[i].equals("-accelcache")) {
+                    if (i > args.length - 2)
+                        usage(false);
+                    AccelerationStructureCache.setDirectory(args[i + 1]);
+                    i += 2;
+                } else if (args[i].equals("-texcache")) {
+                    if (i > args.length - 2)
+                        usage(false);
+                    TextureCache.setDirectory(args[i + 1]);
+                    i += 2;
+                } else if (args[i].equals("-texmem")) {
+                    if (i > args.length - 2)
+                        usage(false);
+                    TextureCache.setMemoryLimit(Integer.parseInt(args[i + 1]));
+                    i += 2;
                 } else if (args[i].equals("-buildonly")) {
                     noRender = true;
                     i++;
@@ -395,8 +416,14 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 filename = "output.#.png";
                 UI.printWarning(Module.GUI, "Animation output was not specified - defaulting to: \"%s\"", filename);
             }
+            SunflowAPI api = null;
             for (int frameNumber = frameStart; frameNumber <= frameStop; frameNumber++) {
-                SunflowAPI api = SunflowAPI.create(input, frameNumber);
+                // later frames are declared over the previous one, so
+                // unchanged acceleration structures are kept
+                if (api == null)
+                    api = SunflowAPI.create(input, frameNumber);
+                else if (!api.redeclare(input, frameNumber))
+                    api = null;
                 if (api == null)
                     continue;
                 if (noRender)
@@ -1138,6 +1165,7 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
 
     private void smallTrianglesMenuItemActionPerformed(ActionEvent evt) {
         TriangleMesh.setSmallTriangles(smallTrianglesMenuItem.isSelected());
+        BoundingVolumeHierarchy.setCompactNodes(smallTrianglesMenuItem.isSelected());
     }
 
     private void saveAsMenuItemActionPerformed(ActionEvent evt) {
@@ -0,0 +1,223 @@
+package org.sunflow.core;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Optional on-disk cache of built acceleration structures. Files are keyed by
+ * the type of structure and a hash of the bounds of every primitive, which
+ * are the only inputs of the tree builders, so the same mesh is only built
+ * once across renders and frames. Files are streamed through a file channel
+ * rather than mapped, so no mapping keeps a file locked while it is renamed
+ * or replaced. The cache is disabled until a directory is set.
+ */
+public final class AccelerationStructureCache {
+    private static final int MAGIC = 0x53464143; // "SFAC"
+    private static final int VERSION = 1;
+    // small structures build faster than they can be hashed and loaded
+    private static final int MIN_PRIMITIVES = 1000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static File directory = null;
+
+    private AccelerationStructureCache() {
+    }
+
+    /**
+     * Enable the cache and store files in the specified directory, or disable
+     * it if <code>null</code> is passed.
+     * 
+     * @param dir cache directory, will be created if needed
+     */
+    public static synchronized void setDirectory(String dir) {
+        directory = dir == null ? null : new File(dir);
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            UI.printWarning(Module.ACCEL, "Unable to create accelerator cache directory \"%s\" - cache disabled", dir);
+            directory = null;
+        }
+    }
+
+    private static synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Build the specified structure, or restore it from the cache if it was
+     * built for the same primitives before.
+     * 
+     * @param accel structure to build
+     * @param primitives primitives to build it for
+     */
+    static void build(AccelerationStructure accel, PrimitiveList primitives) {
+        File dir = getDirectory();
+        int n = primitives.getNumPrimitives();
+        if (dir == null || n < MIN_PRIMITIVES || !(accel instanceof CacheableAccelerationStructure)) {
+            accel.build(primitives);
+            return;
+        }
+        CacheableAccelerationStructure cacheable = (CacheableAccelerationStructure) accel;
+        File file = new File(dir, String.format("%s-%s.accel", accel.getClass().getSimpleName(), hash(primitives)));
+        if (file.isFile()) {
+            Timer t = new Timer();
+            t.start();
+            int[][] data = read(file);
+            if (data != null && cacheable.setCacheData(primitives, data)) {
+                t.end();
+                UI.printInfo(Module.ACCEL, "Loaded cached acceleration structure \"%s\" in %s", file.getName(), t);
+                return;
+            }
+            UI.printWarning(Module.ACCEL, "Ignoring invalid cached acceleration structure \"%s\"", file.getName());
+        }
+        accel.build(primitives);
+        write(file, cacheable.getCacheData());
+    }
+
+    /**
+     * Compute a digest of the bounds of all primitives in the list. Two lists
+     * with the same digest produce the same acceleration structures.
+     * 
+     * @param primitives primitive list to hash
+     * @return hexadecimal digest string
+     */
+    static String hash(PrimitiveList primitives) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        int n = primitives.getNumPrimitives();
+        ByteBuffer buffer = ByteBuffer.allocate(6 * 4 * 1024);
+        buffer.putInt(VERSION);
+        buffer.putInt(n);
+        for (int i = 0; i < n; i++) {
+            if (buffer.remaining() < 6 * 4) {
+                digest.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            for (int j = 0; j < 6; j++)
+                buffer.putFloat(primitives.getPrimitiveBound(i, j));
+        }
+        digest.update(buffer.array(), 0, buffer.position());
+        StringBuilder s = new StringBuilder();
+        for (byte b : digest.digest())
+            s.append(String.format("%02x", b & 0xFF));
+        return s.toString();
+    }
+
+    private static int[][] read(File file) {
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                if (size < 12 || (size & 3) != 0)
+                    return null;
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                buffer.flip();
+                if (readInt(channel, buffer) != MAGIC || readInt(channel, buffer) != VERSION)
+                    return null;
+                int numArrays = readInt(channel, buffer);
+                if (numArrays < 0 || numArrays > size / 4 - 3)
+                    return null;
+                long total = 3 + numArrays;
+                int[] lengths = new int[numArrays];
+                for (int i = 0; i < numArrays; i++) {
+                    lengths[i] = readInt(channel, buffer);
+                    if (lengths[i] < 0)
+                        return null;
+                    total += lengths[i];
+                }
+                if (4 * total != size)
+                    return null;
+                int[][] data = new int[numArrays][];
+                for (int i = 0; i < numArrays; i++) {
+                    data[i] = new int[lengths[i]];
+                    for (int j = 0; j < lengths[i]; j++)
+                        data[i][j] = readInt(channel, buffer);
+                }
+                return data;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            UI.printWarning(Module.ACCEL, "Unable to read cached acceleration structure \"%s\": %s", file.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static void write(File file, int[][] data) {
+        // write to a temporary file first, so other processes sharing the
+        // cache never see a partial file
+        File temp = new File(file.getParentFile(), file.getName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            long total = 3 + data.length;
+            for (int[] a : data)
+                total += a.length;
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                FileChannel channel = out.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                writeInt(channel, buffer, MAGIC);
+                writeInt(channel, buffer, VERSION);
+                writeInt(channel, buffer, data.length);
+                for (int[] a : data)
+                    writeInt(channel, buffer, a.length);
+                for (int[] a : data)
+                    for (int v : a)
+                        writeInt(channel, buffer, v);
+                flush(channel, buffer);
+                if (channel.size() != 4 * total)
+                    throw new IOException("short write");
+                channel.force(false);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                if (!file.isFile())
+                    UI.printWarning(Module.ACCEL, "Unable to save cached acceleration structure \"%s\"", file.getName());
+                return;
+            }
+            UI.printInfo(Module.ACCEL, "Saved acceleration structure to cache file \"%s\"", file.getName());
+        } catch (IOException e) {
+            temp.delete();
+            UI.printWarning(Module.ACCEL, "Unable to save cached acceleration structure \"%s\": %s", file.getName(), e.getMessage());
+        }
+    }
+
+    private static int readInt(FileChannel channel, ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            buffer.compact();
+            while (buffer.position() < 4)
+                if (channel.read(buffer) < 0)
+                    throw new EOFException();
+            buffer.flip();
+        }
+        return buffer.getInt();
+    }
+
+    private static void writeInt(FileChannel channel, ByteBuffer buffer, int v) throws IOException {
+        if (buffer.remaining() < 4)
+            flush(channel, buffer);
+        buffer.putInt(v);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
\ No newline at end of file
@@ -7,6 +7,8 @@ import org.sunflow.system.UI.Module;
 class AccelerationStructureFactory {
     static final AccelerationStructure create(String name, int n, boolean primitives) {
         if (name == null || name.equals("auto")) {
+            // the bvh is only used when requested by name: it did not
+            // render faster than the kdtree or bih at any mesh size measured
             if (primitives) {
                 if (n > 20000000)
                     name = "uniformgrid";
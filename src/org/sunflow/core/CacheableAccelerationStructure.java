@@ -0,0 +1,29 @@
+package org.sunflow.core;
+
+/**
+ * An {@link AccelerationStructure} whose built state can be stored in the
+ * on-disk {@link AccelerationStructureCache}. The structure must be a pure
+ * function of the bounds of the primitives, so that it can be restored for
+ * any primitive list with the same bounds.
+ */
+public interface CacheableAccelerationStructure extends AccelerationStructure {
+    /**
+     * Get the arrays which completely describe the built structure. Floating
+     * point data must be stored as raw int bits.
+     * 
+     * @return arrays to be saved
+     */
+    public int[][] getCacheData();
+
+    /**
+     * Restore the structure from arrays previously returned by
+     * {@link #getCacheData()}. This replaces the call to
+     * {@link #build(PrimitiveList)}.
+     * 
+     * @param primitives primitives the structure was built for
+     * @param data cached arrays
+     * @return <code>true</code> if the data was valid, <code>false</code>
+     *         if the structure must be rebuilt
+     */
+    public boolean setCacheData(PrimitiveList primitives, int[][] data);
+}
\ No newline at end of file
@@ -0,0 +1,27 @@
+package org.sunflow.core;
+
+/**
+ * A {@link GIEngine} which caches indirect illumination across the image.
+ * Such engines can fill their cache before the image sampler starts, and get a
+ * chance to store it once the image is done so it can be reused by later
+ * frames.
+ */
+public interface CachingGIEngine extends GIEngine {
+    /**
+     * Fill the cache ahead of rendering. This is called after all photon maps
+     * have been built, right before the image sampler starts.
+     * 
+     * @param scene scene being rendered
+     * @param imageWidth width of the image in pixels
+     * @param imageHeight height of the image in pixels
+     * @return <code>true</code> if the prepass succeeded,
+     *         <code>false</code> if rendering should be aborted
+     */
+    public boolean prepass(Scene scene, int imageWidth, int imageHeight);
+
+    /**
+     * Called once the image sampler has rendered the whole image. This is not
+     * called if rendering was aborted, so the cache may be incomplete.
+     */
+    public void renderFinished();
+}
\ No newline at end of file
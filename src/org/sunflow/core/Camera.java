@@ -18,12 +18,14 @@ public class Camera implements RenderObject {
     private float shutterClose;
     private MovingMatrix4 c2w;
     private MovingMatrix4 w2c;
+    private float footprintScale;
 
     public Camera(CameraLens lens) {
         this.lens = lens;
         c2w = new MovingMatrix4(null);
         w2c = new MovingMatrix4(null);
         shutterOpen = shutterClose = 0;
+        footprintScale = 1;
     }
 
     public boolean update(ParameterList pl, SunflowAPI api) {
@@ -38,6 +40,17 @@ public class Camera implements RenderObject {
         return lens.update(pl, api);
     }
 
+    /**
+     * Sets the number of samples taken per pixel area. The ray differentials
+     * shrink with the spacing between samples, so each ray only covers its
+     * own share of the pixel.
+     * 
+     * @param n average number of samples per pixel
+     */
+    void setSamplesPerPixel(float n) {
+        footprintScale = n > 0 ? 1 / (float) Math.sqrt(n) : 1;
+    }
+
     /**
      * Computes actual time from a time sample in the interval [0,1). This
      * random number is mapped somewhere between the shutterOpen and
@@ -81,6 +94,15 @@ public class Camera implements RenderObject {
     public Ray getRay(float x, float y, int imageWidth, int imageHeight, double lensX, double lensY, float time) {
         Ray r = lens.getRay(x, y, imageWidth, imageHeight, lensX, lensY, time);
         if (r != null) {
+            // estimate the ray differentials from the rays through the
+            // neighbouring pixels, scaled down to the sample spacing
+            Ray rx = lens.getRay(x + 1, y, imageWidth, imageHeight, lensX, lensY, time);
+            Ray ry = lens.getRay(x, y + 1, imageWidth, imageHeight, lensX, lensY, time);
+            if (rx != null && ry != null) {
+                float width = Math.max(distance(r.ox, r.oy, r.oz, rx.ox, rx.oy, rx.oz), distance(r.ox, r.oy, r.oz, ry.ox, ry.oy, ry.oz));
+                float spread = Math.max(distance(r.dx, r.dy, r.dz, rx.dx, rx.dy, rx.dz), distance(r.dx, r.dy, r.dz, ry.dx, ry.dy, ry.dz));
+                r.setDifferentials(width * footprintScale, spread * footprintScale);
+            }
             // transform from camera space to world space
             r = r.transform(c2w.sample(time));
             // renormalize to account for scale factors embeded in the transform
@@ -89,6 +111,13 @@ public class Camera implements RenderObject {
         return r;
     }
 
+    private static float distance(float x0, float y0, float z0, float x1, float y1, float z1) {
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        float dz = z1 - z0;
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
     /**
      * Generate a ray from the origin of camera space toward the specified
      * point.
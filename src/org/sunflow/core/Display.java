@@ -38,7 +38,9 @@ public interface Display {
      * necessary. Colors are passed in unprocessed. It is up the display driver
      * to do any type of quantization, gamma compensation or tone-mapping
      * needed. The array of colors will be exactly <code>w * h</code> long and
-     * in row major order.
+     * in row major order. The arrays and colors are owned by the caller and
+     * may be reused for the next bucket once this method returns, so the
+     * display must copy any data it needs to keep.
      * 
      * @param x x coordinate of the bucket within the image
      * @param y y coordinate of the bucket within the image
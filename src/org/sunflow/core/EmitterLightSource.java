@@ -0,0 +1,48 @@
+package org.sunflow.core;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Vector3;
+
+/**
+ * A {@link LightSource} made of emitters which can be sampled on their own,
+ * like the triangles of an emissive mesh. The {@link LightServer} can arrange
+ * the emitters of all such lights into a hierarchy and only sample the ones
+ * which matter most at each shading point, instead of calling
+ * {@link LightSource#getSamples(ShadingState)} on every light.
+ */
+public interface EmitterLightSource extends LightSource {
+    /**
+     * Get the number of emitters this light is made of. Lights which should
+     * not be sampled at all can return 0.
+     * 
+     * @return number of emitters
+     */
+    public int getNumEmitters();
+
+    /**
+     * Describe the specified emitter for building the light hierarchy.
+     * 
+     * @param i emitter index
+     * @param bounds box which receives the bounds of the emitter
+     * @param normal receives the direction around which the emitter emits
+     *            light into a hemisphere, or is set to 0 for emitters which
+     *            emit light in all directions
+     * @return power emitted by the emitter, in the same units as
+     *         {@link LightSource#getPower()}
+     */
+    public float getEmitter(int i, BoundingBox bounds, Vector3 normal);
+
+    /**
+     * Take a single sample from the specified emitter. Like
+     * {@link LightSource#getSamples(ShadingState)}, this is responsible for
+     * tracing the shadow ray and adding the sample to the state.
+     * 
+     * @param i emitter index
+     * @param state current state, including point to be shaded
+     * @param randX sampling parameter
+     * @param randY sampling parameter
+     * @param pdf the radiance of the sample is divided by this value, to
+     *            account for the probability of picking this emitter
+     */
+    public void getEmitterSample(int i, ShadingState state, double randX, double randY, float pdf);
+}
\ No newline at end of file
@@ -20,6 +20,13 @@ public class Geometry implements RenderObject {
     private int builtAccel;
     private int builtTess;
     private String acceltype;
+    // structure kept from before the last update, in case it is still valid
+    private AccelerationStructure previousAccel;
+    private PrimitiveList previousPrimitives;
+    private String previousHash;
+    private String previousType;
+    // digest of the primitive bounds the structure was built for, if known
+    private String accelHash;
 
     /**
      * Create a geometry from the specified tesselatable object. The actual
@@ -51,6 +58,11 @@ public class Geometry implements RenderObject {
     }
 
     public boolean update(ParameterList pl, SunflowAPI api) {
+        // remember the current structure, it can be kept if the update leaves
+        // the primitive bounds unchanged
+        if (builtAccel != 0)
+            rememberAccel(this);
+        accelHash = null;
         acceltype = pl.getString("accel", acceltype);
         // clear up old tesselation if it exists
         if (tesselatable != null) {
@@ -66,6 +78,32 @@ public class Geometry implements RenderObject {
         return primitives.update(pl, api);
     }
 
+    /**
+     * Offer the acceleration structure of the geometry this one replaces. It
+     * is kept when this geometry is built if the primitive bounds and the
+     * structure type are the same, so redeclaring an unchanged object does
+     * not rebuild it. Nothing else is taken from the old geometry.
+     * 
+     * @param g geometry replaced by this one
+     */
+    public void inheritAccel(Geometry g) {
+        rememberAccel(g);
+    }
+
+    private void rememberAccel(Geometry g) {
+        previousAccel = null;
+        previousPrimitives = null;
+        previousHash = null;
+        previousType = null;
+        if (g.builtAccel != 0 && g.primitives != null && g.primitives.getNumPrimitives() >= 1000) {
+            previousAccel = g.accel;
+            previousPrimitives = g.primitives;
+            previousType = g.acceltype;
+            // only hash once, the digest is kept across repeated updates
+            previousHash = g.accelHash != null ? g.accelHash : AccelerationStructureCache.hash(g.primitives);
+        }
+    }
+
     int getNumPrimitives() {
         return primitives == null ? 0 : primitives.getNumPrimitives();
     }
@@ -93,6 +131,17 @@ public class Geometry implements RenderObject {
         accel.intersect(r, state);
     }
 
+    void intersect(RayPacket packet, IntersectionState state) {
+        if (builtTess == 0)
+            tesselate();
+        if (builtAccel == 0)
+            build();
+        if (accel instanceof PacketAccelerationStructure)
+            ((PacketAccelerationStructure) accel).intersect(packet, state);
+        else
+            packet.intersect(accel, state);
+    }
+
     private synchronized void tesselate() {
         // double check flag
         if (builtTess != 0)
@@ -114,10 +163,13 @@ public class Geometry implements RenderObject {
             return;
         if (primitives != null) {
             int n = primitives.getNumPrimitives();
-            if (n >= 1000)
-                UI.printInfo(Module.GEOM, "Building acceleration structure for %d primitives ...", n);
-            accel = AccelerationStructureFactory.create(acceltype, n, true);
-            accel.build(primitives);
+            accel = reusePreviousAccel();
+            if (accel == null) {
+                if (n >= 1000)
+                    UI.printInfo(Module.GEOM, "Building acceleration structure for %d primitives ...", n);
+                accel = AccelerationStructureFactory.create(acceltype, n, true);
+                AccelerationStructureCache.build(accel, primitives);
+            }
         } else {
             // create an empty accelerator to avoid having to check for null
             // pointers in the intersect method
@@ -126,6 +178,42 @@ public class Geometry implements RenderObject {
         builtAccel = 1;
     }
 
+    /**
+     * Get the acceleration structure from before the last update, or of the
+     * geometry this one replaced, if the primitive bounds did not change since
+     * then. The structures only depend on the bounds, so they are still valid
+     * in that case.
+     * 
+     * @return the previous structure, or <code>null</code> if it must be
+     *         rebuilt
+     */
+    private AccelerationStructure reusePreviousAccel() {
+        AccelerationStructure a = previousAccel;
+        PrimitiveList p = previousPrimitives;
+        String h = previousHash;
+        String type = previousType;
+        previousAccel = null;
+        previousPrimitives = null;
+        previousHash = null;
+        previousType = null;
+        if (a == null || !(type == null ? acceltype == null : type.equals(acceltype)))
+            return null;
+        // remember the digest, so the next update does not need to hash
+        accelHash = AccelerationStructureCache.hash(primitives);
+        if (!h.equals(accelHash))
+            return null;
+        if (p != primitives) {
+            // new primitive list object - point the structure to it
+            if (!(a instanceof CacheableAccelerationStructure))
+                return null;
+            CacheableAccelerationStructure c = (CacheableAccelerationStructure) a;
+            if (!c.setCacheData(primitives, c.getCacheData()))
+                return null;
+        }
+        UI.printInfo(Module.GEOM, "Primitive bounds are unchanged - keeping acceleration structure");
+        return a;
+    }
+
     void prepareShadingState(ShadingState state) {
         primitives.prepareShadingState(state);
     }
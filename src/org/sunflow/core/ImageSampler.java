@@ -20,6 +20,8 @@ public interface ImageSampler {
      * returns.
      * 
      * @param display Display driver to send image data to
+     * @return <code>true</code> if the whole image was rendered,
+     *         <code>false</code> if rendering was aborted
      */
-    public void render(Display display);
+    public boolean render(Display display);
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ public class Instance implements RenderObject {
     private Geometry geometry;
     private Shader[] shaders;
     private Modifier[] modifiers;
+    private boolean opaqueShadows;
 
     public Instance() {
         o2w = new MovingMatrix4(null);
@@ -27,6 +28,7 @@ public class Instance implements RenderObject {
         geometry = null;
         shaders = null;
         modifiers = null;
+        opaqueShadows = true;
     }
 
     public static Instance createTemporary(PrimitiveList primitives, Matrix4 transform, Shader shader) {
@@ -39,6 +41,7 @@ public class Instance implements RenderObject {
         }
         i.geometry = new Geometry(primitives);
         i.shaders = new Shader[] { shader };
+        i.updateShadowOpacity();
         i.updateBounds();
         return i;
     }
@@ -68,6 +71,7 @@ public class Instance implements RenderObject {
         } else {
             // re-use existing shader array
         }
+        updateShadowOpacity();
         String[] modifierNames = pl.getStringArray("modifiers", null);
         if (modifierNames != null) {
             // new modifier names have been provided
@@ -118,6 +122,25 @@ public class Instance implements RenderObject {
                 if (shaders[i] == s)
                     shaders[i] = null;
         }
+        updateShadowOpacity();
+    }
+
+    private void updateShadowOpacity() {
+        opaqueShadows = true;
+        if (shaders != null)
+            for (Shader s : shaders)
+                if (s instanceof AlphaShader)
+                    opaqueShadows = false;
+    }
+
+    /**
+     * Checks to see if all shaders of this instance block shadow rays
+     * completely. Shadow rays can stop at the first such hit.
+     * 
+     * @return <code>false</code> if some shader has transparent shadows
+     */
+    boolean hasOpaqueShadows() {
+        return opaqueShadows;
     }
 
     /**
@@ -155,6 +178,14 @@ public class Instance implements RenderObject {
         r.setMax(localRay.getMax());
     }
 
+    void intersect(RayPacket packet, int mask, IntersectionState state) {
+        RayPacket localPacket = state.getLocalPacket();
+        localPacket.transform(packet, mask, this);
+        state.current = this;
+        geometry.intersect(localPacket, state);
+        localPacket.transferHits(packet);
+    }
+
     /**
      * Prepare the shading state for shader invocation. This also runs the
      * currently attached surface modifier.
@@ -1,5 +1,7 @@
 package org.sunflow.core;
 
+import java.util.Arrays;
+
 import org.sunflow.SunflowAPI;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
@@ -26,6 +28,17 @@ final class InstanceList implements PrimitiveList {
         lights = new Instance[0];
     }
 
+    /**
+     * Checks to see if this list holds exactly the specified instances, in the
+     * same order. Light source instances are not compared.
+     * 
+     * @param instances instances to compare with
+     * @return <code>true</code> if the regular instances are the same
+     */
+    boolean hasInstances(Instance[] instances) {
+        return Arrays.equals(this.instances, instances);
+    }
+
     public final float getPrimitiveBound(int primID, int i) {
         if (primID < instances.length)
             return instances[primID].getBounds().getBound(i);
@@ -49,6 +62,13 @@ final class InstanceList implements PrimitiveList {
             lights[primID - instances.length].intersect(r, state);
     }
 
+    final void intersectPrimitive(RayPacket packet, int primID, int mask, IntersectionState state) {
+        if (primID < instances.length)
+            instances[primID].intersect(packet, mask, state);
+        else
+            lights[primID - instances.length].intersect(packet, mask, state);
+    }
+
     public final int getNumPrimitives() {
         return instances.length + lights.length;
     }
@@ -12,13 +12,24 @@ public final class IntersectionState {
     Instance instance;
     int id;
     private final StackNode[][] stacks = new StackNode[2][MAX_STACK_SIZE];
+    private final float[][] boxStacks = new float[2][];
+    private final RayPacket[] packets = new RayPacket[2];
+    private ShadingState[] shadingStates = new ShadingState[16];
     Instance current;
+    boolean shadowQuery;
     long numEyeRays;
     long numShadowRays;
     long numReflectionRays;
     long numGlossyRays;
     long numRefractionRays;
     long numRays;
+    long numOccludedShadowRays;
+    long numShadowSkippedNodes;
+    long numIrradianceCacheHits;
+    long numIrradianceCacheMisses;
+    long numIrradianceCacheInserts;
+    long numRouletteRays;
+    long numRouletteSkippedRays;
 
     /**
      * Traversal stack node, helps with tree-based {@link AccelerationStructure}
@@ -59,6 +70,86 @@ public final class IntersectionState {
         return current == null ? stacks[0] : stacks[1];
     }
 
+    /**
+     * Get the box stack for tree based {@link AccelerationStructure}s which
+     * need to remember the bounds of postponed nodes. The array holds six
+     * floats for each entry of the node stack, plus six more for the node
+     * being visited.
+     * 
+     * @return array of box bounds
+     */
+    public final float[] getBoxStack() {
+        int i = current == null ? 0 : 1;
+        if (boxStacks[i] == null)
+            boxStacks[i] = new float[6 * (MAX_STACK_SIZE + 1)];
+        return boxStacks[i];
+    }
+
+    /**
+     * Get the packet used to trace primary rays through the scene.
+     * 
+     * @return world space ray packet
+     */
+    final RayPacket getPacket() {
+        if (packets[0] == null)
+            packets[0] = new RayPacket();
+        return packets[0];
+    }
+
+    /**
+     * Get the packet used to hold rays transformed into instance space.
+     * 
+     * @return local space ray packet
+     */
+    final RayPacket getLocalPacket() {
+        if (packets[1] == null)
+            packets[1] = new RayPacket();
+        return packets[1];
+    }
+
+    /**
+     * Get the reusable shading state for the specified nesting level of the
+     * current ray tree. Since rays are traced depth first, only one state per
+     * level is alive at any time, so each thread can recycle the same objects
+     * instead of allocating new ones at every bounce.
+     * 
+     * @param level nesting level of the state, starting at 0
+     * @return shading state reserved for this level
+     */
+    final ShadingState getShadingState(int level) {
+        if (level >= shadingStates.length) {
+            ShadingState[] oldStates = shadingStates;
+            shadingStates = new ShadingState[Math.max(2 * oldStates.length, level + 1)];
+            System.arraycopy(oldStates, 0, shadingStates, 0, oldStates.length);
+        }
+        if (shadingStates[level] == null)
+            shadingStates[level] = new ShadingState();
+        return shadingStates[level];
+    }
+
+    /**
+     * Checks to see if the current ray is only tracing for occlusion and has
+     * already hit a surface which blocks all light. In this case
+     * {@link AccelerationStructure}s can stop traversal right away instead of
+     * looking for the closest hit. Hits on surfaces with transparent shadows
+     * don't count, since those must be shaded at the closest hit.
+     * 
+     * @return <code>true</code> if traversal may stop
+     */
+    public final boolean isOccluded() {
+        return shadowQuery && instance != null && instance.hasOpaqueShadows();
+    }
+
+    /**
+     * Record that a shadow query stopped traversal early, leaving the
+     * specified number of nodes unvisited.
+     * 
+     * @param skippedNodes number of nodes left on the traversal stack
+     */
+    public final void skipShadowNodes(int skippedNodes) {
+        numShadowSkippedNodes += skippedNodes;
+    }
+
     /**
      * Checks to see if a hit has been recorded.
      * 
@@ -1,9 +1,13 @@
 package org.sunflow.core;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.sunflow.PluginRegistry;
 import org.sunflow.core.Shader;
 import org.sunflow.core.AlphaShader;
 import org.sunflow.image.Color;
+import org.sunflow.math.AliasTable;
 import org.sunflow.math.Point3;
 import org.sunflow.math.QMC;
 import org.sunflow.math.Vector3;
@@ -12,11 +16,19 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 class LightServer {
+    // number of photons each thread traces between progress updates
+    private static final int PHOTON_BATCH = 256;
+    // shader classes which can be run without allocating their result
+    private static final ConcurrentHashMap<Class<?>, Boolean> radianceShaders = new ConcurrentHashMap<Class<?>, Boolean>();
+
     // parent
     private Scene scene;
 
     // lighting
     LightSource[] lights;
+    private LightTree lightTree;
+    private int lightTreeSamples;
+    private AliasTable lightPowers;
 
     // shading override
     private Shader shaderOverride;
@@ -30,7 +42,7 @@ class LightServer {
     // indirect illumination
     private CausticPhotonMapInterface causticPhotonMap;
     private GIEngine giEngine;
-    private int photonCounter;
+    private AtomicInteger photonCounter;
 
     LightServer(Scene scene) {
         this.scene = scene;
@@ -46,6 +58,10 @@ class LightServer {
 
         causticPhotonMap = null;
         giEngine = null;
+
+        lightTree = null;
+        lightTreeSamples = 16;
+        lightPowers = null;
     }
 
     void setLights(LightSource[] lights) {
@@ -70,18 +86,30 @@ class LightServer {
         giEngine = PluginRegistry.giEnginePlugins.createObject(giEngineType);
         String caustics = options.getString("caustics", null);
         causticPhotonMap = PluginRegistry.causticPhotonMapPlugins.createObject(caustics);
+        boolean useLightTree = options.getBoolean("lights.tree", false);
+        lightTreeSamples = options.getInt("lights.tree.samples", lightTreeSamples);
 
         // validate options
         maxDiffuseDepth = Math.max(0, maxDiffuseDepth);
         maxReflectionDepth = Math.max(0, maxReflectionDepth);
         maxRefractionDepth = Math.max(0, maxRefractionDepth);
+        lightTreeSamples = Math.max(1, lightTreeSamples);
 
         Timer t = new Timer();
         t.start();
         // count total number of light samples
         int numLightSamples = 0;
-        for (int i = 0; i < lights.length; i++)
+        float[] powers = new float[lights.length];
+        for (int i = 0; i < lights.length; i++) {
             numLightSamples += lights[i].getNumSamples();
+            powers[i] = lights[i].getPower();
+        }
+        // table for picking photon emitting lights
+        lightPowers = new AliasTable(powers);
+        // build light hierarchy
+        lightTree = useLightTree ? LightTree.build(lights) : null;
+        if (useLightTree && lightTree == null)
+            UI.printWarning(Module.LIGHT, "No lights can be sampled through the light tree - using per light sampling");
         // initialize gi engine
         if (giEngine != null) {
             if (!giEngine.init(options, scene))
@@ -94,6 +122,11 @@ class LightServer {
         UI.printInfo(Module.LIGHT, "Light Server stats:");
         UI.printInfo(Module.LIGHT, "  * Light sources found: %d", lights.length);
         UI.printInfo(Module.LIGHT, "  * Light samples:       %d", numLightSamples);
+        if (lightTree != null) {
+            UI.printInfo(Module.LIGHT, "  * Light tree:");
+            UI.printInfo(Module.LIGHT, "      - Emitters         %d", lightTree.getNumEmitters());
+            UI.printInfo(Module.LIGHT, "      - Samples          %d", lightTreeSamples);
+        }
         UI.printInfo(Module.LIGHT, "  * Max raytrace depth:");
         UI.printInfo(Module.LIGHT, "      - Diffuse          %d", maxDiffuseDepth);
         UI.printInfo(Module.LIGHT, "      - Reflection       %d", maxReflectionDepth);
@@ -106,6 +139,23 @@ class LightServer {
         return true;
     }
 
+    /**
+     * Give a caching GI engine the chance to fill its cache before the image
+     * is rendered.
+     * 
+     * @return <code>false</code> if rendering should be aborted
+     */
+    boolean prepass(int imageWidth, int imageHeight) {
+        if (giEngine instanceof CachingGIEngine)
+            return ((CachingGIEngine) giEngine).prepass(scene, imageWidth, imageHeight);
+        return true;
+    }
+
+    void renderFinished() {
+        if (giEngine instanceof CachingGIEngine)
+            ((CachingGIEngine) giEngine).renderFinished();
+    }
+
     void showStats() {
     }
 
@@ -116,14 +166,10 @@ class LightServer {
             UI.printError(Module.LIGHT, "Unable to trace %s photons, no lights in scene", type);
             return false;
         }
-        final float[] histogram = new float[lights.length];
-        histogram[0] = lights[0].getPower();
-        for (int i = 1; i < lights.length; i++)
-            histogram[i] = histogram[i - 1] + lights[i].getPower();
         UI.printInfo(Module.LIGHT, "Tracing %s photons ...", type);
         map.prepare(options, scene.getBounds());
         int numEmittedPhotons = map.numEmit();
-        if (numEmittedPhotons <= 0 || histogram[histogram.length - 1] <= 0) {
+        if (numEmittedPhotons <= 0 || lightPowers.getTotal() <= 0) {
             UI.printError(Module.LIGHT, "Photon mapping enabled, but no %s photons to emit", type);
             return false;
         }
@@ -131,7 +177,7 @@ class LightServer {
         Thread[] photonThreads = new Thread[scene.getThreads()];
         final float scale = 1.0f / numEmittedPhotons;
         int delta = numEmittedPhotons / photonThreads.length;
-        photonCounter = 0;
+        photonCounter = new AtomicInteger();
         Timer photonTimer = new Timer();
         photonTimer.start();
         for (int i = 0; i < photonThreads.length; i++) {
@@ -142,24 +188,17 @@ class LightServer {
                 public void run() {
                     IntersectionState istate = new IntersectionState();
                     for (int i = start; i < end; i++) {
-                        synchronized (LightServer.this) {
-                            UI.taskUpdate(photonCounter);
-                            photonCounter++;
+                        if (((i - start) % PHOTON_BATCH) == 0) {
+                            UI.taskUpdate(photonCounter.addAndGet(Math.min(PHOTON_BATCH, end - i)));
                             if (UI.taskCanceled())
                                 return;
                         }
 
                         int qmcI = i + seed;
 
-                        double rand = QMC.halton(0, qmcI) * histogram[histogram.length - 1];
-                        int j = 0;
-                        while (rand >= histogram[j] && j < histogram.length)
-                            j++;
-                        // make sure we didn't pick a zero-probability light
-                        if (j == histogram.length)
-                            continue;
-
-                        double randX1 = (j == 0) ? rand / histogram[0] : (rand - histogram[j]) / (histogram[j] - histogram[j - 1]);
+                        double rand = QMC.halton(0, qmcI);
+                        int j = lightPowers.sample(rand);
+                        double randX1 = lightPowers.remap(rand);
                         double randY1 = QMC.halton(1, qmcI);
                         double randX2 = QMC.halton(2, qmcI);
                         double randY2 = QMC.halton(3, qmcI);
@@ -265,6 +304,17 @@ class LightServer {
         }
     }
 
+    /**
+     * Checks to see if the shader override replaces all surfaces by shaders
+     * with transparent shadows.
+     * 
+     * @return <code>true</code> if the override shader is an
+     *         {@link AlphaShader}
+     */
+    boolean hasTransparentShadowOverride() {
+        return shaderOverride instanceof AlphaShader;
+    }
+
     private Shader getShader(ShadingState state) {
         return shaderOverride != null ? shaderOverride : state.getShader();
     }
@@ -278,6 +328,10 @@ class LightServer {
         // set this value once - will stay constant for the entire ray-tree
         istate.time = time;
         scene.trace(r, istate);
+        return shadeRadiance(rx, ry, time, i, d, r, istate, cache);
+    }
+
+    ShadingState shadeRadiance(float rx, float ry, float time, int i, int d, Ray r, IntersectionState istate, ShadingCache cache) {
         if (istate.hit()) {
             ShadingState state = ShadingState.createState(istate, rx, ry, time, r, i, d, this);
             state.getInstance().prepareShadingState(state);
@@ -293,7 +347,7 @@ class LightServer {
                     return state;
                 }
             }
-            state.setResult(shader.getRadiance(state));
+            state.setResult(getRadiance(shader, state, state.getScratchResult()));
             if (cache != null)
                 cache.add(state, shader, state.getResult());
             checkNanInf(state.getResult());
@@ -312,7 +366,7 @@ class LightServer {
     void shadeBakeResult(ShadingState state) {
         Shader shader = getShader(state);
         if (shader != null)
-            state.setResult(shader.getRadiance(state));
+            state.setResult(getRadiance(shader, state, state.getScratchResult()));
         else
             state.setResult(Color.BLACK);
     }
@@ -320,7 +374,57 @@ class LightServer {
     Color shadeHit(ShadingState state) {
         state.getInstance().prepareShadingState(state);
         Shader shader = getShader(state);
-        return (shader != null) ? shader.getRadiance(state) : Color.BLACK;
+        // bounce states are pooled, so the caller gets a color of its own
+        return (shader != null) ? getRadiance(shader, state, null) : Color.BLACK;
+    }
+
+    /**
+     * Run the shader at the specified state. Shaders which provide their own
+     * {@link RadianceShader#getRadiance(ShadingState, Color)} write into the
+     * specified color instead of allocating a new one.
+     * 
+     * @param shader shader to run
+     * @param state state to shade
+     * @param result color to write into, or <code>null</code> to allocate a
+     *            new one
+     * @return shaded result
+     */
+    private static Color getRadiance(Shader shader, ShadingState state, Color result) {
+        if (isRadianceShader(shader.getClass())) {
+            if (result == null)
+                result = new Color();
+            ((RadianceShader) shader).getRadiance(state, result);
+            return result;
+        }
+        return shader.getRadiance(state);
+    }
+
+    /**
+     * Checks if the specified shader class can be run through
+     * {@link RadianceShader#getRadiance(ShadingState, Color)}. This is only
+     * the case if that method is declared at least as deep in the class
+     * hierarchy as {@link Shader#getRadiance(ShadingState)}, so subclasses
+     * which only override the latter are still called the old way.
+     * 
+     * @param c shader class
+     * @return <code>true</code> if the destination passing method can be used
+     */
+    private static boolean isRadianceShader(Class<?> c) {
+        Boolean b = radianceShaders.get(c);
+        if (b == null) {
+            if (RadianceShader.class.isAssignableFrom(c)) {
+                try {
+                    Class<?> oldStyle = c.getMethod("getRadiance", ShadingState.class).getDeclaringClass();
+                    Class<?> newStyle = c.getMethod("getRadiance", ShadingState.class, Color.class).getDeclaringClass();
+                    b = oldStyle.isAssignableFrom(newStyle);
+                } catch (NoSuchMethodException e) {
+                    b = false;
+                }
+            } else
+                b = false;
+            radianceShaders.put(c, b);
+        }
+        return b;
     }
 
     Color traceGlossy(ShadingState previous, Ray r, int i) {
@@ -375,6 +479,10 @@ class LightServer {
     }
 
     void initLightSamples(ShadingState state) {
+        if (lightTree != null) {
+            lightTree.getSamples(state, lightTreeSamples);
+            return;
+        }
         for (LightSource l : lights)
             l.getSamples(state);
     }
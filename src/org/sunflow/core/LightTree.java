@@ -0,0 +1,326 @@
+package org.sunflow.core;
+
+import java.util.ArrayList;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.MathUtils;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+
+/**
+ * Bounding volume hierarchy over the emitters of all
+ * {@link EmitterLightSource}s in the scene. Every node stores the bounds and
+ * total power of its emitters, along with a cone which bounds the directions
+ * they face. Light samples are taken by walking down from the root and picking
+ * a child with a probability proportional to an estimate of its contribution
+ * at the shading point. This way a fixed number of emitters is sampled per
+ * shading point, no matter how many lights the scene contains. Lights which
+ * don't expose any emitters are sampled as usual.
+ */
+final class LightTree {
+    private static final float PI = (float) Math.PI;
+    // bounds (6 floats), cone axis (3 floats), power, cone angle
+    private static final int NODE_STRIDE = 11;
+
+    private final LightSource[] otherLights;
+    private final EmitterLightSource[] leafLights;
+    private final int[] leafEmitters;
+    private final float[] nodes;
+    // index of the left child (the right child follows it), or the bitwise
+    // complement of the leaf index
+    private final int[] children;
+    private int numNodes;
+
+    private LightTree(LightSource[] otherLights, EmitterLightSource[] leafLights, int[] leafEmitters) {
+        this.otherLights = otherLights;
+        this.leafLights = leafLights;
+        this.leafEmitters = leafEmitters;
+        nodes = new float[NODE_STRIDE * (2 * leafLights.length - 1)];
+        children = new int[2 * leafLights.length - 1];
+        numNodes = 0;
+    }
+
+    /**
+     * Build a light tree over the emitters of the specified lights.
+     * 
+     * @param lights all lights in the scene
+     * @return a new light tree, or <code>null</code> if none of the lights
+     *         has any emitters with a positive power
+     */
+    static LightTree build(LightSource[] lights) {
+        ArrayList<LightSource> others = new ArrayList<LightSource>();
+        ArrayList<EmitterLightSource> owners = new ArrayList<EmitterLightSource>();
+        ArrayList<Integer> indices = new ArrayList<Integer>();
+        ArrayList<float[]> emitters = new ArrayList<float[]>();
+        Vector3 normal = new Vector3();
+        for (LightSource l : lights) {
+            if (!(l instanceof EmitterLightSource) || ((EmitterLightSource) l).getNumEmitters() == 0) {
+                others.add(l);
+                continue;
+            }
+            EmitterLightSource el = (EmitterLightSource) l;
+            for (int i = 0, n = el.getNumEmitters(); i < n; i++) {
+                BoundingBox bounds = new BoundingBox();
+                normal.set(0, 0, 0);
+                float power = el.getEmitter(i, bounds, normal);
+                if (!(power > 0) || bounds.isEmpty())
+                    continue;
+                float[] e = new float[NODE_STRIDE];
+                e[0] = bounds.getMinimum().x;
+                e[1] = bounds.getMinimum().y;
+                e[2] = bounds.getMinimum().z;
+                e[3] = bounds.getMaximum().x;
+                e[4] = bounds.getMaximum().y;
+                e[5] = bounds.getMaximum().z;
+                if (normal.lengthSquared() > 0) {
+                    normal.normalize();
+                    e[6] = normal.x;
+                    e[7] = normal.y;
+                    e[8] = normal.z;
+                    e[10] = 0;
+                } else {
+                    e[8] = 1;
+                    e[10] = PI;
+                }
+                e[9] = power;
+                owners.add(el);
+                indices.add(i);
+                emitters.add(e);
+            }
+        }
+        if (emitters.isEmpty())
+            return null;
+        int n = emitters.size();
+        EmitterLightSource[] leafLights = owners.toArray(new EmitterLightSource[n]);
+        int[] leafEmitters = new int[n];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            leafEmitters[i] = indices.get(i);
+            order[i] = i;
+        }
+        LightTree tree = new LightTree(others.toArray(new LightSource[others.size()]), leafLights, leafEmitters);
+        tree.numNodes = 1;
+        tree.buildNode(0, emitters, order, 0, n);
+        return tree;
+    }
+
+    int getNumEmitters() {
+        return leafLights.length;
+    }
+
+    private void buildNode(int node, ArrayList<float[]> emitters, int[] order, int start, int end) {
+        // summarize all emitters below this node
+        int o = NODE_STRIDE * node;
+        System.arraycopy(emitters.get(order[start]), 0, nodes, o, NODE_STRIDE);
+        Vector3 axis = new Vector3(nodes[o + 6], nodes[o + 7], nodes[o + 8]);
+        Vector3 axisB = new Vector3();
+        float angle = nodes[o + 10];
+        float[] cmin = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.POSITIVE_INFINITY };
+        float[] cmax = { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                Float.NEGATIVE_INFINITY };
+        for (int i = start; i < end; i++) {
+            float[] e = emitters.get(order[i]);
+            if (i > start) {
+                for (int k = 0; k < 3; k++) {
+                    nodes[o + k] = Math.min(nodes[o + k], e[k]);
+                    nodes[o + 3 + k] = Math.max(nodes[o + 3 + k], e[3 + k]);
+                }
+                nodes[o + 9] += e[9];
+                axisB.set(e[6], e[7], e[8]);
+                angle = mergeCones(axis, angle, axisB, e[10]);
+            }
+            for (int k = 0; k < 3; k++) {
+                float c = 0.5f * (e[k] + e[3 + k]);
+                cmin[k] = Math.min(cmin[k], c);
+                cmax[k] = Math.max(cmax[k], c);
+            }
+        }
+        nodes[o + 6] = axis.x;
+        nodes[o + 7] = axis.y;
+        nodes[o + 8] = axis.z;
+        nodes[o + 10] = angle;
+        if (end - start == 1) {
+            children[node] = ~order[start];
+            return;
+        }
+        // split at the median centroid along the widest axis
+        int a = 0;
+        for (int k = 1; k < 3; k++)
+            if (cmax[k] - cmin[k] > cmax[a] - cmin[a])
+                a = k;
+        int mid = (start + end) >>> 1;
+        select(emitters, order, start, end - 1, mid, a);
+        int left = numNodes;
+        numNodes += 2;
+        children[node] = left;
+        buildNode(left, emitters, order, start, mid);
+        buildNode(left + 1, emitters, order, mid, end);
+    }
+
+    /**
+     * Partially sort <code>order[left..right]</code> so that the emitter with
+     * the k-th smallest centroid along the specified axis ends up at index k.
+     */
+    private static void select(ArrayList<float[]> emitters, int[] order, int left, int right, int k, int axis) {
+        while (right > left) {
+            float v = centroid(emitters, order[(left + right) >>> 1], axis);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (centroid(emitters, order[i], axis) < v)
+                    i++;
+                while (centroid(emitters, order[j], axis) > v)
+                    j--;
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j)
+                right = j;
+            else if (k >= i)
+                left = i;
+            else
+                break;
+        }
+    }
+
+    private static float centroid(ArrayList<float[]> emitters, int i, int axis) {
+        float[] e = emitters.get(i);
+        return e[axis] + e[3 + axis];
+    }
+
+    /**
+     * Grow the cone <code>(a, angleA)</code> so it also bounds the cone
+     * <code>(b, angleB)</code>. Angles are half angles in radians, a half
+     * angle of pi represents all directions.
+     * 
+     * @return half angle of the merged cone, its axis is stored in
+     *         <code>a</code>
+     */
+    private static float mergeCones(Vector3 a, float angleA, Vector3 b, float angleB) {
+        if (angleA >= PI || angleB >= PI)
+            return PI;
+        float cosD = MathUtils.clamp(Vector3.dot(a, b), -1.0f, 1.0f);
+        float angleD = (float) Math.acos(cosD);
+        if (angleD + angleB <= angleA)
+            return angleA;
+        if (angleD + angleA <= angleB) {
+            a.set(b);
+            return angleB;
+        }
+        float angle = 0.5f * (angleA + angleD + angleB);
+        if (angle >= PI)
+            return PI;
+        // rotate a towards b so the new cone touches both old ones
+        float ox = b.x - cosD * a.x;
+        float oy = b.y - cosD * a.y;
+        float oz = b.z - cosD * a.z;
+        float len = (float) Math.sqrt(ox * ox + oy * oy + oz * oz);
+        if (len < 1e-6f)
+            return angleD > 0.5f * PI ? PI : angle;
+        float rot = angle - angleA;
+        float c = (float) Math.cos(rot);
+        float s = (float) Math.sin(rot) / len;
+        a.set(c * a.x + s * ox, c * a.y + s * oy, c * a.z + s * oz);
+        a.normalize();
+        return angle;
+    }
+
+    /**
+     * Estimate how much light the emitters below a node send towards a point.
+     * The estimate is conservative in the sense that it is only 0 if none of
+     * the emitters can light the point.
+     */
+    private float importance(int node, Point3 p, Vector3 n) {
+        int o = NODE_STRIDE * node;
+        float power = nodes[o + 9];
+        float hx = 0.5f * (nodes[o + 3] - nodes[o + 0]);
+        float hy = 0.5f * (nodes[o + 4] - nodes[o + 1]);
+        float hz = 0.5f * (nodes[o + 5] - nodes[o + 2]);
+        float dx = nodes[o + 0] + hx - p.x;
+        float dy = nodes[o + 1] + hy - p.y;
+        float dz = nodes[o + 2] + hz - p.z;
+        float r2 = hx * hx + hy * hy + hz * hz;
+        float d2 = dx * dx + dy * dy + dz * dz;
+        // inside the bounding sphere, light can arrive from any direction
+        if (d2 <= r2)
+            return power / Math.max(r2, 1e-12f);
+        float invD = 1.0f / (float) Math.sqrt(d2);
+        dx *= invD;
+        dy *= invD;
+        dz *= invD;
+        // angle subtended by the bounding sphere
+        float sinU = (float) Math.sqrt(r2 / d2);
+        float cosU = (float) Math.sqrt(1 - r2 / d2);
+        // smallest angle between the normal and a direction towards the node
+        float cosI = n.x * dx + n.y * dy + n.z * dz;
+        float receive = 1;
+        if (cosI < cosU) {
+            receive = cosI * cosU + (float) Math.sqrt(Math.max(0, 1 - cosI * cosI)) * sinU;
+            if (receive <= 0)
+                return 0;
+        }
+        // smallest angle between the emission cone and the direction
+        // towards the point
+        float emit = 1;
+        float angle = nodes[o + 10];
+        if (angle < PI) {
+            float cosT = -(nodes[o + 6] * dx + nodes[o + 7] * dy + nodes[o + 8] * dz);
+            float t = (float) Math.acos(MathUtils.clamp(cosT, -1.0f, 1.0f)) - angle - (float) Math.asin(sinU);
+            if (t >= 0.5f * PI)
+                return 0;
+            if (t > 0)
+                emit = (float) Math.cos(t);
+        }
+        return power * receive * emit / d2;
+    }
+
+    /**
+     * Sample the lights of the tree at the specified shading point. Lights
+     * without emitters are sampled in full, the emitters are sampled
+     * <code>numSamples</code> times in total, or once for diffuse bounces.
+     * 
+     * @param state shading state
+     * @param numSamples number of emitter samples
+     */
+    void getSamples(ShadingState state, int numSamples) {
+        for (LightSource l : otherLights)
+            l.getSamples(state);
+        int n = state.getDiffuseDepth() > 0 ? 1 : numSamples;
+        Point3 p = state.getPoint();
+        Vector3 normal = state.getNormal();
+        for (int j = 0; j < n; j++) {
+            double u = state.getRandom(j, 2, n);
+            float pdf = 1;
+            int node = 0;
+            while (node >= 0 && children[node] >= 0) {
+                int left = children[node];
+                float wl = importance(left, p, normal);
+                float wr = importance(left + 1, p, normal);
+                if (!(wl + wr > 0)) {
+                    node = -1;
+                    break;
+                }
+                float pl = wl / (wl + wr);
+                if (u < pl) {
+                    u /= pl;
+                    pdf *= pl;
+                    node = left;
+                } else {
+                    u = (u - pl) / (1 - pl);
+                    pdf *= 1 - pl;
+                    node = left + 1;
+                }
+            }
+            if (node < 0)
+                continue;
+            int leaf = ~children[node];
+            leafLights[leaf].getEmitterSample(leafEmitters[leaf], state, state.getRandom(j, 0, n), state.getRandom(j, 1, n), n * pdf);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+package org.sunflow.core;
+
+/**
+ * An {@link AccelerationStructure} which can trace a whole {@link RayPacket}
+ * at once. Structures which do not implement this interface are traced one ray
+ * at a time.
+ */
+public interface PacketAccelerationStructure extends AccelerationStructure {
+    /**
+     * Intersect all active rays of the packet with the geometry in local
+     * space. Each ray's maximum distance and hit record must be updated
+     * exactly as {@link #intersect(Ray, IntersectionState)} would. The packet
+     * will be provided in local space.
+     * 
+     * @param packet rays in local space
+     * @param istate state used to intersect primitives
+     */
+    public void intersect(RayPacket packet, IntersectionState istate);
+}
\ No newline at end of file
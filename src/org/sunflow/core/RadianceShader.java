@@ -0,0 +1,24 @@
+package org.sunflow.core;
+
+import org.sunflow.image.Color;
+
+/**
+ * A shader which can write its radiance into a color provided by the caller,
+ * rather than returning a new object. This lets shaders build their result in
+ * place without allocating temporaries at every shading point.
+ * {@link Shader#getRadiance(ShadingState)} should return the same value as
+ * this method, typically by calling it on a new color.
+ */
+public interface RadianceShader extends Shader {
+    /**
+     * Gets the radiance for a specified rendering state and stores it in the
+     * given color. The previous contents of <code>result</code> are
+     * overwritten. Subclasses which only override
+     * {@link Shader#getRadiance(ShadingState)} are still called through that
+     * method.
+     * 
+     * @param state current render state
+     * @param result color which receives the emitted or reflected radiance
+     */
+    public void getRadiance(ShadingState state, Color result);
+}
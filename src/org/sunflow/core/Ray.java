@@ -14,6 +14,8 @@ public final class Ray {
     public float dx, dy, dz;
     private float tMin;
     private float tMax;
+    private float width;
+    private float spread;
     private static final float EPSILON = 0;// 0.01f;
 
     private Ray() {
@@ -94,6 +96,33 @@ public final class Ray {
         tMax = n - EPSILON;
     }
 
+    /**
+     * Reset this ray so that it points from the given origin to the given
+     * direction, just like {@link #Ray(Point3, Vector3)}. This lets loops which
+     * shoot many rays reuse a single object. The ray has infinite length and
+     * the direction vector is normalized.
+     * 
+     * @param o ray origin
+     * @param d ray direction (need not be normalized)
+     * @return this ray, for convenience
+     */
+    public final Ray set(Point3 o, Vector3 d) {
+        ox = o.x;
+        oy = o.y;
+        oz = o.z;
+        dx = d.x;
+        dy = d.y;
+        dz = d.z;
+        float in = 1.0f / (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        dx *= in;
+        dy *= in;
+        dz *= in;
+        tMin = EPSILON;
+        tMax = Float.POSITIVE_INFINITY;
+        width = spread = 0;
+        return this;
+    }
+
     /**
      * Create a new ray by transforming the supplied one by the given matrix. If
      * the matrix is <code>null</code>, the original ray is returned.
@@ -112,6 +141,8 @@ public final class Ray {
         r.dz = m.transformVZ(dx, dy, dz);
         r.tMin = tMin;
         r.tMax = tMax;
+        r.width = width;
+        r.spread = spread;
         return r;
     }
 
@@ -225,4 +256,40 @@ public final class Ray {
         tMin = min;
         tMax = max;
     }
+
+    /**
+     * Sets the differentials of this ray. They are kept in a simplified
+     * isotropic form: a cone whose width is known at the origin of the ray
+     * and grows linearly along it. The cone covers the area seen through one
+     * pixel, which lets texture lookups pick a matching level of detail. Rays
+     * without differentials have a width and spread of 0.
+     * 
+     * @param width width of the ray footprint at its origin
+     * @param spread increase of the width per unit of distance along the ray
+     */
+    public final void setDifferentials(float width, float spread) {
+        this.width = width;
+        this.spread = spread;
+    }
+
+    /**
+     * Gets the width of the ray footprint at the specified distance along the
+     * ray.
+     * 
+     * @param t distance along the ray
+     * @return footprint width, 0 if the ray has no differentials
+     */
+    public final float getWidth(float t) {
+        return width + spread * t;
+    }
+
+    /**
+     * Gets the increase of the footprint width per unit of distance along the
+     * ray.
+     * 
+     * @return spread of the ray
+     */
+    public final float getSpread() {
+        return spread;
+    }
 }
@@ -0,0 +1,353 @@
+package org.sunflow.core;
+
+import org.sunflow.math.BoundingBox;
+
+/**
+ * A small group of coherent rays which are traced together. Ray origins and
+ * inverse directions are kept in structure-of-arrays form so that
+ * {@link PacketAccelerationStructure}s can visit each node once for the whole
+ * packet instead of once per ray. Each ray also gets its own intersection
+ * record, since a single {@link IntersectionState} can only hold one hit.
+ * <p>
+ * Rays are identified by their slot index. Slots whose ray is
+ * <code>null</code> are never traced. Sets of rays are passed around as bit
+ * masks over the slot indices.
+ */
+public final class RayPacket {
+    /**
+     * Maximum number of rays in a packet, which allows ray sets to be stored
+     * in a single <code>int</code>.
+     */
+    public static final int MAX_SIZE = 16;
+    private static final int MAX_STACK_SIZE = 64;
+
+    private final Ray[] rays;
+    private final float[] time;
+    private int size;
+    private int activeMask;
+
+    // ray data in SoA form
+    public final float[] ox, oy, oz;
+    public final float[] invDx, invDy, invDz;
+
+    // per-ray traversal scratch space
+    public final float[] near, far, split;
+    public final int[] stackNode;
+    public final int[] stackMask;
+    public final float[] stackNear;
+    public final float[] stackFar;
+
+    // per-ray intersection records
+    private final Instance[] instance;
+    private final int[] id;
+    private final float[] u, v, w;
+
+    // maps slots of a local space packet back to the world space packet
+    private final int[] parentSlot;
+
+    RayPacket() {
+        rays = new Ray[MAX_SIZE];
+        time = new float[MAX_SIZE];
+        ox = new float[MAX_SIZE];
+        oy = new float[MAX_SIZE];
+        oz = new float[MAX_SIZE];
+        invDx = new float[MAX_SIZE];
+        invDy = new float[MAX_SIZE];
+        invDz = new float[MAX_SIZE];
+        near = new float[MAX_SIZE];
+        far = new float[MAX_SIZE];
+        split = new float[MAX_SIZE];
+        stackNode = new int[MAX_STACK_SIZE];
+        stackMask = new int[MAX_STACK_SIZE];
+        stackNear = new float[MAX_STACK_SIZE * MAX_SIZE];
+        stackFar = new float[MAX_STACK_SIZE * MAX_SIZE];
+        instance = new Instance[MAX_SIZE];
+        id = new int[MAX_SIZE];
+        u = new float[MAX_SIZE];
+        v = new float[MAX_SIZE];
+        w = new float[MAX_SIZE];
+        parentSlot = new int[MAX_SIZE];
+        clear();
+    }
+
+    /**
+     * Remove all rays from the packet.
+     */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            rays[i] = null;
+            instance[i] = null;
+        }
+        size = 0;
+        activeMask = 0;
+    }
+
+    /**
+     * Add a ray to the next free slot of the packet. A <code>null</code> ray
+     * reserves the slot without tracing anything for it.
+     * 
+     * @param r ray to add, may be <code>null</code>
+     * @param t time at which the ray should be traced
+     * @return slot index of the new ray
+     */
+    int add(Ray r, float t) {
+        int i = size++;
+        rays[i] = r;
+        time[i] = t;
+        instance[i] = null;
+        if (r != null) {
+            ox[i] = r.ox;
+            oy[i] = r.oy;
+            oz[i] = r.oz;
+            invDx[i] = 1 / r.dx;
+            invDy[i] = 1 / r.dy;
+            invDz[i] = 1 / r.dz;
+            activeMask |= 1 << i;
+        }
+        return i;
+    }
+
+    /**
+     * Get the number of slots used in this packet.
+     * 
+     * @return number of rays
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Get the set of slots which hold a ray to be traced.
+     * 
+     * @return bit mask of active slots
+     */
+    public int getActiveMask() {
+        return activeMask;
+    }
+
+    /**
+     * Get the ray stored in the specified slot.
+     * 
+     * @param i slot index
+     * @return ray, or <code>null</code> for unused slots
+     */
+    public Ray getRay(int i) {
+        return rays[i];
+    }
+
+    /**
+     * Get the time at which the specified ray should be traced.
+     * 
+     * @param i slot index
+     * @return ray time
+     */
+    public float getTime(int i) {
+        return time[i];
+    }
+
+    /**
+     * Checks to see if all active rays point into the same octant. Packet
+     * traversal visits children in the same front to back order for every ray,
+     * which is only valid for such packets.
+     * 
+     * @return <code>true</code> if all directions have the same signs
+     */
+    public boolean isCoherent() {
+        if (activeMask == 0)
+            return true;
+        int first = Integer.numberOfTrailingZeros(activeMask);
+        int sx = Float.floatToRawIntBits(invDx[first]) >>> 31;
+        int sy = Float.floatToRawIntBits(invDy[first]) >>> 31;
+        int sz = Float.floatToRawIntBits(invDz[first]) >>> 31;
+        for (int m = activeMask & (activeMask - 1); m != 0; m &= m - 1) {
+            int i = Integer.numberOfTrailingZeros(m);
+            if ((Float.floatToRawIntBits(invDx[i]) >>> 31) != sx)
+                return false;
+            if ((Float.floatToRawIntBits(invDy[i]) >>> 31) != sy)
+                return false;
+            if ((Float.floatToRawIntBits(invDz[i]) >>> 31) != sz)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Clip the active rays of the packet against a bounding box. The
+     * resulting intervals are stored in {@link #near} and {@link #far}.
+     * 
+     * @param box box to clip against
+     * @return set of rays which overlap the box
+     */
+    public int clip(BoundingBox box) {
+        int mask = 0;
+        for (int m = activeMask; m != 0; m &= m - 1) {
+            int i = Integer.numberOfTrailingZeros(m);
+            float intervalMin = rays[i].getMin();
+            float intervalMax = rays[i].getMax();
+            float t1, t2;
+            t1 = (box.getMinimum().x - ox[i]) * invDx[i];
+            t2 = (box.getMaximum().x - ox[i]) * invDx[i];
+            if (invDx[i] > 0) {
+                if (t1 > intervalMin)
+                    intervalMin = t1;
+                if (t2 < intervalMax)
+                    intervalMax = t2;
+            } else {
+                if (t2 > intervalMin)
+                    intervalMin = t2;
+                if (t1 < intervalMax)
+                    intervalMax = t1;
+            }
+            if (intervalMin > intervalMax)
+                continue;
+            t1 = (box.getMinimum().y - oy[i]) * invDy[i];
+            t2 = (box.getMaximum().y - oy[i]) * invDy[i];
+            if (invDy[i] > 0) {
+                if (t1 > intervalMin)
+                    intervalMin = t1;
+                if (t2 < intervalMax)
+                    intervalMax = t2;
+            } else {
+                if (t2 > intervalMin)
+                    intervalMin = t2;
+                if (t1 < intervalMax)
+                    intervalMax = t1;
+            }
+            if (intervalMin > intervalMax)
+                continue;
+            t1 = (box.getMinimum().z - oz[i]) * invDz[i];
+            t2 = (box.getMaximum().z - oz[i]) * invDz[i];
+            if (invDz[i] > 0) {
+                if (t1 > intervalMin)
+                    intervalMin = t1;
+                if (t2 < intervalMax)
+                    intervalMax = t2;
+            } else {
+                if (t2 > intervalMin)
+                    intervalMin = t2;
+                if (t1 < intervalMax)
+                    intervalMax = t1;
+            }
+            if (intervalMin > intervalMax)
+                continue;
+            near[i] = intervalMin;
+            far[i] = intervalMax;
+            mask |= 1 << i;
+        }
+        return mask;
+    }
+
+    /**
+     * Trace each active ray of the packet through the specified acceleration
+     * structure one at a time. This is the fallback used when the rays diverge
+     * or when the structure does not support packets.
+     * 
+     * @param accel acceleration structure to trace the rays through
+     * @param state intersection state
+     */
+    public void intersect(AccelerationStructure accel, IntersectionState state) {
+        // tracing a ray may enter instances, which changes the current
+        // instance and with it the traversal stack used by the next ray
+        Instance current = state.current;
+        for (int m = activeMask; m != 0; m &= m - 1) {
+            int i = Integer.numberOfTrailingZeros(m);
+            state.time = time[i];
+            state.instance = null;
+            state.current = current;
+            accel.intersect(rays[i], state);
+            storeHit(i, state);
+        }
+    }
+
+    /**
+     * Intersect the specified primitive with a set of rays from this packet.
+     * Instances are intersected as a packet, other primitives one ray at a
+     * time.
+     * 
+     * @param primitives primitive list which contains the primitive
+     * @param primID primitive index
+     * @param mask set of rays to intersect
+     * @param state intersection state
+     */
+    public void intersectPrimitive(PrimitiveList primitives, int primID, int mask, IntersectionState state) {
+        if (primitives instanceof InstanceList) {
+            ((InstanceList) primitives).intersectPrimitive(this, primID, mask, state);
+            return;
+        }
+        for (int m = mask; m != 0; m &= m - 1) {
+            int i = Integer.numberOfTrailingZeros(m);
+            state.time = time[i];
+            state.instance = null;
+            primitives.intersectPrimitive(rays[i], primID, state);
+            storeHit(i, state);
+        }
+    }
+
+    /**
+     * Fill this packet with a set of rays from a world space packet,
+     * transformed into the local space of the specified instance.
+     * 
+     * @param parent world space packet
+     * @param mask set of rays to transform
+     * @param inst instance whose local space will be used
+     */
+    void transform(RayPacket parent, int mask, Instance inst) {
+        clear();
+        for (int m = mask; m != 0; m &= m - 1) {
+            int i = Integer.numberOfTrailingZeros(m);
+            float t = parent.time[i];
+            parentSlot[add(parent.rays[i].transform(inst.getWorldToObject(t)), t)] = i;
+        }
+    }
+
+    /**
+     * Copy the results of tracing this local space packet back to the world
+     * space packet it was created from.
+     * 
+     * @param parent world space packet
+     */
+    void transferHits(RayPacket parent) {
+        for (int i = 0; i < size; i++) {
+            int p = parentSlot[i];
+            parent.rays[p].setMax(rays[i].getMax());
+            if (instance[i] != null) {
+                parent.instance[p] = instance[i];
+                parent.id[p] = id[i];
+                parent.u[p] = u[i];
+                parent.v[p] = v[i];
+                parent.w[p] = w[i];
+            }
+        }
+    }
+
+    /**
+     * Record the hit found by the last single ray query, if any.
+     */
+    void storeHit(int i, IntersectionState state) {
+        if (state.instance == null)
+            return;
+        instance[i] = state.instance;
+        id[i] = state.id;
+        u[i] = state.u;
+        v[i] = state.v;
+        w[i] = state.w;
+    }
+
+    /**
+     * Load the hit record of the specified ray into an intersection state so
+     * it can be shaded.
+     * 
+     * @param i slot index
+     * @param state state to load the intersection into
+     * @return <code>true</code> if the ray hit something
+     */
+    boolean getIntersection(int i, IntersectionState state) {
+        state.time = time[i];
+        state.instance = instance[i];
+        state.id = id[i];
+        state.u = u[i];
+        state.v = v[i];
+        state.w = w[i];
+        return state.instance != null;
+    }
+}
\ No newline at end of file
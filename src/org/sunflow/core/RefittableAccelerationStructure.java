@@ -0,0 +1,20 @@
+package org.sunflow.core;
+
+/**
+ * An {@link AccelerationStructure} which can update its bounds in place when
+ * its primitives move, keeping the topology computed by the last
+ * {@link #build(PrimitiveList)}. This is much faster than a rebuild, but the
+ * quality of the structure degrades if the primitives move a lot.
+ */
+public interface RefittableAccelerationStructure extends AccelerationStructure {
+    /**
+     * Recompute the bounds stored in the structure from the current bounds of
+     * the specified primitives. The list must hold the primitives the
+     * structure was built for, in the same order.
+     * 
+     * @param primitives primitives the structure was built for
+     * @return <code>true</code> if the structure was refit,
+     *         <code>false</code> if it must be rebuilt
+     */
+    public boolean refit(PrimitiveList primitives);
+}
\ No newline at end of file
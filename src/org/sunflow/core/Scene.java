@@ -1,6 +1,7 @@
 package org.sunflow.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.sunflow.core.display.FrameDisplay;
 import org.sunflow.image.Color;
@@ -32,6 +33,7 @@ public class Scene {
     private AccelerationStructure bakingAccel;
 
     private boolean rebuildAccel;
+    private boolean refitAccel;
 
     // image size
     private int imageWidth;
@@ -63,6 +65,7 @@ public class Scene {
         lowPriority = true;
 
         rebuildAccel = true;
+        refitAccel = false;
     }
 
     /**
@@ -96,6 +99,20 @@ public class Scene {
         return camera;
     }
 
+    /**
+     * Sets the number of camera rays the image sampler shoots per pixel area.
+     * This should be called from
+     * {@link ImageSampler#prepare(Options, Scene, int, int)}, the default is
+     * one sample per pixel. Adaptive samplers should pass their lowest
+     * sampling rate.
+     * 
+     * @param n average number of samples per pixel
+     */
+    public void setSamplesPerPixel(float n) {
+        if (camera != null)
+            camera.setSamplesPerPixel(n);
+    }
+
     /**
      * Update the instance lists for this scene.
      * 
@@ -103,9 +120,27 @@ public class Scene {
      * @param infinite infinite instances (no bounds)
      */
     public void setInstanceLists(Instance[] instances, Instance[] infinite) {
+        setInstanceLists(instances, infinite, instanceList.hasInstances(instances));
+    }
+
+    /**
+     * Update the instance lists for this scene. If the new instances take
+     * the place of the previous ones one for one, only their bounds changed
+     * and the top level acceleration structure can be refit instead of
+     * rebuilt.
+     * 
+     * @param instances regular instances
+     * @param infinite infinite instances (no bounds)
+     * @param replacesPrevious <code>true</code> if each regular instance
+     *            replaces the one at the same position in the previous list
+     */
+    public void setInstanceLists(Instance[] instances, Instance[] infinite, boolean replacesPrevious) {
+        if (replacesPrevious)
+            refitAccel = true;
+        else
+            rebuildAccel = true;
         infiniteInstanceList = new InstanceList(infinite);
         instanceList = new InstanceList(instances);
-        rebuildAccel = true;
     }
 
     /**
@@ -114,6 +149,21 @@ public class Scene {
      * @param lights array of light source objects
      */
     public void setLightList(LightSource[] lights) {
+        setLightList(lights, Arrays.equals(lightServer.lights, lights));
+    }
+
+    /**
+     * Update the light list for this scene.
+     * 
+     * @param lights array of light source objects
+     * @param replacesPrevious <code>true</code> if each light replaces the
+     *            one at the same position in the previous list
+     */
+    public void setLightList(LightSource[] lights, boolean replacesPrevious) {
+        // area light instances may have been added or removed, the same
+        // lights create their instances in the same order again
+        if (!replacesPrevious)
+            rebuildAccel = true;
         lightServer.setLights(lights);
     }
 
@@ -185,6 +235,52 @@ public class Scene {
         }
     }
 
+    /**
+     * Get the radiance seen through a group of pixel samples. The primary rays
+     * are traced together as a {@link RayPacket}, then each hit is shaded in
+     * order. This produces the same results as calling
+     * {@link #getRadiance(IntersectionState, float, float, double, double, double, int, int, ShadingCache)}
+     * once per sample.
+     * 
+     * @param istate intersection state for ray tracing
+     * @param rx pixel x coordinates
+     * @param ry pixel y coordinates
+     * @param lensU DOF sampling variables
+     * @param lensV DOF sampling variables
+     * @param time motion blur sampling variables
+     * @param instance QMC instance seeds
+     * @param n number of samples, at most {@link RayPacket#MAX_SIZE}
+     * @param dim QMC dimension
+     * @param cache shading cache, may be <code>null</code>
+     * @param result array receiving the shading states of each sample, or
+     *            <code>null</code> for samples which hit nothing
+     */
+    public void getRadiance(IntersectionState istate, float[] rx, float[] ry, double[] lensU, double[] lensV, double[] time, int[] instance, int n, int dim, ShadingCache cache, ShadingState[] result) {
+        if (bakingPrimitives != null) {
+            for (int i = 0; i < n; i++)
+                result[i] = getRadiance(istate, rx[i], ry[i], lensU[i], lensV[i], time[i], instance[i], dim, cache);
+            return;
+        }
+        RayPacket packet = istate.getPacket();
+        packet.clear();
+        for (int i = 0; i < n; i++) {
+            istate.numEyeRays++;
+            float sceneTime = camera.getTime((float) time[i]);
+            packet.add(camera.getRay(rx[i], ry[i], imageWidth, imageHeight, lensU[i], lensV[i], sceneTime), sceneTime);
+        }
+        trace(packet, istate);
+        for (int i = 0; i < n; i++) {
+            Ray r = packet.getRay(i);
+            if (r == null)
+                result[i] = null;
+            else {
+                packet.getIntersection(i, istate);
+                result[i] = lightServer.shadeRadiance(rx[i], ry[i], packet.getTime(i), instance[i], dim, r, istate, cache);
+            }
+        }
+        packet.clear();
+    }
+
     /**
      * Get scene world space bounding box.
      * 
@@ -210,15 +306,41 @@ public class Scene {
         state.current = null;
         for (int i = 0; i < infiniteInstanceList.getNumPrimitives(); i++)
             infiniteInstanceList.intersectPrimitive(r, i, state);
+        // an opaque hit is enough for shadow rays
+        if (state.isOccluded())
+            return;
         // reset for next accel structure
         state.current = null;
         intAccel.intersect(r, state);
     }
 
+    void trace(RayPacket packet, IntersectionState state) {
+        // stats
+        state.numRays += Integer.bitCount(packet.getActiveMask());
+        state.current = null;
+        if (infiniteInstanceList.getNumPrimitives() > 0) {
+            for (int i = 0; i < infiniteInstanceList.getNumPrimitives(); i++)
+                packet.intersectPrimitive(infiniteInstanceList, i, packet.getActiveMask(), state);
+            // reset for next accel structure
+            state.current = null;
+        }
+        if (intAccel instanceof PacketAccelerationStructure)
+            ((PacketAccelerationStructure) intAccel).intersect(packet, state);
+        else
+            packet.intersect(intAccel, state);
+    }
+
     Color traceShadow(Ray r, IntersectionState state) {
         state.numShadowRays++;
+        // traversal can stop at the first opaque hit, unless all surfaces are
+        // overridden with transparent shadows
+        state.shadowQuery = !lightServer.hasTransparentShadowOverride();
         trace(r, state);
-        return state.hit() ? Color.WHITE : Color.BLACK;
+        state.shadowQuery = false;
+        if (!state.hit())
+            return Color.BLACK;
+        state.numOccludedShadowRays++;
+        return Color.WHITE;
     }
 
     void traceBake(Ray r, IntersectionState state) {
@@ -256,9 +378,9 @@ public class Scene {
             instanceList.addLightSourceInstances(areaLights.toArray(new Instance[areaLights.size()]));
         else
             instanceList.clearLightSources();
-        // FIXME: this _could_ be done incrementally to avoid top-level rebuilds
-        // each frame
-        rebuildAccel = true;
+        // the lights are unchanged since the last frame, so the new instances
+        // are in the same order as the previous ones
+        refitAccel = true;
     }
 
     private void removeAreaLightInstances() {
@@ -328,11 +450,19 @@ public class Scene {
             acceltype = accelName;
         }
         UI.printInfo(Module.SCENE, "  * Instance accel:      %s", acceltype);
+        if (!rebuildAccel && refitAccel) {
+            // only instance bounds changed since the last frame
+            if (intAccel instanceof RefittableAccelerationStructure)
+                rebuildAccel = !((RefittableAccelerationStructure) intAccel).refit(instanceList);
+            else
+                rebuildAccel = true;
+        }
         if (rebuildAccel) {
             intAccel = AccelerationStructureFactory.create(acceltype, instanceList.getNumPrimitives(), false);
             intAccel.build(instanceList);
             rebuildAccel = false;
         }
+        refitAccel = false;
         UI.printInfo(Module.SCENE, "  * Scene bounds:        %s", getBounds());
         UI.printInfo(Module.SCENE, "  * Scene center:        %s", getBounds().getCenter());
         UI.printInfo(Module.SCENE, "  * Scene diameter:      %.2f", getBounds().getExtents().length());
@@ -344,8 +474,12 @@ public class Scene {
         // render
         UI.printInfo(Module.SCENE, "Rendering ...");
         stats.setResolution(imageWidth, imageHeight);
+        setSamplesPerPixel(1);
         sampler.prepare(options, this, imageWidth, imageHeight);
-        sampler.render(display);
+        if (!lightServer.prepass(imageWidth, imageHeight))
+            return;
+        if (sampler.render(display))
+            lightServer.renderFinished();
         // show statistics
         stats.displayStats();
         lightServer.showStats();
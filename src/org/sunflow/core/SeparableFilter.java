@@ -0,0 +1,19 @@
+package org.sunflow.core;
+
+/**
+ * Represents a filter kernel which can be expressed as the product of the same
+ * one dimensional function along x and y. Samplers can take advantage of this
+ * to filter an image in two one dimensional passes and to tabulate the kernel
+ * with a single small table.
+ */
+public interface SeparableFilter extends Filter {
+    /**
+     * Get the value of the one dimensional kernel at offset x. This must be
+     * consistent with {@link Filter#get(float, float)} so that
+     * <code>get(x, y) == get1d(x) * get1d(y)</code>.
+     * 
+     * @param x offset in pixels
+     * @return value of the kernel at the specified offset
+     */
+    public float get1d(float x);
+}
\ No newline at end of file
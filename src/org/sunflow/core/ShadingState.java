@@ -47,8 +47,22 @@ public final class ShadingState implements Iterable<LightSample> {
     private LightSample lightSample;
     private PhotonStore map;
 
+    private Point3 pScratch;
+    private Vector3 nScratch;
+    private Point2 texScratch;
+    private Vector3 ngScratch;
+    private Color colorScratch;
+    private Vector3 vectorScratch;
+    private Color resultScratch;
+    private int level;
+    private float throughput;
+    private float uvScale;
+
     static ShadingState createPhotonState(Ray r, IntersectionState istate, int i, PhotonStore map, LightServer server) {
-        ShadingState s = new ShadingState(null, istate, r, i, 4);
+        // photon states are never kept past the photon's path, so they can
+        // come from the pool like bounce states
+        ShadingState s = istate.getShadingState(0);
+        s.setup(null, istate, r, i, 4);
         s.server = server;
         s.map = map;
         return s;
@@ -56,7 +70,9 @@ public final class ShadingState implements Iterable<LightSample> {
     }
 
     static ShadingState createState(IntersectionState istate, float rx, float ry, float time, Ray r, int i, int d, LightServer server) {
-        ShadingState s = new ShadingState(null, istate, r, i, d);
+        // the renderers hold on to primary states, so these are not pooled
+        ShadingState s = new ShadingState();
+        s.setup(null, istate, r, i, d);
         s.server = server;
         s.rx = rx;
         s.ry = ry;
@@ -65,13 +81,13 @@ public final class ShadingState implements Iterable<LightSample> {
     }
 
     static ShadingState createDiffuseBounceState(ShadingState previous, Ray r, int i) {
-        ShadingState s = new ShadingState(previous, previous.istate, r, i, 2);
+        ShadingState s = createChildState(previous, r, i);
         s.diffuseDepth++;
         return s;
     }
 
     static ShadingState createGlossyBounceState(ShadingState previous, Ray r, int i) {
-        ShadingState s = new ShadingState(previous, previous.istate, r, i, 2);
+        ShadingState s = createChildState(previous, r, i);
         s.includeLights = false;
         s.includeSpecular = false;
         s.reflectionDepth++;
@@ -79,31 +95,45 @@ public final class ShadingState implements Iterable<LightSample> {
     }
 
     static ShadingState createReflectionBounceState(ShadingState previous, Ray r, int i) {
-        ShadingState s = new ShadingState(previous, previous.istate, r, i, 2);
+        ShadingState s = createChildState(previous, r, i);
         s.reflectionDepth++;
         return s;
     }
 
     static ShadingState createRefractionBounceState(ShadingState previous, Ray r, int i) {
-        ShadingState s = new ShadingState(previous, previous.istate, r, i, 2);
+        ShadingState s = createChildState(previous, r, i);
         s.refractionDepth++;
         return s;
     }
 
     static ShadingState createShadowState(ShadingState previous, Ray r) {
-        ShadingState s = new ShadingState(previous, previous.istate, r, 0, 2);
+        ShadingState s = createChildState(previous, r, 0);
         return s;
     }
 
     static ShadingState createFinalGatherState(ShadingState state, Ray r, int i) {
-        ShadingState finalGatherState = new ShadingState(state, state.istate, r, i, 2);
+        ShadingState finalGatherState = createChildState(state, r, i);
         finalGatherState.diffuseDepth++;
         finalGatherState.includeLights = false;
         finalGatherState.includeSpecular = false;
         return finalGatherState;
     }
 
-    private ShadingState(ShadingState previous, IntersectionState istate, Ray r, int i, int d) {
+    /**
+     * Fetch the pooled state one level below the specified one. A child state
+     * is only valid until its parent spawns another one, which matches the
+     * way rays are traced depth first.
+     */
+    private static ShadingState createChildState(ShadingState previous, Ray r, int i) {
+        ShadingState s = previous.istate.getShadingState(previous.level + 1);
+        s.setup(previous, previous.istate, r, i, 2);
+        return s;
+    }
+
+    ShadingState() {
+    }
+
+    private void setup(ShadingState previous, IntersectionState istate, Ray r, int i, int d) {
         this.r = r;
         this.istate = istate;
         this.i = i;
@@ -118,11 +148,17 @@ public final class ShadingState implements Iterable<LightSample> {
         o2w = instance.getObjectToWorld(time);
         w2o = instance.getWorldToObject(time);
         if (previous == null) {
+            level = 0;
+            throughput = 1;
             diffuseDepth = 0;
             reflectionDepth = 0;
             refractionDepth = 0;
-            
+            server = null;
+            map = null;
+            rx = ry = 0;
         } else {
+            level = previous.level + 1;
+            throughput = previous.throughput;
             diffuseDepth = previous.diffuseDepth;
             reflectionDepth = previous.reflectionDepth;
             refractionDepth = previous.refractionDepth;
@@ -133,8 +169,18 @@ public final class ShadingState implements Iterable<LightSample> {
             this.i += previous.i;
             this.d += previous.d;
         }
+        // clear anything left over from an earlier use of a pooled state
+        p = null;
+        n = null;
+        tex = null;
+        ng = null;
+        basis = null;
+        shader = null;
+        modifier = null;
+        lightSample = null;
         behind = false;
         cosND = Float.NaN;
+        uvScale = 0;
         includeLights = includeSpecular = true;
         qmcD0I = QMC.halton(this.d, this.i);
         qmcD1I = QMC.halton(this.d + 1, this.i);
@@ -148,13 +194,26 @@ public final class ShadingState implements Iterable<LightSample> {
 
     /**
      * Create objects needed for surface shading: point, normal, texture
-     * coordinates and basis.
+     * coordinates and basis. The objects are cleared and reused when this
+     * state is recycled for another ray, so they should not be kept past the
+     * shading of the current point.
      */
     public final void init() {
-        p = new Point3();
-        n = new Vector3();
-        tex = new Point2();
-        ng = new Vector3();
+        if (pScratch == null) {
+            pScratch = new Point3();
+            nScratch = new Vector3();
+            texScratch = new Point2();
+            ngScratch = new Vector3();
+        } else {
+            pScratch.set(0, 0, 0);
+            nScratch.set(0, 0, 0);
+            texScratch.set(0, 0);
+            ngScratch.set(0, 0, 0);
+        }
+        p = pScratch;
+        n = nScratch;
+        tex = texScratch;
+        ng = ngScratch;
         basis = null;
     }
 
@@ -247,6 +306,60 @@ public final class ShadingState implements Iterable<LightSample> {
         return istate;
     }
 
+    /**
+     * Record the outcome of an irradiance cache lookup in the render
+     * statistics.
+     * 
+     * @param hit <code>true</code> if the cache could provide a value
+     */
+    public final void countIrradianceCacheLookup(boolean hit) {
+        if (hit)
+            istate.numIrradianceCacheHits++;
+        else
+            istate.numIrradianceCacheMisses++;
+    }
+
+    /**
+     * Record a new irradiance cache sample in the render statistics.
+     */
+    public final void countIrradianceCacheInsert() {
+        istate.numIrradianceCacheInserts++;
+    }
+
+    /**
+     * Record the outcome of a russian roulette test on a gather ray in the
+     * render statistics.
+     * 
+     * @param skipped <code>true</code> if the ray was not traced
+     */
+    public final void countRouletteRay(boolean skipped) {
+        istate.numRouletteRays++;
+        if (skipped)
+            istate.numRouletteSkippedRays++;
+    }
+
+    /**
+     * Get the estimated fraction of the light leaving this point which makes
+     * it back to the camera. This starts at 1 for eye rays and is lowered by
+     * the GI engines as diffuse paths bounce around the scene, so they can
+     * decide when a path is no longer worth following.
+     * 
+     * @return path throughput
+     */
+    public final float getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Scale the path throughput of this state. This should be called by GI
+     * engines on the states they spawn, before shading them.
+     * 
+     * @param s scale factor
+     */
+    public final void scaleThroughput(float s) {
+        throughput *= s;
+    }
+
     /**
      * Get u barycentric coordinate of the intersection point.
      * 
@@ -648,6 +761,7 @@ public final class ShadingState implements Iterable<LightSample> {
      * @return color observed along specified ray.
      */
     public final Color traceGlossy(Ray r, int i) {
+        setChildDifferentials(r);
         return server.traceGlossy(this, r, i);
     }
 
@@ -660,6 +774,7 @@ public final class ShadingState implements Iterable<LightSample> {
      * @return color observed along specified ray.
      */
     public final Color traceReflection(Ray r, int i) {
+        setChildDifferentials(r);
         return server.traceReflection(this, r, i);
     }
 
@@ -675,6 +790,7 @@ public final class ShadingState implements Iterable<LightSample> {
         r.ox -= 2 * bias * ng.x;
         r.oy -= 2 * bias * ng.y;
         r.oz -= 2 * bias * ng.z;
+        setChildDifferentials(r);
         return server.traceRefraction(this, r, i);
     }
 
@@ -781,16 +897,58 @@ public final class ShadingState implements Iterable<LightSample> {
 
     /**
      * Trace a final gather ray and return the intersection result as a new
-     * render state
+     * render state. The returned state is recycled by the next ray traced from
+     * this state, so it should be shaded before tracing another one.
      * 
      * @param r ray to shoot
      * @param i instance of the ray
-     * @return new render state object corresponding to the intersection result
+     * @return render state object corresponding to the intersection result
      */
     public final ShadingState traceFinalGather(Ray r, int i) {
+        setChildDifferentials(r);
         return server.traceFinalGather(this, r, i);
     }
 
+    /**
+     * Start the differentials of a secondary ray from the footprint of the
+     * current ray at the shading point. Curvature and the widening caused by
+     * glossy or diffuse scattering are ignored, which keeps texture lookups
+     * on the sharp side.
+     */
+    private void setChildDifferentials(Ray r) {
+        if (this.r != null)
+            r.setDifferentials(this.r.getWidth(this.r.getMax()), this.r.getSpread());
+    }
+
+    /**
+     * Set the number of texture space units per world space unit around the
+     * shading point. Primitives with texture coordinates should set this from
+     * {@link PrimitiveList#prepareShadingState(ShadingState)}, otherwise
+     * textures are looked up at full resolution.
+     * 
+     * @param s texture space scale
+     */
+    public final void setUVScale(float s) {
+        uvScale = s;
+    }
+
+    /**
+     * Get the width of the area seen through the current pixel around the
+     * shading point, measured in texture space. This is derived from the ray
+     * differentials and can be passed to
+     * {@link Texture#getPixel(float, float, float)} to filter textures.
+     * 
+     * @return footprint width in texture space, or 0 if unknown
+     */
+    public final float getUVFootprint() {
+        if (uvScale == 0 || r == null || ng == null)
+            return 0;
+        // the footprint is stretched by 1 / cos along one axis, use the
+        // geometric mean of both axes to keep the filtered area right
+        float cos = Math.max(Math.abs(r.dot(ng)), 1e-4f);
+        return uvScale * r.getWidth(r.getMax()) / (float) Math.sqrt(cos);
+    }
+
     /**
      * Simple black and white ambient occlusion.
      * 
@@ -817,11 +975,32 @@ public final class ShadingState implements Iterable<LightSample> {
             // in case we got called on a geometry without orientation
             return bright;
         }
+        return addOcclusion(samples, maxDist, bright, dark, Color.black());
+    }
+
+    /**
+     * Ambient occlusion routine which adds a value between bright and dark,
+     * depending on the amount of geometric occlusion in the scene, to the
+     * specified color.
+     * 
+     * @param samples number of sample rays
+     * @param maxDist maximum length of the rays
+     * @param bright color when nothing is occluded
+     * @param dark color when fully occluded
+     * @param result color to add the occlusion to
+     * @return <code>result</code>, for convenience
+     */
+    public final Color addOcclusion(int samples, float maxDist, Color bright, Color dark, Color result) {
+        if (n == null) {
+            // in case we got called on a geometry without orientation
+            return result.add(bright);
+        }
         // make sure we are on the right side of the material
         faceforward();
         OrthoNormalBasis onb = getBasis();
-        Vector3 w = new Vector3();
-        Color result = Color.black();
+        Vector3 w = getScratchVector();
+        Ray r = null;
+        Color lr = getScratchColor().set(Color.BLACK);
         for (int i = 0; i < samples; i++) {
             float xi = (float) getRandom(i, 0, samples);
             float xj = (float) getRandom(i, 1, samples);
@@ -834,11 +1013,14 @@ public final class ShadingState implements Iterable<LightSample> {
             w.y = sinPhi * sinTheta;
             w.z = cosTheta;
             onb.transform(w);
-            Ray r = new Ray(p, w);
+            if (r == null)
+                r = new Ray(p, w);
+            else
+                r.set(p, w);
             r.setMax(maxDist);
-            result.add(Color.blend(bright, dark, traceShadow(r)));
+            lr.addBlend(bright, dark, traceShadow(r));
         }
-        return result.mul(1.0f / samples);
+        return result.add(lr.mul(1.0f / samples));
     }
 
     /**
@@ -849,14 +1031,26 @@ public final class ShadingState implements Iterable<LightSample> {
      * @return shaded result
      */
     public final Color diffuse(Color diff) {
+        return addDiffuse(diff, Color.black());
+    }
+
+    /**
+     * Computes a plain diffuse response to the current light samples and global
+     * illumination, and adds it to the specified color.
+     * 
+     * @param diff diffuse color
+     * @param result color to add the diffuse response to
+     * @return <code>result</code>, for convenience
+     */
+    public final Color addDiffuse(Color diff, Color result) {
         // integrate a diffuse function
-        Color lr = Color.black();
         if (diff.isBlack())
-            return lr;
-        for (LightSample sample : this)
+            return result;
+        Color lr = getScratchColor().set(Color.BLACK);
+        for (LightSample sample = lightSample; sample != null; sample = sample.next)
             lr.madd(sample.dot(n), sample.getDiffuseRadiance());
         lr.add(getIrradiance(diff));
-        return lr.mul(diff).mul(1.0f / (float) Math.PI);
+        return result.add(lr.mul(diff).mul(1.0f / (float) Math.PI));
     }
 
     /**
@@ -869,18 +1063,32 @@ public final class ShadingState implements Iterable<LightSample> {
      * @return shaded color
      */
     public final Color specularPhong(Color spec, float power, int numRays) {
+        return addSpecularPhong(spec, power, numRays, Color.black());
+    }
+
+    /**
+     * Computes a phong specular response to the current light samples and
+     * global illumination, and adds it to the specified color.
+     * 
+     * @param spec specular color
+     * @param power phong exponent
+     * @param numRays number of glossy rays to trace
+     * @param result color to add the specular response to
+     * @return <code>result</code>, for convenience
+     */
+    public final Color addSpecularPhong(Color spec, float power, int numRays, Color result) {
         // integrate a phong specular function
-        Color lr = Color.black();
         if (!includeSpecular || spec.isBlack())
-            return lr;
+            return result;
+        Color lr = getScratchColor().set(Color.BLACK);
         // reflected direction
         float dn = 2 * cosND;
-        Vector3 refDir = new Vector3();
+        Vector3 refDir = getScratchVector();
         refDir.x = (dn * n.x) + r.dx;
         refDir.y = (dn * n.y) + r.dy;
         refDir.z = (dn * n.z) + r.dz;
         // direct lighting
-        for (LightSample sample : this) {
+        for (LightSample sample = lightSample; sample != null; sample = sample.next) {
             float cosNL = sample.dot(n);
             float cosLR = sample.dot(refDir);
             if (cosLR > 0)
@@ -891,6 +1099,8 @@ public final class ShadingState implements Iterable<LightSample> {
             int numSamples = getDepth() == 0 ? numRays : 1;
             OrthoNormalBasis onb = OrthoNormalBasis.makeFromW(refDir);
             float mul = (2.0f * (float) Math.PI / (power + 1)) / numSamples;
+            Vector3 w = refDir; // no longer needed once the basis is built
+            Ray r = null;
             for (int i = 0; i < numSamples; i++) {
                 // specular indirect lighting
                 double r1 = getRandom(i, 0, numSamples);
@@ -898,15 +1108,43 @@ public final class ShadingState implements Iterable<LightSample> {
                 double u = 2 * Math.PI * r1;
                 double s = (float) Math.pow(r2, 1 / (power + 1));
                 double s1 = (float) Math.sqrt(1 - s * s);
-                Vector3 w = new Vector3((float) (Math.cos(u) * s1), (float) (Math.sin(u) * s1), (float) s);
-                w = onb.transform(w, new Vector3());
+                w.set((float) (Math.cos(u) * s1), (float) (Math.sin(u) * s1), (float) s);
+                onb.transform(w);
                 float wn = Vector3.dot(w, n);
-                if (wn > 0)
-                    lr.madd(wn * mul, traceGlossy(new Ray(p, w), i));
+                if (wn > 0) {
+                    if (r == null)
+                        r = new Ray(p, w);
+                    else
+                        r.set(p, w);
+                    lr.madd(wn * mul, traceGlossy(r, i));
+                }
             }
         }
-        lr.mul(spec).mul((power + 2) / (2.0f * (float) Math.PI));
-        return lr;
+        return result.add(lr.mul(spec).mul((power + 2) / (2.0f * (float) Math.PI)));
+    }
+
+    /**
+     * Get the color shaders write their result into when this state is
+     * shaded. Only states which are not pooled may hand this color out.
+     * 
+     * @return result color of this state
+     */
+    final Color getScratchResult() {
+        if (resultScratch == null)
+            resultScratch = new Color();
+        return resultScratch;
+    }
+
+    private Color getScratchColor() {
+        if (colorScratch == null)
+            colorScratch = new Color();
+        return colorScratch;
+    }
+
+    private Vector3 getScratchVector() {
+        if (vectorScratch == null)
+            vectorScratch = new Vector3();
+        return vectorScratch;
     }
 
     /**
@@ -11,7 +11,16 @@ public class Statistics {
     private long numGlossyRays;
     private long numRefractionRays;
     private long numRays;
+    private long numOccludedShadowRays;
+    private long numShadowSkippedNodes;
     private long numPixels;
+    // irradiance cache
+    private long irrCacheHits;
+    private long irrCacheMisses;
+    private long irrCacheInserts;
+    // russian roulette
+    private long rouletteRays;
+    private long rouletteSkippedRays;
     // shading cache
     private long cacheHits;
     private long cacheMisses;
@@ -29,11 +38,19 @@ public class Statistics {
         numGlossyRays = 0;
         numRefractionRays = 0;
         numRays = 0;
+        numOccludedShadowRays = 0;
+        numShadowSkippedNodes = 0;
         numPixels = 0;
+        irrCacheHits = 0;
+        irrCacheMisses = 0;
+        irrCacheInserts = 0;
+        rouletteRays = 0;
+        rouletteSkippedRays = 0;
         cacheHits = 0;
         cacheMisses = 0;
         cacheSumDepth = 0;
         cacheNumCaches = 0;
+        TextureCache.resetStatistics();
     }
 
     void accumulate(IntersectionState state) {
@@ -43,6 +60,13 @@ public class Statistics {
         numGlossyRays += state.numGlossyRays;
         numRefractionRays += state.numRefractionRays;
         numRays += state.numRays;
+        numOccludedShadowRays += state.numOccludedShadowRays;
+        numShadowSkippedNodes += state.numShadowSkippedNodes;
+        irrCacheHits += state.numIrradianceCacheHits;
+        irrCacheMisses += state.numIrradianceCacheMisses;
+        irrCacheInserts += state.numIrradianceCacheInserts;
+        rouletteRays += state.numRouletteRays;
+        rouletteSkippedRays += state.numRouletteSkippedRays;
     }
 
     void accumulate(ShadingCache cache) {
@@ -67,6 +91,10 @@ public class Statistics {
         printRayTypeStats("refraction", numRefractionRays);
         printRayTypeStats("other", numRays - numEyeRays - numShadowRays - numReflectionRays - numGlossyRays - numRefractionRays);
         printRayTypeStats("total", numRays);
+        if (numOccludedShadowRays > 0) {
+            UI.printInfo(Module.SCENE, "  * Occluded shadow rays:     %d (%d%%)", numOccludedShadowRays, (100 * numOccludedShadowRays) / numShadowRays);
+            UI.printInfo(Module.SCENE, "  * Skipped shadow nodes:     %d (%.2f per occluded ray)", numShadowSkippedNodes, (double) numShadowSkippedNodes / numOccludedShadowRays);
+        }
         if (cacheHits + cacheMisses > 0) {
             UI.printInfo(Module.LIGHT, "Shading cache stats:");
             UI.printInfo(Module.LIGHT, "  * Lookups:             %d", cacheHits + cacheMisses);
@@ -74,6 +102,29 @@ public class Statistics {
             UI.printInfo(Module.LIGHT, "  * Hit rate:            %d%%", (100 * cacheHits) / (cacheHits + cacheMisses));
             UI.printInfo(Module.LIGHT, "  * Average cache depth: %.2f", (double) cacheSumDepth / (double) cacheNumCaches);
         }
+        if (irrCacheHits + irrCacheMisses > 0) {
+            UI.printInfo(Module.LIGHT, "Irradiance cache stats:");
+            UI.printInfo(Module.LIGHT, "  * Lookups:             %d", irrCacheHits + irrCacheMisses);
+            UI.printInfo(Module.LIGHT, "  * Hits:                %d", irrCacheHits);
+            UI.printInfo(Module.LIGHT, "  * Hit rate:            %d%%", (100 * irrCacheHits) / (irrCacheHits + irrCacheMisses));
+            UI.printInfo(Module.LIGHT, "  * Samples inserted:    %d", irrCacheInserts);
+        }
+        if (rouletteRays > 0) {
+            UI.printInfo(Module.LIGHT, "Russian roulette stats:");
+            UI.printInfo(Module.LIGHT, "  * Gather rays tested:  %d", rouletteRays);
+            UI.printInfo(Module.LIGHT, "  * Rays saved:          %d (%d%%)", rouletteSkippedRays, (100 * rouletteSkippedRays) / rouletteRays);
+        }
+        long tileHits = TextureCache.getTileHits();
+        long tileMisses = TextureCache.getTileMisses();
+        if (tileHits + tileMisses > 0) {
+            UI.printInfo(Module.TEX, "Texture tile cache stats:");
+            UI.printInfo(Module.TEX, "  * Lookups:             %d", tileHits + tileMisses);
+            UI.printInfo(Module.TEX, "  * Hits:                %d", tileHits);
+            UI.printInfo(Module.TEX, "  * Hit rate:            %d%%", (100 * tileHits) / (tileHits + tileMisses));
+            UI.printInfo(Module.TEX, "  * Tiles read:          %d", tileMisses);
+            UI.printInfo(Module.TEX, "  * Tiles evicted:       %d", TextureCache.getTileEvictions());
+            UI.printInfo(Module.TEX, "  * Resident memory:     %.2f MB", TextureCache.getTileMemory() / (1024.0 * 1024.0));
+        }
     }
 
     private void printRayTypeStats(String name, long n) {
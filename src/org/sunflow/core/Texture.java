@@ -8,9 +8,19 @@ import org.sunflow.image.BitmapReader;
 import org.sunflow.image.Color;
 import org.sunflow.image.BitmapReader.BitmapFormatException;
 import org.sunflow.image.formats.BitmapBlack;
+import org.sunflow.image.formats.BitmapFactory;
+import org.sunflow.image.formats.BitmapG16;
+import org.sunflow.image.formats.BitmapG8;
+import org.sunflow.image.formats.BitmapGA8;
+import org.sunflow.image.formats.BitmapRGB16;
+import org.sunflow.image.formats.BitmapRGB8;
+import org.sunflow.image.formats.BitmapRGBA8;
+import org.sunflow.image.formats.BitmapRGBE;
+import org.sunflow.image.formats.BitmapRGBHalf;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.ByteUtil;
 import org.sunflow.system.FileUtils;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
@@ -19,10 +29,23 @@ import org.sunflow.system.UI.Module;
  * Represents a 2D texture, typically used by {@link Shader shaders}.
  */
 public class Texture {
+    // must match the constants used by BitmapFactory to detect the formats
+    private static final float INV255 = 1.0f / 255;
+    private static final float INV65535 = 1.0f / 65535;
+
     private String filename;
     private boolean isLinear;
     private Bitmap bitmap;
+    private TiledTexture tiled;
+    private volatile Bitmap[] levels;
     private int loaded;
+    // texels of the 2x2 block being filtered, followed by the filtered color
+    private static final ThreadLocal<float[]> texels = new ThreadLocal<float[]>() {
+        @Override
+        protected float[] initialValue() {
+            return new float[19];
+        }
+    };
 
     /**
      * Creates a new texture from the specfied file.
@@ -39,6 +62,14 @@ public class Texture {
     private synchronized void load() {
         if (loaded != 0)
             return;
+        // use the tiled version of the file if it was converted before, so
+        // the image doesn't even need to be decoded
+        tiled = TextureCache.openTiledTexture(filename, isLinear);
+        if (tiled != null) {
+            bitmap = tiled.getLevel(0);
+            loaded = 1;
+            return;
+        }
         String extension = FileUtils.getExtension(filename);
         try {
             UI.printInfo(Module.TEX, "Reading texture bitmap from: \"%s\" ...", filename);
@@ -51,8 +82,12 @@ public class Texture {
             if (bitmap == null) {
                 UI.printError(Module.TEX, "Bitmap reading failed");
                 bitmap = new BitmapBlack();
-            } else
+            } else {
                 UI.printDetailed(Module.TEX, "Texture bitmap reading complete: %dx%d pixels found", bitmap.getWidth(), bitmap.getHeight());
+                tiled = TextureCache.createTiledTexture(filename, isLinear, bitmap);
+                if (tiled != null)
+                    bitmap = tiled.getLevel(0);
+            }
         } catch (IOException e) {
             UI.printError(Module.TEX, "%s", e.getMessage());
         } catch (BitmapFormatException e) {
@@ -78,7 +113,184 @@ public class Texture {
      * @return filtered color at location (x,y)
      */
     public Color getPixel(float x, float y) {
+        return getPixel(x, y, new Color());
+    }
+
+    /**
+     * Gets the color at location (x,y) in the texture, like
+     * {@link #getPixel(float, float)}, and stores it in the specified color.
+     * 
+     * @param x x coordinate into the texture
+     * @param y y coordinate into the texture
+     * @param result color which receives the filtered color
+     * @return <code>result</code>, for convenience
+     */
+    public Color getPixel(float x, float y, Color result) {
+        float[] t = texels.get();
+        filter(getBitmap(), x, y, t);
+        return result.set(t[16], t[17], t[18]);
+    }
+
+    /**
+     * Gets the color at location (x,y) in the texture, filtered over an area
+     * of the specified width. The lookup is performed on the two mipmap levels
+     * whose texels are closest to the filter width, and the results are
+     * blended linearly. A width of 0 is equivalent to
+     * {@link #getPixel(float, float)}.
+     * 
+     * @param x x coordinate into the texture
+     * @param y y coordinate into the texture
+     * @param width filter width in texture space, see
+     *            {@link ShadingState#getUVFootprint()}
+     * @return filtered color at location (x,y)
+     */
+    public Color getPixel(float x, float y, float width) {
+        return getPixel(x, y, width, new Color());
+    }
+
+    /**
+     * Gets the color at location (x,y) in the texture, filtered over an area
+     * of the specified width like {@link #getPixel(float, float, float)}, and
+     * stores it in the specified color.
+     * 
+     * @param x x coordinate into the texture
+     * @param y y coordinate into the texture
+     * @param width filter width in texture space
+     * @param result color which receives the filtered color
+     * @return <code>result</code>, for convenience
+     */
+    public Color getPixel(float x, float y, float width, Color result) {
+        if (width <= 0)
+            return getPixel(x, y, result);
+        Bitmap[] levels = getLevels();
+        Bitmap bitmap = levels[0];
+        float[] t = texels.get();
+        float lod = (float) (Math.log(width * Math.max(bitmap.getWidth(), bitmap.getHeight())) / Math.log(2));
+        int l = (int) lod;
+        if (lod <= 0 || l >= levels.length - 1) {
+            filter(lod <= 0 ? bitmap : levels[levels.length - 1], x, y, t);
+            return result.set(t[16], t[17], t[18]);
+        }
+        // blend the two closest levels
+        float s = lod - l;
+        filter(levels[l], x, y, t);
+        float r = t[16] * (1 - s);
+        float g = t[17] * (1 - s);
+        float b = t[18] * (1 - s);
+        filter(levels[l + 1], x, y, t);
+        return result.set(r + s * t[16], g + s * t[17], b + s * t[18]);
+    }
+
+    private Bitmap[] getLevels() {
+        Bitmap[] levels = this.levels;
+        if (levels == null)
+            levels = createLevels();
+        return levels;
+    }
+
+    /**
+     * Create the mipmap levels of this texture. Tiled textures have them in
+     * their file already, otherwise each level is box filtered from the
+     * previous one and stored with the precision of the original image, see
+     * {@link #createLevel(Bitmap, int, int, float[])}.
+     */
+    private synchronized Bitmap[] createLevels() {
+        if (levels != null)
+            return levels;
         Bitmap bitmap = getBitmap();
+        if (tiled != null) {
+            Bitmap[] tiledLevels = new Bitmap[tiled.getNumLevels()];
+            for (int i = 0; i < tiledLevels.length; i++)
+                tiledLevels[i] = tiled.getLevel(i);
+            levels = tiledLevels;
+            return levels;
+        }
+        int n = 1;
+        for (int w = bitmap.getWidth(), h = bitmap.getHeight(); w > 1 || h > 1; w = Math.max(1, w >> 1), h = Math.max(1, h >> 1))
+            n++;
+        Bitmap[] mipLevels = new Bitmap[n];
+        mipLevels[0] = bitmap;
+        float[] row0 = new float[4 * bitmap.getWidth()];
+        float[] row1 = new float[4 * bitmap.getWidth()];
+        for (int l = 1; l < n; l++) {
+            Bitmap src = mipLevels[l - 1];
+            int sw = src.getWidth();
+            int sh = src.getHeight();
+            int w = Math.max(1, sw >> 1);
+            int h = Math.max(1, sh >> 1);
+            float[] rgba = new float[4 * w * h];
+            for (int y = 0, i = 0; y < h; y++) {
+                src.readRGBA(0, 2 * y, sw, 1, row0);
+                src.readRGBA(0, Math.min(2 * y + 1, sh - 1), sw, 1, row1);
+                for (int x = 0; x < w; x++, i++) {
+                    int x0 = 8 * x, x1 = 4 * Math.min(2 * x + 1, sw - 1);
+                    for (int j = 0; j < 4; j++)
+                        rgba[4 * i + j] = 0.25f * (row0[x0 + j] + row0[x1 + j] + row1[x0 + j] + row1[x1 + j]);
+                }
+            }
+            mipLevels[l] = createLevel(bitmap, w, h, rgba);
+        }
+        UI.printDetailed(Module.TEX, "Created %d mipmap levels for \"%s\"", n, filename);
+        levels = mipLevels;
+        return levels;
+    }
+
+    /**
+     * Store a mipmap level at the precision of the original image. RGBE
+     * images keep RGBE levels. For all other images the averaged texels are
+     * rounded to the channel precision of the original, so
+     * {@link BitmapFactory} picks the same storage again, or a smaller one if
+     * the level allows it. Alpha is kept whenever the original has it.
+     * 
+     * @param source original image
+     * @param w width of the level
+     * @param h height of the level
+     * @param rgba averaged texels, four floats per texel
+     * @return bitmap holding the level
+     */
+    private static Bitmap createLevel(Bitmap source, int w, int h, float[] rgba) {
+        if (source instanceof BitmapRGBE) {
+            Color c = new Color();
+            int[] rgbe = new int[w * h];
+            for (int i = 0; i < rgbe.length; i++)
+                rgbe[i] = c.set(rgba[4 * i], rgba[4 * i + 1], rgba[4 * i + 2]).toRGBE();
+            return new BitmapRGBE(w, h, rgbe);
+        }
+        if (hasByteTexels(source)) {
+            for (int i = 0; i < rgba.length; i++)
+                rgba[i] = MathUtils.clamp(Math.round(rgba[i] * 255), 0, 255) * INV255;
+        } else if (source instanceof BitmapRGB16 || source instanceof BitmapG16) {
+            for (int i = 0; i < rgba.length; i++)
+                rgba[i] = MathUtils.clamp(Math.round(rgba[i] * 65535), 0, 65535) * INV65535;
+        } else if (source instanceof BitmapRGBHalf) {
+            for (int i = 0; i < rgba.length; i++)
+                rgba[i] = ByteUtil.halfToFloat(ByteUtil.floatToHalf(rgba[i]));
+        }
+        return BitmapFactory.create(w, h, rgba);
+    }
+
+    /**
+     * Checks if the specified bitmap stores 8-bit texels, which can be kept
+     * exactly in 8-bit storage.
+     * 
+     * @param bitmap bitmap to check
+     * @return <code>true</code> if the texels are 8-bit
+     */
+    static boolean hasByteTexels(Bitmap bitmap) {
+        return bitmap instanceof BitmapRGB8 || bitmap instanceof BitmapRGBA8 || bitmap instanceof BitmapG8 || bitmap instanceof BitmapGA8;
+    }
+
+    /**
+     * Filter the four texels nearest to (x,y) in the specified bitmap. The
+     * texels are read into the first 16 floats of the array, and the filtered
+     * red, green and blue values are stored after them.
+     * 
+     * @param bitmap bitmap to read from
+     * @param x x coordinate into the texture
+     * @param y y coordinate into the texture
+     * @param texels scratch array of at least 19 floats
+     */
+    private static void filter(Bitmap bitmap, float x, float y, float[] texels) {
         x = MathUtils.frac(x);
         y = MathUtils.frac(y);
         float dx = x * (bitmap.getWidth() - 1);
@@ -92,18 +304,21 @@ public class Texture {
         u = u * u * (3.0f - (2.0f * u));
         v = v * v * (3.0f - (2.0f * v));
         float k00 = (1.0f - u) * (1.0f - v);
-        Color c00 = bitmap.readColor(ix0, iy0);
         float k01 = (1.0f - u) * v;
-        Color c01 = bitmap.readColor(ix0, iy1);
         float k10 = u * (1.0f - v);
-        Color c10 = bitmap.readColor(ix1, iy0);
         float k11 = u * v;
-        Color c11 = bitmap.readColor(ix1, iy1);
-        Color c = Color.mul(k00, c00);
-        c.madd(k01, c01);
-        c.madd(k10, c10);
-        c.madd(k11, c11);
-        return c;
+        // texels are read as (x0, y0), (x1, y0), (x0, y1) and (x1, y1)
+        if (ix1 == ix0 + 1 && iy1 == iy0 + 1)
+            bitmap.readRGBA(ix0, iy0, 2, 2, texels);
+        else {
+            bitmap.readRGBA(ix0, iy0, texels, 0);
+            bitmap.readRGBA(ix1, iy0, texels, 4);
+            bitmap.readRGBA(ix0, iy1, texels, 8);
+            bitmap.readRGBA(ix1, iy1, texels, 12);
+        }
+        texels[16] = k00 * texels[0] + k01 * texels[8] + k10 * texels[4] + k11 * texels[12];
+        texels[17] = k00 * texels[1] + k01 * texels[9] + k10 * texels[5] + k11 * texels[13];
+        texels[18] = k00 * texels[2] + k01 * texels[10] + k10 * texels[6] + k11 * texels[14];
     }
 
     public float getAlpha(float x, float y) {
@@ -136,17 +351,25 @@ public class Texture {
     }
 
     public Vector3 getNormal(float x, float y, OrthoNormalBasis basis) {
-        float[] rgb = getPixel(x, y).getRGB();
-        return basis.transform(new Vector3(2 * rgb[0] - 1, 2 * rgb[1] - 1, 2 * rgb[2] - 1)).normalize();
+        float[] t = texels.get();
+        filter(getBitmap(), x, y, t);
+        return basis.transform(new Vector3(2 * t[16] - 1, 2 * t[17] - 1, 2 * t[18] - 1)).normalize();
     }
 
     public Vector3 getBump(float x, float y, OrthoNormalBasis basis, float scale) {
         Bitmap bitmap = getBitmap();
         float dx = 1.0f / bitmap.getWidth();
         float dy = 1.0f / bitmap.getHeight();
-        float b0 = getPixel(x, y).getLuminance();
-        float bx = getPixel(x + dx, y).getLuminance();
-        float by = getPixel(x, y + dy).getLuminance();
+        float[] t = texels.get();
+        float b0 = getLuminance(bitmap, x, y, t);
+        float bx = getLuminance(bitmap, x + dx, y, t);
+        float by = getLuminance(bitmap, x, y + dy, t);
         return basis.transform(new Vector3(scale * (b0 - bx), scale * (b0 - by), 1)).normalize();
     }
+
+    private static float getLuminance(Bitmap bitmap, float x, float y, float[] texels) {
+        filter(bitmap, x, y, texels);
+        // same weights as Color.getLuminance()
+        return (0.2989f * texels[16]) + (0.5866f * texels[17]) + (0.1145f * texels[18]);
+    }
 }
@@ -1,16 +1,71 @@
 package org.sunflow.core;
 
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
+import org.sunflow.image.Bitmap;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 /**
  * Maintains a cache of all loaded texture maps. This is usefull if the same
- * texture might be used more than once in your scene.
+ * texture might be used more than once in your scene. Once a cache directory
+ * is set, large textures are converted to tiled and mipmapped files on first
+ * use, and only the tiles which are looked up are kept in memory, up to a
+ * fixed budget shared by all textures. The resident tiles are spread over
+ * several independently locked stripes, each with an equal share of the
+ * budget, so threads rarely wait for each other. The least recently used
+ * tiles of a stripe are evicted first.
  */
 public final class TextureCache {
     private static HashMap<String, Texture> textures = new HashMap<String, Texture>();
+    // small textures load faster than they can be converted
+    private static final int MIN_PIXELS = 256 * 256;
+
+    private static File directory = null;
+    private static int nextId = 0;
+    // tiled textures opened since the last flush
+    private static ArrayList<TiledTexture> tiledTextures = new ArrayList<TiledTexture>();
+
+    // tile cache, split into stripes by tile key
+    private static final int TILE_STRIPE_SHIFT = 4;
+    private static final TileStripe[] tileStripes = new TileStripe[1 << TILE_STRIPE_SHIFT];
+    private static volatile long tileMemoryLimit = 256L << 20;
+
+    static {
+        for (int i = 0; i < tileStripes.length; i++)
+            tileStripes[i] = new TileStripe();
+    }
+
+    /**
+     * One stripe of the tile cache, guarded by its own lock.
+     */
+    private static final class TileStripe {
+        // ordered from least to most recently used
+        private final LinkedHashMap<Long, TiledTexture.Tile> tiles = new LinkedHashMap<Long, TiledTexture.Tile>(64, 0.75f, true);
+        private long memory = 0;
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+
+        private void evict() {
+            // always keep the most recent tile
+            long limit = tileMemoryLimit >> TILE_STRIPE_SHIFT;
+            Iterator<TiledTexture.Tile> it = tiles.values().iterator();
+            while (memory > limit && tiles.size() > 1) {
+                memory -= it.next().getSize();
+                it.remove();
+                evictions++;
+            }
+        }
+    }
 
     private TextureCache() {
     }
@@ -43,5 +98,217 @@ public final class TextureCache {
     public synchronized static void flush() {
         UI.printInfo(Module.TEX, "Flushing texture cache");
         textures.clear();
+        // threads keep their last tiles outside of the stripes
+        for (TiledTexture t : tiledTextures)
+            t.clearRecentTiles();
+        tiledTextures.clear();
+        for (TileStripe s : tileStripes) {
+            synchronized (s) {
+                s.tiles.clear();
+                s.memory = 0;
+            }
+        }
+    }
+
+    /**
+     * Enable tiled textures and store the converted files in the specified
+     * directory, or disable them if <code>null</code> is passed. Textures
+     * which are already loaded are not affected.
+     * 
+     * @param dir cache directory, will be created if needed
+     */
+    public synchronized static void setDirectory(String dir) {
+        directory = dir == null ? null : new File(dir);
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            UI.printWarning(Module.TEX, "Unable to create texture cache directory \"%s\" - tiled textures disabled", dir);
+            directory = null;
+        }
+    }
+
+    /**
+     * Set the amount of memory tiled textures may use for their resident
+     * tiles. The default is 256 megabytes.
+     * 
+     * @param megabytes memory budget in megabytes
+     */
+    public static void setMemoryLimit(int megabytes) {
+        tileMemoryLimit = (long) Math.max(1, megabytes) << 20;
+        for (TileStripe s : tileStripes) {
+            synchronized (s) {
+                s.evict();
+            }
+        }
+    }
+
+    /**
+     * Open the tiled version of the specified texture if it was converted
+     * before.
+     * 
+     * @param filename image file
+     * @param isLinear is the texture gamma corrected?
+     * @return tiled texture, or <code>null</code> if it must be decoded
+     */
+    static TiledTexture openTiledTexture(String filename, boolean isLinear) {
+        File file = getTiledFile(filename, isLinear);
+        if (file == null || !file.isFile())
+            return null;
+        TiledTexture t = TiledTexture.open(file, getNextId());
+        if (t == null)
+            UI.printWarning(Module.TEX, "Ignoring invalid tiled texture \"%s\"", file.getName());
+        else {
+            UI.printInfo(Module.TEX, "Using tiled texture \"%s\"", file.getName());
+            addTiledTexture(t);
+        }
+        return t;
+    }
+
+    /**
+     * Convert the decoded image of the specified texture to a tiled texture,
+     * so it does not need to stay in memory.
+     * 
+     * @param filename image file
+     * @param isLinear is the texture gamma corrected?
+     * @param bitmap decoded image
+     * @return tiled texture, or <code>null</code> if the bitmap should be
+     *         used as is
+     */
+    static TiledTexture createTiledTexture(String filename, boolean isLinear, Bitmap bitmap) {
+        if ((long) bitmap.getWidth() * bitmap.getHeight() < MIN_PIXELS)
+            return null;
+        File file = getTiledFile(filename, isLinear);
+        if (file == null)
+            return null;
+        Timer t = new Timer();
+        t.start();
+        TiledTexture tiled = TiledTexture.create(file, bitmap, getNextId());
+        t.end();
+        if (tiled != null) {
+            UI.printInfo(Module.TEX, "Converted texture to tiled file \"%s\" in %s", file.getName(), t);
+            addTiledTexture(tiled);
+        }
+        return tiled;
+    }
+
+    private synchronized static void addTiledTexture(TiledTexture t) {
+        tiledTextures.add(t);
+    }
+
+    private synchronized static int getNextId() {
+        return nextId++;
+    }
+
+    private synchronized static File getTiledFile(String filename, boolean isLinear) {
+        if (directory == null)
+            return null;
+        File source = new File(filename);
+        if (!source.isFile())
+            return null;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+            source = source.getCanonicalFile();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            return null;
+        }
+        // the converted file depends on the source file contents, which are
+        // identified by their size and modification time
+        digest.update(String.format("%s|%d|%d|%b|%d", source.getPath(), source.length(), source.lastModified(), isLinear, TiledTexture.VERSION).getBytes());
+        StringBuilder s = new StringBuilder();
+        String name = source.getName();
+        s.append(name.indexOf('.') > 0 ? name.substring(0, name.indexOf('.')) : name);
+        s.append('-');
+        for (byte b : digest.digest())
+            s.append(String.format("%02x", b & 0xFF));
+        s.append(".tex");
+        return new File(directory, s.toString());
+    }
+
+    /**
+     * Get a tile of a tiled texture, reading it from its file if it is not
+     * resident.
+     * 
+     * @param texture tiled texture
+     * @param level mipmap level
+     * @param index tile index within the level
+     * @return tile data
+     */
+    static TiledTexture.Tile getTile(TiledTexture texture, int level, int index) {
+        long k = texture.getTileKey(level, index);
+        Long key = k;
+        // neighbouring tiles have consecutive keys, mix them so they land in
+        // different stripes
+        TileStripe s = tileStripes[(int) ((k * 0x9E3779B97F4A7C15L) >>> (64 - TILE_STRIPE_SHIFT))];
+        synchronized (s) {
+            TiledTexture.Tile t = s.tiles.get(key);
+            if (t != null) {
+                s.hits++;
+                return t;
+            }
+        }
+        // read outside the lock so other threads can keep going
+        TiledTexture.Tile t = texture.readTile(level, index);
+        synchronized (s) {
+            TiledTexture.Tile other = s.tiles.get(key);
+            if (other != null) {
+                // another thread read the same tile in the mean time
+                s.hits++;
+                return other;
+            }
+            s.misses++;
+            s.tiles.put(key, t);
+            s.memory += t.getSize();
+            s.evict();
+        }
+        return t;
+    }
+
+    static void resetStatistics() {
+        for (TileStripe s : tileStripes) {
+            synchronized (s) {
+                s.hits = s.misses = s.evictions = 0;
+            }
+        }
+    }
+
+    static long getTileHits() {
+        long n = 0;
+        for (TileStripe s : tileStripes) {
+            synchronized (s) {
+                n += s.hits;
+            }
+        }
+        return n;
+    }
+
+    static long getTileMisses() {
+        long n = 0;
+        for (TileStripe s : tileStripes) {
+            synchronized (s) {
+                n += s.misses;
+            }
+        }
+        return n;
+    }
+
+    static long getTileEvictions() {
+        long n = 0;
+        for (TileStripe s : tileStripes) {
+            synchronized (s) {
+                n += s.evictions;
+            }
+        }
+        return n;
+    }
+
+    static long getTileMemory() {
+        long n = 0;
+        for (TileStripe s : tileStripes) {
+            synchronized (s) {
+                n += s.memory;
+            }
+        }
+        return n;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,445 @@
+package org.sunflow.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.WeakHashMap;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.Color;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * A texture converted to a tiled and mipmapped file in the texture cache
+ * directory. The file is read through a few large memory mapped chunks and
+ * tiles are only copied to the heap when a lookup touches them. Decoded tiles
+ * are kept in the memory limited tile cache of {@link TextureCache}, so the
+ * memory used by large textures only depends on the parts which are actually
+ * seen.
+ */
+final class TiledTexture {
+    private static final int MAGIC = 0x53465458; // "SFTX"
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    static final int TILE_SHIFT = 6;
+    static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    // texel formats, 8-bit sources are stored exactly in bytes
+    private static final int FORMAT_BYTE = 0;
+    private static final int FORMAT_FLOAT = 1;
+    // largest mapping, levels bigger than this are split at tile row bounds
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    private final int id;
+    private final int format;
+    private final int tileBytes;
+    private final int[] widths;
+    private final int[] heights;
+    private final int[] tilesX;
+    private final int[] tilesY;
+    private final long[] offsets;
+    private final int[] rowsPerChunk;
+    private final MappedByteBuffer[][] chunks;
+    private final Level[] levels;
+    private final ThreadLocal<RecentTiles> recentTiles;
+    // recent tiles of every live thread, so they can be released on flush
+    private final WeakHashMap<RecentTiles, Boolean> allRecentTiles;
+
+    /**
+     * A block of decoded texels from a single mipmap level.
+     */
+    static final class Tile {
+        private final int level;
+        private final int index;
+        private final byte[] bytes;
+        private final float[] floats;
+
+        private Tile(int level, int index, byte[] bytes, float[] floats) {
+            this.level = level;
+            this.index = index;
+            this.bytes = bytes;
+            this.floats = floats;
+        }
+
+        /**
+         * Get the amount of memory held by this tile.
+         * 
+         * @return size of the texel data in bytes
+         */
+        int getSize() {
+            return bytes != null ? bytes.length : 4 * floats.length;
+        }
+    }
+
+    /**
+     * The tiles last used by one thread. A bilinear lookup near a tile corner
+     * touches four tiles, and blending two mipmap levels doubles that, so
+     * several tiles are kept rather than only the last one.
+     */
+    private static final class RecentTiles {
+        private final Tile[] tiles = new Tile[8];
+        private int next = 0;
+
+        private void clear() {
+            for (int i = 0; i < tiles.length; i++)
+                tiles[i] = null;
+        }
+    }
+
+    private TiledTexture(int id, int format, int width, int height) {
+        this.id = id;
+        this.format = format;
+        tileBytes = TILE_SIZE * TILE_SIZE * 4 * (format == FORMAT_BYTE ? 1 : 4);
+        int numLevels = 1;
+        for (int w = width, h = height; w > 1 || h > 1; w = Math.max(1, w >> 1), h = Math.max(1, h >> 1))
+            numLevels++;
+        widths = new int[numLevels];
+        heights = new int[numLevels];
+        tilesX = new int[numLevels];
+        tilesY = new int[numLevels];
+        offsets = new long[numLevels];
+        rowsPerChunk = new int[numLevels];
+        chunks = new MappedByteBuffer[numLevels][];
+        levels = new Level[numLevels];
+        long offset = HEADER_SIZE;
+        for (int l = 0, w = width, h = height; l < numLevels; l++, w = Math.max(1, w >> 1), h = Math.max(1, h >> 1)) {
+            widths[l] = w;
+            heights[l] = h;
+            tilesX[l] = (w + TILE_MASK) >> TILE_SHIFT;
+            tilesY[l] = (h + TILE_MASK) >> TILE_SHIFT;
+            offsets[l] = offset;
+            offset += (long) tilesX[l] * tilesY[l] * tileBytes;
+            rowsPerChunk[l] = Math.max(1, MAX_CHUNK_SIZE / (tilesX[l] * tileBytes));
+            levels[l] = new Level(l);
+        }
+        allRecentTiles = new WeakHashMap<RecentTiles, Boolean>();
+        recentTiles = new ThreadLocal<RecentTiles>() {
+            @Override
+            protected RecentTiles initialValue() {
+                RecentTiles recent = new RecentTiles();
+                synchronized (allRecentTiles) {
+                    allRecentTiles.put(recent, Boolean.TRUE);
+                }
+                return recent;
+            }
+        };
+    }
+
+    private long getSize() {
+        int last = levels.length - 1;
+        return offsets[last] + (long) tilesX[last] * tilesY[last] * tileBytes;
+    }
+
+    private void map(FileChannel channel) throws IOException {
+        for (int l = 0; l < levels.length; l++) {
+            long rowBytes = (long) tilesX[l] * tileBytes;
+            chunks[l] = new MappedByteBuffer[(tilesY[l] + rowsPerChunk[l] - 1) / rowsPerChunk[l]];
+            for (int c = 0; c < chunks[l].length; c++) {
+                int ty = c * rowsPerChunk[l];
+                int n = Math.min(rowsPerChunk[l], tilesY[l] - ty);
+                chunks[l][c] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[l] + ty * rowBytes, n * rowBytes);
+            }
+        }
+    }
+
+    /**
+     * Drop the tiles recently used by every thread, so they no longer hold
+     * memory outside of the budget of the tile cache.
+     */
+    void clearRecentTiles() {
+        synchronized (allRecentTiles) {
+            for (RecentTiles recent : allRecentTiles.keySet())
+                recent.clear();
+        }
+    }
+
+    /**
+     * Get the number of mipmap levels in this texture. Level 0 is the full
+     * resolution image, and each following level halves the resolution down
+     * to a single texel.
+     * 
+     * @return number of levels
+     */
+    int getNumLevels() {
+        return levels.length;
+    }
+
+    /**
+     * Get a bitmap view of the specified mipmap level.
+     * 
+     * @param level mipmap level
+     * @return bitmap reading its texels through the tile cache
+     */
+    Bitmap getLevel(int level) {
+        return levels[level];
+    }
+
+    /**
+     * Get the key of the specified tile, unique among all tiled textures.
+     */
+    long getTileKey(int level, int index) {
+        return ((long) id << 32) | ((long) level << 27) | index;
+    }
+
+    private Tile getTile(int level, int x, int y) {
+        int index = (y >> TILE_SHIFT) * tilesX[level] + (x >> TILE_SHIFT);
+        // most lookups hit one of the tiles recently used by this thread
+        RecentTiles recent = recentTiles.get();
+        Tile[] tiles = recent.tiles;
+        for (Tile t : tiles)
+            if (t != null && t.level == level && t.index == index)
+                return t;
+        Tile t = TextureCache.getTile(this, level, index);
+        tiles[recent.next] = t;
+        recent.next = (recent.next + 1) % tiles.length;
+        return t;
+    }
+
+    /**
+     * Read a tile from the mapped file. This is only called by the tile cache
+     * when a tile is missing.
+     */
+    Tile readTile(int level, int index) {
+        int ty = index / tilesX[level];
+        int c = ty / rowsPerChunk[level];
+        ByteBuffer row = chunks[level][c].duplicate();
+        row.position(((ty - c * rowsPerChunk[level]) * tilesX[level] + index % tilesX[level]) * tileBytes);
+        row.limit(row.position() + tileBytes);
+        if (format == FORMAT_BYTE) {
+            byte[] bytes = new byte[tileBytes];
+            row.get(bytes);
+            return new Tile(level, index, bytes, null);
+        } else {
+            float[] floats = new float[tileBytes / 4];
+            row.slice().asFloatBuffer().get(floats);
+            return new Tile(level, index, null, floats);
+        }
+    }
+
+    /**
+     * Open a tiled texture file created earlier.
+     * 
+     * @param file tiled texture file
+     * @param id unique id for the tile cache
+     * @return texture, or <code>null</code> if the file is invalid
+     */
+    static TiledTexture open(File file, int id) {
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                if (channel.size() < HEADER_SIZE)
+                    return null;
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining())
+                    if (channel.read(header) < 0)
+                        return null;
+                header.flip();
+                if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                    return null;
+                int format = header.getInt();
+                int width = header.getInt();
+                int height = header.getInt();
+                if (header.getInt() != TILE_SIZE || (format != FORMAT_BYTE && format != FORMAT_FLOAT) || width <= 0 || height <= 0)
+                    return null;
+                TiledTexture t = new TiledTexture(id, format, width, height);
+                if (channel.size() != t.getSize())
+                    return null;
+                // mapped buffers stay valid after the file is closed
+                t.map(channel);
+                return t;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            UI.printWarning(Module.TEX, "Unable to read tiled texture \"%s\": %s", file.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Convert a bitmap to a tiled and mipmapped texture file. The file is
+     * written one row of tiles at a time, and each level is filtered down
+     * from the previous one as soon as the two rows of tiles it depends on
+     * are written, so only a couple of rows of tiles per level are kept in
+     * memory.
+     * 
+     * @param file tiled texture file to create
+     * @param bitmap full resolution image
+     * @param id unique id for the tile cache
+     * @return texture, or <code>null</code> if the file could not be written
+     */
+    static TiledTexture create(File file, Bitmap bitmap, int id) {
+        int format = Texture.hasByteTexels(bitmap) ? FORMAT_BYTE : FORMAT_FLOAT;
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        // write to a temporary file first, so other processes sharing the
+        // cache never see a partial file
+        File temp = new File(file.getParentFile(), file.getName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                TiledTexture t = new TiledTexture(id, format, width, height);
+                FileChannel channel = out.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(format);
+                header.putInt(width);
+                header.putInt(height);
+                header.putInt(TILE_SIZE);
+                header.rewind();
+                write(channel, header, 0);
+                float[][] pending = new float[t.levels.length][];
+                for (int ty = 0; ty < t.tilesY[0]; ty++) {
+                    int y = ty << TILE_SHIFT;
+                    float[] texels = new float[4 * width * Math.min(TILE_SIZE, height - y)];
+                    bitmap.readRGBA(0, y, width, texels.length / (4 * width), texels);
+                    t.writeTiles(channel, 0, ty, texels, pending);
+                }
+                channel.force(false);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                if (!file.isFile()) {
+                    UI.printWarning(Module.TEX, "Unable to save tiled texture \"%s\"", file.getName());
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            temp.delete();
+            UI.printWarning(Module.TEX, "Unable to save tiled texture \"%s\": %s", file.getName(), e.getMessage());
+            return null;
+        }
+        return open(file, id);
+    }
+
+    /**
+     * Write one row of tiles of the specified level, then filter the next
+     * level once both rows of tiles it is made from are known. The texels are
+     * replaced by the values actually stored, so each level is filtered from
+     * exactly what a lookup of the level above would see.
+     * 
+     * @param channel file to write to
+     * @param level mipmap level
+     * @param ty row of tiles
+     * @param texels rows of texels covered by the tiles, four floats each
+     * @param pending even rows of tiles of each level still waiting for the
+     *            odd row below them
+     */
+    private void writeTiles(FileChannel channel, int level, int ty, float[] texels, float[][] pending) throws IOException {
+        int w = widths[level];
+        int texelBytes = format == FORMAT_BYTE ? 4 : 16;
+        ByteBuffer tiles = ByteBuffer.allocate(tilesX[level] * tileBytes);
+        for (int y = 0, i = 0; i < texels.length; y++) {
+            for (int x = 0; x < w; x++, i += 4) {
+                int offset = (x >> TILE_SHIFT) * tileBytes + ((y << TILE_SHIFT) + (x & TILE_MASK)) * texelBytes;
+                for (int j = 0; j < 4; j++) {
+                    if (format == FORMAT_BYTE) {
+                        byte b = (byte) Math.max(0, Math.min(255, Math.round(texels[i + j] * 255)));
+                        tiles.put(offset + j, b);
+                        texels[i + j] = (b & 0xFF) / 255.0f;
+                    } else
+                        tiles.putFloat(offset + 4 * j, texels[i + j]);
+                }
+            }
+        }
+        write(channel, tiles, offsets[level] + (long) ty * tiles.capacity());
+        if (level == levels.length - 1)
+            return;
+        boolean last = ty == tilesY[level] - 1;
+        if ((ty & 1) == 0 && !last) {
+            pending[level] = texels;
+            return;
+        }
+        float[] upper = (ty & 1) == 0 ? texels : pending[level];
+        float[] lower = (ty & 1) == 0 ? null : texels;
+        pending[level] = null;
+        // box filter the 2x2 texels of this level
+        int nw = widths[level + 1];
+        int y0 = (ty >> 1) << TILE_SHIFT;
+        // the last row of an odd height is dropped by the next level
+        if (y0 >= heights[level + 1])
+            return;
+        int nh = Math.min(TILE_SIZE, heights[level + 1] - y0);
+        float[] next = new float[4 * nw * nh];
+        for (int y = 0, i = 0; y < nh; y++) {
+            // rows of this level, relative to the first row of the upper tiles
+            int sy0 = 2 * y;
+            int sy1 = Math.min(2 * (y0 + y) + 1, heights[level] - 1) - 2 * y0;
+            float[] row0 = sy0 < TILE_SIZE ? upper : lower;
+            float[] row1 = sy1 < TILE_SIZE ? upper : lower;
+            int r0 = 4 * w * (sy0 & TILE_MASK);
+            int r1 = 4 * w * (sy1 & TILE_MASK);
+            for (int x = 0; x < nw; x++) {
+                int x0 = 4 * 2 * x, x1 = 4 * Math.min(2 * x + 1, w - 1);
+                for (int j = 0; j < 4; j++, i++)
+                    next[i] = 0.25f * (row0[r0 + x0 + j] + row0[r0 + x1 + j] + row1[r1 + x0 + j] + row1[r1 + x1 + j]);
+            }
+        }
+        writeTiles(channel, level + 1, ty >> 1, next, pending);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * Bitmap view of one mipmap level. Texel values are identical to the
+     * ones of the source bitmap the file was created from.
+     */
+    private final class Level extends Bitmap {
+        private final int level;
+
+        Level(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public int getWidth() {
+            return widths[level];
+        }
+
+        @Override
+        public int getHeight() {
+            return heights[level];
+        }
+
+        @Override
+        public Color readColor(int x, int y) {
+            Tile t = getTile(level, x, y);
+            int index = 4 * (((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK));
+            if (t.bytes != null)
+                return new Color((t.bytes[index] & 0xFF) * INV255, (t.bytes[index + 1] & 0xFF) * INV255, (t.bytes[index + 2] & 0xFF) * INV255);
+            return new Color(t.floats[index], t.floats[index + 1], t.floats[index + 2]);
+        }
+
+        @Override
+        public float readAlpha(int x, int y) {
+            Tile t = getTile(level, x, y);
+            int index = 4 * (((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK)) + 3;
+            if (t.bytes != null)
+                return (t.bytes[index] & 0xFF) * INV255;
+            return t.floats[index];
+        }
+
+        @Override
+        public void readRGBA(int x, int y, float[] rgba, int offset) {
+            Tile t = getTile(level, x, y);
+            int index = 4 * (((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK));
+            if (t.bytes != null) {
+                for (int i = 0; i < 4; i++)
+                    rgba[offset + i] = (t.bytes[index + i] & 0xFF) * INV255;
+            } else
+                System.arraycopy(t.floats, index, rgba, offset, 4);
+        }
+    }
+}
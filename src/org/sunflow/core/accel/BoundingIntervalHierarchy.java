@@ -1,9 +1,12 @@
 package org.sunflow.core.accel;
 
-import org.sunflow.core.AccelerationStructure;
+import org.sunflow.core.CacheableAccelerationStructure;
 import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PacketAccelerationStructure;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
+import org.sunflow.core.RefittableAccelerationStructure;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
@@ -11,7 +14,7 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 import org.sunflow.util.IntArray;
 
-public class BoundingIntervalHierarchy implements AccelerationStructure {
+public class BoundingIntervalHierarchy implements PacketAccelerationStructure, CacheableAccelerationStructure, RefittableAccelerationStructure {
     private int[] tree;
     private int[] objects;
     private PrimitiveList primitives;
@@ -370,6 +373,133 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
             stats.updateLeaf(depth + 1, 0);
     }
 
+    public int[][] getCacheData() {
+        int[] box = new int[6];
+        for (int i = 0; i < 6; i++)
+            box[i] = Float.floatToRawIntBits(bounds.getBound(i));
+        return new int[][] { tree, objects, box };
+    }
+
+    public boolean setCacheData(PrimitiveList primitives, int[][] data) {
+        if (data.length != 3 || data[2].length != 6 || !isValidTree(data[0], data[1], primitives.getNumPrimitives()))
+            return false;
+        float[] box = new float[6];
+        for (int i = 0; i < 6; i++)
+            box[i] = Float.intBitsToFloat(data[2][i]);
+        this.primitives = primitives;
+        tree = data[0];
+        objects = data[1];
+        bounds = new BoundingBox(box[0], box[2], box[4]);
+        bounds.include(box[1], box[3], box[5]);
+        return true;
+    }
+
+    /**
+     * Checks that every offset stored in a cached tree stays inside its
+     * arrays. Children are always stored after their parent, which also
+     * rules out cycles. Missing children are marked by infinite clip planes
+     * and may point anywhere.
+     */
+    private static boolean isValidTree(int[] tree, int[] objects, int numPrimitives) {
+        if (tree.length < 3 || tree.length % 3 != 0)
+            return false;
+        for (int i = 0; i < tree.length; i += 3) {
+            int tn = tree[i];
+            int offset = tn & ~(7 << 29);
+            if ((tn >>> 30) == 3) {
+                int n = tree[i + 1];
+                if (n < 0 || (long) offset + n > objects.length)
+                    return false;
+            } else if ((tn & (1 << 29)) != 0) {
+                // bvh2 clip node
+                if (offset <= i || offset % 3 != 0 || offset + 3 > tree.length)
+                    return false;
+            } else {
+                if (offset % 3 != 0)
+                    return false;
+                if (Float.intBitsToFloat(tree[i + 1]) != Float.NEGATIVE_INFINITY && (offset <= i || offset + 3 > tree.length))
+                    return false;
+                if (Float.intBitsToFloat(tree[i + 2]) != Float.POSITIVE_INFINITY && (offset + 3 <= i || (long) offset + 6 > tree.length))
+                    return false;
+            }
+        }
+        for (int o : objects)
+            if (o < 0 || o >= numPrimitives)
+                return false;
+        return true;
+    }
+
+    public boolean refit(PrimitiveList primitives) {
+        if (tree == null || primitives.getNumPrimitives() != objects.length)
+            return false;
+        Timer t = new Timer();
+        t.start();
+        this.primitives = primitives;
+        float[] box = refit(0);
+        if (objects.length == 0)
+            bounds = primitives.getWorldBounds(null);
+        else {
+            bounds = new BoundingBox(box[0], box[2], box[4]);
+            bounds.include(box[1], box[3], box[5]);
+        }
+        t.end();
+        UI.printDetailed(Module.ACCEL, "Refit %d objects in %s", objects.length, t);
+        return true;
+    }
+
+    /**
+     * Update the clip planes of the subtree rooted at the specified node to
+     * tightly enclose the current primitive bounds.
+     * 
+     * @param node index of the node to refit
+     * @return box of all primitives below the node
+     */
+    private float[] refit(int node) {
+        int tn = tree[node];
+        int axis = tn >>> 30;
+        int offset = tn & ~(7 << 29);
+        if (axis == 3) {
+            // leaf
+            float[] box = { Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                    Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                    Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+            for (int i = offset, n = tree[node + 1]; n > 0; i++, n--) {
+                for (int j = 0; j < 6; j += 2) {
+                    box[j + 0] = Math.min(box[j + 0], primitives.getPrimitiveBound(objects[i], j + 0));
+                    box[j + 1] = Math.max(box[j + 1], primitives.getPrimitiveBound(objects[i], j + 1));
+                }
+            }
+            return box;
+        }
+        if ((tn & (1 << 29)) != 0) {
+            // bvh2 clip node
+            float[] box = refit(offset);
+            tree[node + 1] = Float.floatToRawIntBits(box[2 * axis + 0]);
+            tree[node + 2] = Float.floatToRawIntBits(box[2 * axis + 1]);
+            return box;
+        }
+        // an infinite clip plane marks a missing child
+        float[] left = null;
+        float[] right = null;
+        if (Float.intBitsToFloat(tree[node + 1]) != Float.NEGATIVE_INFINITY) {
+            left = refit(offset);
+            tree[node + 1] = Float.floatToRawIntBits(left[2 * axis + 1]);
+        }
+        if (Float.intBitsToFloat(tree[node + 2]) != Float.POSITIVE_INFINITY) {
+            right = refit(offset + 3);
+            tree[node + 2] = Float.floatToRawIntBits(right[2 * axis + 0]);
+        }
+        if (left == null)
+            return right;
+        if (right != null) {
+            for (int j = 0; j < 6; j += 2) {
+                left[j + 0] = Math.min(left[j + 0], right[j + 0]);
+                left[j + 1] = Math.max(left[j + 1], right[j + 1]);
+            }
+        }
+        return left;
+    }
+
     public void intersect(Ray r, IntersectionState state) {
         float intervalMin = r.getMin();
         float intervalMax = r.getMax();
@@ -559,6 +689,11 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                             n--;
                             offset++;
                         }
+                        if (state.isOccluded()) {
+                            // any hit will do - skip the rest of the tree
+                            state.skipShadowNodes(stackPos);
+                            return;
+                        }
                         break pushloop;
                     }
                     case 1 << 29: {
@@ -610,4 +745,178 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
             } while (true);
         }
     }
+
+    public void intersect(RayPacket packet, IntersectionState state) {
+        int mask = packet.getActiveMask();
+        // single rays and diverging packets are traced one ray at a time
+        if ((mask & (mask - 1)) == 0 || !packet.isCoherent()) {
+            packet.intersect(this, state);
+            return;
+        }
+        mask = packet.clip(bounds);
+        if (mask == 0)
+            return;
+
+        // all rays share the same direction signs
+        int first = Integer.numberOfTrailingZeros(mask);
+        int offsetXFront = Float.floatToRawIntBits(packet.invDx[first]) >>> 31;
+        int offsetYFront = Float.floatToRawIntBits(packet.invDy[first]) >>> 31;
+        int offsetZFront = Float.floatToRawIntBits(packet.invDz[first]) >>> 31;
+
+        int offsetXBack = offsetXFront ^ 1;
+        int offsetYBack = offsetYFront ^ 1;
+        int offsetZBack = offsetZFront ^ 1;
+
+        int offsetXFront3 = offsetXFront * 3;
+        int offsetYFront3 = offsetYFront * 3;
+        int offsetZFront3 = offsetZFront * 3;
+
+        int offsetXBack3 = offsetXBack * 3;
+        int offsetYBack3 = offsetYBack * 3;
+        int offsetZBack3 = offsetZBack * 3;
+
+        // avoid always adding 1 during the inner loop
+        offsetXFront++;
+        offsetYFront++;
+        offsetZFront++;
+        offsetXBack++;
+        offsetYBack++;
+        offsetZBack++;
+
+        float[] near = packet.near;
+        float[] far = packet.far;
+        int stackPos = 0;
+        int node = 0;
+
+        while (true) {
+            pushloop: while (true) {
+                int tn = tree[node];
+                int axis = tn & (7 << 29);
+                int offset = tn & ~(7 << 29);
+                float[] org, invDir;
+                int planeFront, planeBack;
+                int front, back;
+                switch (axis) {
+                    case 0:
+                    case 1 << 29:
+                        org = packet.ox;
+                        invDir = packet.invDx;
+                        planeFront = offsetXFront;
+                        planeBack = offsetXBack;
+                        front = offset + offsetXFront3;
+                        back = offset + offsetXBack3;
+                        break;
+                    case 1 << 30:
+                    case 3 << 29:
+                        org = packet.oy;
+                        invDir = packet.invDy;
+                        planeFront = offsetYFront;
+                        planeBack = offsetYBack;
+                        front = offset + offsetYFront3;
+                        back = offset + offsetYBack3;
+                        break;
+                    case 2 << 30:
+                    case 5 << 29:
+                        org = packet.oz;
+                        invDir = packet.invDz;
+                        planeFront = offsetZFront;
+                        planeBack = offsetZBack;
+                        front = offset + offsetZFront3;
+                        back = offset + offsetZBack3;
+                        break;
+                    case 3 << 30: {
+                        // leaf - test some objects
+                        int n = tree[node + 1];
+                        while (n > 0) {
+                            packet.intersectPrimitive(primitives, objects[offset], mask, state);
+                            n--;
+                            offset++;
+                        }
+                        break pushloop;
+                    }
+                    default:
+                        return; // should not happen
+                } // switch
+                float clipFront = Float.intBitsToFloat(tree[node + planeFront]);
+                float clipBack = Float.intBitsToFloat(tree[node + planeBack]);
+                if ((axis & (1 << 29)) != 0) {
+                    // clip node - shrink the ray intervals
+                    int clipMask = 0;
+                    for (int m = mask; m != 0; m &= m - 1) {
+                        int i = Integer.numberOfTrailingZeros(m);
+                        float tf = (clipFront - org[i]) * invDir[i];
+                        float tb = (clipBack - org[i]) * invDir[i];
+                        near[i] = (tf >= near[i]) ? tf : near[i];
+                        far[i] = (tb <= far[i]) ? tb : far[i];
+                        if (near[i] > far[i])
+                            continue;
+                        clipMask |= 1 << i;
+                    }
+                    node = offset;
+                    mask = clipMask;
+                    if (mask == 0)
+                        break pushloop;
+                    continue;
+                }
+                // classify rays against both clip planes, using the same
+                // tests as the single ray traversal - the back intervals are
+                // written to the next free stack entry right away
+                int base = stackPos * RayPacket.MAX_SIZE;
+                int frontMask = 0;
+                int backMask = 0;
+                for (int m = mask; m != 0; m &= m - 1) {
+                    int i = Integer.numberOfTrailingZeros(m);
+                    float tf = (clipFront - org[i]) * invDir[i];
+                    float tb = (clipBack - org[i]) * invDir[i];
+                    if (!(tb > far[i])) {
+                        backMask |= 1 << i;
+                        packet.stackNear[base + i] = (tb >= near[i]) ? tb : near[i];
+                        packet.stackFar[base + i] = far[i];
+                    }
+                    if (!(tf < near[i])) {
+                        frontMask |= 1 << i;
+                        far[i] = (tf <= far[i]) ? tf : far[i];
+                    }
+                }
+                if (frontMask == 0) {
+                    // rays pass through far node only
+                    for (int m = backMask; m != 0; m &= m - 1) {
+                        int i = Integer.numberOfTrailingZeros(m);
+                        near[i] = packet.stackNear[base + i];
+                    }
+                    node = back;
+                    mask = backMask;
+                    if (mask == 0)
+                        break pushloop; // rays pass between clip zones
+                    continue;
+                }
+                if (backMask != 0) {
+                    // push back node
+                    packet.stackNode[stackPos] = back;
+                    packet.stackMask[stackPos] = backMask;
+                    stackPos++;
+                }
+                node = front;
+                mask = frontMask;
+            } // traversal loop
+            mask = 0;
+            do {
+                // stack is empty?
+                if (stackPos == 0)
+                    return;
+                // move back up the stack
+                stackPos--;
+                int base = stackPos * RayPacket.MAX_SIZE;
+                for (int m = packet.stackMask[stackPos]; m != 0; m &= m - 1) {
+                    int i = Integer.numberOfTrailingZeros(m);
+                    if (packet.getRay(i).getMax() < packet.stackNear[base + i])
+                        continue;
+                    near[i] = packet.stackNear[base + i];
+                    far[i] = packet.stackFar[base + i];
+                    mask |= 1 << i;
+                }
+                node = packet.stackNode[stackPos];
+            } while (mask == 0);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,781 @@
+package org.sunflow.core.accel;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.sunflow.core.CacheableAccelerationStructure;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PrimitiveList;
+import org.sunflow.core.Ray;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Bounding volume hierarchy built with the binned surface area heuristic.
+ * Large nodes near the root are binned by all available processors, after
+ * which the remaining subtrees are built as independent tasks. The finished
+ * tree is flattened in depth first order into an <code>int</code> array of
+ * node references and a <code>float</code> array of node bounds.
+ * <p>
+ * In compact mode, each node box is instead stored as six 16-bit offsets
+ * relative to the box of its parent, which halves the size of the bounds.
+ * The quantized boxes are rounded outwards so they always contain the exact
+ * ones.
+ */
+public class BoundingVolumeHierarchy implements CacheableAccelerationStructure {
+    private static final int NUM_BINS = 16;
+    private static final int MAX_DEPTH = 64;
+    private static final float INTERSECT_COST = 1;
+    private static final float TRAVERSAL_COST = 0.125f;
+    // ranges below this size are always processed by a single thread
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+    // number of steps of the quantized node bounds
+    private static final int QUANT_STEPS = 0xFFFF;
+    private static final float QUANT_SCALE = 1.0f / QUANT_STEPS;
+
+    private static boolean compactNodes = false;
+
+    private int[] tree;
+    private float[] nodeBounds;
+    private int[] quantBounds;
+    private int[] objects;
+    private PrimitiveList primitives;
+    private int maxPrims;
+
+    // build time data
+    private float[] primBounds;
+    private float[] centroids;
+
+    public BoundingVolumeHierarchy() {
+        maxPrims = 4;
+    }
+
+    /**
+     * Enable or disable quantized node bounds for all hierarchies built from
+     * now on. This trades a little traversal speed for memory.
+     * 
+     * @param compactNodes <code>true</code> to store compact nodes
+     */
+    public static void setCompactNodes(boolean compactNodes) {
+        if (compactNodes)
+            UI.printInfo(Module.ACCEL, "BVH compact nodes: enabled");
+        else
+            UI.printInfo(Module.ACCEL, "BVH compact nodes: disabled");
+        BoundingVolumeHierarchy.compactNodes = compactNodes;
+    }
+
+    private static class BuildStats {
+        private int numNodes;
+        private int numLeaves;
+        private int sumObjects;
+        private int minObjects;
+        private int maxObjects;
+        private int sumDepth;
+        private int minDepth;
+        private int maxDepth;
+
+        BuildStats() {
+            numNodes = numLeaves = 0;
+            sumObjects = 0;
+            minObjects = Integer.MAX_VALUE;
+            maxObjects = Integer.MIN_VALUE;
+            sumDepth = 0;
+            minDepth = Integer.MAX_VALUE;
+            maxDepth = Integer.MIN_VALUE;
+        }
+
+        void updateInner() {
+            numNodes++;
+        }
+
+        void updateLeaf(int depth, int n) {
+            numLeaves++;
+            minDepth = Math.min(depth, minDepth);
+            maxDepth = Math.max(depth, maxDepth);
+            sumDepth += depth;
+            minObjects = Math.min(n, minObjects);
+            maxObjects = Math.max(n, maxObjects);
+            sumObjects += n;
+        }
+
+        void printStats() {
+            UI.printDetailed(Module.ACCEL, "BVH stats:");
+            UI.printDetailed(Module.ACCEL, "  * Nodes:          %d", numNodes);
+            UI.printDetailed(Module.ACCEL, "  * Leaves:         %d", numLeaves);
+            UI.printDetailed(Module.ACCEL, "  * Objects: min    %d", minObjects);
+            UI.printDetailed(Module.ACCEL, "             avg    %.2f", (float) sumObjects / numLeaves);
+            UI.printDetailed(Module.ACCEL, "             max    %d", maxObjects);
+            UI.printDetailed(Module.ACCEL, "  * Depth:   min    %d", minDepth);
+            UI.printDetailed(Module.ACCEL, "             avg    %.2f", (float) sumDepth / numLeaves);
+            UI.printDetailed(Module.ACCEL, "             max    %d", maxDepth);
+        }
+    }
+
+    /**
+     * Temporary node used during construction. Each node owns a contiguous
+     * range of the object index array, so sibling subtrees can be built
+     * concurrently.
+     */
+    private static final class BuildNode {
+        final int begin, end, depth;
+        final float[] box;
+        BuildNode left, right;
+
+        BuildNode(int begin, int end, int depth, float[] box) {
+            this.begin = begin;
+            this.end = end;
+            this.depth = depth;
+            this.box = box;
+        }
+    }
+
+    /**
+     * Primitive counts and bounds of each bin, for all three axes.
+     */
+    private static final class Bins {
+        final int[] counts = new int[3 * NUM_BINS];
+        final float[] boxes = new float[3 * NUM_BINS * 6];
+
+        Bins() {
+            for (int i = 0; i < 3 * NUM_BINS; i++)
+                emptyBox(boxes, 6 * i);
+        }
+
+        void merge(Bins b) {
+            for (int i = 0; i < 3 * NUM_BINS; i++) {
+                counts[i] += b.counts[i];
+                includeBox(boxes, 6 * i, b.boxes, 6 * i);
+            }
+        }
+    }
+
+    public void build(PrimitiveList primitives) {
+        this.primitives = primitives;
+        int n = primitives.getNumPrimitives();
+        int numThreads = n < PARALLEL_THRESHOLD ? 1 : Runtime.getRuntime().availableProcessors();
+        UI.printDetailed(Module.ACCEL, "BVH settings");
+        UI.printDetailed(Module.ACCEL, "  * Max Leaf Size:  %d", maxPrims);
+        UI.printDetailed(Module.ACCEL, "  * Max Depth:      %d", MAX_DEPTH);
+        UI.printDetailed(Module.ACCEL, "  * Bins:           %d", NUM_BINS);
+        UI.printDetailed(Module.ACCEL, "  * Threads:        %d", numThreads);
+        UI.printDetailed(Module.ACCEL, "  * Compact nodes:  %s", compactNodes ? "enabled" : "disabled");
+        Timer total = new Timer();
+        total.start();
+        objects = new int[n];
+        for (int i = 0; i < n; i++)
+            objects[i] = i;
+        primBounds = new float[6 * n];
+        centroids = new float[3 * n];
+        ExecutorService pool = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        BuildNode root;
+        Timer t = new Timer();
+        try {
+            t.start();
+            root = new BuildNode(0, n, 0, computeBounds(pool, numThreads, n));
+            t.end();
+            UI.printDetailed(Module.ACCEL, "  * Bounds time:    %s", t);
+            t.start();
+            subdivideParallel(root, pool, numThreads);
+            t.end();
+        } catch (InterruptedException e) {
+            UI.printError(Module.ACCEL, "BVH construction was interrupted - discarding all primitives");
+            root = new BuildNode(0, 0, 0, new float[6]);
+            objects = new int[0];
+        } catch (ExecutionException e) {
+            UI.printError(Module.ACCEL, "BVH construction failed: %s - discarding all primitives", e.getCause());
+            root = new BuildNode(0, 0, 0, new float[6]);
+            objects = new int[0];
+        } finally {
+            if (pool != null)
+                pool.shutdown();
+            primBounds = null;
+            centroids = null;
+        }
+        // flatten into the final arrays
+        BuildStats stats = new BuildStats();
+        int numNodes = countNodes(root);
+        tree = new int[2 * numNodes];
+        nodeBounds = new float[6 * numNodes];
+        quantBounds = null;
+        flatten(root, 0, stats);
+        if (compactNodes) {
+            if (isFinite(root.box)) {
+                // only the root box is kept at full precision
+                quantBounds = new int[3 * numNodes];
+                quantize(0, root.box);
+                nodeBounds = root.box;
+            } else
+                UI.printWarning(Module.ACCEL, "BVH bounds are not finite - compact nodes disabled");
+        }
+        total.end();
+        stats.printStats();
+        UI.printDetailed(Module.ACCEL, "  * Subdivide time: %s", t);
+        UI.printDetailed(Module.ACCEL, "  * Creation time:  %s", total);
+        UI.printDetailed(Module.ACCEL, "  * Tree memory:    %s", Memory.sizeof(tree));
+        UI.printDetailed(Module.ACCEL, "  * Bounds memory:  %s", quantBounds != null ? Memory.sizeof(quantBounds) : Memory.sizeof(nodeBounds));
+        UI.printDetailed(Module.ACCEL, "  * Indices memory: %s", Memory.sizeof(objects));
+        if (n > 0) {
+            long bytes = 4L * (tree.length + objects.length + nodeBounds.length + (quantBounds != null ? quantBounds.length : 0));
+            UI.printDetailed(Module.ACCEL, "  * Memory/prim:    %.1f bytes", (double) bytes / n);
+        }
+    }
+
+    /**
+     * Fetch the bounds and centroids of all primitives, and return the box
+     * enclosing them.
+     */
+    private float[] computeBounds(ExecutorService pool, int numThreads, int n) throws InterruptedException, ExecutionException {
+        if (pool == null)
+            return computeBounds(0, n);
+        ArrayList<Callable<float[]>> tasks = new ArrayList<Callable<float[]>>();
+        for (int i = 0; i < numThreads; i++) {
+            final int begin = (int) ((long) n * i / numThreads);
+            final int end = (int) ((long) n * (i + 1) / numThreads);
+            tasks.add(new Callable<float[]>() {
+                public float[] call() {
+                    return computeBounds(begin, end);
+                }
+            });
+        }
+        float[] box = new float[6];
+        emptyBox(box, 0);
+        for (Future<float[]> f : pool.invokeAll(tasks))
+            includeBox(box, 0, f.get(), 0);
+        return box;
+    }
+
+    private float[] computeBounds(int begin, int end) {
+        float[] box = new float[6];
+        emptyBox(box, 0);
+        for (int i = begin; i < end; i++) {
+            for (int j = 0; j < 6; j++)
+                primBounds[6 * i + j] = primitives.getPrimitiveBound(i, j);
+            for (int axis = 0; axis < 3; axis++)
+                centroids[3 * i + axis] = 0.5f * (primBounds[6 * i + 2 * axis] + primBounds[6 * i + 2 * axis + 1]);
+            includeBox(box, 0, primBounds, 6 * i);
+        }
+        return box;
+    }
+
+    /**
+     * Split the nodes near the root one at a time, binning each of them with
+     * all threads, until there are enough independent subtrees to keep every
+     * thread busy. The subtrees are then built as separate tasks.
+     */
+    private void subdivideParallel(BuildNode root, ExecutorService pool, int numThreads) throws InterruptedException, ExecutionException {
+        if (pool == null) {
+            subdivide(root);
+            return;
+        }
+        int grainSize = Math.max(PARALLEL_THRESHOLD, root.end / (4 * numThreads));
+        ArrayList<BuildNode> pending = new ArrayList<BuildNode>();
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            final BuildNode node = pending.remove(pending.size() - 1);
+            if (node.end - node.begin <= grainSize) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        subdivide(node);
+                        return null;
+                    }
+                });
+            } else if (split(node, pool, numThreads)) {
+                pending.add(node.left);
+                pending.add(node.right);
+            }
+        }
+        for (Future<Object> f : pool.invokeAll(tasks))
+            f.get();
+    }
+
+    private void subdivide(BuildNode node) throws InterruptedException, ExecutionException {
+        if (split(node, null, 1)) {
+            subdivide(node.left);
+            subdivide(node.right);
+        }
+    }
+
+    /**
+     * Try to split a node using the binned surface area heuristic. If a split
+     * is found, the object range of the node is partitioned in place and its
+     * two children are created.
+     * 
+     * @return <code>true</code> if the node was split, <code>false</code> if
+     *         it should be a leaf
+     */
+    private boolean split(BuildNode node, ExecutorService pool, int numThreads) throws InterruptedException, ExecutionException {
+        final int begin = node.begin;
+        final int end = node.end;
+        int n = end - begin;
+        if (n <= 1 || node.depth >= MAX_DEPTH - 1)
+            return false;
+        // centroid bounds for the bin mapping
+        final float[] cbox = new float[6];
+        emptyBox(cbox, 0);
+        for (int i = begin; i < end; i++)
+            for (int axis = 0; axis < 3; axis++) {
+                float c = centroids[3 * objects[i] + axis];
+                cbox[2 * axis + 0] = Math.min(cbox[2 * axis + 0], c);
+                cbox[2 * axis + 1] = Math.max(cbox[2 * axis + 1], c);
+            }
+        final float[] scale = new float[3];
+        boolean degenerate = true;
+        for (int axis = 0; axis < 3; axis++) {
+            float extent = cbox[2 * axis + 1] - cbox[2 * axis + 0];
+            if (extent > 0) {
+                scale[axis] = NUM_BINS * (1 - 1e-6f) / extent;
+                degenerate = false;
+            }
+        }
+        // all centroids in one point, no split can separate them
+        if (degenerate)
+            return false;
+        Bins bins;
+        if (pool != null && n > PARALLEL_THRESHOLD) {
+            ArrayList<Callable<Bins>> tasks = new ArrayList<Callable<Bins>>();
+            for (int i = 0; i < numThreads; i++) {
+                final int b = begin + (int) ((long) n * i / numThreads);
+                final int e = begin + (int) ((long) n * (i + 1) / numThreads);
+                tasks.add(new Callable<Bins>() {
+                    public Bins call() {
+                        return bin(b, e, cbox, scale);
+                    }
+                });
+            }
+            bins = new Bins();
+            for (Future<Bins> f : pool.invokeAll(tasks))
+                bins.merge(f.get());
+        } else
+            bins = bin(begin, end, cbox, scale);
+
+        // sweep the bins of each axis to find the cheapest split
+        float[] leftArea = new float[NUM_BINS];
+        float[] box = new float[6];
+        float bestCost = Float.POSITIVE_INFINITY;
+        int bestAxis = -1;
+        int bestBin = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            if (scale[axis] == 0)
+                continue;
+            int offset = axis * NUM_BINS;
+            emptyBox(box, 0);
+            for (int i = 0; i < NUM_BINS - 1; i++) {
+                includeBox(box, 0, bins.boxes, 6 * (offset + i));
+                leftArea[i] = area(box);
+            }
+            emptyBox(box, 0);
+            int countLeft = n;
+            int countRight = 0;
+            for (int i = NUM_BINS - 1; i > 0; i--) {
+                includeBox(box, 0, bins.boxes, 6 * (offset + i));
+                countRight += bins.counts[offset + i];
+                countLeft -= bins.counts[offset + i];
+                if (countLeft == 0 || countRight == 0)
+                    continue;
+                float cost = leftArea[i - 1] * countLeft + area(box) * countRight;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = i;
+                }
+            }
+        }
+        if (bestAxis == -1)
+            return false;
+        float splitCost = TRAVERSAL_COST + INTERSECT_COST * bestCost / area(node.box);
+        if (n <= maxPrims && splitCost >= INTERSECT_COST * n)
+            return false;
+
+        // partition the objects of this node
+        int offset = bestAxis * NUM_BINS;
+        float min = cbox[2 * bestAxis];
+        float s = scale[bestAxis];
+        int i = begin;
+        int j = end - 1;
+        while (i <= j) {
+            int b = (int) ((centroids[3 * objects[i] + bestAxis] - min) * s);
+            if (b < bestBin)
+                i++;
+            else {
+                int tmp = objects[i];
+                objects[i] = objects[j];
+                objects[j] = tmp;
+                j--;
+            }
+        }
+        float[] leftBox = new float[6];
+        float[] rightBox = new float[6];
+        emptyBox(leftBox, 0);
+        emptyBox(rightBox, 0);
+        for (int k = 0; k < NUM_BINS; k++)
+            includeBox(k < bestBin ? leftBox : rightBox, 0, bins.boxes, 6 * (offset + k));
+        node.left = new BuildNode(begin, i, node.depth + 1, leftBox);
+        node.right = new BuildNode(i, end, node.depth + 1, rightBox);
+        return true;
+    }
+
+    private Bins bin(int begin, int end, float[] cbox, float[] scale) {
+        Bins bins = new Bins();
+        for (int i = begin; i < end; i++) {
+            int obj = objects[i];
+            for (int axis = 0; axis < 3; axis++) {
+                if (scale[axis] == 0)
+                    continue;
+                int b = axis * NUM_BINS + Math.min(NUM_BINS - 1, (int) ((centroids[3 * obj + axis] - cbox[2 * axis]) * scale[axis]));
+                bins.counts[b]++;
+                includeBox(bins.boxes, 6 * b, primBounds, 6 * obj);
+            }
+        }
+        return bins;
+    }
+
+    private static int countNodes(BuildNode node) {
+        if (node.left == null)
+            return 1;
+        return 1 + countNodes(node.left) + countNodes(node.right);
+    }
+
+    /**
+     * Write the subtree rooted at the specified node in depth first order.
+     * The left child of an inner node always directly follows its parent.
+     * 
+     * @return index of the next free node
+     */
+    private int flatten(BuildNode node, int index, BuildStats stats) {
+        System.arraycopy(node.box, 0, nodeBounds, 6 * index, 6);
+        if (node.left == null) {
+            stats.updateLeaf(node.depth, node.end - node.begin);
+            tree[2 * index + 0] = (1 << 31) | node.begin;
+            tree[2 * index + 1] = node.end - node.begin;
+            return index + 1;
+        }
+        stats.updateInner();
+        int right = flatten(node.left, index + 1, stats);
+        // store the axis along which the children are furthest apart, bit 2
+        // flags a right child on the negative side of the left one
+        int axis = 0;
+        float maxDist = -1;
+        for (int i = 0; i < 3; i++) {
+            float d = (node.right.box[2 * i] + node.right.box[2 * i + 1]) - (node.left.box[2 * i] + node.left.box[2 * i + 1]);
+            if (Math.abs(d) > maxDist) {
+                maxDist = Math.abs(d);
+                axis = i | (d < 0 ? 4 : 0);
+            }
+        }
+        tree[2 * index + 0] = right;
+        tree[2 * index + 1] = axis;
+        return flatten(node.right, right, stats);
+    }
+
+    /**
+     * Quantize the bounds of the subtree rooted at the specified node. Each
+     * axis is stored as one <code>int</code>: the low 16 bits hold the steps
+     * from the parent's minimum to the node's minimum, and the high 16 bits
+     * the steps from the parent's maximum down to the node's maximum. Steps
+     * are rounded down so the decoded box always contains the exact one, and
+     * children are encoded against the decoded box, exactly as traversal will
+     * reconstruct it.
+     * 
+     * @param node node index
+     * @param parent decoded box of the parent node
+     */
+    private void quantize(int node, float[] parent) {
+        float[] box = new float[6];
+        for (int axis = 0; axis < 3; axis++) {
+            float pmin = parent[2 * axis + 0];
+            float pmax = parent[2 * axis + 1];
+            float min = nodeBounds[6 * node + 2 * axis + 0];
+            float max = nodeBounds[6 * node + 2 * axis + 1];
+            float scale = (pmax - pmin) * QUANT_SCALE;
+            int qmin = 0;
+            int qmax = 0;
+            if (scale > 0) {
+                qmin = (int) Math.max(0, Math.min(QUANT_STEPS, (min - pmin) / scale));
+                while (qmin > 0 && pmin + qmin * scale > min)
+                    qmin--;
+                qmax = (int) Math.max(0, Math.min(QUANT_STEPS, (pmax - max) / scale));
+                while (qmax > 0 && pmax - qmax * scale < max)
+                    qmax--;
+            }
+            quantBounds[3 * node + axis] = (qmax << 16) | qmin;
+            box[2 * axis + 0] = pmin + qmin * scale;
+            box[2 * axis + 1] = pmax - qmax * scale;
+        }
+        int tn = tree[2 * node];
+        if (tn >= 0) {
+            quantize(node + 1, box);
+            quantize(tn, box);
+        }
+    }
+
+    private static boolean isFinite(float[] box) {
+        for (int i = 0; i < 6; i++)
+            if (Float.isInfinite(box[i]) || Float.isNaN(box[i]))
+                return false;
+        return true;
+    }
+
+    private static void emptyBox(float[] box, int offset) {
+        for (int axis = 0; axis < 3; axis++) {
+            box[offset + 2 * axis + 0] = Float.POSITIVE_INFINITY;
+            box[offset + 2 * axis + 1] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static void includeBox(float[] box, int offset, float[] other, int otherOffset) {
+        for (int axis = 0; axis < 3; axis++) {
+            box[offset + 2 * axis + 0] = Math.min(box[offset + 2 * axis + 0], other[otherOffset + 2 * axis + 0]);
+            box[offset + 2 * axis + 1] = Math.max(box[offset + 2 * axis + 1], other[otherOffset + 2 * axis + 1]);
+        }
+    }
+
+    private static float area(float[] box) {
+        float dx = box[1] - box[0];
+        float dy = box[3] - box[2];
+        float dz = box[5] - box[4];
+        if (dx < 0 || dy < 0 || dz < 0)
+            return 0;
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    public int[][] getCacheData() {
+        int[] boundBits = new int[nodeBounds.length];
+        for (int i = 0; i < nodeBounds.length; i++)
+            boundBits[i] = Float.floatToRawIntBits(nodeBounds[i]);
+        if (quantBounds != null)
+            return new int[][] { tree, boundBits, objects, quantBounds };
+        return new int[][] { tree, boundBits, objects };
+    }
+
+    public boolean setCacheData(PrimitiveList primitives, int[][] data) {
+        // rebuild if the cached layout doesn't match the current mode
+        if (data.length != (compactNodes ? 4 : 3))
+            return false;
+        if (compactNodes ? data[1].length != 6 || 2 * data[3].length != 3 * data[0].length : data[1].length != 3 * data[0].length)
+            return false;
+        if (!isValidTree(data[0], data[2], primitives.getNumPrimitives()))
+            return false;
+        this.primitives = primitives;
+        tree = data[0];
+        nodeBounds = new float[data[1].length];
+        for (int i = 0; i < nodeBounds.length; i++)
+            nodeBounds[i] = Float.intBitsToFloat(data[1][i]);
+        objects = data[2];
+        quantBounds = compactNodes ? data[3] : null;
+        return true;
+    }
+
+    /**
+     * Checks that every offset stored in a cached tree stays inside its
+     * arrays. The left child always follows its parent and the right child
+     * comes after it, which also rules out cycles.
+     */
+    private static boolean isValidTree(int[] tree, int[] objects, int numPrimitives) {
+        if (tree.length < 2 || (tree.length & 1) != 0)
+            return false;
+        int numNodes = tree.length / 2;
+        for (int node = 0; node < numNodes; node++) {
+            int tn = tree[2 * node];
+            if (tn >= 0) {
+                if (node + 1 >= numNodes || tn <= node + 1 || tn >= numNodes)
+                    return false;
+            } else {
+                int offset = tn & ~(1 << 31);
+                int n = tree[2 * node + 1];
+                if (n < 0 || (long) offset + n > objects.length)
+                    return false;
+            }
+        }
+        for (int o : objects)
+            if (o < 0 || o >= numPrimitives)
+                return false;
+        return true;
+    }
+
+    public void intersect(Ray r, IntersectionState state) {
+        if (objects.length == 0)
+            return;
+        if (quantBounds != null) {
+            intersectCompact(r, state);
+            return;
+        }
+        float orgX = r.ox;
+        float orgY = r.oy;
+        float orgZ = r.oz;
+        float invDirX = 1 / r.dx;
+        float invDirY = 1 / r.dy;
+        float invDirZ = 1 / r.dz;
+        // offsets of the near and far slab planes from the direction signs
+        int nearX = invDirX >= 0 ? 0 : 1;
+        int nearY = invDirY >= 0 ? 2 : 3;
+        int nearZ = invDirZ >= 0 ? 4 : 5;
+        int farX = nearX ^ 1;
+        int farY = nearY ^ 1;
+        int farZ = nearZ ^ 1;
+        // bit set for each axis along which the ray points backwards
+        int negative = (invDirX < 0 ? 1 : 0) | (invDirY < 0 ? 2 : 0) | (invDirZ < 0 ? 4 : 0);
+
+        IntersectionState.StackNode[] stack = state.getStack();
+        int stackPos = 0;
+        int node = 0;
+        while (true) {
+            // clip the ray against the node bounds
+            int b = 6 * node;
+            float intervalMin = r.getMin();
+            float intervalMax = r.getMax();
+            float t = (nodeBounds[b + nearX] - orgX) * invDirX;
+            if (t > intervalMin)
+                intervalMin = t;
+            t = (nodeBounds[b + farX] - orgX) * invDirX;
+            if (t < intervalMax)
+                intervalMax = t;
+            t = (nodeBounds[b + nearY] - orgY) * invDirY;
+            if (t > intervalMin)
+                intervalMin = t;
+            t = (nodeBounds[b + farY] - orgY) * invDirY;
+            if (t < intervalMax)
+                intervalMax = t;
+            t = (nodeBounds[b + nearZ] - orgZ) * invDirZ;
+            if (t > intervalMin)
+                intervalMin = t;
+            t = (nodeBounds[b + farZ] - orgZ) * invDirZ;
+            if (t < intervalMax)
+                intervalMax = t;
+            if (intervalMin <= intervalMax) {
+                int tn = tree[2 * node];
+                if (tn >= 0) {
+                    // inner node - visit the child on the ray's side first
+                    int info = tree[2 * node + 1];
+                    boolean rightFirst = ((negative >>> (info & 3)) & 1) != (info >>> 2);
+                    stack[stackPos].node = rightFirst ? node + 1 : tn;
+                    stackPos++;
+                    node = rightFirst ? tn : node + 1;
+                    continue;
+                }
+                // leaf - test some objects
+                int offset = tn & ~(1 << 31);
+                int n = tree[2 * node + 1];
+                while (n > 0) {
+                    primitives.intersectPrimitive(r, objects[offset], state);
+                    n--;
+                    offset++;
+                }
+                if (state.isOccluded()) {
+                    // any hit will do - skip the rest of the tree
+                    state.skipShadowNodes(stackPos);
+                    return;
+                }
+            }
+            // stack is empty?
+            if (stackPos == 0)
+                return;
+            // move back up the stack
+            stackPos--;
+            node = stack[stackPos].node;
+        }
+    }
+
+    /**
+     * Traversal of the compact layout. The decoded box of the current node is
+     * kept in the last slot of the box stack, and the box of each postponed
+     * node is pushed along with its index.
+     */
+    private void intersectCompact(Ray r, IntersectionState state) {
+        float orgX = r.ox;
+        float orgY = r.oy;
+        float orgZ = r.oz;
+        float invDirX = 1 / r.dx;
+        float invDirY = 1 / r.dy;
+        float invDirZ = 1 / r.dz;
+        int nearX = invDirX >= 0 ? 0 : 1;
+        int nearY = invDirY >= 0 ? 2 : 3;
+        int nearZ = invDirZ >= 0 ? 4 : 5;
+        int farX = nearX ^ 1;
+        int farY = nearY ^ 1;
+        int farZ = nearZ ^ 1;
+        int negative = (invDirX < 0 ? 1 : 0) | (invDirY < 0 ? 2 : 0) | (invDirZ < 0 ? 4 : 0);
+
+        IntersectionState.StackNode[] stack = state.getStack();
+        float[] boxes = state.getBoxStack();
+        int b = boxes.length - 6;
+        System.arraycopy(nodeBounds, 0, boxes, b, 6);
+        int stackPos = 0;
+        int node = 0;
+        while (true) {
+            float intervalMin = r.getMin();
+            float intervalMax = r.getMax();
+            float t = (boxes[b + nearX] - orgX) * invDirX;
+            if (t > intervalMin)
+                intervalMin = t;
+            t = (boxes[b + farX] - orgX) * invDirX;
+            if (t < intervalMax)
+                intervalMax = t;
+            t = (boxes[b + nearY] - orgY) * invDirY;
+            if (t > intervalMin)
+                intervalMin = t;
+            t = (boxes[b + farY] - orgY) * invDirY;
+            if (t < intervalMax)
+                intervalMax = t;
+            t = (boxes[b + nearZ] - orgZ) * invDirZ;
+            if (t > intervalMin)
+                intervalMin = t;
+            t = (boxes[b + farZ] - orgZ) * invDirZ;
+            if (t < intervalMax)
+                intervalMax = t;
+            if (intervalMin <= intervalMax) {
+                int tn = tree[2 * node];
+                if (tn >= 0) {
+                    // inner node - visit the child on the ray's side first
+                    int info = tree[2 * node + 1];
+                    boolean rightFirst = ((negative >>> (info & 3)) & 1) != (info >>> 2);
+                    int near = rightFirst ? tn : node + 1;
+                    int far = rightFirst ? node + 1 : tn;
+                    // decode both child boxes, replacing the current one
+                    int s = 6 * stackPos;
+                    for (int axis = 0; axis < 3; axis++) {
+                        float pmin = boxes[b + 2 * axis + 0];
+                        float pmax = boxes[b + 2 * axis + 1];
+                        float scale = (pmax - pmin) * QUANT_SCALE;
+                        int q = quantBounds[3 * far + axis];
+                        boxes[s + 2 * axis + 0] = pmin + (q & 0xFFFF) * scale;
+                        boxes[s + 2 * axis + 1] = pmax - (q >>> 16) * scale;
+                        q = quantBounds[3 * near + axis];
+                        boxes[b + 2 * axis + 0] = pmin + (q & 0xFFFF) * scale;
+                        boxes[b + 2 * axis + 1] = pmax - (q >>> 16) * scale;
+                    }
+                    stack[stackPos].node = far;
+                    stackPos++;
+                    node = near;
+                    continue;
+                }
+                // leaf - test some objects
+                int offset = tn & ~(1 << 31);
+                int n = tree[2 * node + 1];
+                while (n > 0) {
+                    primitives.intersectPrimitive(r, objects[offset], state);
+                    n--;
+                    offset++;
+                }
+                if (state.isOccluded()) {
+                    // any hit will do - skip the rest of the tree
+                    state.skipShadowNodes(stackPos);
+                    return;
+                }
+            }
+            // stack is empty?
+            if (stackPos == 0)
+                return;
+            // move back up the stack
+            stackPos--;
+            node = stack[stackPos].node;
+            System.arraycopy(boxes, 6 * stackPos, boxes, b, 6);
+        }
+    }
+}
\ No newline at end of file
@@ -2,11 +2,18 @@ package org.sunflow.core.accel;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.sunflow.core.AccelerationStructure;
+import org.sunflow.core.CacheableAccelerationStructure;
 import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PacketAccelerationStructure;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
 import org.sunflow.image.Color;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Point3;
@@ -16,7 +23,7 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 import org.sunflow.util.IntArray;
 
-public class KDTree implements AccelerationStructure {
+public class KDTree implements PacketAccelerationStructure, CacheableAccelerationStructure {
     private int[] tree;
     private int[] primitives;
     private PrimitiveList primitiveList;
@@ -28,6 +35,8 @@ public class KDTree implements AccelerationStructure {
     private static final float TRAVERSAL_COST = 1;
     private static final float EMPTY_BONUS = 0.2f;
     private static final int MAX_DEPTH = 64;
+    // subtrees with fewer objects are always built by a single thread
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
 
     private static boolean dump = false;
     private static String dumpPrefix = "kdtree";
@@ -55,6 +64,8 @@ public class KDTree implements AccelerationStructure {
         private int numLeaves3;
         private int numLeaves4;
         private int numLeaves4p;
+        private int numTasks;
+        private long taskNanos;
 
         BuildStats() {
             numNodes = numLeaves = 0;
@@ -70,6 +81,8 @@ public class KDTree implements AccelerationStructure {
             numLeaves3 = 0;
             numLeaves4 = 0;
             numLeaves4p = 0;
+            numTasks = 0;
+            taskNanos = 0;
         }
 
         void updateInner() {
@@ -106,6 +119,28 @@ public class KDTree implements AccelerationStructure {
             }
         }
 
+        /**
+         * Add the statistics of a subtree which was built by a separate task.
+         */
+        void merge(BuildStats stats, long nanos) {
+            numNodes += stats.numNodes;
+            numLeaves += stats.numLeaves;
+            sumObjects += stats.sumObjects;
+            minObjects = Math.min(minObjects, stats.minObjects);
+            maxObjects = Math.max(maxObjects, stats.maxObjects);
+            sumDepth += stats.sumDepth;
+            minDepth = Math.min(minDepth, stats.minDepth);
+            maxDepth = Math.max(maxDepth, stats.maxDepth);
+            numLeaves0 += stats.numLeaves0;
+            numLeaves1 += stats.numLeaves1;
+            numLeaves2 += stats.numLeaves2;
+            numLeaves3 += stats.numLeaves3;
+            numLeaves4 += stats.numLeaves4;
+            numLeaves4p += stats.numLeaves4p;
+            numTasks++;
+            taskNanos += nanos;
+        }
+
         void printStats() {
             UI.printDetailed(Module.ACCEL, "KDTree stats:");
             UI.printDetailed(Module.ACCEL, "  * Nodes:          %d", numNodes);
@@ -123,6 +158,10 @@ public class KDTree implements AccelerationStructure {
             UI.printDetailed(Module.ACCEL, "               N=3  %3d%%", 100 * numLeaves3 / numLeaves);
             UI.printDetailed(Module.ACCEL, "               N=4  %3d%%", 100 * numLeaves4 / numLeaves);
             UI.printDetailed(Module.ACCEL, "               N>4  %3d%%", 100 * numLeaves4p / numLeaves);
+            if (numTasks > 0) {
+                UI.printDetailed(Module.ACCEL, "  * Subtree tasks:  %d", numTasks);
+                UI.printDetailed(Module.ACCEL, "  * Task time:      %s (sum over tasks)", Timer.toString(taskNanos));
+            }
         }
     }
 
@@ -178,7 +217,25 @@ public class KDTree implements AccelerationStructure {
         sorting.end();
         // build the actual tree
         BuildStats stats = new BuildStats();
-        buildTree(bounds.getMinimum().x, bounds.getMaximum().x, bounds.getMinimum().y, bounds.getMaximum().y, bounds.getMinimum().z, bounds.getMaximum().z, task, 1, tempTree, 0, tempList, stats);
+        int numThreads = nPrim < PARALLEL_THRESHOLD ? 1 : Runtime.getRuntime().availableProcessors();
+        if (numThreads > 1) {
+            try {
+                buildTreeParallel(task, tempTree, tempList, stats, numThreads);
+            } catch (InterruptedException e) {
+                UI.printError(Module.ACCEL, "KDTree construction was interrupted - discarding all primitives");
+                tempTree = createEmptyTree();
+                tempList = new IntArray();
+                stats = new BuildStats();
+                stats.updateLeaf(1, 0);
+            } catch (ExecutionException e) {
+                UI.printError(Module.ACCEL, "KDTree construction failed: %s - discarding all primitives", e.getCause());
+                tempTree = createEmptyTree();
+                tempList = new IntArray();
+                stats = new BuildStats();
+                stats.updateLeaf(1, 0);
+            }
+        } else
+            buildTree(bounds.getMinimum().x, bounds.getMaximum().x, bounds.getMinimum().y, bounds.getMaximum().y, bounds.getMinimum().z, bounds.getMaximum().z, task, 1, tempTree, 0, tempList, stats);
         t.end();
         // write out final arrays
         // free some memory
@@ -194,6 +251,7 @@ public class KDTree implements AccelerationStructure {
         UI.printDetailed(Module.ACCEL, "  * Object memory:  %s", Memory.sizeof(this.primitives));
         UI.printDetailed(Module.ACCEL, "  * Prepare time:   %s", prepare);
         UI.printDetailed(Module.ACCEL, "  * Sorting time:   %s", sorting);
+        UI.printDetailed(Module.ACCEL, "  * Build threads:  %d", numThreads);
         UI.printDetailed(Module.ACCEL, "  * Tree creation:  %s", t);
         UI.printDetailed(Module.ACCEL, "  * Build time:     %s", total);
         if (dump) {
@@ -425,201 +483,382 @@ public class KDTree implements AccelerationStructure {
         }
     }
 
-    private void buildTree(float minx, float maxx, float miny, float maxy, float minz, float maxz, BuildTask task, int depth, IntArray tempTree, int offset, IntArray tempList, BuildStats stats) {
+    private static class BuildSplit {
+        int axis;
+        float split;
+        BuildTask left;
+        BuildTask right;
+
+        BuildSplit(int axis, float split, BuildTask left, BuildTask right) {
+            this.axis = axis;
+            this.split = split;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * Node of the top part of the tree, which is split by the calling thread
+     * before the subtrees below it are handed out to the thread pool.
+     */
+    private static final class TopNode {
+        int axis;
+        float split;
+        TopNode left;
+        TopNode right;
+        Future<Subtree> subtree;
+    }
+
+    /**
+     * Subtree built by a separate task. Node and object offsets are local to
+     * the subtree, with the root of the subtree stored at offset 0.
+     */
+    private static final class Subtree {
+        final int[] tree;
+        final int[] list;
+        final BuildStats stats;
+        final long nanos;
+
+        Subtree(int[] tree, int[] list, BuildStats stats, long nanos) {
+            this.tree = tree;
+            this.list = list;
+            this.stats = stats;
+            this.nanos = nanos;
+        }
+    }
+
+    private final class SubtreeTask implements Callable<Subtree> {
+        private final float[] nodeMin;
+        private final float[] nodeMax;
+        private final BuildTask task;
+        private final int depth;
+
+        SubtreeTask(float[] nodeMin, float[] nodeMax, BuildTask task, int depth) {
+            this.nodeMin = nodeMin;
+            this.nodeMax = nodeMax;
+            this.task = task;
+            this.depth = depth;
+        }
+
+        public Subtree call() {
+            Timer t = new Timer();
+            t.start();
+            // the classification table is shared by all nodes of a subtree,
+            // so each task needs its own
+            task.leftRightTable = new byte[task.leftRightTable.length];
+            IntArray tempTree = new IntArray();
+            IntArray tempList = new IntArray();
+            tempTree.add(0);
+            tempTree.add(1);
+            BuildStats stats = new BuildStats();
+            buildTree(nodeMin[0], nodeMax[0], nodeMin[1], nodeMax[1], nodeMin[2], nodeMax[2], task, depth, tempTree, 0, tempList, stats);
+            t.end();
+            return new Subtree(tempTree.trim(), tempList.trim(), stats, t.nanos());
+        }
+    }
+
+    private static IntArray createEmptyTree() {
+        IntArray tempTree = new IntArray();
+        tempTree.add(3 << 30);
+        tempTree.add(0);
+        return tempTree;
+    }
+
+    /**
+     * Build the tree using several threads. The top levels are split by the
+     * calling thread, and each remaining subtree is built as a separate task.
+     * The subtrees are then copied into the final arrays in the same depth
+     * first order as {@link #buildTree}, so the result is identical to the
+     * serial build.
+     */
+    private void buildTreeParallel(BuildTask task, IntArray tempTree, IntArray tempList, BuildStats stats, int numThreads) throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            int grainSize = Math.max(PARALLEL_THRESHOLD, task.numObjects / (4 * numThreads));
+            float[] nodeMin = { bounds.getMinimum().x, bounds.getMinimum().y, bounds.getMinimum().z };
+            float[] nodeMax = { bounds.getMaximum().x, bounds.getMaximum().y, bounds.getMaximum().z };
+            TopNode root = buildTop(nodeMin, nodeMax, task, 1, grainSize, pool);
+            task = null;
+            mergeTree(root, tempTree, 0, tempList, stats);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private TopNode buildTop(float[] nodeMin, float[] nodeMax, BuildTask task, int depth, int grainSize, ExecutorService pool) {
+        TopNode node = new TopNode();
+        if (task.numObjects > grainSize) {
+            BuildSplit s = findSplit(nodeMin[0], nodeMax[0], nodeMin[1], nodeMax[1], nodeMin[2], nodeMax[2], task, depth);
+            if (s != null) {
+                node.axis = s.axis;
+                node.split = s.split;
+                float[] leftMax = nodeMax.clone();
+                float[] rightMin = nodeMin.clone();
+                leftMax[s.axis] = rightMin[s.axis] = s.split;
+                node.left = buildTop(nodeMin, leftMax, s.left, depth + 1, grainSize, pool);
+                node.right = buildTop(rightMin, nodeMax, s.right, depth + 1, grainSize, pool);
+                return node;
+            }
+        }
+        node.subtree = pool.submit(new SubtreeTask(nodeMin, nodeMax, task, depth));
+        return node;
+    }
+
+    private void mergeTree(TopNode node, IntArray tempTree, int offset, IntArray tempList, BuildStats stats) throws InterruptedException, ExecutionException {
+        if (node.subtree == null) {
+            // allocate child nodes
+            int nextOffset = tempTree.getSize();
+            tempTree.add(0);
+            tempTree.add(0);
+            tempTree.add(0);
+            tempTree.add(0);
+            // create current node
+            tempTree.set(offset + 0, (node.axis << 30) | nextOffset);
+            tempTree.set(offset + 1, Float.floatToRawIntBits(node.split));
+            stats.updateInner();
+            mergeTree(node.left, tempTree, nextOffset, tempList, stats);
+            mergeTree(node.right, tempTree, nextOffset + 2, tempList, stats);
+            return;
+        }
+        Subtree sub = node.subtree.get();
+        node.subtree = null;
+        // local node offsets past the subtree root map to the end of the tree
+        int treeBase = tempTree.getSize() - 2;
+        int listBase = tempList.getSize();
+        for (int i = 0; i < sub.tree.length; i += 2) {
+            int tn = sub.tree[i];
+            if ((tn & (3 << 30)) == (3 << 30))
+                tn += listBase;
+            else
+                tn += treeBase;
+            if (i == 0) {
+                tempTree.set(offset + 0, tn);
+                tempTree.set(offset + 1, sub.tree[1]);
+            } else {
+                tempTree.add(tn);
+                tempTree.add(sub.tree[i + 1]);
+            }
+        }
+        for (int i = 0; i < sub.list.length; i++)
+            tempList.add(sub.list[i]);
+        stats.merge(sub.stats, sub.nanos);
+    }
+
+    /**
+     * Search for the best split of the specified node. If splitting is
+     * cheaper than creating a leaf, the split candidates of the node are
+     * distributed to the two children and the node's own candidates are
+     * released.
+     * 
+     * @return the chosen split, or <code>null</code> if the node should be a
+     *         leaf
+     */
+    private BuildSplit findSplit(float minx, float maxx, float miny, float maxy, float minz, float maxz, BuildTask task, int depth) {
+        if (task.numObjects <= maxPrims || depth >= MAX_DEPTH)
+            return null;
         // get node bounding box extents
-        if (task.numObjects > maxPrims && depth < MAX_DEPTH) {
-            float dx = maxx - minx;
-            float dy = maxy - miny;
-            float dz = maxz - minz;
-            // search for best possible split
-            float bestCost = INTERSECT_COST * task.numObjects;
-            int bestAxis = -1;
-            int bestOffsetStart = -1;
-            int bestOffsetEnd = -1;
-            float bestSplit = 0;
-            boolean bestPlanarLeft = false;
-            int bnl = 0, bnr = 0;
-            // inverse area of the bounding box (factor of 2 ommitted)
-            float area = (dx * dy + dy * dz + dz * dx);
-            float ISECT_COST = INTERSECT_COST / area;
-            // setup counts for each axis
-            int[] nl = { 0, 0, 0 };
-            int[] nr = { task.numObjects, task.numObjects, task.numObjects };
-            // setup bounds for each axis
-            float[] dp = { dy * dz, dz * dx, dx * dy };
-            float[] ds = { dy + dz, dz + dx, dx + dy };
-            float[] nodeMin = { minx, miny, minz };
-            float[] nodeMax = { maxx, maxy, maxz };
-            // search for best cost
-            int nSplits = task.n;
-            long[] splits = task.splits;
-            byte[] lrtable = task.leftRightTable;
-            for (int i = 0; i < nSplits;) {
-                // extract current split
-                long ptr = splits[i];
-                float split = unpackSplit(ptr);
-                int axis = unpackAxis(ptr);
-                // mark current position
-                int currentOffset = i;
-                // count number of primitives start/stopping/lying on the
-                // current plane
-                int pClosed = 0, pPlanar = 0, pOpened = 0;
-                long ptrMasked = ptr & (~TYPE_MASK & 0xFFFFFFFFF0000000L);
-                long ptrClosed = ptrMasked | CLOSED;
-                long ptrPlanar = ptrMasked | PLANAR;
-                long ptrOpened = ptrMasked | OPENED;
-                while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrClosed) {
-                    int obj = unpackObject(splits[i]);
-                    lrtable[obj >>> 2] = 0;
-                    pClosed++;
-                    i++;
-                }
-                while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrPlanar) {
-                    int obj = unpackObject(splits[i]);
-                    lrtable[obj >>> 2] = 0;
-                    pPlanar++;
-                    i++;
-                }
-                while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrOpened) {
-                    int obj = unpackObject(splits[i]);
-                    lrtable[obj >>> 2] = 0;
-                    pOpened++;
-                    i++;
-                }
-                // now we have summed all contributions from this plane
-                nr[axis] -= pPlanar + pClosed;
-                // compute cost
-                if (split >= nodeMin[axis] && split <= nodeMax[axis]) {
-                    // left and right surface area (factor of 2 ommitted)
-                    float dl = split - nodeMin[axis];
-                    float dr = nodeMax[axis] - split;
-                    float lp = dp[axis] + dl * ds[axis];
-                    float rp = dp[axis] + dr * ds[axis];
-                    // planar prims go to smallest cell always
-                    boolean planarLeft = dl < dr;
-                    int numLeft = nl[axis] + (planarLeft ? pPlanar : 0);
-                    int numRight = nr[axis] + (planarLeft ? 0 : pPlanar);
-                    float eb = ((numLeft == 0 && dl > 0) || (numRight == 0 && dr > 0)) ? EMPTY_BONUS : 0;
-                    float cost = TRAVERSAL_COST + ISECT_COST * (1 - eb) * (lp * numLeft + rp * numRight);
-                    if (cost < bestCost) {
-                        bestCost = cost;
-                        bestAxis = axis;
-                        bestSplit = split;
-                        bestOffsetStart = currentOffset;
-                        bestOffsetEnd = i;
-                        bnl = numLeft;
-                        bnr = numRight;
-                        bestPlanarLeft = planarLeft;
-                    }
-                }
-                // move objects left
-                nl[axis] += pOpened + pPlanar;
+        float dx = maxx - minx;
+        float dy = maxy - miny;
+        float dz = maxz - minz;
+        // search for best possible split
+        float bestCost = INTERSECT_COST * task.numObjects;
+        int bestAxis = -1;
+        int bestOffsetStart = -1;
+        int bestOffsetEnd = -1;
+        float bestSplit = 0;
+        boolean bestPlanarLeft = false;
+        int bnl = 0, bnr = 0;
+        // inverse area of the bounding box (factor of 2 ommitted)
+        float area = (dx * dy + dy * dz + dz * dx);
+        float ISECT_COST = INTERSECT_COST / area;
+        // setup counts for each axis
+        int[] nl = { 0, 0, 0 };
+        int[] nr = { task.numObjects, task.numObjects, task.numObjects };
+        // setup bounds for each axis
+        float[] dp = { dy * dz, dz * dx, dx * dy };
+        float[] ds = { dy + dz, dz + dx, dx + dy };
+        float[] nodeMin = { minx, miny, minz };
+        float[] nodeMax = { maxx, maxy, maxz };
+        // search for best cost
+        int nSplits = task.n;
+        long[] splits = task.splits;
+        byte[] lrtable = task.leftRightTable;
+        for (int i = 0; i < nSplits;) {
+            // extract current split
+            long ptr = splits[i];
+            float split = unpackSplit(ptr);
+            int axis = unpackAxis(ptr);
+            // mark current position
+            int currentOffset = i;
+            // count number of primitives start/stopping/lying on the
+            // current plane
+            int pClosed = 0, pPlanar = 0, pOpened = 0;
+            long ptrMasked = ptr & (~TYPE_MASK & 0xFFFFFFFFF0000000L);
+            long ptrClosed = ptrMasked | CLOSED;
+            long ptrPlanar = ptrMasked | PLANAR;
+            long ptrOpened = ptrMasked | OPENED;
+            while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrClosed) {
+                int obj = unpackObject(splits[i]);
+                lrtable[obj >>> 2] = 0;
+                pClosed++;
+                i++;
             }
-            // debug check for correctness of the scan
-            for (int axis = 0; axis < 3; axis++) {
-                int numLeft = nl[axis];
-                int numRight = nr[axis];
-                if (numLeft != task.numObjects || numRight != 0)
-                    UI.printError(Module.ACCEL, "Didn't scan full range of objects @depth=%d. Left overs for axis %d: [L: %d] [R: %d]", depth, axis, numLeft, numRight);
+            while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrPlanar) {
+                int obj = unpackObject(splits[i]);
+                lrtable[obj >>> 2] = 0;
+                pPlanar++;
+                i++;
             }
-            // found best split?
-            if (bestAxis != -1) {
-                // allocate space for child nodes
-                BuildTask taskL = new BuildTask(bnl, task);
-                BuildTask taskR = new BuildTask(bnr, task);
-                int lk = 0, rk = 0;
-                for (int i = 0; i < bestOffsetStart; i++) {
-                    long ptr = splits[i];
-                    if (unpackAxis(ptr) == bestAxis) {
-                        if (unpackSplitType(ptr) != CLOSED) {
-                            int obj = unpackObject(ptr);
-                            lrtable[obj >>> 2] |= 1 << ((obj & 3) << 1);
-                            lk++;
-                        }
-                    }
+            while (i < nSplits && (splits[i] & 0xFFFFFFFFF0000000L) == ptrOpened) {
+                int obj = unpackObject(splits[i]);
+                lrtable[obj >>> 2] = 0;
+                pOpened++;
+                i++;
+            }
+            // now we have summed all contributions from this plane
+            nr[axis] -= pPlanar + pClosed;
+            // compute cost
+            if (split >= nodeMin[axis] && split <= nodeMax[axis]) {
+                // left and right surface area (factor of 2 ommitted)
+                float dl = split - nodeMin[axis];
+                float dr = nodeMax[axis] - split;
+                float lp = dp[axis] + dl * ds[axis];
+                float rp = dp[axis] + dr * ds[axis];
+                // planar prims go to smallest cell always
+                boolean planarLeft = dl < dr;
+                int numLeft = nl[axis] + (planarLeft ? pPlanar : 0);
+                int numRight = nr[axis] + (planarLeft ? 0 : pPlanar);
+                float eb = ((numLeft == 0 && dl > 0) || (numRight == 0 && dr > 0)) ? EMPTY_BONUS : 0;
+                float cost = TRAVERSAL_COST + ISECT_COST * (1 - eb) * (lp * numLeft + rp * numRight);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestSplit = split;
+                    bestOffsetStart = currentOffset;
+                    bestOffsetEnd = i;
+                    bnl = numLeft;
+                    bnr = numRight;
+                    bestPlanarLeft = planarLeft;
                 }
-                for (int i = bestOffsetStart; i < bestOffsetEnd; i++) {
-                    long ptr = splits[i];
-                    assert unpackAxis(ptr) == bestAxis;
-                    if (unpackSplitType(ptr) == PLANAR) {
-                        if (bestPlanarLeft) {
-                            int obj = unpackObject(ptr);
-                            lrtable[obj >>> 2] |= 1 << ((obj & 3) << 1);
-                            lk++;
-                        } else {
-                            int obj = unpackObject(ptr);
-                            lrtable[obj >>> 2] |= 2 << ((obj & 3) << 1);
-                            rk++;
-                        }
+            }
+            // move objects left
+            nl[axis] += pOpened + pPlanar;
+        }
+        // debug check for correctness of the scan
+        for (int axis = 0; axis < 3; axis++) {
+            int numLeft = nl[axis];
+            int numRight = nr[axis];
+            if (numLeft != task.numObjects || numRight != 0)
+                UI.printError(Module.ACCEL, "Didn't scan full range of objects @depth=%d. Left overs for axis %d: [L: %d] [R: %d]", depth, axis, numLeft, numRight);
+        }
+        // found best split?
+        if (bestAxis != -1) {
+            // allocate space for child nodes
+            BuildTask taskL = new BuildTask(bnl, task);
+            BuildTask taskR = new BuildTask(bnr, task);
+            int lk = 0, rk = 0;
+            for (int i = 0; i < bestOffsetStart; i++) {
+                long ptr = splits[i];
+                if (unpackAxis(ptr) == bestAxis) {
+                    if (unpackSplitType(ptr) != CLOSED) {
+                        int obj = unpackObject(ptr);
+                        lrtable[obj >>> 2] |= 1 << ((obj & 3) << 1);
+                        lk++;
                     }
                 }
-                for (int i = bestOffsetEnd; i < nSplits; i++) {
-                    long ptr = splits[i];
-                    if (unpackAxis(ptr) == bestAxis) {
-                        if (unpackSplitType(ptr) != OPENED) {
-                            int obj = unpackObject(ptr);
-                            lrtable[obj >>> 2] |= 2 << ((obj & 3) << 1);
-                            rk++;
-                        }
+            }
+            for (int i = bestOffsetStart; i < bestOffsetEnd; i++) {
+                long ptr = splits[i];
+                assert unpackAxis(ptr) == bestAxis;
+                if (unpackSplitType(ptr) == PLANAR) {
+                    if (bestPlanarLeft) {
+                        int obj = unpackObject(ptr);
+                        lrtable[obj >>> 2] |= 1 << ((obj & 3) << 1);
+                        lk++;
+                    } else {
+                        int obj = unpackObject(ptr);
+                        lrtable[obj >>> 2] |= 2 << ((obj & 3) << 1);
+                        rk++;
                     }
                 }
-                // output new splits while maintaining order
-                long[] splitsL = taskL.splits;
-                long[] splitsR = taskR.splits;
-                int nsl = 0, nsr = 0;
-                for (int i = 0; i < nSplits; i++) {
-                    long ptr = splits[i];
-                    int obj = unpackObject(ptr);
-                    int idx = obj >>> 2;
-                    int mask = 1 << ((obj & 3) << 1);
-                    if ((lrtable[idx] & mask) != 0) {
-                        splitsL[nsl] = ptr;
-                        nsl++;
-                    }
-                    if ((lrtable[idx] & (mask << 1)) != 0) {
-                        splitsR[nsr] = ptr;
-                        nsr++;
+            }
+            for (int i = bestOffsetEnd; i < nSplits; i++) {
+                long ptr = splits[i];
+                if (unpackAxis(ptr) == bestAxis) {
+                    if (unpackSplitType(ptr) != OPENED) {
+                        int obj = unpackObject(ptr);
+                        lrtable[obj >>> 2] |= 2 << ((obj & 3) << 1);
+                        rk++;
                     }
                 }
-                taskL.n = nsl;
-                taskR.n = nsr;
-                // free more memory
-                task.splits = splits = splitsL = splitsR = null;
-                task = null;
-                // allocate child nodes
-                int nextOffset = tempTree.getSize();
-                tempTree.add(0);
-                tempTree.add(0);
-                tempTree.add(0);
-                tempTree.add(0);
-                // create current node
-                tempTree.set(offset + 0, (bestAxis << 30) | nextOffset);
-                tempTree.set(offset + 1, Float.floatToRawIntBits(bestSplit));
-                // recurse for child nodes - free object arrays after each step
-                stats.updateInner();
-                switch (bestAxis) {
-                    case 0:
-                        buildTree(minx, bestSplit, miny, maxy, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
-                        taskL = null;
-                        buildTree(bestSplit, maxx, miny, maxy, minz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
-                        taskR = null;
-                        return;
-                    case 1:
-                        buildTree(minx, maxx, miny, bestSplit, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
-                        taskL = null;
-                        buildTree(minx, maxx, bestSplit, maxy, minz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
-                        taskR = null;
-                        return;
-                    case 2:
-                        buildTree(minx, maxx, miny, maxy, minz, bestSplit, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
-                        taskL = null;
-                        buildTree(minx, maxx, miny, maxy, bestSplit, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
-                        taskR = null;
-                        return;
-                    default:
-                        assert false;
+            }
+            // output new splits while maintaining order
+            long[] splitsL = taskL.splits;
+            long[] splitsR = taskR.splits;
+            int nsl = 0, nsr = 0;
+            for (int i = 0; i < nSplits; i++) {
+                long ptr = splits[i];
+                int obj = unpackObject(ptr);
+                int idx = obj >>> 2;
+                int mask = 1 << ((obj & 3) << 1);
+                if ((lrtable[idx] & mask) != 0) {
+                    splitsL[nsl] = ptr;
+                    nsl++;
+                }
+                if ((lrtable[idx] & (mask << 1)) != 0) {
+                    splitsR[nsr] = ptr;
+                    nsr++;
                 }
             }
+            taskL.n = nsl;
+            taskR.n = nsr;
+            // free more memory
+            task.splits = splits = splitsL = splitsR = null;
+            return new BuildSplit(bestAxis, bestSplit, taskL, taskR);
+        }
+        return null;
+    }
+
+    private void buildTree(float minx, float maxx, float miny, float maxy, float minz, float maxz, BuildTask task, int depth, IntArray tempTree, int offset, IntArray tempList, BuildStats stats) {
+        BuildSplit s = findSplit(minx, maxx, miny, maxy, minz, maxz, task, depth);
+        if (s != null) {
+            task = null;
+            // allocate child nodes
+            int nextOffset = tempTree.getSize();
+            tempTree.add(0);
+            tempTree.add(0);
+            tempTree.add(0);
+            tempTree.add(0);
+            // create current node
+            tempTree.set(offset + 0, (s.axis << 30) | nextOffset);
+            tempTree.set(offset + 1, Float.floatToRawIntBits(s.split));
+            // recurse for child nodes - free object arrays after each step
+            stats.updateInner();
+            BuildTask taskL = s.left;
+            BuildTask taskR = s.right;
+            s.left = s.right = null;
+            switch (s.axis) {
+                case 0:
+                    buildTree(minx, s.split, miny, maxy, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
+                    taskL = null;
+                    buildTree(s.split, maxx, miny, maxy, minz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
+                    taskR = null;
+                    return;
+                case 1:
+                    buildTree(minx, maxx, miny, s.split, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
+                    taskL = null;
+                    buildTree(minx, maxx, s.split, maxy, minz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
+                    taskR = null;
+                    return;
+                case 2:
+                    buildTree(minx, maxx, miny, maxy, minz, s.split, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
+                    taskL = null;
+                    buildTree(minx, maxx, miny, maxy, s.split, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
+                    taskR = null;
+                    return;
+                default:
+                    assert false;
+            }
         }
         // create leaf node
         int listOffset = tempList.getSize();
@@ -640,6 +879,51 @@ public class KDTree implements AccelerationStructure {
         task.splits = null;
     }
 
+    public int[][] getCacheData() {
+        int[] box = new int[6];
+        for (int i = 0; i < 6; i++)
+            box[i] = Float.floatToRawIntBits(bounds.getBound(i));
+        return new int[][] { tree, this.primitives, box };
+    }
+
+    public boolean setCacheData(PrimitiveList primitives, int[][] data) {
+        if (data.length != 3 || data[2].length != 6 || !isValidTree(data[0], data[1], primitives.getNumPrimitives()))
+            return false;
+        float[] box = new float[6];
+        for (int i = 0; i < 6; i++)
+            box[i] = Float.intBitsToFloat(data[2][i]);
+        primitiveList = primitives;
+        tree = data[0];
+        this.primitives = data[1];
+        bounds = new BoundingBox(box[0], box[2], box[4]);
+        bounds.include(box[1], box[3], box[5]);
+        return true;
+    }
+
+    /**
+     * Checks that every offset stored in a cached tree stays inside its
+     * arrays. Children are always stored after their parent, which also
+     * rules out cycles.
+     */
+    private static boolean isValidTree(int[] tree, int[] primitives, int numPrimitives) {
+        if (tree.length < 2 || (tree.length & 1) != 0)
+            return false;
+        for (int i = 0; i < tree.length; i += 2) {
+            int tn = tree[i];
+            int offset = tn & ~(3 << 30);
+            if ((tn & (3 << 30)) == (3 << 30)) {
+                int n = tree[i + 1];
+                if (n < 0 || (long) offset + n > primitives.length)
+                    return false;
+            } else if (offset <= i || (offset & 1) != 0 || (long) offset + 4 > tree.length)
+                return false;
+        }
+        for (int p : primitives)
+            if (p < 0 || p >= numPrimitives)
+                return false;
+        return true;
+    }
+
     public void intersect(Ray r, IntersectionState state) {
         float intervalMin = r.getMin();
         float intervalMax = r.getMax();
@@ -780,6 +1064,11 @@ public class KDTree implements AccelerationStructure {
                     }
                     if (r.getMax() < intervalMax)
                         return;
+                    if (state.isOccluded()) {
+                        // any hit will do - skip the rest of the tree
+                        state.skipShadowNodes(stackPos);
+                        return;
+                    }
                     do {
                         // stack is empty?
                         if (stackPos == 0)
@@ -797,4 +1086,134 @@ public class KDTree implements AccelerationStructure {
             } // switch
         } // traversal loop
     }
+
+    public void intersect(RayPacket packet, IntersectionState state) {
+        int mask = packet.getActiveMask();
+        // single rays and diverging packets are traced one ray at a time
+        if ((mask & (mask - 1)) == 0 || !packet.isCoherent()) {
+            packet.intersect(this, state);
+            return;
+        }
+        mask = packet.clip(bounds);
+        if (mask == 0)
+            return;
+
+        // all rays share the same direction signs
+        int first = Integer.numberOfTrailingZeros(mask);
+        int offsetXFront = (Float.floatToRawIntBits(packet.invDx[first]) & (1 << 31)) >>> 30;
+        int offsetYFront = (Float.floatToRawIntBits(packet.invDy[first]) & (1 << 31)) >>> 30;
+        int offsetZFront = (Float.floatToRawIntBits(packet.invDz[first]) & (1 << 31)) >>> 30;
+
+        int offsetXBack = offsetXFront ^ 2;
+        int offsetYBack = offsetYFront ^ 2;
+        int offsetZBack = offsetZFront ^ 2;
+
+        float[] near = packet.near;
+        float[] far = packet.far;
+        float[] dist = packet.split;
+        int stackPos = 0;
+        int node = 0;
+        // rays which have found their closest hit
+        int done = 0;
+
+        while (true) {
+            int tn = tree[node];
+            int axis = tn & (3 << 30);
+            int offset = tn & ~(3 << 30);
+            float[] org, invDir;
+            int front, back;
+            switch (axis) {
+                case 0:
+                    org = packet.ox;
+                    invDir = packet.invDx;
+                    front = offset + offsetXFront;
+                    back = offset + offsetXBack;
+                    break;
+                case 1 << 30:
+                    org = packet.oy;
+                    invDir = packet.invDy;
+                    front = offset + offsetYFront;
+                    back = offset + offsetYBack;
+                    break;
+                case 2 << 30:
+                    org = packet.oz;
+                    invDir = packet.invDz;
+                    front = offset + offsetZFront;
+                    back = offset + offsetZBack;
+                    break;
+                default: {
+                    // leaf - test some objects
+                    int n = tree[node + 1];
+                    while (n > 0) {
+                        packet.intersectPrimitive(primitiveList, primitives[offset], mask, state);
+                        n--;
+                        offset++;
+                    }
+                    for (int m = mask; m != 0; m &= m - 1) {
+                        int i = Integer.numberOfTrailingZeros(m);
+                        if (packet.getRay(i).getMax() < far[i])
+                            done |= 1 << i;
+                    }
+                    mask = 0;
+                    do {
+                        // stack is empty?
+                        if (stackPos == 0)
+                            return;
+                        // move back up the stack
+                        stackPos--;
+                        int base = stackPos * RayPacket.MAX_SIZE;
+                        for (int m = packet.stackMask[stackPos] & ~done; m != 0; m &= m - 1) {
+                            int i = Integer.numberOfTrailingZeros(m);
+                            if (packet.getRay(i).getMax() < packet.stackNear[base + i])
+                                continue;
+                            near[i] = packet.stackNear[base + i];
+                            far[i] = packet.stackFar[base + i];
+                            mask |= 1 << i;
+                        }
+                        node = packet.stackNode[stackPos];
+                    } while (mask == 0);
+                    continue;
+                }
+            }
+            // classify rays against the split plane, using the same tests
+            // as the single ray traversal
+            float split = Float.intBitsToFloat(tree[node + 1]);
+            int frontMask = 0;
+            int backMask = 0;
+            for (int m = mask; m != 0; m &= m - 1) {
+                int i = Integer.numberOfTrailingZeros(m);
+                float d = (split - org[i]) * invDir[i];
+                dist[i] = d;
+                if (!(d < near[i]))
+                    frontMask |= 1 << i;
+                if (!(d > far[i]))
+                    backMask |= 1 << i;
+            }
+            if (frontMask == 0) {
+                node = back;
+                continue;
+            }
+            if (backMask == 0) {
+                node = front;
+                continue;
+            }
+            // push back node
+            int base = stackPos * RayPacket.MAX_SIZE;
+            for (int m = backMask; m != 0; m &= m - 1) {
+                int i = Integer.numberOfTrailingZeros(m);
+                packet.stackNear[base + i] = (dist[i] >= near[i]) ? dist[i] : near[i];
+                packet.stackFar[base + i] = far[i];
+            }
+            packet.stackNode[stackPos] = back;
+            packet.stackMask[stackPos] = backMask;
+            stackPos++;
+            // update ray intervals for front node
+            for (int m = frontMask; m != 0; m &= m - 1) {
+                int i = Integer.numberOfTrailingZeros(m);
+                far[i] = (dist[i] <= far[i]) ? dist[i] : far[i];
+            }
+            node = front;
+            mask = frontMask;
+        } // traversal loop
+    }
 }
\ No newline at end of file
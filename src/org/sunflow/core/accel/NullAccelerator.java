@@ -20,7 +20,11 @@ public class NullAccelerator implements AccelerationStructure {
     }
 
     public void intersect(Ray r, IntersectionState state) {
-        for (int i = 0; i < n; i++)
+        for (int i = 0; i < n; i++) {
             primitives.intersectPrimitive(r, i, state);
+            // any hit will do for shadow rays
+            if (state.isOccluded())
+                return;
+        }
     }
 }
\ No newline at end of file
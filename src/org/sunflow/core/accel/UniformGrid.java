@@ -241,7 +241,7 @@ public final class UniformGrid implements AccelerationStructure {
                 if (cells[cell] != null) {
                     for (int i : cells[cell])
                         primitives.intersectPrimitive(r, i, state);
-                    if (state.hit() && (r.getMax() < tnextX && r.getMax() < intervalMax))
+                    if (state.isOccluded() || (state.hit() && r.getMax() < tnextX && r.getMax() < intervalMax))
                         return;
                 }
                 intervalMin = tnextX;
@@ -256,7 +256,7 @@ public final class UniformGrid implements AccelerationStructure {
                 if (cells[cell] != null) {
                     for (int i : cells[cell])
                         primitives.intersectPrimitive(r, i, state);
-                    if (state.hit() && (r.getMax() < tnextY && r.getMax() < intervalMax))
+                    if (state.isOccluded() || (state.hit() && r.getMax() < tnextY && r.getMax() < intervalMax))
                         return;
                 }
                 intervalMin = tnextY;
@@ -271,7 +271,7 @@ public final class UniformGrid implements AccelerationStructure {
                 if (cells[cell] != null) {
                     for (int i : cells[cell])
                         primitives.intersectPrimitive(r, i, state);
-                    if (state.hit() && (r.getMax() < tnextZ && r.getMax() < intervalMax))
+                    if (state.isOccluded() || (state.hit() && r.getMax() < tnextZ && r.getMax() < intervalMax))
                         return;
                 }
                 intervalMin = tnextZ;
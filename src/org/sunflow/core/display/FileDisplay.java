@@ -1,6 +1,11 @@
 package org.sunflow.core.display;
 
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.sunflow.PluginRegistry;
 import org.sunflow.core.Display;
@@ -10,9 +15,18 @@ import org.sunflow.system.FileUtils;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
+/**
+ * Writes the rendered image to a file. For formats which encode each bucket
+ * as it arrives, buckets are handed to a small pool of threads which encode
+ * and write them, so the render threads do not wait for compression or disk
+ * I/O. The queue of pending buckets is bounded; once it is full, render
+ * threads write their buckets themselves, which keeps memory use in check
+ * when the disk cannot keep up.
+ */
 public class FileDisplay implements Display {
     private BitmapWriter writer;
     private String filename;
+    private ExecutorService pool;
 
     public FileDisplay(boolean saveImage) {
         this(saveImage ? "output.png" : ".none");
@@ -32,6 +46,27 @@ public class FileDisplay implements Display {
             writer.writeHeader(w, h, bucketSize);
         } catch (IOException e) {
             UI.printError(Module.IMG, "I/O error occured while preparing image for display: %s", e.getMessage());
+            return;
+        }
+        // overlapping fills from progressive rendering must be written in
+        // order, so only buckets are written asynchronously - and only when
+        // the writer does real work per bucket, copying into a buffer is
+        // cheaper than handing the bucket over
+        if (bucketSize > 0 && writer.encodesTiles()) {
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            pool = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(2 * numThreads), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "File display");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy()) {
+                @Override
+                protected void terminated() {
+                    // all pending buckets are written now
+                    closeFile();
+                }
+            };
         }
     }
 
@@ -42,6 +77,18 @@ public class FileDisplay implements Display {
     public void imageUpdate(int x, int y, int w, int h, Color[] data, float[] alpha) {
         if (writer == null)
             return;
+        if (pool == null) {
+            writeTile(x, y, w, h, data, alpha);
+            return;
+        }
+        // the caller reuses its arrays for the next bucket
+        Color[] dataCopy = new Color[data.length];
+        for (int i = 0; i < data.length; i++)
+            dataCopy[i] = new Color(data[i]);
+        pool.execute(new TileWriter(x, y, w, h, dataCopy, alpha.clone()));
+    }
+
+    private void writeTile(int x, int y, int w, int h, Color[] data, float[] alpha) {
         try {
             writer.writeTile(x, y, w, h, data, alpha);
         } catch (IOException e) {
@@ -64,10 +111,45 @@ public class FileDisplay implements Display {
     public void imageEnd() {
         if (writer == null)
             return;
+        if (pool == null) {
+            closeFile();
+            return;
+        }
+        // the pool closes the file once the pending buckets are written
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            UI.printWarning(Module.IMG, "Interrupted while writing image tiles - \"%s\" will be closed in the background", filename);
+            Thread.currentThread().interrupt();
+        }
+        pool = null;
+    }
+
+    private void closeFile() {
         try {
             writer.closeFile();
         } catch (IOException e) {
             UI.printError(Module.IMG, "I/O error occured while closing the display: %s", e.getMessage());
         }
     }
+
+    private final class TileWriter implements Runnable {
+        private final int x, y, w, h;
+        private final Color[] data;
+        private final float[] alpha;
+
+        TileWriter(int x, int y, int w, int h, Color[] data, float[] alpha) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.data = data;
+            this.alpha = alpha;
+        }
+
+        public void run() {
+            writeTile(x, y, w, h, data, alpha);
+        }
+    }
 }
\ No newline at end of file
@@ -1,8 +1,8 @@
 package org.sunflow.core.filter;
 
-import org.sunflow.core.Filter;
+import org.sunflow.core.SeparableFilter;
 
-public class BlackmanHarrisFilter implements Filter {
+public class BlackmanHarrisFilter implements SeparableFilter {
     public float getSize() {
         return 4;
     }
@@ -11,6 +11,10 @@ public class BlackmanHarrisFilter implements Filter {
         return bh1d(x * 0.5f) * bh1d(y * 0.5f);
     }
 
+    public float get1d(float x) {
+        return bh1d(x * 0.5f);
+    }
+
     private float bh1d(float x) {
         if (x < -1.0f || x > 1.0f)
             return 0.0f;
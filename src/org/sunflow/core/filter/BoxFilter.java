@@ -1,8 +1,8 @@
 package org.sunflow.core.filter;
 
-import org.sunflow.core.Filter;
+import org.sunflow.core.SeparableFilter;
 
-public class BoxFilter implements Filter {
+public class BoxFilter implements SeparableFilter {
     public float getSize() {
         return 1.0f;
     }
@@ -10,4 +10,8 @@ public class BoxFilter implements Filter {
     public float get(float x, float y) {
         return 1.0f;
     }
+
+    public float get1d(float x) {
+        return 1.0f;
+    }
 }
\ No newline at end of file
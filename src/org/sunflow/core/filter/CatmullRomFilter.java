@@ -1,8 +1,8 @@
 package org.sunflow.core.filter;
 
-import org.sunflow.core.Filter;
+import org.sunflow.core.SeparableFilter;
 
-public class CatmullRomFilter implements Filter {
+public class CatmullRomFilter implements SeparableFilter {
     public float getSize() {
         return 4.0f;
     }
@@ -11,6 +11,10 @@ public class CatmullRomFilter implements Filter {
         return catrom1d(x) * catrom1d(y);
     }
 
+    public float get1d(float x) {
+        return catrom1d(x);
+    }
+
     private float catrom1d(float x) {
         x = Math.abs(x);
         float x2 = x * x;
@@ -1,12 +1,16 @@
 package org.sunflow.core.filter;
 
-import org.sunflow.core.Filter;
+import org.sunflow.core.SeparableFilter;
 
-public class CubicBSpline implements Filter {
+public class CubicBSpline implements SeparableFilter {
     public float get(float x, float y) {
         return B3(x) * B3(y);
     }
 
+    public float get1d(float x) {
+        return B3(x);
+    }
+
     public float getSize() {
         return 4;
     }
@@ -0,0 +1,142 @@
+package org.sunflow.core.filter;
+
+import org.sunflow.core.Filter;
+import org.sunflow.core.SeparableFilter;
+
+/**
+ * Tabulated version of a {@link Filter} kernel. Separable filters are stored
+ * as a single one dimensional table, other filters are sampled over their
+ * whole two dimensional footprint. Lookups only cost a few array reads, which
+ * avoids the trigonometric and polynomial evaluations of the original kernel
+ * in the innermost filtering loops.
+ */
+public final class FilterTable {
+    private final Filter filter;
+    private final boolean separable;
+    private final float halfSize;
+    private final float scale;
+    private final int n;
+    private final float[] table;
+
+    /**
+     * Tabulate the specified filter.
+     * 
+     * @param filter filter to tabulate
+     * @param resolution number of table entries per pixel
+     */
+    public FilterTable(Filter filter, int resolution) {
+        this.filter = filter;
+        separable = filter instanceof SeparableFilter;
+        halfSize = filter.getSize() * 0.5f;
+        scale = resolution;
+        n = (int) Math.ceil(filter.getSize() * resolution) + 1;
+        float invScale = 1.0f / scale;
+        if (separable) {
+            SeparableFilter f = (SeparableFilter) filter;
+            table = new float[n];
+            for (int i = 0; i < n; i++)
+                table[i] = f.get1d(Math.min(i * invScale - halfSize, halfSize));
+        } else {
+            table = new float[n * n];
+            for (int j = 0, index = 0; j < n; j++) {
+                float y = Math.min(j * invScale - halfSize, halfSize);
+                for (int i = 0; i < n; i++, index++)
+                    table[index] = filter.get(Math.min(i * invScale - halfSize, halfSize), y);
+            }
+        }
+    }
+
+    /**
+     * Get the filter this table was built from.
+     * 
+     * @return original filter
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Does this table hold a single one dimensional kernel? If so
+     * {@link #get1d(float)} may be used and the filter may be applied in two
+     * separate passes.
+     * 
+     * @return <code>true</code> if the filter is separable
+     */
+    public boolean isSeparable() {
+        return separable;
+    }
+
+    /**
+     * Evaluate the exact kernel at a fixed set of offsets. This is meant for
+     * samplers whose sample positions are the same for every pixel, in which
+     * case the weights only need to be computed once per frame. Offsets
+     * outside of the filter extents get a weight of 0.
+     * 
+     * @param offsets offsets in pixels
+     * @return one dimensional weights for separable filters
+     */
+    public float[] getWeights1d(float[] offsets) {
+        SeparableFilter f = (SeparableFilter) filter;
+        float[] weights = new float[offsets.length];
+        for (int i = 0; i < offsets.length; i++)
+            weights[i] = Math.abs(offsets[i]) > halfSize ? 0 : f.get1d(offsets[i]);
+        return weights;
+    }
+
+    /**
+     * Evaluate the exact kernel over a fixed grid of offsets. Weights are
+     * stored in row major order, with <code>offsetsX.length</code> entries per
+     * row. Offsets outside of the filter extents get a weight of 0.
+     * 
+     * @param offsetsX horizontal offsets in pixels
+     * @param offsetsY vertical offsets in pixels
+     * @return two dimensional weights
+     */
+    public float[] getWeights2d(float[] offsetsX, float[] offsetsY) {
+        float[] weights = new float[offsetsX.length * offsetsY.length];
+        for (int j = 0, index = 0; j < offsetsY.length; j++) {
+            for (int i = 0; i < offsetsX.length; i++, index++) {
+                if (Math.abs(offsetsX[i]) > halfSize || Math.abs(offsetsY[j]) > halfSize)
+                    weights[index] = 0;
+                else
+                    weights[index] = filter.get(offsetsX[i], offsetsY[j]);
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Lookup the one dimensional kernel at offset x. This is only valid for
+     * separable filters.
+     * 
+     * @param x offset in pixels
+     * @return tabulated value of the kernel
+     */
+    public float get1d(float x) {
+        float fx = (x + halfSize) * scale;
+        if (fx < 0 || fx > n - 1)
+            return 0;
+        int ix = Math.min((int) fx, n - 2);
+        float dx = fx - ix;
+        return (1 - dx) * table[ix] + dx * table[ix + 1];
+    }
+
+    /**
+     * Lookup the filter kernel at offset (x, y).
+     * 
+     * @param x x offset in pixels
+     * @param y y offset in pixels
+     * @return tabulated value of the kernel
+     */
+    public float get(float x, float y) {
+        if (separable)
+            return get1d(x) * get1d(y);
+        float fx = (x + halfSize) * scale;
+        float fy = (y + halfSize) * scale;
+        if (fx < 0 || fx > n - 1 || fy < 0 || fy > n - 1)
+            return 0;
+        int ix = (int) (fx + 0.5f);
+        int iy = (int) (fy + 0.5f);
+        return table[ix + iy * n];
+    }
+}
\ No newline at end of file
@@ -1,8 +1,8 @@
 package org.sunflow.core.filter;
 
-import org.sunflow.core.Filter;
+import org.sunflow.core.SeparableFilter;
 
-public class GaussianFilter implements Filter {
+public class GaussianFilter implements SeparableFilter {
     private float es2;
 
     public GaussianFilter() {
@@ -14,8 +14,10 @@ public class GaussianFilter implements Filter {
     }
 
     public float get(float x, float y) {
-        float gx = (float) Math.exp(-x * x) + es2;
-        float gy = (float) Math.exp(-y * y) + es2;
-        return gx * gy;
+        return get1d(x) * get1d(y);
+    }
+
+    public float get1d(float x) {
+        return (float) Math.exp(-x * x) + es2;
     }
 }
\ No newline at end of file
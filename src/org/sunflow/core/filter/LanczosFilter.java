@@ -1,8 +1,8 @@
 package org.sunflow.core.filter;
 
-import org.sunflow.core.Filter;
+import org.sunflow.core.SeparableFilter;
 
-public class LanczosFilter implements Filter {
+public class LanczosFilter implements SeparableFilter {
     public float getSize() {
         return 4.0f;
     }
@@ -11,6 +11,10 @@ public class LanczosFilter implements Filter {
         return sinc1d(x * 0.5f) * sinc1d(y * 0.5f);
     }
 
+    public float get1d(float x) {
+        return sinc1d(x * 0.5f);
+    }
+
     private float sinc1d(float x) {
         x = Math.abs(x);
         if (x < 1e-5f)
@@ -1,8 +1,8 @@
 package org.sunflow.core.filter;
 
-import org.sunflow.core.Filter;
+import org.sunflow.core.SeparableFilter;
 
-public class MitchellFilter implements Filter {
+public class MitchellFilter implements SeparableFilter {
     public float getSize() {
         return 4.0f;
     }
@@ -11,6 +11,10 @@ public class MitchellFilter implements Filter {
         return mitchell(x) * mitchell(y);
     }
 
+    public float get1d(float x) {
+        return mitchell(x);
+    }
+
     private float mitchell(float x) {
         final float B = 1 / 3.0f;
         final float C = 1 / 3.0f;
@@ -1,8 +1,8 @@
 package org.sunflow.core.filter;
 
-import org.sunflow.core.Filter;
+import org.sunflow.core.SeparableFilter;
 
-public class SincFilter implements Filter {
+public class SincFilter implements SeparableFilter {
     public float getSize() {
         return 4;
     }
@@ -11,6 +11,10 @@ public class SincFilter implements Filter {
         return sinc1d(x) * sinc1d(y);
     }
 
+    public float get1d(float x) {
+        return sinc1d(x);
+    }
+
     private float sinc1d(float x) {
         x = Math.abs(x);
         if (x < 0.0001f)
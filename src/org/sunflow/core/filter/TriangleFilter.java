@@ -1,8 +1,8 @@
 package org.sunflow.core.filter;
 
-import org.sunflow.core.Filter;
+import org.sunflow.core.SeparableFilter;
 
-public class TriangleFilter implements Filter {
+public class TriangleFilter implements SeparableFilter {
     public float getSize() {
         return 2;
     }
@@ -10,4 +10,8 @@ public class TriangleFilter implements Filter {
     public float get(float x, float y) {
         return (1.0f - Math.abs(x)) * (1.0f - Math.abs(y));
     }
+
+    public float get1d(float x) {
+        return 1.0f - Math.abs(x);
+    }
 }
\ No newline at end of file
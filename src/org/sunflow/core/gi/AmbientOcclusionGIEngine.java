@@ -14,6 +14,7 @@ public class AmbientOcclusionGIEngine implements GIEngine {
     private Color dark;
     private int samples;
     private float maxDist;
+    private float rouletteThreshold;
 
     public Color getGlobalRadiance(ShadingState state) {
         return Color.BLACK;
@@ -25,14 +26,29 @@ public class AmbientOcclusionGIEngine implements GIEngine {
         samples = options.getInt("gi.ambocc.samples", 32);
         maxDist = options.getFloat("gi.ambocc.maxdist", 0);
         maxDist = (maxDist <= 0) ? Float.POSITIVE_INFINITY : maxDist;
+        rouletteThreshold = options.getFloat("gi.ambocc.roulette", 0);
         return true;
     }
 
     public Color getIrradiance(ShadingState state, Color diffuseReflectance) {
         OrthoNormalBasis onb = state.getBasis();
         Vector3 w = new Vector3();
+        Ray r = null;
         Color result = Color.black();
+        // russian roulette: on dark surfaces or at the end of long paths the
+        // occlusion barely shows, so only trace some of the rays and weight
+        // the survivors up to keep the estimate unbiased
+        float survival = 1;
+        boolean roulette = rouletteThreshold > 0;
+        if (roulette)
+            survival = Math.min(1, state.getThroughput() * diffuseReflectance.getMax() / rouletteThreshold);
         for (int i = 0; i < samples; i++) {
+            if (roulette) {
+                boolean skip = survival < 1 && state.getRandom(i, 2, samples) >= survival;
+                state.countRouletteRay(skip);
+                if (skip)
+                    continue;
+            }
             float xi = (float) state.getRandom(i, 0, samples);
             float xj = (float) state.getRandom(i, 1, samples);
             float phi = (float) (2 * Math.PI * xi);
@@ -44,9 +60,12 @@ public class AmbientOcclusionGIEngine implements GIEngine {
             w.y = sinPhi * sinTheta;
             w.z = cosTheta;
             onb.transform(w);
-            Ray r = new Ray(state.getPoint(), w);
+            if (r == null)
+                r = new Ray(state.getPoint(), w);
+            else
+                r.set(state.getPoint(), w);
             r.setMax(maxDist);
-            result.add(Color.blend(bright, dark, state.traceShadow(r)));
+            result.madd(1 / survival, Color.blend(bright, dark, state.traceShadow(r)));
         }
         return result.mul((float) Math.PI / samples);
     }
@@ -97,6 +97,7 @@ public class InstantGI implements GIEngine {
             return irr;
         OrthoNormalBasis onb = state.getBasis();
         Vector3 w = new Vector3();
+        Ray r = null;
         float scale = (float) Math.PI / nb;
         for (int i = 0; i < nb; i++) {
             float xi = (float) state.getRandom(i, 0, nb);
@@ -110,7 +111,10 @@ public class InstantGI implements GIEngine {
             w.y = sinPhi * sinTheta;
             w.z = cosTheta;
             onb.transform(w);
-            Ray r = new Ray(state.getPoint(), w);
+            if (r == null)
+                r = new Ray(state.getPoint(), w);
+            else
+                r.set(state.getPoint(), w);
             r.setMax((float) Math.sqrt(cosTheta / b));
             ShadingState temp = state.traceFinalGather(r, i);
             if (temp != null) {
@@ -150,8 +154,9 @@ public class InstantGI implements GIEngine {
         public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
             state.faceforward();
             PointLight vpl = new PointLight();
-            vpl.p = state.getPoint();
-            vpl.n = state.getNormal();
+            // the shading state is recycled, so keep copies of its vectors
+            vpl.p = new Point3(state.getPoint());
+            vpl.n = new Vector3(state.getNormal());
             vpl.power = power;
             synchronized (this) {
                 virtualLights.add(vpl);
@@ -1,10 +1,21 @@
 package org.sunflow.core.gi;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.sunflow.PluginRegistry;
-import org.sunflow.core.GIEngine;
+import org.sunflow.core.CachingGIEngine;
 import org.sunflow.core.GlobalPhotonMapInterface;
+import org.sunflow.core.IntersectionState;
 import org.sunflow.core.Options;
 import org.sunflow.core.Ray;
 import org.sunflow.core.Scene;
@@ -13,19 +24,27 @@ import org.sunflow.image.Color;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
+import org.sunflow.math.QMC;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public class IrradianceCacheGIEngine implements GIEngine {
+public class IrradianceCacheGIEngine implements CachingGIEngine {
+    // identifies irradiance cache files, followed by the format version
+    private static final int FILE_MAGIC = 0x53464943;
+    private static final int FILE_VERSION = 1;
+
     private int samples;
     private float tolerance;
     private float invTolerance;
     private float minSpacing;
     private float maxSpacing;
     private Node root;
-    private ReentrantReadWriteLock rwl;
     private GlobalPhotonMapInterface globalPhotonMap;
+    private int prepassStep;
+    private String saveFilename;
+    private AtomicInteger numSamples;
 
     public boolean init(Options options, Scene scene) {
         // get settings
@@ -34,8 +53,11 @@ public class IrradianceCacheGIEngine implements GIEngine {
         invTolerance = 1.0f / tolerance;
         minSpacing = options.getFloat("gi.irr-cache.min_spacing", 0.05f);
         maxSpacing = options.getFloat("gi.irr-cache.max_spacing", 5.00f);
+        prepassStep = options.getInt("gi.irr-cache.prepass", 0);
+        String loadFilename = options.getString("gi.irr-cache.load", null);
+        saveFilename = options.getString("gi.irr-cache.save", null);
         root = null;
-        rwl = new ReentrantReadWriteLock();
+        numSamples = new AtomicInteger();
         globalPhotonMap = PluginRegistry.globalPhotonMapPlugins.createObject(options.getString("gi.irr-cache.gmap", null));
         // check settings
         samples = Math.max(0, samples);
@@ -49,13 +71,154 @@ public class IrradianceCacheGIEngine implements GIEngine {
         else
             UI.printInfo(Module.LIGHT, "  * Tolerance: %.3f", tolerance);
         UI.printInfo(Module.LIGHT, "  * Spacing: %.3f to %.3f", minSpacing, maxSpacing);
+        if (prepassStep > 0)
+            UI.printInfo(Module.LIGHT, "  * Prepass: every %d pixels", prepassStep);
+        else
+            UI.printInfo(Module.LIGHT, "  * Prepass: off");
         // prepare root node
         Vector3 ext = scene.getBounds().getExtents();
         root = new Node(scene.getBounds().getCenter(), 1.0001f * MathUtils.max(ext.x, ext.y, ext.z));
+        if (loadFilename != null)
+            load(loadFilename);
         // init global photon map
         return (globalPhotonMap != null) ? scene.calculatePhotons(globalPhotonMap, "global", 0, options) : true;
     }
 
+    public boolean prepass(final Scene scene, final int imageWidth, final int imageHeight) {
+        if (prepassStep <= 0)
+            return true;
+        if (samples <= 0 || tolerance <= 0) {
+            UI.printWarning(Module.LIGHT, "Irradiance cache is disabled - skipping prepass");
+            return true;
+        }
+        // trace one eye ray through the center of every block of
+        // prepassStep x prepassStep pixels, each thread grabs whole rows
+        final int step = prepassStep;
+        final int numCols = (imageWidth + step - 1) / step;
+        final int numRows = (imageHeight + step - 1) / step;
+        final AtomicInteger nextRow = new AtomicInteger();
+        final AtomicInteger doneRows = new AtomicInteger();
+        int before = numSamples.get();
+        UI.printInfo(Module.LIGHT, "Filling irradiance cache (%dx%d eye rays) ...", numCols, numRows);
+        UI.taskStart("Irradiance cache prepass", 0, numRows);
+        Timer t = new Timer();
+        t.start();
+        Thread[] prepassThreads = new Thread[scene.getThreads()];
+        final IntersectionState[] istates = new IntersectionState[prepassThreads.length];
+        for (int i = 0; i < prepassThreads.length; i++) {
+            final IntersectionState istate = istates[i] = new IntersectionState();
+            prepassThreads[i] = new Thread(new Runnable() {
+                public void run() {
+                    int row;
+                    while ((row = nextRow.getAndIncrement()) < numRows) {
+                        if (UI.taskCanceled())
+                            return;
+                        int y = Math.min(row * step + step / 2, imageHeight - 1);
+                        for (int col = 0; col < numCols; col++) {
+                            int x = Math.min(col * step + step / 2, imageWidth - 1);
+                            int instance = y * imageWidth + x;
+                            double time = QMC.halton(1, instance);
+                            double lensU = QMC.halton(2, instance);
+                            double lensV = QMC.halton(3, instance);
+                            scene.getRadiance(istate, x + 0.5f, imageHeight - (y + 0.5f), lensU, lensV, time, instance, 4, null);
+                        }
+                        UI.taskUpdate(doneRows.incrementAndGet());
+                    }
+                }
+            });
+            prepassThreads[i].setPriority(scene.getThreadPriority());
+            prepassThreads[i].start();
+        }
+        for (int i = 0; i < prepassThreads.length; i++) {
+            try {
+                prepassThreads[i].join();
+                scene.accumulateStats(istates[i]);
+            } catch (InterruptedException e) {
+                UI.printError(Module.LIGHT, "Irradiance cache prepass thread %d of %d was interrupted", i + 1, prepassThreads.length);
+                return false;
+            }
+        }
+        if (UI.taskCanceled()) {
+            UI.taskStop(); // shut down task cleanly
+            return false;
+        }
+        t.end();
+        UI.taskStop();
+        UI.printInfo(Module.LIGHT, "Irradiance cache prepass:");
+        UI.printInfo(Module.LIGHT, "  * Samples inserted: %d", numSamples.get() - before);
+        UI.printInfo(Module.LIGHT, "  * Prepass time:     %s", t.toString());
+        return true;
+    }
+
+    public void renderFinished() {
+        if (saveFilename != null)
+            save(saveFilename);
+    }
+
+    /**
+     * Add the samples stored in the specified file to the cache. Sample radii
+     * are clamped to the current spacing settings.
+     */
+    private void load(String filename) {
+        UI.printInfo(Module.LIGHT, "Loading irradiance cache \"%s\" ...", filename);
+        try {
+            DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+            try {
+                if (stream.readInt() != FILE_MAGIC || stream.readInt() != FILE_VERSION) {
+                    UI.printError(Module.LIGHT, "Unable to read irradiance cache \"%s\" - unrecognized format", filename);
+                    return;
+                }
+                int n = stream.readInt();
+                Point3 p = new Point3();
+                Vector3 normal = new Vector3();
+                for (int i = 0; i < n; i++) {
+                    p.x = stream.readFloat();
+                    p.y = stream.readFloat();
+                    p.z = stream.readFloat();
+                    normal.x = stream.readFloat();
+                    normal.y = stream.readFloat();
+                    normal.z = stream.readFloat();
+                    float r0 = 1.0f / stream.readFloat();
+                    Color irr = new Color(stream.readFloat(), stream.readFloat(), stream.readFloat());
+                    insert(p, normal, r0, irr);
+                }
+                UI.printInfo(Module.LIGHT, "  * Samples loaded: %d", n);
+            } finally {
+                stream.close();
+            }
+        } catch (FileNotFoundException e) {
+            UI.printError(Module.LIGHT, "Unable to read irradiance cache \"%s\" - file not found", filename);
+        } catch (IOException e) {
+            UI.printError(Module.LIGHT, "Unable to read irradiance cache \"%s\" - I/O error occured", filename);
+        }
+    }
+
+    /**
+     * Write all cached samples to the specified file. This must not be called
+     * while samples are being inserted.
+     */
+    private void save(String filename) {
+        if (tolerance <= 0)
+            return;
+        UI.printInfo(Module.LIGHT, "Saving irradiance cache \"%s\" ...", filename);
+        int n = 0;
+        try {
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+            try {
+                stream.writeInt(FILE_MAGIC);
+                stream.writeInt(FILE_VERSION);
+                n = root.countSamples();
+                stream.writeInt(n);
+                root.write(stream);
+            } finally {
+                stream.close();
+            }
+            UI.printInfo(Module.LIGHT, "  * Samples saved: %d", n);
+        } catch (IOException e) {
+            UI.printError(Module.LIGHT, "Unable to write irradiance cache \"%s\" - I/O error occured", filename);
+        }
+    }
+
     public Color getGlobalRadiance(ShadingState state) {
         if (globalPhotonMap == null) {
             if (state.getShader() != null)
@@ -88,9 +251,9 @@ public class IrradianceCacheGIEngine implements GIEngine {
             ShadingState temp = state.traceFinalGather(r, 0);
             return temp != null ? getGlobalRadiance(temp).copy().mul((float) Math.PI) : Color.BLACK;
         }
-        rwl.readLock().lock();
         Color irr = getIrradiance(state.getPoint(), state.getNormal());
-        rwl.readLock().unlock();
+        if (tolerance > 0)
+            state.countIrradianceCacheLookup(irr != null);
         if (irr == null) {
             // compute new sample
             irr = Color.black();
@@ -98,6 +261,7 @@ public class IrradianceCacheGIEngine implements GIEngine {
             float invR = 0;
             float minR = Float.POSITIVE_INFINITY;
             Vector3 w = new Vector3();
+            Ray r = null;
             for (int i = 0; i < samples; i++) {
                 float xi = (float) state.getRandom(i, 0, samples);
                 float xj = (float) state.getRandom(i, 1, samples);
@@ -110,7 +274,10 @@ public class IrradianceCacheGIEngine implements GIEngine {
                 w.y = sinPhi * sinTheta;
                 w.z = cosTheta;
                 onb.transform(w);
-                Ray r = new Ray(state.getPoint(), w);
+                if (r == null)
+                    r = new Ray(state.getPoint(), w);
+                else
+                    r.set(state.getPoint(), w);
                 ShadingState temp = state.traceFinalGather(r, i);
                 if (temp != null) {
                     minR = Math.min(r.getMax(), minR);
@@ -121,18 +288,26 @@ public class IrradianceCacheGIEngine implements GIEngine {
             }
             irr.mul((float) Math.PI / samples);
             invR = samples / invR;
-            rwl.writeLock().lock();
-            insert(state.getPoint(), state.getNormal(), invR, irr);
-            rwl.writeLock().unlock();
+            if (insert(state.getPoint(), state.getNormal(), invR, irr))
+                state.countIrradianceCacheInsert();
             // view irr-cache points
             // irr = Color.YELLOW.copy().mul(1e6f);
         }
         return irr;
     }
 
-    private void insert(Point3 p, Vector3 n, float r0, Color irr) {
+    /**
+     * Add a sample to the cache. This is safe to call from several threads at
+     * once, and concurrent lookups may or may not see the new sample. Missing
+     * octree nodes are published with a compare-and-set, so when two threads
+     * race to create the same node, both end up using the winner's. Samples
+     * are prepended to the list of a node in the same way.
+     * 
+     * @return <code>true</code> if the sample was stored
+     */
+    private boolean insert(Point3 p, Vector3 n, float r0, Color irr) {
         if (tolerance <= 0)
-            return;
+            return false;
         Node node = root;
         r0 = MathUtils.clamp(r0 * tolerance, minSpacing, maxSpacing) * invTolerance;
         if (root.isInside(p)) {
@@ -141,95 +316,126 @@ public class IrradianceCacheGIEngine implements GIEngine {
                 k |= (p.x > node.center.x) ? 1 : 0;
                 k |= (p.y > node.center.y) ? 2 : 0;
                 k |= (p.z > node.center.z) ? 4 : 0;
-                if (node.children[k] == null) {
+                Node child = node.children.get(k);
+                if (child == null) {
                     Point3 c = new Point3(node.center);
                     c.x += ((k & 1) == 0) ? -node.quadSideLength : node.quadSideLength;
                     c.y += ((k & 2) == 0) ? -node.quadSideLength : node.quadSideLength;
                     c.z += ((k & 4) == 0) ? -node.quadSideLength : node.quadSideLength;
-                    node.children[k] = new Node(c, node.halfSideLength);
+                    child = new Node(c, node.halfSideLength);
+                    if (!node.children.compareAndSet(k, null, child))
+                        child = node.children.get(k);
                 }
-                node = node.children[k];
+                node = child;
             }
         }
         Sample s = new Sample(p, n, r0, irr);
-        s.next = node.first;
-        node.first = s;
+        do {
+            s.next = node.first.get();
+        } while (!node.first.compareAndSet(s.next, s));
+        numSamples.incrementAndGet();
+        return true;
     }
 
     private Color getIrradiance(Point3 p, Vector3 n) {
         if (tolerance <= 0)
             return null;
-        Sample x = new Sample(p, n);
-        float w = root.find(x);
-        return (x.irr == null) ? null : x.irr.mul(1.0f / w);
+        // normalize the same way as Vector3.normalize
+        float in = 1.0f / (float) Math.sqrt((n.x * n.x) + (n.y * n.y) + (n.z * n.z));
+        Color irr = Color.black();
+        float w = root.find(p.x, p.y, p.z, n.x * in, n.y * in, n.z * in, irr);
+        return (w > 0) ? irr.mul(1.0f / w) : null;
     }
 
     private final class Node {
-        Node[] children;
-        Sample first;
-        Point3 center;
-        float sideLength;
-        float halfSideLength;
-        float quadSideLength;
+        final AtomicReferenceArray<Node> children;
+        final AtomicReference<Sample> first;
+        final Point3 center;
+        final float sideLength;
+        final float halfSideLength;
+        final float quadSideLength;
 
         Node(Point3 center, float sideLength) {
-            children = new Node[8];
-            for (int i = 0; i < 8; i++)
-                children[i] = null;
+            children = new AtomicReferenceArray<Node>(8);
             this.center = new Point3(center);
             this.sideLength = sideLength;
             halfSideLength = 0.5f * sideLength;
             quadSideLength = 0.5f * halfSideLength;
-            first = null;
+            first = new AtomicReference<Sample>();
         }
 
         final boolean isInside(Point3 p) {
             return (Math.abs(p.x - center.x) < halfSideLength) && (Math.abs(p.y - center.y) < halfSideLength) && (Math.abs(p.z - center.z) < halfSideLength);
         }
 
-        final float find(Sample x) {
+        /**
+         * Accumulate the weighted irradiance of all samples in this subtree
+         * which are valid at the specified point.
+         * 
+         * @return sum of weights
+         */
+        final float find(float pix, float piy, float piz, float nix, float niy, float niz, Color irr) {
             float weight = 0;
-            for (Sample s = first; s != null; s = s.next) {
-                float c2 = 1.0f - (x.nix * s.nix + x.niy * s.niy + x.niz * s.niz);
-                float d2 = (x.pix - s.pix) * (x.pix - s.pix) + (x.piy - s.piy) * (x.piy - s.piy) + (x.piz - s.piz) * (x.piz - s.piz);
+            for (Sample s = first.get(); s != null; s = s.next) {
+                float c2 = 1.0f - (nix * s.nix + niy * s.niy + niz * s.niz);
+                float d2 = (pix - s.pix) * (pix - s.pix) + (piy - s.piy) * (piy - s.piy) + (piz - s.piz) * (piz - s.piz);
                 if (c2 > tolerance * tolerance || d2 > maxSpacing * maxSpacing)
                     continue;
                 float invWi = (float) (Math.sqrt(d2) * s.invR0 + Math.sqrt(Math.max(c2, 0)));
                 if (invWi < tolerance || d2 < minSpacing * minSpacing) {
                     float wi = Math.min(1e10f, 1.0f / invWi);
-                    if (x.irr != null)
-                        x.irr.madd(wi, s.irr);
-                    else
-                        x.irr = s.irr.copy().mul(wi);
+                    irr.madd(wi, s.irr);
                     weight += wi;
                 }
             }
-            for (int i = 0; i < 8; i++)
-                if ((children[i] != null) && (Math.abs(children[i].center.x - x.pix) <= halfSideLength) && (Math.abs(children[i].center.y - x.piy) <= halfSideLength) && (Math.abs(children[i].center.z - x.piz) <= halfSideLength))
-                    weight += children[i].find(x);
+            for (int i = 0; i < 8; i++) {
+                Node child = children.get(i);
+                if ((child != null) && (Math.abs(child.center.x - pix) <= halfSideLength) && (Math.abs(child.center.y - piy) <= halfSideLength) && (Math.abs(child.center.z - piz) <= halfSideLength))
+                    weight += child.find(pix, piy, piz, nix, niy, niz, irr);
+            }
             return weight;
         }
+
+        final int countSamples() {
+            int n = 0;
+            for (Sample s = first.get(); s != null; s = s.next)
+                n++;
+            for (int i = 0; i < 8; i++) {
+                Node child = children.get(i);
+                if (child != null)
+                    n += child.countSamples();
+            }
+            return n;
+        }
+
+        final void write(DataOutputStream stream) throws IOException {
+            for (Sample s = first.get(); s != null; s = s.next) {
+                stream.writeFloat(s.pix);
+                stream.writeFloat(s.piy);
+                stream.writeFloat(s.piz);
+                stream.writeFloat(s.nix);
+                stream.writeFloat(s.niy);
+                stream.writeFloat(s.niz);
+                stream.writeFloat(s.invR0);
+                stream.writeFloat(s.irr.getR());
+                stream.writeFloat(s.irr.getG());
+                stream.writeFloat(s.irr.getB());
+            }
+            for (int i = 0; i < 8; i++) {
+                Node child = children.get(i);
+                if (child != null)
+                    child.write(stream);
+            }
+        }
     }
 
     private static final class Sample {
-        float pix, piy, piz;
-        float nix, niy, niz;
-        float invR0;
-        Color irr;
+        final float pix, piy, piz;
+        final float nix, niy, niz;
+        final float invR0;
+        final Color irr;
         Sample next;
 
-        Sample(Point3 p, Vector3 n) {
-            pix = p.x;
-            piy = p.y;
-            piz = p.z;
-            Vector3 ni = new Vector3(n).normalize();
-            nix = ni.x;
-            niy = ni.y;
-            niz = ni.z;
-            irr = null;
-            next = null;
-        }
-
         Sample(Point3 p, Vector3 n, float r0, Color irr) {
             pix = p.x;
             piy = p.y;
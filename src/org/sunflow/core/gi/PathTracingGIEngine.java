@@ -13,12 +13,21 @@ import org.sunflow.system.UI.Module;
 
 public class PathTracingGIEngine implements GIEngine {
     private int samples;
+    private float rouletteThreshold;
+    private int rouletteDepth;
 
     public boolean init(Options options, Scene scene) {
         samples = options.getInt("gi.path.samples", 16);
         samples = Math.max(0, samples);
+        rouletteThreshold = options.getFloat("gi.path.roulette", 0);
+        rouletteDepth = options.getInt("gi.path.roulette.depth", 1);
+        rouletteDepth = Math.max(0, rouletteDepth);
         UI.printInfo(Module.LIGHT, "Path tracer settings:");
         UI.printInfo(Module.LIGHT, "  * Samples: %d", samples);
+        if (rouletteThreshold > 0)
+            UI.printInfo(Module.LIGHT, "  * Roulette: throughput below %.3f after %d bounce(s)", rouletteThreshold, rouletteDepth);
+        else
+            UI.printInfo(Module.LIGHT, "  * Roulette: off");
         return true;
     }
 
@@ -29,8 +38,23 @@ public class PathTracingGIEngine implements GIEngine {
         Color irr = Color.black();
         OrthoNormalBasis onb = state.getBasis();
         Vector3 w = new Vector3();
+        Ray r = null;
         int n = state.getDiffuseDepth() == 0 ? samples : 1;
+        // russian roulette: gather rays carrying little energy back to the
+        // camera are only traced with some probability, survivors are
+        // weighted up to keep the estimate unbiased
+        float throughput = state.getThroughput() * diffuseReflectance.getMax();
+        float survival = 1;
+        boolean roulette = rouletteThreshold > 0 && state.getDiffuseDepth() >= rouletteDepth;
+        if (roulette)
+            survival = Math.min(1, throughput / rouletteThreshold);
         for (int i = 0; i < n; i++) {
+            if (roulette) {
+                boolean skip = survival < 1 && state.getRandom(i, 2, n) >= survival;
+                state.countRouletteRay(skip);
+                if (skip)
+                    continue;
+            }
             float xi = (float) state.getRandom(i, 0, n);
             float xj = (float) state.getRandom(i, 1, n);
             float phi = (float) (xi * 2 * Math.PI);
@@ -42,11 +66,17 @@ public class PathTracingGIEngine implements GIEngine {
             w.y = sinPhi * sinTheta;
             w.z = cosTheta;
             onb.transform(w);
-            ShadingState temp = state.traceFinalGather(new Ray(state.getPoint(), w), i);
+            // the gather state is done with the ray by the next iteration
+            if (r == null)
+                r = new Ray(state.getPoint(), w);
+            else
+                r.set(state.getPoint(), w);
+            ShadingState temp = state.traceFinalGather(r, i);
             if (temp != null) {
+                temp.scaleThroughput(diffuseReflectance.getMax() / survival);
                 temp.getInstance().prepareShadingState(temp);
                 if (temp.getShader() != null)
-                    irr.add(temp.getShader().getRadiance(temp));
+                    irr.madd(1 / survival, temp.getShader().getRadiance(temp));
             }
         }
         irr.mul((float) Math.PI / n);
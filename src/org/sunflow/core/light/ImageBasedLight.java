@@ -14,6 +14,7 @@ import org.sunflow.core.Texture;
 import org.sunflow.core.TextureCache;
 import org.sunflow.image.Bitmap;
 import org.sunflow.image.Color;
+import org.sunflow.math.AliasTable;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.OrthoNormalBasis;
@@ -27,8 +28,8 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
     private int numSamples;
     private int numLowSamples;
     private float jacobian;
-    private float[] colHistogram;
-    private float[][] imageHistogram;
+    private AliasTable colTable;
+    private AliasTable[] rowTables;
     private Vector3[] samples;
     private Vector3[] lowSamples;
     private Color[] colors;
@@ -64,29 +65,20 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
         if (b == null)
             return false;
 
-        // rebuild histograms if this is a new texture
+        // rebuild sampling tables if this is a new texture
         if (filename != null) {
-            imageHistogram = new float[b.getWidth()][b.getHeight()];
-            colHistogram = new float[b.getWidth()];
-            float du = 1.0f / b.getWidth();
-            float dv = 1.0f / b.getHeight();
+            rowTables = new AliasTable[b.getWidth()];
+            float[] colWeights = new float[b.getWidth()];
+            float[] rowWeights = new float[b.getHeight()];
+            float[] column = new float[4 * b.getHeight()];
             for (int x = 0; x < b.getWidth(); x++) {
-                for (int y = 0; y < b.getHeight(); y++) {
-                    float u = (x + 0.5f) * du;
-                    float v = (y + 0.5f) * dv;
-                    Color c = texture.getPixel(u, v);
-                    imageHistogram[x][y] = c.getLuminance() * (float) Math.sin(Math.PI * v);
-                    if (y > 0)
-                        imageHistogram[x][y] += imageHistogram[x][y - 1];
-                }
-                colHistogram[x] = imageHistogram[x][b.getHeight() - 1];
-                if (x > 0)
-                    colHistogram[x] += colHistogram[x - 1];
+                b.readRGBA(x, 0, 1, b.getHeight(), column);
                 for (int y = 0; y < b.getHeight(); y++)
-                    imageHistogram[x][y] /= imageHistogram[x][b.getHeight() - 1];
+                    rowWeights[y] = getTexelWeight(column, 4 * y, y);
+                rowTables[x] = new AliasTable(rowWeights);
+                colWeights[x] = rowTables[x].getTotal();
             }
-            for (int x = 0; x < b.getWidth(); x++)
-                colHistogram[x] /= colHistogram[b.getWidth() - 1];
+            colTable = new AliasTable(colWeights);
             jacobian = (float) (2 * Math.PI * Math.PI) / (b.getWidth() * b.getHeight());
         }
         // take fixed samples
@@ -108,33 +100,60 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
     }
 
     private void generateFixedSamples(Vector3[] samples, Color[] colors) {
+        float[] rowWeights = new float[rowTables[0].size()];
+        float[] column = new float[4 * rowWeights.length];
         for (int i = 0; i < samples.length; i++) {
             double randX = (double) i / (double) samples.length;
             double randY = QMC.halton(0, i);
+            // invert the cumulative distributions, the alias tables would break
+            // up the stratification of this fixed sample pattern
+            double cx = randX * colTable.getTotal();
             int x = 0;
-            while (randX >= colHistogram[x] && x < colHistogram.length - 1)
+            while (x < rowTables.length - 1 && cx >= rowTables[x].getTotal()) {
+                cx -= rowTables[x].getTotal();
                 x++;
-            float[] rowHistogram = imageHistogram[x];
+            }
+            texture.getBitmap().readRGBA(x, 0, 1, rowWeights.length, column);
+            for (int y = 0; y < rowWeights.length; y++)
+                rowWeights[y] = getTexelWeight(column, 4 * y, y);
+            double cy = randY * rowTables[x].getTotal();
             int y = 0;
-            while (randY >= rowHistogram[y] && y < rowHistogram.length - 1)
+            while (y < rowWeights.length - 1 && cy >= rowWeights[y]) {
+                cy -= rowWeights[y];
                 y++;
+            }
             // sample from (x, y)
-            float u = (float) ((x == 0) ? (randX / colHistogram[0]) : ((randX - colHistogram[x - 1]) / (colHistogram[x] - colHistogram[x - 1])));
-            float v = (float) ((y == 0) ? (randY / rowHistogram[0]) : ((randY - rowHistogram[y - 1]) / (rowHistogram[y] - rowHistogram[y - 1])));
+            float u = (float) Math.min(cx / rowTables[x].getTotal(), 1);
+            float v = (float) Math.min(cy / rowWeights[y], 1);
 
-            float px = ((x == 0) ? colHistogram[0] : (colHistogram[x] - colHistogram[x - 1]));
-            float py = ((y == 0) ? rowHistogram[0] : (rowHistogram[y] - rowHistogram[y - 1]));
+            float pxy = rowWeights[y] / colTable.getTotal();
 
-            float su = (x + u) / colHistogram.length;
-            float sv = (y + v) / rowHistogram.length;
+            float su = (x + u) / rowTables.length;
+            float sv = (y + v) / rowWeights.length;
 
-            float invP = (float) Math.sin(sv * Math.PI) * jacobian / (numSamples * px * py);
+            float invP = (float) Math.sin(sv * Math.PI) * jacobian / (numSamples * pxy);
             samples[i] = getDirection(su, sv);
             basis.transform(samples[i]);
             colors[i] = texture.getPixel(su, sv).mul(invP);
         }
     }
 
+    /**
+     * Get the weight used to importance sample the specified texel. The weight
+     * is proportional to the luminance of the texel and the solid angle it
+     * covers.
+     */
+    private float getTexelWeight(int x, int y, float[] rgba) {
+        texture.getBitmap().readRGBA(x, y, rgba, 0);
+        return getTexelWeight(rgba, 0, y);
+    }
+
+    private float getTexelWeight(float[] rgba, int offset, int y) {
+        float v = (y + 0.5f) / texture.getBitmap().getHeight();
+        float lum = (0.2989f * rgba[offset]) + (0.5866f * rgba[offset + 1]) + (0.1145f * rgba[offset + 2]);
+        return lum * (float) Math.sin(Math.PI * v);
+    }
+
     public void prepareShadingState(ShadingState state) {
         if (state.includeLights())
             state.setShader(this);
@@ -168,35 +187,32 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
     public void getSamples(ShadingState state) {
         if (samples == null) {
             int n = state.getDiffuseDepth() > 0 ? 1 : numSamples;
+            float[] rgba = new float[4];
+            // setRadiance copies the colors, so one can be reused
+            Color radiance = new Color();
             for (int i = 0; i < n; i++) {
                 // random offset on unit square, we use the infinite version of
                 // getRandom because the light sampling is adaptive
                 double randX = state.getRandom(i, 0, n);
                 double randY = state.getRandom(i, 1, n);
-                int x = 0;
-                while (randX >= colHistogram[x] && x < colHistogram.length - 1)
-                    x++;
-                float[] rowHistogram = imageHistogram[x];
-                int y = 0;
-                while (randY >= rowHistogram[y] && y < rowHistogram.length - 1)
-                    y++;
+                int x = colTable.sample(randX);
+                int y = rowTables[x].sample(randY);
                 // sample from (x, y)
-                float u = (float) ((x == 0) ? (randX / colHistogram[0]) : ((randX - colHistogram[x - 1]) / (colHistogram[x] - colHistogram[x - 1])));
-                float v = (float) ((y == 0) ? (randY / rowHistogram[0]) : ((randY - rowHistogram[y - 1]) / (rowHistogram[y] - rowHistogram[y - 1])));
+                float u = (float) colTable.remap(randX);
+                float v = (float) rowTables[x].remap(randY);
 
-                float px = ((x == 0) ? colHistogram[0] : (colHistogram[x] - colHistogram[x - 1]));
-                float py = ((y == 0) ? rowHistogram[0] : (rowHistogram[y] - rowHistogram[y - 1]));
+                float pxy = getTexelWeight(x, y, rgba) / colTable.getTotal();
 
-                float su = (x + u) / colHistogram.length;
-                float sv = (y + v) / rowHistogram.length;
-                float invP = (float) Math.sin(sv * Math.PI) * jacobian / (n * px * py);
+                float su = (x + u) / rowTables.length;
+                float sv = (y + v) / rowTables[x].size();
+                float invP = (float) Math.sin(sv * Math.PI) * jacobian / (n * pxy);
                 Vector3 dir = getDirection(su, sv);
                 basis.transform(dir);
                 if (Vector3.dot(dir, state.getGeoNormal()) > 0) {
                     LightSample dest = new LightSample();
                     dest.setShadowRay(new Ray(state.getPoint(), dir));
                     dest.getShadowRay().setMax(Float.MAX_VALUE);
-                    Color radiance = texture.getPixel(su, sv);
+                    texture.getPixel(su, sv, radiance);
                     dest.setRadiance(radiance, radiance);
                     dest.getDiffuseRadiance().mul(invP);
                     dest.getSpecularRadiance().mul(invP);
@@ -1,17 +1,18 @@
 package org.sunflow.core.light;
 
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.EmitterLightSource;
 import org.sunflow.core.Instance;
 import org.sunflow.core.LightSample;
-import org.sunflow.core.LightSource;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
-public class PointLight implements LightSource {
+public class PointLight implements EmitterLightSource {
     private Point3 lightPoint;
     private Color power;
 
@@ -31,12 +32,29 @@ public class PointLight implements LightSource {
     }
 
     public void getSamples(ShadingState state) {
+        sample(state, 1);
+    }
+
+    public int getNumEmitters() {
+        return 1;
+    }
+
+    public float getEmitter(int i, BoundingBox bounds, Vector3 normal) {
+        bounds.include(lightPoint);
+        return getPower();
+    }
+
+    public void getEmitterSample(int i, ShadingState state, double randX, double randY, float pdf) {
+        sample(state, pdf);
+    }
+
+    private void sample(ShadingState state, float pdf) {
         Vector3 d = Point3.sub(lightPoint, state.getPoint(), new Vector3());
         if (Vector3.dot(d, state.getNormal()) > 0 && Vector3.dot(d, state.getGeoNormal()) > 0) {
             LightSample dest = new LightSample();
             // prepare shadow ray
             dest.setShadowRay(new Ray(state.getPoint(), lightPoint));
-            float scale = 1.0f / (float) (4 * Math.PI * lightPoint.distanceToSquared(state.getPoint()));
+            float scale = 1.0f / (float) (4 * Math.PI * lightPoint.distanceToSquared(state.getPoint())) / pdf;
             dest.setRadiance(power, power);
             dest.getDiffuseRadiance().mul(scale);
             dest.getSpecularRadiance().mul(scale);
@@ -1,22 +1,23 @@
 package org.sunflow.core.light;
 
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.EmitterLightSource;
 import org.sunflow.core.Instance;
 import org.sunflow.core.LightSample;
-import org.sunflow.core.LightSource;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.core.primitive.Sphere;
 import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Solvers;
 import org.sunflow.math.Vector3;
 
-public class SphereLight implements LightSource, Shader {
+public class SphereLight implements EmitterLightSource, Shader {
     private Color radiance;
     private int numSamples;
     private Point3 center;
@@ -54,18 +55,11 @@ public class SphereLight implements LightSource, Shader {
     public void getSamples(ShadingState state) {
         if (getNumSamples() <= 0)
             return;
+        OrthoNormalBasis basis = getBasis(state);
+        if (basis == null)
+            return;
         Vector3 wc = Point3.sub(center, state.getPoint(), new Vector3());
-        float l2 = wc.lengthSquared();
-        if (l2 <= r2)
-            return; // inside the sphere?
-        // top of the sphere as viewed from the current shading point
-        float topX = wc.x + state.getNormal().x * radius;
-        float topY = wc.y + state.getNormal().y * radius;
-        float topZ = wc.z + state.getNormal().z * radius;
-        if (state.getNormal().dot(topX, topY, topZ) <= 0)
-            return; // top of the sphere is below the horizon
         float cosThetaMax = (float) Math.sqrt(Math.max(0, 1 - r2 / Vector3.dot(wc, wc)));
-        OrthoNormalBasis basis = OrthoNormalBasis.makeFromW(wc);
         int samples = state.getDiffuseDepth() > 0 ? 1 : getNumSamples();
         float scale = (float) (2 * Math.PI * (1 - cosThetaMax));
         Color c = Color.mul(scale / samples, radiance);
@@ -73,41 +67,84 @@ public class SphereLight implements LightSource, Shader {
             // random offset on unit square
             double randX = state.getRandom(i, 0, samples);
             double randY = state.getRandom(i, 1, samples);
-
-            // cone sampling
-            double cosTheta = (1 - randX) * cosThetaMax + randX;
-            double sinTheta = Math.sqrt(1 - cosTheta * cosTheta);
-            double phi = randY * 2 * Math.PI;
-            Vector3 dir = new Vector3((float) (Math.cos(phi) * sinTheta), (float) (Math.sin(phi) * sinTheta), (float) cosTheta);
-            basis.transform(dir);
-
-            // check that the direction of the sample is the same as the
-            // normal
-            float cosNx = Vector3.dot(dir, state.getNormal());
-            if (cosNx <= 0)
-                continue;
-
-            float ocx = state.getPoint().x - center.x;
-            float ocy = state.getPoint().y - center.y;
-            float ocz = state.getPoint().z - center.z;
-            float qa = Vector3.dot(dir, dir);
-            float qb = 2 * ((dir.x * ocx) + (dir.y * ocy) + (dir.z * ocz));
-            float qc = ((ocx * ocx) + (ocy * ocy) + (ocz * ocz)) - r2;
-            double[] t = Solvers.solveQuadric(qa, qb, qc);
-            if (t == null)
-                continue;
-            LightSample dest = new LightSample();
-            // compute shadow ray to the sampled point
-            dest.setShadowRay(new Ray(state.getPoint(), dir));
-            // FIXME: arbitrary bias, should handle as in other places
-            dest.getShadowRay().setMax((float) t[0] - 1e-3f);
-            // prepare sample
-            dest.setRadiance(c, c);
-            dest.traceShadow(state);
-            state.addSample(dest);
+            sample(state, basis, cosThetaMax, randX, randY, c);
         }
     }
 
+    public int getNumEmitters() {
+        return getNumSamples() <= 0 ? 0 : 1;
+    }
+
+    public float getEmitter(int i, BoundingBox bounds, Vector3 normal) {
+        bounds.include(center.x - radius, center.y - radius, center.z - radius);
+        bounds.include(center.x + radius, center.y + radius, center.z + radius);
+        return getPower();
+    }
+
+    public void getEmitterSample(int i, ShadingState state, double randX, double randY, float pdf) {
+        OrthoNormalBasis basis = getBasis(state);
+        if (basis == null)
+            return;
+        Vector3 wc = Point3.sub(center, state.getPoint(), new Vector3());
+        float cosThetaMax = (float) Math.sqrt(Math.max(0, 1 - r2 / Vector3.dot(wc, wc)));
+        float scale = (float) (2 * Math.PI * (1 - cosThetaMax));
+        sample(state, basis, cosThetaMax, randX, randY, Color.mul(scale / pdf, radiance));
+    }
+
+    /**
+     * Get the basis used for cone sampling towards the sphere.
+     * 
+     * @return basis around the direction to the center, or <code>null</code>
+     *         if the sphere can't light the shading point
+     */
+    private OrthoNormalBasis getBasis(ShadingState state) {
+        Vector3 wc = Point3.sub(center, state.getPoint(), new Vector3());
+        float l2 = wc.lengthSquared();
+        if (l2 <= r2)
+            return null; // inside the sphere?
+        // top of the sphere as viewed from the current shading point
+        float topX = wc.x + state.getNormal().x * radius;
+        float topY = wc.y + state.getNormal().y * radius;
+        float topZ = wc.z + state.getNormal().z * radius;
+        if (state.getNormal().dot(topX, topY, topZ) <= 0)
+            return null; // top of the sphere is below the horizon
+        return OrthoNormalBasis.makeFromW(wc);
+    }
+
+    private void sample(ShadingState state, OrthoNormalBasis basis, float cosThetaMax, double randX, double randY, Color c) {
+        // cone sampling
+        double cosTheta = (1 - randX) * cosThetaMax + randX;
+        double sinTheta = Math.sqrt(1 - cosTheta * cosTheta);
+        double phi = randY * 2 * Math.PI;
+        Vector3 dir = new Vector3((float) (Math.cos(phi) * sinTheta), (float) (Math.sin(phi) * sinTheta), (float) cosTheta);
+        basis.transform(dir);
+
+        // check that the direction of the sample is the same as the
+        // normal
+        float cosNx = Vector3.dot(dir, state.getNormal());
+        if (cosNx <= 0)
+            return;
+
+        float ocx = state.getPoint().x - center.x;
+        float ocy = state.getPoint().y - center.y;
+        float ocz = state.getPoint().z - center.z;
+        float qa = Vector3.dot(dir, dir);
+        float qb = 2 * ((dir.x * ocx) + (dir.y * ocy) + (dir.z * ocz));
+        float qc = ((ocx * ocx) + (ocy * ocy) + (ocz * ocz)) - r2;
+        double[] t = Solvers.solveQuadric(qa, qb, qc);
+        if (t == null)
+            return;
+        LightSample dest = new LightSample();
+        // compute shadow ray to the sampled point
+        dest.setShadowRay(new Ray(state.getPoint(), dir));
+        // FIXME: arbitrary bias, should handle as in other places
+        dest.getShadowRay().setMax((float) t[0] - 1e-3f);
+        // prepare sample
+        dest.setRadiance(c, c);
+        dest.traceShadow(state);
+        state.addSample(dest);
+    }
+
     public void getPhoton(double randX1, double randY1, double randX2, double randY2, Point3 p, Vector3 dir, Color power) {
         float z = (float) (1 - 2 * randX2);
         float r = (float) Math.sqrt(Math.max(0, 1 - z * z));
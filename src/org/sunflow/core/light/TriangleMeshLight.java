@@ -1,21 +1,22 @@
 package org.sunflow.core.light;
 
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.EmitterLightSource;
 import org.sunflow.core.Instance;
 import org.sunflow.core.LightSample;
-import org.sunflow.core.LightSource;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.core.primitive.TriangleMesh;
 import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
-public class TriangleMeshLight extends TriangleMesh implements Shader, LightSource {
+public class TriangleMeshLight extends TriangleMesh implements Shader, EmitterLightSource {
     private Color radiance;
     private int numSamples;
     private float[] areas;
@@ -153,120 +154,178 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
     public void getSamples(ShadingState state) {
         if (numSamples == 0)
             return;
-        Vector3 n = state.getNormal();
-        Point3 p = state.getPoint();
-        for (int tri3 = 0, i = 0; tri3 < triangles.length; tri3 += 3, i++) {
-            // vector towards each vertex of the light source
-            Vector3 p0 = Point3.sub(getPoint(triangles[tri3 + 0]), p, new Vector3());
-            // cull triangle if it is facing the wrong way
-            if (Vector3.dot(p0, ngs[i]) >= 0)
-                continue;
-            Vector3 p1 = Point3.sub(getPoint(triangles[tri3 + 1]), p, new Vector3());
-            Vector3 p2 = Point3.sub(getPoint(triangles[tri3 + 2]), p, new Vector3());
-            // if all three vertices are below the hemisphere, stop
-            if (Vector3.dot(p0, n) <= 0 && Vector3.dot(p1, n) <= 0 && Vector3.dot(p2, n) <= 0)
-                continue;
-            p0.normalize();
-            p1.normalize();
-            p2.normalize();
-            float dot = Vector3.dot(p2, p0);
-            Vector3 h = new Vector3();
-            h.x = p2.x - dot * p0.x;
-            h.y = p2.y - dot * p0.y;
-            h.z = p2.z - dot * p0.z;
-            float hlen = h.length();
-            if (hlen > 1e-6f)
-                h.div(hlen);
-            else
+        for (int i = 0; i < ngs.length; i++) {
+            SphericalTriangle st = project(i, state);
+            if (st == null)
                 continue;
-            Vector3 n0 = Vector3.cross(p0, p1, new Vector3());
-            float len0 = n0.length();
-            if (len0 > 1e-6f)
-                n0.div(len0);
-            else
-                continue;
-            Vector3 n1 = Vector3.cross(p1, p2, new Vector3());
-            float len1 = n1.length();
-            if (len1 > 1e-6f)
-                n1.div(len1);
-            else
-                continue;
-            Vector3 n2 = Vector3.cross(p2, p0, new Vector3());
-            float len2 = n2.length();
-            if (len2 > 1e-6f)
-                n2.div(len2);
-            else
-                continue;
-
-            float cosAlpha = MathUtils.clamp(-Vector3.dot(n2, n0), -1.0f, 1.0f);
-            float cosBeta = MathUtils.clamp(-Vector3.dot(n0, n1), -1.0f, 1.0f);
-            float cosGamma = MathUtils.clamp(-Vector3.dot(n1, n2), -1.0f, 1.0f);
-
-            float alpha = (float) Math.acos(cosAlpha);
-            float beta = (float) Math.acos(cosBeta);
-            float gamma = (float) Math.acos(cosGamma);
-
-            float area = alpha + beta + gamma - (float) Math.PI;
-
-            float cosC = MathUtils.clamp(Vector3.dot(p0, p1), -1.0f, 1.0f);
-            float salpha = (float) Math.sin(alpha);
-            float product = salpha * cosC;
-
             // use lower sampling depth for diffuse bounces
             int samples = state.getDiffuseDepth() > 0 ? 1 : numSamples;
-            Color c = Color.mul(area / samples, radiance);
+            Color c = Color.mul(st.area / samples, radiance);
             for (int j = 0; j < samples; j++) {
                 // random offset on unit square
                 double randX = state.getRandom(j, 0, samples);
                 double randY = state.getRandom(j, 1, samples);
+                sample(i, st, state, randX, randY, c);
+            }
+        }
+    }
+
+    public int getNumEmitters() {
+        return numSamples == 0 ? 0 : ngs.length;
+    }
+
+    public float getEmitter(int i, BoundingBox bounds, Vector3 normal) {
+        int tri3 = 3 * i;
+        bounds.include(getPoint(triangles[tri3 + 0]));
+        bounds.include(getPoint(triangles[tri3 + 1]));
+        bounds.include(getPoint(triangles[tri3 + 2]));
+        normal.set(ngs[i]);
+        return radiance.copy().mul((float) Math.PI * areas[i]).getLuminance();
+    }
 
-                float phi = (float) randX * area - alpha + (float) Math.PI;
-                float sinPhi = (float) Math.sin(phi);
-                float cosPhi = (float) Math.cos(phi);
+    public void getEmitterSample(int i, ShadingState state, double randX, double randY, float pdf) {
+        SphericalTriangle st = project(i, state);
+        if (st != null)
+            sample(i, st, state, randX, randY, Color.mul(st.area / pdf, radiance));
+    }
 
-                float u = cosPhi + cosAlpha;
-                float v = sinPhi - product;
+    /**
+     * Triangle projected onto the unit sphere around a shading point.
+     */
+    private static final class SphericalTriangle {
+        Vector3 p0, p1, h;
+        float alpha, area, cosAlpha, salpha, product;
+    }
 
-                float q = (-v + cosAlpha * (cosPhi * -v + sinPhi * u)) / (salpha * (sinPhi * -v - cosPhi * u));
-                float q1 = 1.0f - q * q;
-                if (q1 < 0.0f)
-                    q1 = 0.0f;
+    /**
+     * Project a triangle onto the unit sphere around the shading point.
+     * 
+     * @return the projected triangle, or <code>null</code> if the triangle
+     *         can't light the point
+     */
+    private SphericalTriangle project(int i, ShadingState state) {
+        int tri3 = 3 * i;
+        Vector3 n = state.getNormal();
+        Point3 p = state.getPoint();
+        // vector towards each vertex of the light source
+        Vector3 p0 = Point3.sub(getPoint(triangles[tri3 + 0]), p, new Vector3());
+        // cull triangle if it is facing the wrong way
+        if (Vector3.dot(p0, ngs[i]) >= 0)
+            return null;
+        Vector3 p1 = Point3.sub(getPoint(triangles[tri3 + 1]), p, new Vector3());
+        Vector3 p2 = Point3.sub(getPoint(triangles[tri3 + 2]), p, new Vector3());
+        // if all three vertices are below the hemisphere, stop
+        if (Vector3.dot(p0, n) <= 0 && Vector3.dot(p1, n) <= 0 && Vector3.dot(p2, n) <= 0)
+            return null;
+        p0.normalize();
+        p1.normalize();
+        p2.normalize();
+        float dot = Vector3.dot(p2, p0);
+        Vector3 h = new Vector3();
+        h.x = p2.x - dot * p0.x;
+        h.y = p2.y - dot * p0.y;
+        h.z = p2.z - dot * p0.z;
+        float hlen = h.length();
+        if (hlen > 1e-6f)
+            h.div(hlen);
+        else
+            return null;
+        Vector3 n0 = Vector3.cross(p0, p1, new Vector3());
+        float len0 = n0.length();
+        if (len0 > 1e-6f)
+            n0.div(len0);
+        else
+            return null;
+        Vector3 n1 = Vector3.cross(p1, p2, new Vector3());
+        float len1 = n1.length();
+        if (len1 > 1e-6f)
+            n1.div(len1);
+        else
+            return null;
+        Vector3 n2 = Vector3.cross(p2, p0, new Vector3());
+        float len2 = n2.length();
+        if (len2 > 1e-6f)
+            n2.div(len2);
+        else
+            return null;
 
-                float sqrtq1 = (float) Math.sqrt(q1);
-                float ncx = q * p0.x + sqrtq1 * h.x;
-                float ncy = q * p0.y + sqrtq1 * h.y;
-                float ncz = q * p0.z + sqrtq1 * h.z;
-                dot = p1.dot(ncx, ncy, ncz);
-                float z = 1.0f - (float) randY * (1.0f - dot);
-                float z1 = 1.0f - z * z;
-                if (z1 < 0.0f)
-                    z1 = 0.0f;
-                Vector3 nd = new Vector3();
-                nd.x = ncx - dot * p1.x;
-                nd.y = ncy - dot * p1.y;
-                nd.z = ncz - dot * p1.z;
-                nd.normalize();
-                float sqrtz1 = (float) Math.sqrt(z1);
-                Vector3 result = new Vector3();
-                result.x = z * p1.x + sqrtz1 * nd.x;
-                result.y = z * p1.y + sqrtz1 * nd.y;
-                result.z = z * p1.z + sqrtz1 * nd.z;
+        float cosAlpha = MathUtils.clamp(-Vector3.dot(n2, n0), -1.0f, 1.0f);
+        float cosBeta = MathUtils.clamp(-Vector3.dot(n0, n1), -1.0f, 1.0f);
+        float cosGamma = MathUtils.clamp(-Vector3.dot(n1, n2), -1.0f, 1.0f);
 
-                // make sure the sample is in the right hemisphere - facing in
-                // the right direction
-                if (Vector3.dot(result, n) > 0 && Vector3.dot(result, state.getGeoNormal()) > 0 && Vector3.dot(result, ngs[i]) < 0) {
-                    // compute intersection with triangle (if any)
-                    Ray shadowRay = new Ray(state.getPoint(), result);
-                    if (!intersectTriangleKensler(tri3, shadowRay))
-                        continue;
-                    LightSample dest = new LightSample();
-                    dest.setShadowRay(shadowRay);
-                    // prepare sample
-                    dest.setRadiance(c, c);
-                    dest.traceShadow(state);
-                    state.addSample(dest);
-                }
-            }
+        float alpha = (float) Math.acos(cosAlpha);
+        float beta = (float) Math.acos(cosBeta);
+        float gamma = (float) Math.acos(cosGamma);
+
+        SphericalTriangle st = new SphericalTriangle();
+        st.p0 = p0;
+        st.p1 = p1;
+        st.h = h;
+        st.alpha = alpha;
+        st.cosAlpha = cosAlpha;
+        st.area = alpha + beta + gamma - (float) Math.PI;
+
+        float cosC = MathUtils.clamp(Vector3.dot(p0, p1), -1.0f, 1.0f);
+        st.salpha = (float) Math.sin(alpha);
+        st.product = st.salpha * cosC;
+        return st;
+    }
+
+    /**
+     * Pick a direction within a projected triangle and add a light sample
+     * with the specified radiance if it reaches the triangle.
+     */
+    private void sample(int i, SphericalTriangle st, ShadingState state, double randX, double randY, Color c) {
+        Vector3 p0 = st.p0;
+        Vector3 p1 = st.p1;
+        Vector3 h = st.h;
+        float cosAlpha = st.cosAlpha;
+        float salpha = st.salpha;
+        float phi = (float) randX * st.area - st.alpha + (float) Math.PI;
+        float sinPhi = (float) Math.sin(phi);
+        float cosPhi = (float) Math.cos(phi);
+
+        float u = cosPhi + cosAlpha;
+        float v = sinPhi - st.product;
+
+        float q = (-v + cosAlpha * (cosPhi * -v + sinPhi * u)) / (salpha * (sinPhi * -v - cosPhi * u));
+        float q1 = 1.0f - q * q;
+        if (q1 < 0.0f)
+            q1 = 0.0f;
+
+        float sqrtq1 = (float) Math.sqrt(q1);
+        float ncx = q * p0.x + sqrtq1 * h.x;
+        float ncy = q * p0.y + sqrtq1 * h.y;
+        float ncz = q * p0.z + sqrtq1 * h.z;
+        float dot = p1.dot(ncx, ncy, ncz);
+        float z = 1.0f - (float) randY * (1.0f - dot);
+        float z1 = 1.0f - z * z;
+        if (z1 < 0.0f)
+            z1 = 0.0f;
+        Vector3 nd = new Vector3();
+        nd.x = ncx - dot * p1.x;
+        nd.y = ncy - dot * p1.y;
+        nd.z = ncz - dot * p1.z;
+        nd.normalize();
+        float sqrtz1 = (float) Math.sqrt(z1);
+        Vector3 result = new Vector3();
+        result.x = z * p1.x + sqrtz1 * nd.x;
+        result.y = z * p1.y + sqrtz1 * nd.y;
+        result.z = z * p1.z + sqrtz1 * nd.z;
+
+        // make sure the sample is in the right hemisphere - facing in
+        // the right direction
+        if (Vector3.dot(result, state.getNormal()) > 0 && Vector3.dot(result, state.getGeoNormal()) > 0 && Vector3.dot(result, ngs[i]) < 0) {
+            // compute intersection with triangle (if any)
+            Ray shadowRay = new Ray(state.getPoint(), result);
+            if (!intersectTriangleKensler(3 * i, shadowRay))
+                return;
+            LightSample dest = new LightSample();
+            dest.setShadowRay(shadowRay);
+            // prepare sample
+            dest.setRadiance(c, c);
+            dest.traceShadow(state);
+            state.addSample(dest);
         }
     }
 }
\ No newline at end of file
@@ -9,6 +9,7 @@ import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.HashMap;
+import java.util.WeakHashMap;
 
 import org.sunflow.PluginRegistry;
 import org.sunflow.SunflowAPI;
@@ -31,7 +32,10 @@ import org.sunflow.system.UI.Module;
  * file format.
  */
 public class SCParser implements SceneParser {
-    private static int instanceCounter = 0;
+    // number of files parsed into each API object since its current frame
+    // began, so each parse gets its own prefix for generated names but a new
+    // frame generates the same names again
+    private static final WeakHashMap<SunflowAPIInterface, Integer> parseCounters = new WeakHashMap<SunflowAPIInterface, Integer>();
     private int instanceNumber;
     private int numLightSamples;
     // used to generate unique names inside this parser
@@ -40,8 +44,24 @@ public class SCParser implements SceneParser {
 
     public SCParser() {
         objectNames = new HashMap<String, Integer>();
-        instanceCounter++;
-        instanceNumber = instanceCounter;
+    }
+
+    private static synchronized int nextParseNumber(SunflowAPIInterface api) {
+        Integer count = parseCounters.get(api);
+        int number = count == null ? 1 : count + 1;
+        parseCounters.put(api, number);
+        return number;
+    }
+
+    /**
+     * Restart the numbering of generated names for the specified API object.
+     * This should be called when a new frame is declared over the objects of
+     * the previous one, so unnamed objects get the same names again.
+     * 
+     * @param api API object a new frame is declared into
+     */
+    public static synchronized void resetGeneratedNames(SunflowAPIInterface api) {
+        parseCounters.remove(api);
     }
 
     private String generateUniqueName(String prefix) {
@@ -59,6 +79,7 @@ public class SCParser implements SceneParser {
 
     public boolean parse(String filename, SunflowAPIInterface api) {
         String localDir = new File(filename).getAbsoluteFile().getParentFile().getAbsolutePath();
+        instanceNumber = nextParseNumber(api);
         numLightSamples = 1;
         Timer timer = new Timer();
         timer.start();
@@ -262,6 +283,12 @@ public class SCParser implements SceneParser {
                 api.parameter("gi.irr-cache.gmap.gather", p.getNextInt());
                 api.parameter("gi.irr-cache.gmap.radius", p.getNextFloat());
             }
+            if (p.peekNextToken("prepass"))
+                api.parameter("gi.irr-cache.prepass", p.getNextInt());
+            if (p.peekNextToken("load"))
+                api.parameter("gi.irr-cache.load", p.getNextToken());
+            if (p.peekNextToken("save"))
+                api.parameter("gi.irr-cache.save", p.getNextToken());
         } else if (p.peekNextToken("path")) {
             api.parameter("gi.engine", "path");
             p.checkNextToken("samples");
@@ -270,6 +297,11 @@ public class SCParser implements SceneParser {
                 UI.printWarning(Module.API, "Deprecated setting: bounces - use diffuse trace depth instead");
                 p.getNextInt();
             }
+            if (p.peekNextToken("roulette")) {
+                api.parameter("gi.path.roulette", p.getNextFloat());
+                if (p.peekNextToken("depth"))
+                    api.parameter("gi.path.roulette.depth", p.getNextInt());
+            }
         } else if (p.peekNextToken("fake")) {
             api.parameter("gi.engine", "fake");
             p.checkNextToken("up");
@@ -299,6 +331,8 @@ public class SCParser implements SceneParser {
             api.parameter("gi.ambocc.samples", p.getNextInt());
             if (p.peekNextToken("maxdist"))
                 api.parameter("gi.ambocc.maxdist", p.getNextFloat());
+            if (p.peekNextToken("roulette"))
+                api.parameter("gi.ambocc.roulette", p.getNextFloat());
         } else if (p.peekNextToken("none") || p.peekNextToken("null")) {
             // disable GI
             api.parameter("gi.engine", "none");
@@ -353,6 +387,11 @@ public class SCParser implements SceneParser {
             p.getNextFloat();
             p.getNextFloat();
         }
+        if (p.peekNextToken("tree")) {
+            api.parameter("lights.tree", true);
+            api.parameter("lights.tree.samples", p.getNextInt());
+            api.options(SunflowAPI.DEFAULT_OPTIONS);
+        }
         p.checkNextToken("}");
     }
 
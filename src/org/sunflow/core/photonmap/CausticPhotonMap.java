@@ -1,7 +1,5 @@
 package org.sunflow.core.photonmap;
 
-import java.util.ArrayList;
-
 import org.sunflow.core.CausticPhotonMapInterface;
 import org.sunflow.core.LightSample;
 import org.sunflow.core.Options;
@@ -16,7 +14,10 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 public final class CausticPhotonMap implements CausticPhotonMapInterface {
-    private ArrayList<Photon> photonList;
+    // packed direction, power
+    private static final int STRIDE = 2;
+
+    private PhotonBuffer.Local buffers;
     private Photon[] photons;
     private int storedPhotons;
     private int halfStoredPhotons;
@@ -39,8 +40,7 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         bounds = new BoundingBox();
         maxPower = 0;
         maxRadius = 0;
-        photonList = new ArrayList<Photon>();
-        photonList.add(null);
+        buffers = new PhotonBuffer.Local(STRIDE);
         photons = null;
         storedPhotons = halfStoredPhotons = 0;
     }
@@ -74,123 +74,32 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
     }
 
     private void balance() {
+        PhotonBuffer.Merged merged = buffers.merge();
+        buffers = null;
+        storedPhotons = merged.size;
         if (storedPhotons == 0)
             return;
-        photons = photonList.toArray(new Photon[photonList.size()]);
-        photonList = null;
-        Photon[] temp = new Photon[storedPhotons + 1];
-        balanceSegment(temp, 1, 1, storedPhotons);
-        photons = temp;
+        bounds = merged.bounds;
+        maxPower = merged.maxPower;
+        byte[] axis = new byte[storedPhotons + 1];
+        int[] heap = PhotonTreeBalancer.balance(merged.positions, storedPhotons, bounds, axis);
+        photons = new Photon[storedPhotons + 1];
+        for (int i = 1; i <= storedPhotons; i++) {
+            int p = heap[i];
+            photons[i] = new Photon(merged.positions[3 * p], merged.positions[3 * p + 1], merged.positions[3 * p + 2], (short) merged.data[STRIDE * p], merged.data[STRIDE * p + 1]);
+            photons[i].setSplitAxis(axis[i]);
+        }
         halfStoredPhotons = storedPhotons / 2;
         log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
     }
 
-    private void balanceSegment(Photon[] temp, int index, int start, int end) {
-        int median = 1;
-        while ((4 * median) <= (end - start + 1))
-            median += median;
-        if ((3 * median) <= (end - start + 1)) {
-            median += median;
-            median += (start - 1);
-        } else
-            median = end - median + 1;
-        int axis = Photon.SPLIT_Z;
-        Vector3 extents = bounds.getExtents();
-        if ((extents.x > extents.y) && (extents.x > extents.z))
-            axis = Photon.SPLIT_X;
-        else if (extents.y > extents.z)
-            axis = Photon.SPLIT_Y;
-        int left = start;
-        int right = end;
-        while (right > left) {
-            double v = photons[right].getCoord(axis);
-            int i = left - 1;
-            int j = right;
-            while (true) {
-                while (photons[++i].getCoord(axis) < v) {
-                }
-                while ((photons[--j].getCoord(axis) > v) && (j > left)) {
-                }
-                if (i >= j)
-                    break;
-                swap(i, j);
-            }
-            swap(i, right);
-            if (i >= median)
-                right = i - 1;
-            if (i <= median)
-                left = i + 1;
-        }
-        temp[index] = photons[median];
-        temp[index].setSplitAxis(axis);
-        if (median > start) {
-            if (start < (median - 1)) {
-                float tmp;
-                switch (axis) {
-                    case Photon.SPLIT_X:
-                        tmp = bounds.getMaximum().x;
-                        bounds.getMaximum().x = temp[index].x;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().x = tmp;
-                        break;
-                    case Photon.SPLIT_Y:
-                        tmp = bounds.getMaximum().y;
-                        bounds.getMaximum().y = temp[index].y;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().y = tmp;
-                        break;
-                    default:
-                        tmp = bounds.getMaximum().z;
-                        bounds.getMaximum().z = temp[index].z;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().z = tmp;
-                }
-            } else
-                temp[2 * index] = photons[start];
-        }
-        if (median < end) {
-            if ((median + 1) < end) {
-                float tmp;
-                switch (axis) {
-                    case Photon.SPLIT_X:
-                        tmp = bounds.getMinimum().x;
-                        bounds.getMinimum().x = temp[index].x;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().x = tmp;
-                        break;
-                    case Photon.SPLIT_Y:
-                        tmp = bounds.getMinimum().y;
-                        bounds.getMinimum().y = temp[index].y;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().y = tmp;
-                        break;
-                    default:
-                        tmp = bounds.getMinimum().z;
-                        bounds.getMinimum().z = temp[index].z;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().z = tmp;
-                }
-            } else
-                temp[(2 * index) + 1] = photons[end];
-        }
-    }
-
-    private void swap(int i, int j) {
-        Photon tmp = photons[i];
-        photons[i] = photons[j];
-        photons[j] = tmp;
-    }
-
     public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
         if (((state.getDiffuseDepth() == 0) && (state.getReflectionDepth() > 0 || state.getRefractionDepth() > 0))) {
             // this is a caustic photon
-            Photon p = new Photon(state.getPoint(), dir, power);
-            synchronized (this) {
-                storedPhotons++;
-                photonList.add(p);
-                bounds.include(new Point3(p.x, p.y, p.z));
-                maxPower = Math.max(maxPower, power.getMax());
-            }
+            PhotonBuffer b = buffers.get();
+            b.add(state.getPoint(), power.getMax());
+            b.addData(dir.encode());
+            b.addData(power.toRGBE());
         }
     }
 
@@ -339,12 +248,12 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         static final int SPLIT_Z = 2;
         static final int SPLIT_MASK = 3;
 
-        Photon(Point3 p, Vector3 dir, Color power) {
-            x = p.x;
-            y = p.y;
-            z = p.z;
-            this.dir = dir.encode();
-            this.power = power.toRGBE();
+        Photon(float x, float y, float z, short dir, int power) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.dir = dir;
+            this.power = power;
             flags = SPLIT_X;
         }
 
@@ -353,17 +262,6 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
             flags |= axis;
         }
 
-        float getCoord(int axis) {
-            switch (axis) {
-                case SPLIT_X:
-                    return x;
-                case SPLIT_Y:
-                    return y;
-                default:
-                    return z;
-            }
-        }
-
         float getDist1(float px, float py, float pz) {
             switch (flags & SPLIT_MASK) {
                 case SPLIT_X:
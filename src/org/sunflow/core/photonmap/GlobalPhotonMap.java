@@ -1,6 +1,12 @@
 package org.sunflow.core.photonmap;
 
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.sunflow.core.GlobalPhotonMapInterface;
 import org.sunflow.core.Options;
@@ -14,7 +20,12 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
-    private ArrayList<Photon> photonList;
+    // packed direction and normal, power, diffuse color
+    private static final int STRIDE = 3;
+    // number of photons handed to a radiance precomputation task at once
+    private static final int RADIANCE_CHUNK = 4096;
+
+    private PhotonBuffer.Local buffers;
     private Photon[] photons;
     private int storedPhotons;
     private int halfStoredPhotons;
@@ -40,20 +51,17 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         numGather = options.getInt("gi.irr-cache.gmap.gather", 50);
         gatherRadius = options.getFloat("gi.irr-cache.gmap.radius", 0.5f);
         // init
-        photonList = new ArrayList<Photon>();
-        photonList.add(null);
+        buffers = new PhotonBuffer.Local(STRIDE);
         photons = null;
         storedPhotons = halfStoredPhotons = 0;
     }
 
     public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
-        Photon p = new Photon(state.getPoint(), state.getNormal(), dir, power, diffuse);
-        synchronized (this) {
-            storedPhotons++;
-            photonList.add(p);
-            bounds.include(new Point3(p.x, p.y, p.z));
-            maxPower = Math.max(maxPower, power.getMax());
-        }
+        PhotonBuffer b = buffers.get();
+        b.add(state.getPoint(), power.getMax());
+        b.addData((dir.encode() & 0xFFFF) | (state.getNormal().encode() << 16));
+        b.addData(power.toRGBE());
+        b.addData(diffuse.toRGB());
     }
 
     private void locatePhotons(NearestPhotons np) {
@@ -85,113 +93,26 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
     }
 
     private void balance() {
+        PhotonBuffer.Merged merged = buffers.merge();
+        buffers = null;
+        storedPhotons = merged.size;
         if (storedPhotons == 0)
             return;
-        photons = photonList.toArray(new Photon[photonList.size()]);
-        photonList = null;
-        Photon[] temp = new Photon[storedPhotons + 1];
-        balanceSegment(temp, 1, 1, storedPhotons);
-        photons = temp;
+        bounds = merged.bounds;
+        maxPower = merged.maxPower;
+        byte[] axis = new byte[storedPhotons + 1];
+        int[] heap = PhotonTreeBalancer.balance(merged.positions, storedPhotons, bounds, axis);
+        photons = new Photon[storedPhotons + 1];
+        for (int i = 1; i <= storedPhotons; i++) {
+            int p = heap[i];
+            int d = merged.data[STRIDE * p];
+            photons[i] = new Photon(merged.positions[3 * p], merged.positions[3 * p + 1], merged.positions[3 * p + 2], (short) d, (short) (d >>> 16), merged.data[STRIDE * p + 1], merged.data[STRIDE * p + 2]);
+            photons[i].setSplitAxis(axis[i]);
+        }
         halfStoredPhotons = storedPhotons / 2;
         log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
     }
 
-    private void balanceSegment(Photon[] temp, int index, int start, int end) {
-        int median = 1;
-        while ((4 * median) <= (end - start + 1))
-            median += median;
-        if ((3 * median) <= (end - start + 1)) {
-            median += median;
-            median += (start - 1);
-        } else
-            median = end - median + 1;
-        int axis = Photon.SPLIT_Z;
-        Vector3 extents = bounds.getExtents();
-        if ((extents.x > extents.y) && (extents.x > extents.z))
-            axis = Photon.SPLIT_X;
-        else if (extents.y > extents.z)
-            axis = Photon.SPLIT_Y;
-        int left = start;
-        int right = end;
-        while (right > left) {
-            double v = photons[right].getCoord(axis);
-            int i = left - 1;
-            int j = right;
-            while (true) {
-                while (photons[++i].getCoord(axis) < v) {
-                }
-                while ((photons[--j].getCoord(axis) > v) && (j > left)) {
-                }
-                if (i >= j)
-                    break;
-                swap(i, j);
-            }
-            swap(i, right);
-            if (i >= median)
-                right = i - 1;
-            if (i <= median)
-                left = i + 1;
-        }
-        temp[index] = photons[median];
-        temp[index].setSplitAxis(axis);
-        if (median > start) {
-            if (start < (median - 1)) {
-                float tmp;
-                switch (axis) {
-                    case Photon.SPLIT_X:
-                        tmp = bounds.getMaximum().x;
-                        bounds.getMaximum().x = temp[index].x;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().x = tmp;
-                        break;
-                    case Photon.SPLIT_Y:
-                        tmp = bounds.getMaximum().y;
-                        bounds.getMaximum().y = temp[index].y;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().y = tmp;
-                        break;
-                    default:
-                        tmp = bounds.getMaximum().z;
-                        bounds.getMaximum().z = temp[index].z;
-                        balanceSegment(temp, 2 * index, start, median - 1);
-                        bounds.getMaximum().z = tmp;
-                }
-            } else
-                temp[2 * index] = photons[start];
-        }
-        if (median < end) {
-            if ((median + 1) < end) {
-                float tmp;
-                switch (axis) {
-                    case Photon.SPLIT_X:
-                        tmp = bounds.getMinimum().x;
-                        bounds.getMinimum().x = temp[index].x;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().x = tmp;
-                        break;
-                    case Photon.SPLIT_Y:
-                        tmp = bounds.getMinimum().y;
-                        bounds.getMinimum().y = temp[index].y;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().y = tmp;
-                        break;
-                    default:
-                        tmp = bounds.getMinimum().z;
-                        bounds.getMinimum().z = temp[index].z;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
-                        bounds.getMinimum().z = tmp;
-                }
-            } else
-                temp[(2 * index) + 1] = photons[end];
-        }
-    }
-
-    private void swap(int i, int j) {
-        Photon tmp = photons[i];
-        photons[i] = photons[j];
-        photons[j] = tmp;
-    }
-
     static class Photon {
         float x;
         float y;
@@ -207,15 +128,15 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         static final int SPLIT_Z = 2;
         static final int SPLIT_MASK = 3;
 
-        Photon(Point3 p, Vector3 n, Vector3 dir, Color power, Color diffuse) {
-            x = p.x;
-            y = p.y;
-            z = p.z;
-            this.dir = dir.encode();
-            this.power = power.toRGBE();
+        Photon(float x, float y, float z, short dir, short normal, int power, int data) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.dir = dir;
+            this.normal = normal;
+            this.power = power;
+            this.data = data;
             flags = 0;
-            normal = n.encode();
-            data = diffuse.toRGB();
         }
 
         void setSplitAxis(int axis) {
@@ -223,17 +144,6 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
             flags |= axis;
         }
 
-        float getCoord(int axis) {
-            switch (axis) {
-                case SPLIT_X:
-                    return x;
-                case SPLIT_Y:
-                    return y;
-                default:
-                    return z;
-            }
-        }
-
         float getDist1(float px, float py, float pz) {
             switch (flags & SPLIT_MASK) {
                 case SPLIT_X:
@@ -284,20 +194,90 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         // precompute the radiance for all photons that are neither
         // leaves nor parents of leaves in the tree.
         int quadStoredPhotons = halfStoredPhotons / 2;
-        Point3 p = new Point3();
-        Vector3 n = new Vector3();
-        Point3 ppos = new Point3();
-        Vector3 pdir = new Vector3();
-        Vector3 pvec = new Vector3();
-        Color irr = new Color();
-        Color pow = new Color();
-        float maxDist2 = gatherRadius * gatherRadius;
-        NearestPhotons np = new NearestPhotons(p, numGather, maxDist2);
         Photon[] temp = new Photon[quadStoredPhotons + 1];
         UI.taskStart("Precomputing radiance", 1, quadStoredPhotons);
-        for (int i = 1; i <= quadStoredPhotons; i++) {
-            UI.taskUpdate(i);
-            Photon curr = photons[i];
+        int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), (quadStoredPhotons + RADIANCE_CHUNK - 1) / RADIANCE_CHUNK);
+        AtomicInteger next = new AtomicInteger(1);
+        AtomicInteger done = new AtomicInteger();
+        if (numThreads > 1) {
+            ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            try {
+                ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+                for (int i = 0; i < numThreads; i++)
+                    results.add(pool.submit(new RadianceTask(temp, quadStoredPhotons, next, done)));
+                for (Future<Object> f : results)
+                    f.get();
+            } catch (InterruptedException e) {
+                UI.printError(Module.LIGHT, "Radiance precomputation was interrupted - discarding all photons");
+                next = null;
+            } catch (ExecutionException e) {
+                UI.printError(Module.LIGHT, "Radiance precomputation failed: %s - discarding all photons", e.getCause());
+                next = null;
+            } finally {
+                pool.shutdownNow();
+            }
+        } else
+            new RadianceTask(temp, quadStoredPhotons, next, done).call();
+        UI.taskStop();
+        if (next == null) {
+            storedPhotons = 0;
+            photons = null;
+            return;
+        }
+
+        // resize photon map to only include irradiance photons
+        numGather /= 4;
+        maxRadius = 1.4f * (float) Math.sqrt(maxPower * numGather);
+        if (gatherRadius > maxRadius)
+            gatherRadius = maxRadius;
+        storedPhotons = quadStoredPhotons;
+        halfStoredPhotons = storedPhotons / 2;
+        log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
+        photons = temp;
+        hasRadiance = true;
+    }
+
+    /**
+     * Computes the radiance of the photons in the upper part of the tree.
+     * Tasks grab chunks of photons from a shared counter. Each photon only has
+     * its own radiance overwritten, and lookups never read that field from
+     * other photons, so tasks can run concurrently on the same tree.
+     */
+    private final class RadianceTask implements Callable<Object> {
+        private final Photon[] temp;
+        private final int last;
+        private final AtomicInteger next;
+        private final AtomicInteger done;
+        private final Point3 p = new Point3();
+        private final Vector3 n = new Vector3();
+        private final Point3 ppos = new Point3();
+        private final Vector3 pdir = new Vector3();
+        private final Vector3 pvec = new Vector3();
+        private final Color irr = new Color();
+        private final Color pow = new Color();
+        private final NearestPhotons np;
+
+        RadianceTask(Photon[] temp, int last, AtomicInteger next, AtomicInteger done) {
+            this.temp = temp;
+            this.last = last;
+            this.next = next;
+            this.done = done;
+            np = new NearestPhotons(p, numGather, gatherRadius * gatherRadius);
+        }
+
+        public Object call() {
+            int first;
+            while ((first = next.getAndAdd(RADIANCE_CHUNK)) <= last) {
+                int end = Math.min(first + RADIANCE_CHUNK - 1, last);
+                for (int i = first; i <= end; i++)
+                    temp[i] = computeRadiance(photons[i]);
+                UI.taskUpdate(done.addAndGet(end - first + 1));
+            }
+            return null;
+        }
+
+        private Photon computeRadiance(Photon curr) {
+            float maxDist2 = gatherRadius * gatherRadius;
             p.set(curr.x, curr.y, curr.z);
             Vector3.decode(curr.normal, n);
             irr.set(Color.BLACK);
@@ -305,8 +285,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
             locatePhotons(np);
             if (np.found < 8) {
                 curr.data = 0;
-                temp[i] = curr;
-                continue;
+                return curr;
             }
             float invArea = 1.0f / ((float) Math.PI * np.dist2[0]);
             float maxNDist = np.dist2[0] * 0.05f;
@@ -326,20 +305,8 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
             // compute radiance
             irr.mul(new Color(curr.data)).mul(1.0f / (float) Math.PI);
             curr.data = irr.toRGBE();
-            temp[i] = curr;
+            return curr;
         }
-        UI.taskStop();
-
-        // resize photon map to only include irradiance photons
-        numGather /= 4;
-        maxRadius = 1.4f * (float) Math.sqrt(maxPower * numGather);
-        if (gatherRadius > maxRadius)
-            gatherRadius = maxRadius;
-        storedPhotons = quadStoredPhotons;
-        halfStoredPhotons = storedPhotons / 2;
-        log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
-        photons = temp;
-        hasRadiance = true;
     }
 
     public Color getRadiance(Point3 p, Vector3 n) {
@@ -1,6 +1,6 @@
 package org.sunflow.core.photonmap;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.sunflow.core.GlobalPhotonMapInterface;
 import org.sunflow.core.Options;
@@ -13,6 +13,14 @@ import org.sunflow.math.Vector3;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
+/**
+ * Global photon map which accumulates photons into the cells of a uniform
+ * grid. Photons are gathered into a chained hash while they are being traced.
+ * Once tracing is done, the radiance of every photon group is computed and
+ * the groups are moved into a read-only open-addressed hash, so lookups do not
+ * need any locking. Estimates for cells without a matching group are computed
+ * on demand and published into a separate table with compare-and-set.
+ */
 public class GridPhotonMap implements GlobalPhotonMapInterface {
     private int numGather;
     private float gatherRadius;
@@ -22,8 +30,19 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
     private PhotonGroup[] cellHash;
     private int hashSize;
     private int hashPrime;
-    private ReentrantReadWriteLock rwl;
     private int numEmit;
+    // read-only cell table built by init, 3 ints per slot: the cell id (-1
+    // for empty slots) followed by the range of its groups
+    private int[] cells;
+    private int cellShift;
+    private int cellMask;
+    // photon groups in cell order, with their normal and radiance packed
+    // into groupData for fast lookups
+    private PhotonGroup[] groups;
+    private float[] groupData;
+    // radiance estimates for cells which have no group facing the lookup
+    // normal, chained per slot of the cell table
+    private AtomicReferenceArray<PhotonGroup> estimates;
 
     private static final float NORMAL_THRESHOLD = (float) Math.cos(10.0 * Math.PI / 180.0);
     private static final int[] PRIMES = { 11, 19, 37, 109, 163, 251, 367, 557,
@@ -34,7 +53,6 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
     public GridPhotonMap() {
         numStoredPhotons = 0;
         hashSize = 0; // number of unique IDs in the hash
-        rwl = new ReentrantReadWriteLock();
         numEmit = 100000;
     }
 
@@ -58,6 +76,10 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
             if (PRIMES[hashPrime] > (numCells / 5))
                 break;
         cellHash = new PhotonGroup[PRIMES[hashPrime]];
+        cells = null;
+        groups = null;
+        groupData = null;
+        estimates = null;
         UI.printInfo(Module.LIGHT, "  * Initial hash size: %d", cellHash.length);
     }
 
@@ -127,9 +149,90 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
             }
         }
         UI.printInfo(Module.LIGHT, "  * Num photon cells: %d", cells);
+        buildCellTable(cells);
+        precomputeRadiance();
+        // the chained hash is no longer needed
+        cellHash = null;
     }
 
-    public void precomputeRadiance(boolean includeDirect, boolean includeCaustics) {
+    /**
+     * Copy all photon groups into a read-only open-addressed hash keyed by
+     * cell id. Groups sharing a cell are kept in the order in which they
+     * appear in their chain.
+     */
+    private void buildCellTable(int numGroups) {
+        // keep the table at most half full
+        int bits = 1;
+        while ((1 << bits) < 2 * hashSize)
+            bits++;
+        cellShift = 32 - bits;
+        cellMask = (1 << bits) - 1;
+        cells = new int[3 << bits];
+        for (int i = 0; i < cells.length; i += 3)
+            cells[i] = -1;
+        // count the groups of each cell, then hand out ranges
+        for (int i = 0; i < cellHash.length; i++)
+            for (PhotonGroup g = cellHash[i]; g != null; g = g.next)
+                cells[3 * addCell(g.id) + 2]++;
+        for (int i = 0, first = 0; i < cells.length; i += 3) {
+            int count = cells[i + 2];
+            cells[i + 1] = first;
+            cells[i + 2] = first;
+            first += count;
+        }
+        groups = new PhotonGroup[numGroups];
+        for (int i = 0; i < cellHash.length; i++) {
+            for (PhotonGroup g = cellHash[i]; g != null; g = g.next)
+                groups[cells[3 * findCell(g.id) + 2]++] = g;
+        }
+        groupData = new float[6 * numGroups];
+        for (int i = 0; i < numGroups; i++) {
+            PhotonGroup g = groups[i];
+            g.next = null;
+            groupData[6 * i + 0] = g.normal.x;
+            groupData[6 * i + 1] = g.normal.y;
+            groupData[6 * i + 2] = g.normal.z;
+        }
+        estimates = new AtomicReferenceArray<PhotonGroup>(cellMask + 1);
+    }
+
+    private int addCell(int id) {
+        int slot = (id * 0x9E3779B9) >>> cellShift;
+        while (cells[3 * slot] != id) {
+            if (cells[3 * slot] < 0) {
+                cells[3 * slot] = id;
+                break;
+            }
+            slot = (slot + 1) & cellMask;
+        }
+        return slot;
+    }
+
+    private int findCell(int id) {
+        int slot = (id * 0x9E3779B9) >>> cellShift;
+        while (cells[3 * slot] != id) {
+            if (cells[3 * slot] < 0)
+                return -1;
+            slot = (slot + 1) & cellMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Compute the radiance of every photon group, using the normal of the
+     * group to select neighboring groups.
+     */
+    private void precomputeRadiance() {
+        for (int i = 0; i < groups.length; i++) {
+            PhotonGroup g = groups[i];
+            int ix = g.id % nx;
+            int iy = (g.id / nx) % ny;
+            int iz = g.id / (nx * ny);
+            Color radiance = computeRadiance(ix, iy, iz, g.normal, g.diffuse);
+            groupData[6 * i + 3] = radiance.getR();
+            groupData[6 * i + 4] = radiance.getG();
+            groupData[6 * i + 5] = radiance.getB();
+        }
     }
 
     private void growPhotonHash() {
@@ -157,8 +260,8 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
         cellHash = temp;
     }
 
-    public synchronized Color getRadiance(Point3 p, Vector3 n) {
-        if (!bounds.contains(p))
+    public Color getRadiance(Point3 p, Vector3 n) {
+        if (groups == null || !bounds.contains(p))
             return Color.BLACK;
         Vector3 ext = bounds.getExtents();
         int ix = (int) (((p.x - bounds.getMinimum().x) * nx) / ext.x);
@@ -167,40 +270,54 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
         ix = MathUtils.clamp(ix, 0, nx - 1);
         iy = MathUtils.clamp(iy, 0, ny - 1);
         iz = MathUtils.clamp(iz, 0, nz - 1);
+        int center = find(ix, iy, iz, n);
+        if (center >= 0)
+            return new Color(groupData[6 * center + 3], groupData[6 * center + 4], groupData[6 * center + 5]);
+        // no photons arrived in this cell with a matching orientation,
+        // estimate from the neighboring cells and remember the result
         int id = ix + iy * nx + iz * nx * ny;
-        rwl.readLock().lock();
-        PhotonGroup center = null;
-        for (PhotonGroup g = get(ix, iy, iz); g != null; g = g.next) {
-            if (g.id == id && Vector3.dot(n, g.normal) > NORMAL_THRESHOLD) {
-                if (g.radiance == null) {
-                    center = g;
-                    break;
-                }
-                Color r = g.radiance.copy();
-                rwl.readLock().unlock();
-                return r;
-            }
-        }
+        int slot = (id * 0x9E3779B9) >>> cellShift;
+        for (PhotonGroup g = estimates.get(slot); g != null; g = g.next)
+            if (g.id == id && Vector3.dot(n, g.normal) > NORMAL_THRESHOLD)
+                return g.radiance.copy();
+        PhotonGroup estimate = new PhotonGroup(id, n);
+        estimate.radiance = computeRadiance(ix, iy, iz, n, null);
+        // another thread may publish an estimate for the same cell at the
+        // same time, which only costs a duplicate entry
+        do {
+            estimate.next = estimates.get(slot);
+        } while (!estimates.compareAndSet(slot, estimate.next, estimate));
+        return estimate.radiance.copy();
+    }
+
+    /**
+     * Estimate the radiance leaving the specified cell by gathering photons
+     * from a growing neighborhood of cells.
+     * 
+     * @param n surface normal, only groups facing the same way are gathered
+     * @param diffuse diffuse reflectance to use, or <code>null</code> to
+     *            average the reflectance of the gathered groups
+     */
+    private Color computeRadiance(int ix, int iy, int iz, Vector3 n, Color diffuse) {
+        Vector3 ext = bounds.getExtents();
         int vol = 1;
         while (true) {
             int numPhotons = 0;
             int ndiff = 0;
             Color irr = Color.black();
-            Color diff = (center == null) ? Color.black() : null;
+            Color diff = (diffuse == null) ? Color.black() : null;
             for (int z = iz - (vol - 1); z <= iz + (vol - 1); z++) {
                 for (int y = iy - (vol - 1); y <= iy + (vol - 1); y++) {
                     for (int x = ix - (vol - 1); x <= ix + (vol - 1); x++) {
-                        int vid = x + y * nx + z * nx * ny;
-                        for (PhotonGroup g = get(x, y, z); g != null; g = g.next) {
-                            if (g.id == vid && Vector3.dot(n, g.normal) > NORMAL_THRESHOLD) {
-                                numPhotons += g.count;
-                                irr.add(g.flux);
-                                if (diff != null) {
-                                    diff.add(g.diffuse);
-                                    ndiff++;
-                                }
-                                break; // only one valid group can be found,
-                                // skip the others
+                        // only one valid group can be found per cell
+                        int i = find(x, y, z, n);
+                        if (i >= 0) {
+                            PhotonGroup g = groups[i];
+                            numPhotons += g.count;
+                            irr.add(g.flux);
+                            if (diff != null) {
+                                diff.add(g.diffuse);
+                                ndiff++;
                             }
                         }
                     }
@@ -208,40 +325,37 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
             }
             if (numPhotons >= numGather || vol >= 3) {
                 // we have found enough photons
-                // cache irradiance and return
                 float area = (2 * vol - 1) / 3.0f * ((ext.x / nx) + (ext.y / ny) + (ext.z / nz));
                 area *= area;
                 area *= Math.PI;
                 irr.mul(1.0f / area);
-                // upgrade lock manually
-                rwl.readLock().unlock();
-                rwl.writeLock().lock();
-                if (center == null) {
+                if (diff != null) {
                     if (ndiff > 0)
                         diff.mul(1.0f / ndiff);
-                    center = new PhotonGroup(id, n);
-                    center.diffuse.set(diff);
-                    center.next = cellHash[id % cellHash.length];
-                    cellHash[id % cellHash.length] = center;
+                    diffuse = diff;
                 }
-                irr.mul(center.diffuse);
-                center.radiance = irr.copy();
-                rwl.writeLock().unlock(); // unlock write - done
-                return irr;
+                return irr.mul(diffuse);
             }
             vol++;
         }
     }
 
-    private PhotonGroup get(int x, int y, int z) {
-        // returns the list associated with the specified location
+    private int find(int x, int y, int z, Vector3 n) {
+        // returns the index of the first group of the specified cell facing
+        // along n, or -1 if there is none
         if (x < 0 || x >= nx)
-            return null;
+            return -1;
         if (y < 0 || y >= ny)
-            return null;
+            return -1;
         if (z < 0 || z >= nz)
-            return null;
-        return cellHash[(x + y * nx + z * nx * ny) % cellHash.length];
+            return -1;
+        int slot = findCell(x + y * nx + z * nx * ny);
+        if (slot < 0)
+            return -1;
+        for (int i = cells[3 * slot + 1], end = cells[3 * slot + 2]; i < end; i++)
+            if ((n.x * groupData[6 * i] + n.y * groupData[6 * i + 1] + n.z * groupData[6 * i + 2]) > NORMAL_THRESHOLD)
+                return i;
+        return -1;
     }
 
     private class PhotonGroup {
@@ -0,0 +1,138 @@
+package org.sunflow.core.photonmap;
+
+import org.sunflow.core.CausticPhotonMapInterface;
+import org.sunflow.core.LightSample;
+import org.sunflow.core.Options;
+import org.sunflow.core.Ray;
+import org.sunflow.core.ShadingState;
+import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Caustic photon map which gives the same results as {@link CausticPhotonMap},
+ * but stores its kd-tree in flat arrays instead of one object per photon.
+ * Photon lookups reuse per-thread scratch space.
+ */
+public final class PackedCausticPhotonMap implements CausticPhotonMapInterface {
+    // packed direction, power
+    private static final int STRIDE = 2;
+
+    private PhotonBuffer.Local buffers;
+    private PackedPhotonTree tree;
+    private int gatherNum;
+    private float gatherRadius;
+    private float filterValue;
+    private float maxPower;
+    private float maxRadius;
+    private int numEmit;
+    private ThreadLocal<PackedPhotonTree.NearestPhotons> lookups;
+
+    public void prepare(Options options, BoundingBox sceneBounds) {
+        // get options
+        numEmit = options.getInt("caustics.emit", 10000);
+        gatherNum = options.getInt("caustics.gather", 50);
+        gatherRadius = options.getFloat("caustics.radius", 0.5f);
+        filterValue = options.getFloat("caustics.filter", 1.1f);
+        // init
+        maxPower = 0;
+        maxRadius = 0;
+        buffers = new PhotonBuffer.Local(STRIDE);
+        tree = null;
+        final int n = gatherNum;
+        lookups = new ThreadLocal<PackedPhotonTree.NearestPhotons>() {
+            @Override
+            protected PackedPhotonTree.NearestPhotons initialValue() {
+                return new PackedPhotonTree.NearestPhotons(n);
+            }
+        };
+    }
+
+    public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
+        if (((state.getDiffuseDepth() == 0) && (state.getReflectionDepth() > 0 || state.getRefractionDepth() > 0))) {
+            // this is a caustic photon
+            PhotonBuffer b = buffers.get();
+            b.add(state.getPoint(), power.getMax());
+            b.addData(dir.encode());
+            b.addData(power.toRGBE());
+        }
+    }
+
+    public void init() {
+        UI.printInfo(Module.LIGHT, "Balancing caustics photon map ...");
+        Timer t = new Timer();
+        t.start();
+        PhotonBuffer.Merged merged = buffers.merge();
+        buffers = null;
+        maxPower = merged.maxPower;
+        tree = PackedPhotonTree.build(merged, STRIDE);
+        t.end();
+        UI.printInfo(Module.LIGHT, "Caustic photon map:");
+        UI.printInfo(Module.LIGHT, "  * Photons stored:   %d", tree.size);
+        UI.printInfo(Module.LIGHT, "  * Photons/estimate: %d", gatherNum);
+        maxRadius = 1.4f * (float) Math.sqrt(maxPower * gatherNum);
+        UI.printInfo(Module.LIGHT, "  * Estimate radius:  %.3f", gatherRadius);
+        UI.printInfo(Module.LIGHT, "  * Maximum radius:   %.3f", maxRadius);
+        UI.printInfo(Module.LIGHT, "  * Balancing time:   %s", t.toString());
+        UI.printInfo(Module.LIGHT, "  * Memory:           %s", tree.getMemory());
+        if (gatherRadius > maxRadius)
+            gatherRadius = maxRadius;
+    }
+
+    public void getSamples(ShadingState state) {
+        if (tree.size == 0)
+            return;
+        Point3 p = state.getPoint();
+        Vector3 n = state.getNormal();
+        PackedPhotonTree.NearestPhotons np = lookups.get();
+        np.reset(p.x, p.y, p.z, gatherRadius * gatherRadius);
+        tree.locatePhotons(np);
+        if (np.found < 8)
+            return;
+        float[] pos = tree.positions;
+        int[] data = tree.data;
+        Vector3 pdir = new Vector3();
+        float invArea = 1.0f / ((float) Math.PI * np.dist2[0]);
+        float maxNDist = np.dist2[0] * 0.05f;
+        float f2r2 = 1.0f / (filterValue * filterValue * np.dist2[0]);
+        float fInv = 1.0f / (1.0f - 2.0f / (3.0f * filterValue));
+        for (int i = 1; i <= np.found; i++) {
+            int phot = np.index[i];
+            Vector3.decode((short) data[STRIDE * phot], pdir);
+            float cos = -Vector3.dot(pdir, n);
+            if (cos > 0.001) {
+                float vx = pos[3 * phot] - p.x;
+                float vy = pos[3 * phot + 1] - p.y;
+                float vz = pos[3 * phot + 2] - p.z;
+                float pcos = vx * n.x + vy * n.y + vz * n.z;
+                if ((pcos < maxNDist) && (pcos > -maxNDist)) {
+                    LightSample sample = new LightSample();
+                    sample.setShadowRay(new Ray(p, pdir.negate()));
+                    sample.setRadiance(new Color().setRGBE(data[STRIDE * phot + 1]).mul(invArea / cos), Color.BLACK);
+                    sample.getDiffuseRadiance().mul((1.0f - (float) Math.sqrt(np.dist2[i] * f2r2)) * fInv);
+                    state.addSample(sample);
+                }
+            }
+        }
+    }
+
+    public boolean allowDiffuseBounced() {
+        return false;
+    }
+
+    public boolean allowReflectionBounced() {
+        return true;
+    }
+
+    public boolean allowRefractionBounced() {
+        return true;
+    }
+
+    public int numEmit() {
+        return numEmit;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,244 @@
+package org.sunflow.core.photonmap;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sunflow.core.GlobalPhotonMapInterface;
+import org.sunflow.core.Options;
+import org.sunflow.core.ShadingState;
+import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Global photon map which gives the same results as {@link GlobalPhotonMap},
+ * but stores its kd-tree in flat arrays instead of one object per photon.
+ * Lookups reuse per-thread scratch space, so they do not allocate.
+ */
+public final class PackedGlobalPhotonMap implements GlobalPhotonMapInterface {
+    // packed direction and normal, power, diffuse color
+    private static final int STRIDE = 3;
+    // encoded normal, radiance
+    private static final int RADIANCE_STRIDE = 2;
+    // number of photons handed to a radiance precomputation task at once
+    private static final int RADIANCE_CHUNK = 4096;
+
+    private PhotonBuffer.Local buffers;
+    private PackedPhotonTree tree;
+    private int numGather;
+    private float gatherRadius;
+    private boolean hasRadiance;
+    private float maxPower;
+    private float maxRadius;
+    private int numEmit;
+    private ThreadLocal<PackedPhotonTree.NearestPhotons> lookups;
+
+    public PackedGlobalPhotonMap() {
+        hasRadiance = false;
+        maxPower = 0;
+        maxRadius = 0;
+        lookups = new ThreadLocal<PackedPhotonTree.NearestPhotons>() {
+            @Override
+            protected PackedPhotonTree.NearestPhotons initialValue() {
+                return new PackedPhotonTree.NearestPhotons(0);
+            }
+        };
+    }
+
+    public void prepare(Options options, BoundingBox sceneBounds) {
+        // get settings
+        numEmit = options.getInt("gi.irr-cache.gmap.emit", 100000);
+        numGather = options.getInt("gi.irr-cache.gmap.gather", 50);
+        gatherRadius = options.getFloat("gi.irr-cache.gmap.radius", 0.5f);
+        // init
+        buffers = new PhotonBuffer.Local(STRIDE);
+        tree = null;
+        hasRadiance = false;
+    }
+
+    public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
+        PhotonBuffer b = buffers.get();
+        b.add(state.getPoint(), power.getMax());
+        b.addData((dir.encode() & 0xFFFF) | (state.getNormal().encode() << 16));
+        b.addData(power.toRGBE());
+        b.addData(diffuse.toRGB());
+    }
+
+    public void init() {
+        UI.printInfo(Module.LIGHT, "Balancing global photon map ...");
+        UI.taskStart("Balancing global photon map", 0, 1);
+        Timer t = new Timer();
+        t.start();
+        PhotonBuffer.Merged merged = buffers.merge();
+        buffers = null;
+        maxPower = merged.maxPower;
+        tree = PackedPhotonTree.build(merged, STRIDE);
+        t.end();
+        UI.taskStop();
+        UI.printInfo(Module.LIGHT, "Global photon map:");
+        UI.printInfo(Module.LIGHT, "  * Photons stored:   %d", tree.size);
+        UI.printInfo(Module.LIGHT, "  * Photons/estimate: %d", numGather);
+        UI.printInfo(Module.LIGHT, "  * Estimate radius:  %.3f", gatherRadius);
+        maxRadius = 1.4f * (float) Math.sqrt(maxPower * numGather);
+        UI.printInfo(Module.LIGHT, "  * Maximum radius:   %.3f", maxRadius);
+        UI.printInfo(Module.LIGHT, "  * Balancing time:   %s", t.toString());
+        if (gatherRadius > maxRadius)
+            gatherRadius = maxRadius;
+        t.start();
+        precomputeRadiance();
+        t.end();
+        UI.printInfo(Module.LIGHT, "  * Precompute time:  %s", t.toString());
+        UI.printInfo(Module.LIGHT, "  * Radiance photons: %d", tree.size);
+        UI.printInfo(Module.LIGHT, "  * Search radius:    %.3f", gatherRadius);
+        UI.printInfo(Module.LIGHT, "  * Memory:           %s", tree.getMemory());
+    }
+
+    public void precomputeRadiance() {
+        if (tree.size == 0)
+            return;
+        // precompute the radiance for all photons that are neither
+        // leaves nor parents of leaves in the tree.
+        int quadStoredPhotons = tree.size / 4;
+        int[] radiance = new int[RADIANCE_STRIDE * (quadStoredPhotons + 1)];
+        UI.taskStart("Precomputing radiance", 1, quadStoredPhotons);
+        int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), (quadStoredPhotons + RADIANCE_CHUNK - 1) / RADIANCE_CHUNK);
+        AtomicInteger next = new AtomicInteger(1);
+        AtomicInteger done = new AtomicInteger();
+        if (numThreads > 1) {
+            ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            try {
+                ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+                for (int i = 0; i < numThreads; i++)
+                    results.add(pool.submit(new RadianceTask(radiance, quadStoredPhotons, next, done)));
+                for (Future<Object> f : results)
+                    f.get();
+            } catch (InterruptedException e) {
+                UI.printError(Module.LIGHT, "Radiance precomputation was interrupted - discarding all photons");
+                next = null;
+            } catch (ExecutionException e) {
+                UI.printError(Module.LIGHT, "Radiance precomputation failed: %s - discarding all photons", e.getCause());
+                next = null;
+            } finally {
+                pool.shutdownNow();
+            }
+        } else
+            new RadianceTask(radiance, quadStoredPhotons, next, done).call();
+        UI.taskStop();
+        if (next == null) {
+            tree = tree.reduce(0, RADIANCE_STRIDE, new int[RADIANCE_STRIDE]);
+            return;
+        }
+
+        // resize photon map to only include irradiance photons
+        numGather /= 4;
+        maxRadius = 1.4f * (float) Math.sqrt(maxPower * numGather);
+        if (gatherRadius > maxRadius)
+            gatherRadius = maxRadius;
+        tree = tree.reduce(quadStoredPhotons, RADIANCE_STRIDE, radiance);
+        hasRadiance = true;
+    }
+
+    /**
+     * Computes the radiance of the photons in the upper part of the tree.
+     * Tasks grab chunks of photons from a shared counter and only write the
+     * radiance entries of their own photons.
+     */
+    private final class RadianceTask implements Callable<Object> {
+        private final int[] radiance;
+        private final int last;
+        private final AtomicInteger next;
+        private final AtomicInteger done;
+        private final Vector3 n = new Vector3();
+        private final Vector3 pdir = new Vector3();
+        private final Color irr = new Color();
+        private final Color pow = new Color();
+        private final Color diffuse = new Color();
+        private final PackedPhotonTree.NearestPhotons np;
+
+        RadianceTask(int[] radiance, int last, AtomicInteger next, AtomicInteger done) {
+            this.radiance = radiance;
+            this.last = last;
+            this.next = next;
+            this.done = done;
+            np = new PackedPhotonTree.NearestPhotons(numGather);
+        }
+
+        public Object call() {
+            int first;
+            while ((first = next.getAndAdd(RADIANCE_CHUNK)) <= last) {
+                int end = Math.min(first + RADIANCE_CHUNK - 1, last);
+                for (int i = first; i <= end; i++) {
+                    radiance[RADIANCE_STRIDE * i] = tree.data[STRIDE * i] >>> 16;
+                    radiance[RADIANCE_STRIDE * i + 1] = computeRadiance(i);
+                }
+                UI.taskUpdate(done.addAndGet(end - first + 1));
+            }
+            return null;
+        }
+
+        private int computeRadiance(int i) {
+            float[] pos = tree.positions;
+            int[] data = tree.data;
+            float px = pos[3 * i];
+            float py = pos[3 * i + 1];
+            float pz = pos[3 * i + 2];
+            Vector3.decode((short) (data[STRIDE * i] >>> 16), n);
+            irr.set(Color.BLACK);
+            np.reset(px, py, pz, gatherRadius * gatherRadius);
+            tree.locatePhotons(np);
+            if (np.found < 8)
+                return 0;
+            float invArea = 1.0f / ((float) Math.PI * np.dist2[0]);
+            float maxNDist = np.dist2[0] * 0.05f;
+            for (int j = 1; j <= np.found; j++) {
+                int phot = np.index[j];
+                Vector3.decode((short) data[STRIDE * phot], pdir);
+                float cos = -Vector3.dot(pdir, n);
+                if (cos > 0.01f) {
+                    float vx = pos[3 * phot] - px;
+                    float vy = pos[3 * phot + 1] - py;
+                    float vz = pos[3 * phot + 2] - pz;
+                    float pcos = vx * n.x + vy * n.y + vz * n.z;
+                    if ((pcos < maxNDist) && (pcos > -maxNDist))
+                        irr.add(pow.setRGBE(data[STRIDE * phot + 1]));
+                }
+            }
+            irr.mul(invArea);
+            // compute radiance
+            irr.mul(diffuse.setRGB(data[STRIDE * i + 2])).mul(1.0f / (float) Math.PI);
+            return irr.toRGBE();
+        }
+    }
+
+    public Color getRadiance(Point3 p, Vector3 n) {
+        if (!hasRadiance || (tree.size == 0))
+            return Color.BLACK;
+        int nearest = tree.findNearest(p.x, p.y, p.z, n, 0.9f, gatherRadius * gatherRadius, lookups.get());
+        return (nearest == 0) ? Color.BLACK : new Color().setRGBE(tree.data[RADIANCE_STRIDE * nearest + 1]);
+    }
+
+    public boolean allowDiffuseBounced() {
+        return true;
+    }
+
+    public boolean allowReflectionBounced() {
+        return true;
+    }
+
+    public boolean allowRefractionBounced() {
+        return true;
+    }
+
+    public int numEmit() {
+        return numEmit;
+    }
+}
\ No newline at end of file
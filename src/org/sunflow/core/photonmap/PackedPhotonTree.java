@@ -0,0 +1,285 @@
+package org.sunflow.core.photonmap;
+
+import org.sunflow.math.Vector3;
+import org.sunflow.system.Memory;
+
+/**
+ * Balanced kd-tree of photons stored without any per-photon objects. Nodes are
+ * kept in heap order (the children of node <code>i</code> are
+ * <code>2i</code> and <code>2i+1</code>, the root is node 1). Positions live
+ * in one float array, 3 entries per node, and each node has a fixed number of
+ * packed int attributes whose meaning is up to the owning photon map.
+ */
+final class PackedPhotonTree {
+    final int size;
+    final int stride;
+    final float[] positions;
+    final int[] data;
+    private final byte[] axis;
+    private final int halfSize;
+    final int log2n;
+
+    private PackedPhotonTree(int size, int stride, float[] positions, int[] data, byte[] axis) {
+        this.size = size;
+        this.stride = stride;
+        this.positions = positions;
+        this.data = data;
+        this.axis = axis;
+        halfSize = size / 2;
+        log2n = size == 0 ? 0 : (int) Math.ceil(Math.log(size) / Math.log(2.0));
+    }
+
+    /**
+     * Balance a set of photons into a new tree.
+     * 
+     * @param merged photons gathered from all tracing threads
+     * @param stride number of ints per photon in <code>merged.data</code>
+     * @return balanced tree holding all photons
+     */
+    static PackedPhotonTree build(PhotonBuffer.Merged merged, int stride) {
+        int n = merged.size;
+        float[] positions = new float[3 * (n + 1)];
+        int[] data = new int[stride * (n + 1)];
+        byte[] axis = new byte[n + 1];
+        if (n > 0) {
+            int[] heap = PhotonTreeBalancer.balance(merged.positions, n, merged.bounds, axis);
+            for (int i = 1; i <= n; i++) {
+                int p = heap[i];
+                System.arraycopy(merged.positions, 3 * p, positions, 3 * i, 3);
+                System.arraycopy(merged.data, stride * p, data, stride * i, stride);
+            }
+        }
+        return new PackedPhotonTree(n, stride, positions, data, axis);
+    }
+
+    /**
+     * Create a tree from the top <code>n</code> nodes of this one, with a new
+     * set of attributes. Any prefix of a balanced tree in heap order is a
+     * balanced tree as well.
+     * 
+     * @param n number of nodes to keep
+     * @param stride number of ints per photon in <code>data</code>
+     * @param data attributes of the new tree, indexed like this tree
+     * @return reduced tree
+     */
+    PackedPhotonTree reduce(int n, int stride, int[] data) {
+        float[] p = new float[3 * (n + 1)];
+        byte[] a = new byte[n + 1];
+        System.arraycopy(positions, 0, p, 0, p.length);
+        System.arraycopy(axis, 0, a, 0, a.length);
+        return new PackedPhotonTree(n, stride, p, data, a);
+    }
+
+    /**
+     * Get a readable description of the memory used by the tree.
+     * 
+     * @return memory usage as a string
+     */
+    String getMemory() {
+        return Memory.bytesToString(4L * positions.length + 4L * data.length + axis.length);
+    }
+
+    private float getDist1(int i, float px, float py, float pz) {
+        switch (axis[i]) {
+            case PhotonTreeBalancer.SPLIT_X:
+                return px - positions[3 * i];
+            case PhotonTreeBalancer.SPLIT_Y:
+                return py - positions[3 * i + 1];
+            default:
+                return pz - positions[3 * i + 2];
+        }
+    }
+
+    private float getDist2(int i, float px, float py, float pz) {
+        float dx = positions[3 * i] - px;
+        float dy = positions[3 * i + 1] - py;
+        float dz = positions[3 * i + 2] - pz;
+        return (dx * dx) + (dy * dy) + (dz * dz);
+    }
+
+    /**
+     * Find the photons closest to the lookup point of <code>np</code>.
+     * 
+     * @param np lookup point, search radius and result heap
+     */
+    void locatePhotons(NearestPhotons np) {
+        if (size == 0)
+            return;
+        float[] dist1d2 = np.getDist1dScratch(log2n);
+        int[] chosen = np.getChosenScratch(log2n);
+        int i = 1;
+        int level = 0;
+        int cameFrom;
+        while (true) {
+            while (i < halfSize) {
+                float dist1d = getDist1(i, np.px, np.py, np.pz);
+                dist1d2[level] = dist1d * dist1d;
+                i += i;
+                if (dist1d > 0.0f)
+                    i++;
+                chosen[level++] = i;
+            }
+            np.checkAddNearest(i, getDist2(i, np.px, np.py, np.pz));
+            do {
+                cameFrom = i;
+                i >>= 1;
+                level--;
+                if (i == 0)
+                    return;
+            } while ((dist1d2[level] >= np.dist2[0]) || (cameFrom != chosen[level]));
+            np.checkAddNearest(i, getDist2(i, np.px, np.py, np.pz));
+            i = chosen[level++] ^ 1;
+        }
+    }
+
+    /**
+     * Find the closest photon to <code>(px, py, pz)</code> within the
+     * specified radius whose normal faces the same way as <code>n</code>.
+     * The encoded photon normal is expected in the first attribute of each
+     * node.
+     * 
+     * @param px lookup point x coordinate
+     * @param py lookup point y coordinate
+     * @param pz lookup point z coordinate
+     * @param n surface normal at the lookup point
+     * @param minDot smallest accepted cosine between the normals
+     * @param maxDist2 squared search radius
+     * @param np provides the scratch space for the traversal
+     * @return index of the closest accepted photon, or 0 if there is none
+     */
+    int findNearest(float px, float py, float pz, Vector3 n, float minDot, float maxDist2, NearestPhotons np) {
+        if (size == 0)
+            return 0;
+        float[] dist1d2 = np.getDist1dScratch(log2n);
+        int[] chosen = np.getChosenScratch(log2n);
+        int i = 1;
+        int level = 0;
+        int cameFrom;
+        int nearest = 0;
+        while (true) {
+            while (i < halfSize) {
+                float dist1d = getDist1(i, px, py, pz);
+                dist1d2[level] = dist1d * dist1d;
+                i += i;
+                if (dist1d > 0)
+                    i++;
+                chosen[level++] = i;
+            }
+            float dist2 = getDist2(i, px, py, pz);
+            if (dist2 < maxDist2 && Vector3.dot(Vector3.decode((short) data[stride * i], np.normal), n) > minDot) {
+                nearest = i;
+                maxDist2 = dist2;
+            }
+            do {
+                cameFrom = i;
+                i >>= 1;
+                level--;
+                if (i == 0)
+                    return nearest;
+            } while ((dist1d2[level] >= maxDist2) || (cameFrom != chosen[level]));
+            dist2 = getDist2(i, px, py, pz);
+            if (dist2 < maxDist2 && Vector3.dot(Vector3.decode((short) data[stride * i], np.normal), n) > minDot) {
+                nearest = i;
+                maxDist2 = dist2;
+            }
+            i = chosen[level++] ^ 1;
+        }
+    }
+
+    /**
+     * Result heap and traversal scratch space of a photon lookup. Instances
+     * are meant to be kept per thread and reused for every lookup.
+     */
+    static final class NearestPhotons {
+        int found;
+        float px, py, pz;
+        private int max;
+        private boolean gotHeap;
+        final float[] dist2;
+        final int[] index;
+        private float[] dist1d2;
+        private int[] chosen;
+        private final Vector3 normal;
+
+        NearestPhotons(int n) {
+            max = n;
+            dist2 = new float[n + 1];
+            index = new int[n + 1];
+            dist1d2 = new float[0];
+            chosen = new int[0];
+            normal = new Vector3();
+        }
+
+        void reset(float px, float py, float pz, float maxDist2) {
+            found = 0;
+            gotHeap = false;
+            this.px = px;
+            this.py = py;
+            this.pz = pz;
+            dist2[0] = maxDist2;
+        }
+
+        private float[] getDist1dScratch(int n) {
+            if (dist1d2.length < n)
+                dist1d2 = new float[n];
+            return dist1d2;
+        }
+
+        private int[] getChosenScratch(int n) {
+            if (chosen.length < n)
+                chosen = new int[n];
+            return chosen;
+        }
+
+        private void checkAddNearest(int p, float fdist2) {
+            if (fdist2 < dist2[0]) {
+                if (found < max) {
+                    found++;
+                    dist2[found] = fdist2;
+                    index[found] = p;
+                } else {
+                    int j;
+                    int parent;
+                    if (!gotHeap) {
+                        float dst2;
+                        int phot;
+                        int halfFound = found >> 1;
+                        for (int k = halfFound; k >= 1; k--) {
+                            parent = k;
+                            phot = index[k];
+                            dst2 = dist2[k];
+                            while (parent <= halfFound) {
+                                j = parent + parent;
+                                if ((j < found) && (dist2[j] < dist2[j + 1]))
+                                    j++;
+                                if (dst2 >= dist2[j])
+                                    break;
+                                dist2[parent] = dist2[j];
+                                index[parent] = index[j];
+                                parent = j;
+                            }
+                            dist2[parent] = dst2;
+                            index[parent] = phot;
+                        }
+                        gotHeap = true;
+                    }
+                    parent = 1;
+                    j = 2;
+                    while (j <= found) {
+                        if ((j < found) && (dist2[j] < dist2[j + 1]))
+                            j++;
+                        if (fdist2 > dist2[j])
+                            break;
+                        dist2[parent] = dist2[j];
+                        index[parent] = index[j];
+                        parent = j;
+                        j += j;
+                    }
+                    dist2[parent] = fdist2;
+                    index[parent] = p;
+                    dist2[0] = dist2[1];
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,123 @@
+package org.sunflow.core.photonmap;
+
+import java.util.ArrayList;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Point3;
+import org.sunflow.util.FloatArray;
+import org.sunflow.util.IntArray;
+
+/**
+ * Flat storage for photons which are still being traced. Every photon tracing
+ * thread appends to its own buffer, so storing a photon never takes a lock.
+ * The buffers are concatenated by {@link Local#merge()} once all threads are
+ * done. Positions are stored as 3 floats per photon, other attributes as a
+ * fixed number of packed ints per photon.
+ */
+final class PhotonBuffer {
+    private final int stride;
+    private final FloatArray positions;
+    private final IntArray data;
+    private final BoundingBox bounds;
+    private float maxPower;
+
+    PhotonBuffer(int stride) {
+        this.stride = stride;
+        positions = new FloatArray(3 * 1024);
+        data = new IntArray(stride * 1024);
+        bounds = new BoundingBox();
+        maxPower = 0;
+    }
+
+    /**
+     * Append a photon to the buffer. The caller must follow up with exactly
+     * <code>stride</code> calls to {@link #addData(int)}.
+     * 
+     * @param p photon position
+     * @param power maximum component of the photon power
+     */
+    void add(Point3 p, float power) {
+        positions.add(p.x);
+        positions.add(p.y);
+        positions.add(p.z);
+        bounds.include(p);
+        maxPower = Math.max(maxPower, power);
+    }
+
+    void addData(int value) {
+        data.add(value);
+    }
+
+    /**
+     * Photons of all threads concatenated into flat arrays.
+     */
+    static final class Merged {
+        final int size;
+        final float[] positions;
+        final int[] data;
+        final BoundingBox bounds;
+        final float maxPower;
+
+        private Merged(int size, float[] positions, int[] data, BoundingBox bounds, float maxPower) {
+            this.size = size;
+            this.positions = positions;
+            this.data = data;
+            this.bounds = bounds;
+            this.maxPower = maxPower;
+        }
+    }
+
+    /**
+     * Hands out one buffer per thread and keeps track of all of them so they
+     * can be merged later.
+     */
+    static final class Local extends ThreadLocal<PhotonBuffer> {
+        private final int stride;
+        private final ArrayList<PhotonBuffer> buffers;
+
+        Local(int stride) {
+            this.stride = stride;
+            buffers = new ArrayList<PhotonBuffer>();
+        }
+
+        @Override
+        protected PhotonBuffer initialValue() {
+            PhotonBuffer buffer = new PhotonBuffer(stride);
+            synchronized (buffers) {
+                buffers.add(buffer);
+            }
+            return buffer;
+        }
+
+        /**
+         * Concatenate the buffers of all threads, in the order in which the
+         * threads stored their first photon. This must only be called once
+         * all threads are done storing photons.
+         * 
+         * @return merged photons
+         */
+        Merged merge() {
+            synchronized (buffers) {
+                int size = 0;
+                for (PhotonBuffer b : buffers)
+                    size += b.positions.getSize() / 3;
+                float[] positions = new float[3 * size];
+                int[] data = new int[stride * size];
+                BoundingBox bounds = new BoundingBox();
+                float maxPower = 0;
+                int n = 0;
+                for (PhotonBuffer b : buffers) {
+                    int count = b.positions.getSize() / 3;
+                    System.arraycopy(b.positions.trim(), 0, positions, 3 * n, 3 * count);
+                    System.arraycopy(b.data.trim(), 0, data, stride * n, stride * count);
+                    if (count > 0)
+                        bounds.include(b.bounds);
+                    maxPower = Math.max(maxPower, b.maxPower);
+                    n += count;
+                }
+                buffers.clear();
+                return new Merged(size, positions, data, bounds, maxPower);
+            }
+        }
+    }
+}
\ No newline at end of file
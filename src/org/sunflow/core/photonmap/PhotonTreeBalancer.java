@@ -0,0 +1,195 @@
+package org.sunflow.core.photonmap;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Arranges a set of photons into a left balanced kd-tree stored in heap order
+ * (the children of node <code>i</code> are <code>2i</code> and
+ * <code>2i+1</code>, the root is node 1). The photons themselves are never
+ * moved, the balancer only works on an index permutation into the flat
+ * position array. Large maps are balanced by several threads: the top of the
+ * tree is split by the calling thread and the subtrees below it are handed to
+ * a thread pool. Since subtrees cover disjoint ranges of both the permutation
+ * and the heap, the result is the same as a serial build.
+ */
+final class PhotonTreeBalancer {
+    static final int SPLIT_X = 0;
+    static final int SPLIT_Y = 1;
+    static final int SPLIT_Z = 2;
+
+    // segments with fewer photons are always balanced by a single thread
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+    private final float[] positions;
+    private final int[] perm;
+    private final int[] heap;
+    private final byte[] axis;
+
+    private PhotonTreeBalancer(float[] positions, int n) {
+        this.positions = positions;
+        perm = new int[n + 1];
+        for (int i = 1; i <= n; i++)
+            perm[i] = i - 1;
+        heap = new int[n + 1];
+        axis = new byte[n + 1];
+    }
+
+    /**
+     * Balance the specified photons.
+     * 
+     * @param positions photon positions, 3 floats per photon
+     * @param n number of photons
+     * @param bounds bounding box of all photons
+     * @param axis array of <code>n + 1</code> entries which receives the split
+     *            axis of each heap node, leaves are left at {@link #SPLIT_X}
+     * @return array of <code>n + 1</code> entries holding the index of the
+     *         photon stored at each heap node, entry 0 is unused
+     */
+    static int[] balance(float[] positions, int n, BoundingBox bounds, byte[] axis) {
+        PhotonTreeBalancer b = new PhotonTreeBalancer(positions, n);
+        float[] box = { bounds.getMinimum().x, bounds.getMinimum().y,
+                bounds.getMinimum().z, bounds.getMaximum().x,
+                bounds.getMaximum().y, bounds.getMaximum().z };
+        int numThreads = n < PARALLEL_THRESHOLD ? 1 : Runtime.getRuntime().availableProcessors();
+        boolean done = false;
+        if (numThreads > 1) {
+            try {
+                b.balanceParallel(box, n, numThreads);
+                done = true;
+            } catch (InterruptedException e) {
+                UI.printWarning(Module.LIGHT, "Parallel photon map balancing was interrupted - balancing serially");
+            } catch (ExecutionException e) {
+                UI.printWarning(Module.LIGHT, "Parallel photon map balancing failed: %s - balancing serially", e.getCause());
+            }
+        }
+        if (!done) {
+            b = new PhotonTreeBalancer(positions, n);
+            b.balanceSegment(1, 1, n, box, null, 0);
+        }
+        System.arraycopy(b.axis, 0, axis, 0, n + 1);
+        return b.heap;
+    }
+
+    private void balanceParallel(float[] box, int n, int numThreads) throws InterruptedException, ExecutionException {
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        balanceSegment(1, 1, n, box, tasks, Math.max(PARALLEL_THRESHOLD, n / (4 * numThreads)));
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (Callable<Object> task : tasks)
+                results.add(pool.submit(task));
+            for (Future<Object> f : results)
+                f.get();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private final class SegmentTask implements Callable<Object> {
+        private final int index;
+        private final int start;
+        private final int end;
+        private final float[] box;
+
+        SegmentTask(int index, int start, int end, float[] box) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.box = box.clone();
+        }
+
+        public Object call() {
+            balanceSegment(index, start, end, box, null, 0);
+            return null;
+        }
+    }
+
+    private float getCoord(int i, int axis) {
+        return positions[3 * perm[i] + axis];
+    }
+
+    /**
+     * Balance the photons in <code>perm[start..end]</code> into the subtree
+     * rooted at the specified heap node. If a task list is given, segments of
+     * at most <code>grainSize</code> photons are queued instead of balanced.
+     */
+    private void balanceSegment(int index, int start, int end, float[] box, ArrayList<Callable<Object>> tasks, int grainSize) {
+        if (tasks != null && end - start + 1 <= grainSize) {
+            tasks.add(new SegmentTask(index, start, end, box));
+            return;
+        }
+        int median = 1;
+        while ((4 * median) <= (end - start + 1))
+            median += median;
+        if ((3 * median) <= (end - start + 1)) {
+            median += median;
+            median += (start - 1);
+        } else
+            median = end - median + 1;
+        int a = SPLIT_Z;
+        float ex = box[3] - box[0];
+        float ey = box[4] - box[1];
+        float ez = box[5] - box[2];
+        if ((ex > ey) && (ex > ez))
+            a = SPLIT_X;
+        else if (ey > ez)
+            a = SPLIT_Y;
+        int left = start;
+        int right = end;
+        while (right > left) {
+            double v = getCoord(right, a);
+            int i = left - 1;
+            int j = right;
+            while (true) {
+                while (getCoord(++i, a) < v) {
+                }
+                while ((getCoord(--j, a) > v) && (j > left)) {
+                }
+                if (i >= j)
+                    break;
+                swap(i, j);
+            }
+            swap(i, right);
+            if (i >= median)
+                right = i - 1;
+            if (i <= median)
+                left = i + 1;
+        }
+        heap[index] = perm[median];
+        axis[index] = (byte) a;
+        float split = getCoord(median, a);
+        if (median > start) {
+            if (start < (median - 1)) {
+                float tmp = box[3 + a];
+                box[3 + a] = split;
+                balanceSegment(2 * index, start, median - 1, box, tasks, grainSize);
+                box[3 + a] = tmp;
+            } else
+                heap[2 * index] = perm[start];
+        }
+        if (median < end) {
+            if ((median + 1) < end) {
+                float tmp = box[a];
+                box[a] = split;
+                balanceSegment((2 * index) + 1, median + 1, end, box, tasks, grainSize);
+                box[a] = tmp;
+            } else
+                heap[(2 * index) + 1] = perm[end];
+        }
+    }
+
+    private void swap(int i, int j) {
+        int tmp = perm[i];
+        perm[i] = perm[j];
+        perm[j] = tmp;
+    }
+}
\ No newline at end of file
@@ -19,6 +19,7 @@ public class Plane implements PrimitiveList {
     int k;
     private float bnu, bnv, bnd;
     private float cnu, cnv, cnd;
+    private float uvScale;
 
     public Plane() {
         center = new Point3(0, 0, 0);
@@ -26,6 +27,7 @@ public class Plane implements PrimitiveList {
         k = 3;
         bnu = bnv = bnd = 0;
         cnu = cnv = cnd = 0;
+        uvScale = 0;
     }
 
     public boolean update(ParameterList pl, SunflowAPI api) {
@@ -80,11 +82,16 @@ public class Plane implements PrimitiveList {
             cnu = cy / det;
             cnv = -cx / det;
             cnd = (cx * ay - cy * ax) / det;
+            // texture space area per unit of area on the plane, which is the
+            // area of the projection onto the k axis plane times the mapping
+            float projectedArea = Math.abs(k == 0 ? ng.x : (k == 1 ? ng.y : ng.z));
+            uvScale = (float) Math.sqrt(Math.abs(bnu * cnv - bnv * cnu) * projectedArea);
         } else {
             normal = pl.getVector("normal", normal);
             k = 3;
             bnu = bnv = bnd = 0;
             cnu = cnv = cnd = 0;
+            uvScale = 0;
         }
         return true;
     }
@@ -121,6 +128,7 @@ public class Plane implements PrimitiveList {
         }
         state.getUV().x = hu * bnu + hv * bnv + bnd;
         state.getUV().y = hu * cnu + hv * cnv + cnd;
+        state.setUVScale(uvScale);
         state.setBasis(OrthoNormalBasis.makeFromW(normal));
     }
 
@@ -19,6 +19,7 @@ import org.sunflow.math.Matrix4;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Memory;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -26,7 +27,9 @@ public class TriangleMesh implements PrimitiveList {
     private static boolean smallTriangles = false;
     protected float[] points;
     protected int[] triangles;
-    private WaldTriangle[] triaccel;
+    // number of floats of precomputed intersection data per triangle
+    private static final int WALD_SIZE = 10;
+    private float[] triaccel;
     private FloatParameter normals;
     private FloatParameter uvs;
     private byte[] faceShaders;
@@ -194,7 +197,7 @@ public class TriangleMesh implements PrimitiveList {
 
         if (triaccel != null) {
             // optional fast intersection method
-            triaccel[primID].intersect(r, primID, state);
+            intersectTriangleWald(r, primID, state);
             return;
         }
         intersectTriangleKensler(r, primID, state);
@@ -311,6 +314,13 @@ public class TriangleMesh implements PrimitiveList {
                 dpdv = state.transformVectorObjectToWorld(dpdv);
                 // create basis in world space
                 state.setBasis(OrthoNormalBasis.makeFromWV(state.getNormal(), dpdv));
+                // compare the areas of the triangle in texture and world
+                // space to find the scale of the texture coordinates
+                Vector3 wp1 = state.transformVectorObjectToWorld(dp1);
+                Vector3 wp2 = state.transformVectorObjectToWorld(dp2);
+                float area = Vector3.cross(wp1, wp2, new Vector3()).length();
+                if (area > 0)
+                    state.setUVScale((float) Math.sqrt(Math.abs(determinant) / area));
             }
         } else
             state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
@@ -324,13 +334,25 @@ public class TriangleMesh implements PrimitiveList {
         int nt = getNumPrimitives();
         if (!smallTriangles) {
             // too many triangles? -- don't generate triaccel to save memory
-            if (nt > 2000000) {
+            if (nt > 2000000)
                 UI.printWarning(Module.GEOM, "TRI - Too many triangles -- triaccel generation skipped");
-                return;
+            else {
+                triaccel = new float[WALD_SIZE * nt];
+                for (int i = 0; i < nt; i++)
+                    initWaldTriangle(i);
             }
-            triaccel = new WaldTriangle[nt];
-            for (int i = 0; i < nt; i++)
-                triaccel[i] = new WaldTriangle(this, i);
+        }
+        if (nt > 0) {
+            long bytes = 4L * (points.length + triangles.length);
+            if (triaccel != null)
+                bytes += 4L * triaccel.length;
+            if (normals.data != null)
+                bytes += 4L * normals.data.length;
+            if (uvs.data != null)
+                bytes += 4L * uvs.data.length;
+            if (faceShaders != null)
+                bytes += faceShaders.length;
+            UI.printDetailed(Module.GEOM, "Triangle mesh memory: %s (%.1f bytes per triangle, %s intersection data)", Memory.bytesToString(bytes), (double) bytes / nt, Memory.sizeof(triaccel));
         }
     }
 
@@ -344,138 +366,129 @@ public class TriangleMesh implements PrimitiveList {
         p.set(points[index], points[index + 1], points[index + 2]);
     }
 
-    private static final class WaldTriangle {
-        // private data for fast triangle intersection testing
-        private int k;
-        private float nu, nv, nd;
-        private float bnu, bnv, bnd;
-        private float cnu, cnv, cnd;
-
-        private WaldTriangle(TriangleMesh mesh, int tri) {
+    /**
+     * Precompute the data used by the projection based triangle test of Ingo
+     * Wald. The ten values of each triangle are stored consecutively in a
+     * single flat array, which avoids the header and reference overhead of
+     * one object per triangle.
+     * 
+     * @param tri triangle index
+     */
+    private void initWaldTriangle(int tri) {
+        int k = 0;
+        int index0 = triangles[3 * tri + 0];
+        int index1 = triangles[3 * tri + 1];
+        int index2 = triangles[3 * tri + 2];
+        Point3 v0p = getPoint(index0);
+        Point3 v1p = getPoint(index1);
+        Point3 v2p = getPoint(index2);
+        Vector3 ng = Point3.normal(v0p, v1p, v2p);
+        if (Math.abs(ng.x) > Math.abs(ng.y) && Math.abs(ng.x) > Math.abs(ng.z))
             k = 0;
-            tri *= 3;
-            int index0 = mesh.triangles[tri + 0];
-            int index1 = mesh.triangles[tri + 1];
-            int index2 = mesh.triangles[tri + 2];
-            Point3 v0p = mesh.getPoint(index0);
-            Point3 v1p = mesh.getPoint(index1);
-            Point3 v2p = mesh.getPoint(index2);
-            Vector3 ng = Point3.normal(v0p, v1p, v2p);
-            if (Math.abs(ng.x) > Math.abs(ng.y) && Math.abs(ng.x) > Math.abs(ng.z))
-                k = 0;
-            else if (Math.abs(ng.y) > Math.abs(ng.z))
-                k = 1;
-            else
-                k = 2;
-            float ax, ay, bx, by, cx, cy;
-            switch (k) {
-                case 0: {
-                    nu = ng.y / ng.x;
-                    nv = ng.z / ng.x;
-                    nd = v0p.x + (nu * v0p.y) + (nv * v0p.z);
-                    ax = v0p.y;
-                    ay = v0p.z;
-                    bx = v2p.y - ax;
-                    by = v2p.z - ay;
-                    cx = v1p.y - ax;
-                    cy = v1p.z - ay;
-                    break;
-                }
-                case 1: {
-                    nu = ng.z / ng.y;
-                    nv = ng.x / ng.y;
-                    nd = (nv * v0p.x) + v0p.y + (nu * v0p.z);
-                    ax = v0p.z;
-                    ay = v0p.x;
-                    bx = v2p.z - ax;
-                    by = v2p.x - ay;
-                    cx = v1p.z - ax;
-                    cy = v1p.x - ay;
-                    break;
-                }
-                case 2:
-                default: {
-                    nu = ng.x / ng.z;
-                    nv = ng.y / ng.z;
-                    nd = (nu * v0p.x) + (nv * v0p.y) + v0p.z;
-                    ax = v0p.x;
-                    ay = v0p.y;
-                    bx = v2p.x - ax;
-                    by = v2p.y - ay;
-                    cx = v1p.x - ax;
-                    cy = v1p.y - ay;
-                }
+        else if (Math.abs(ng.y) > Math.abs(ng.z))
+            k = 1;
+        else
+            k = 2;
+        float nu, nv, nd;
+        float ax, ay, bx, by, cx, cy;
+        switch (k) {
+            case 0: {
+                nu = ng.y / ng.x;
+                nv = ng.z / ng.x;
+                nd = v0p.x + (nu * v0p.y) + (nv * v0p.z);
+                ax = v0p.y;
+                ay = v0p.z;
+                bx = v2p.y - ax;
+                by = v2p.z - ay;
+                cx = v1p.y - ax;
+                cy = v1p.z - ay;
+                break;
+            }
+            case 1: {
+                nu = ng.z / ng.y;
+                nv = ng.x / ng.y;
+                nd = (nv * v0p.x) + v0p.y + (nu * v0p.z);
+                ax = v0p.z;
+                ay = v0p.x;
+                bx = v2p.z - ax;
+                by = v2p.x - ay;
+                cx = v1p.z - ax;
+                cy = v1p.x - ay;
+                break;
+            }
+            case 2:
+            default: {
+                nu = ng.x / ng.z;
+                nv = ng.y / ng.z;
+                nd = (nu * v0p.x) + (nv * v0p.y) + v0p.z;
+                ax = v0p.x;
+                ay = v0p.y;
+                bx = v2p.x - ax;
+                by = v2p.y - ay;
+                cx = v1p.x - ax;
+                cy = v1p.y - ay;
             }
-            float det = bx * cy - by * cx;
-            bnu = -by / det;
-            bnv = bx / det;
-            bnd = (by * ax - bx * ay) / det;
-            cnu = cy / det;
-            cnv = -cx / det;
-            cnd = (cx * ay - cy * ax) / det;
         }
+        float det = bx * cy - by * cx;
+        int i = WALD_SIZE * tri;
+        triaccel[i + 0] = k;
+        triaccel[i + 1] = nu;
+        triaccel[i + 2] = nv;
+        triaccel[i + 3] = nd;
+        triaccel[i + 4] = -by / det;
+        triaccel[i + 5] = bx / det;
+        triaccel[i + 6] = (by * ax - bx * ay) / det;
+        triaccel[i + 7] = cy / det;
+        triaccel[i + 8] = -cx / det;
+        triaccel[i + 9] = (cx * ay - cy * ax) / det;
+    }
 
-        void intersect(Ray r, int primID, IntersectionState state) {
-            switch (k) {
-                case 0: {
-                    float det = 1.0f / (r.dx + nu * r.dy + nv * r.dz);
-                    float t = (nd - r.ox - nu * r.oy - nv * r.oz) * det;
-                    if (!r.isInside(t))
-                        return;
-                    float hu = r.oy + t * r.dy;
-                    float hv = r.oz + t * r.dz;
-                    float u = hu * bnu + hv * bnv + bnd;
-                    if (u < 0.0f)
-                        return;
-                    float v = hu * cnu + hv * cnv + cnd;
-                    if (v < 0.0f)
-                        return;
-                    if (u + v > 1.0f)
-                        return;
-                    r.setMax(t);
-                    state.setIntersection(primID, u, v);
+    private final void intersectTriangleWald(Ray r, int primID, IntersectionState state) {
+        float[] data = triaccel;
+        int i = WALD_SIZE * primID;
+        float nu = data[i + 1];
+        float nv = data[i + 2];
+        float nd = data[i + 3];
+        float hu, hv, t;
+        switch ((int) data[i]) {
+            case 0: {
+                float det = 1.0f / (r.dx + nu * r.dy + nv * r.dz);
+                t = (nd - r.ox - nu * r.oy - nv * r.oz) * det;
+                if (!r.isInside(t))
                     return;
-                }
-                case 1: {
-                    float det = 1.0f / (r.dy + nu * r.dz + nv * r.dx);
-                    float t = (nd - r.oy - nu * r.oz - nv * r.ox) * det;
-                    if (!r.isInside(t))
-                        return;
-                    float hu = r.oz + t * r.dz;
-                    float hv = r.ox + t * r.dx;
-                    float u = hu * bnu + hv * bnv + bnd;
-                    if (u < 0.0f)
-                        return;
-                    float v = hu * cnu + hv * cnv + cnd;
-                    if (v < 0.0f)
-                        return;
-                    if (u + v > 1.0f)
-                        return;
-                    r.setMax(t);
-                    state.setIntersection(primID, u, v);
+                hu = r.oy + t * r.dy;
+                hv = r.oz + t * r.dz;
+                break;
+            }
+            case 1: {
+                float det = 1.0f / (r.dy + nu * r.dz + nv * r.dx);
+                t = (nd - r.oy - nu * r.oz - nv * r.ox) * det;
+                if (!r.isInside(t))
                     return;
-                }
-                case 2: {
-                    float det = 1.0f / (r.dz + nu * r.dx + nv * r.dy);
-                    float t = (nd - r.oz - nu * r.ox - nv * r.oy) * det;
-                    if (!r.isInside(t))
-                        return;
-                    float hu = r.ox + t * r.dx;
-                    float hv = r.oy + t * r.dy;
-                    float u = hu * bnu + hv * bnv + bnd;
-                    if (u < 0.0f)
-                        return;
-                    float v = hu * cnu + hv * cnv + cnd;
-                    if (v < 0.0f)
-                        return;
-                    if (u + v > 1.0f)
-                        return;
-                    r.setMax(t);
-                    state.setIntersection(primID, u, v);
+                hu = r.oz + t * r.dz;
+                hv = r.ox + t * r.dx;
+                break;
+            }
+            default: {
+                float det = 1.0f / (r.dz + nu * r.dx + nv * r.dy);
+                t = (nd - r.oz - nu * r.ox - nv * r.oy) * det;
+                if (!r.isInside(t))
                     return;
-                }
+                hu = r.ox + t * r.dx;
+                hv = r.oy + t * r.dy;
+                break;
             }
         }
+        float u = hu * data[i + 4] + hv * data[i + 5] + data[i + 6];
+        if (u < 0.0f)
+            return;
+        float v = hu * data[i + 7] + hv * data[i + 8] + data[i + 9];
+        if (v < 0.0f)
+            return;
+        if (u + v > 1.0f)
+            return;
+        r.setMax(t);
+        state.setIntersection(primID, u, v);
     }
 
     public PrimitiveList getBakingPrimitives() {
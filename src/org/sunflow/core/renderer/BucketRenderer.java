@@ -8,11 +8,13 @@ import org.sunflow.core.ImageSampler;
 import org.sunflow.core.Instance;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.Options;
+import org.sunflow.core.RayPacket;
 import org.sunflow.core.Scene;
 import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.core.bucket.BucketOrderFactory;
 import org.sunflow.core.filter.BoxFilter;
+import org.sunflow.core.filter.FilterTable;
 import org.sunflow.image.Color;
 import org.sunflow.image.formats.GenericBitmap;
 import org.sunflow.math.MathUtils;
@@ -31,7 +33,6 @@ public class BucketRenderer implements ImageSampler {
     private String bucketOrderName;
     private BucketOrder bucketOrder;
     private int bucketSize;
-    private int bucketCounter;
     private int[] bucketCoords;
     private boolean dumpBuckets;
 
@@ -56,8 +57,13 @@ public class BucketRenderer implements ImageSampler {
     // filtering
     private String filterName;
     private Filter filter;
+    private FilterTable filterTable;
     private int fs;
     private float fhs;
+    private float[] filterWeightsX;
+    private float[] filterWeightsY;
+    private float[] filterWeights;
+    private float invFilterWeight;
 
     public BucketRenderer() {
         bucketSize = 32;
@@ -103,6 +109,8 @@ public class BucketRenderer implements ImageSampler {
         else
             maxStepSize = minAADepth > 0 ? 1 << minAADepth : subPixelSize << (-minAADepth);
         useJitter = jitter && maxAADepth > 0;
+        // every pixel gets at least the samples of the lowest AA depth
+        scene.setSamplesPerPixel((float) Math.pow(4, minAADepth));
         // compute anti-aliasing contrast thresholds
         contrastThreshold = MathUtils.clamp(contrastThreshold, 0, 1);
         thresh = contrastThreshold * (float) Math.pow(2.0f, minAADepth);
@@ -117,6 +125,34 @@ public class BucketRenderer implements ImageSampler {
         }
         fhs = filter.getSize() * 0.5f;
         fs = (int) Math.ceil(subPixelSize * (fhs - 0.5f));
+        filterTable = new FilterTable(filter, 64);
+        filterWeightsX = filterWeightsY = filterWeights = null;
+        if (!useJitter) {
+            // without jitter, every pixel sees its footprint samples at the
+            // same offsets, so the exact weights can be computed up front
+            float[] offsetsX = new float[2 * fs + 1];
+            float[] offsetsY = new float[2 * fs + 1];
+            for (int i = -fs; i <= fs; i++) {
+                offsetsX[i + fs] = (i + 0.5f) / subPixelSize - 0.5f;
+                offsetsY[i + fs] = -offsetsX[i + fs];
+            }
+            float weight = 0;
+            if (filterTable.isSeparable()) {
+                filterWeightsX = filterTable.getWeights1d(offsetsX);
+                filterWeightsY = filterTable.getWeights1d(offsetsY);
+                float wx = 0, wy = 0;
+                for (int i = 0; i < offsetsX.length; i++) {
+                    wx += filterWeightsX[i];
+                    wy += filterWeightsY[i];
+                }
+                weight = wx * wy;
+            } else {
+                filterWeights = filterTable.getWeights2d(offsetsX, offsetsY);
+                for (int i = 0; i < filterWeights.length; i++)
+                    weight += filterWeights[i];
+            }
+            invFilterWeight = 1.0f / weight;
+        }
 
         // prepare QMC sampling
         sigmaOrder = Math.min(QMC.MAX_SIGMA_ORDER, Math.max(0, maxAADepth) + 13); // FIXME: how big should the table be?
@@ -142,69 +178,46 @@ public class BucketRenderer implements ImageSampler {
         return String.format("%s%d sample%s", depth < 0 ? "1/" : "", pixelAA * pixelAA, depth == 0 ? "" : "s");
     }
 
-    public void render(Display display) {
+    public boolean render(Display display) {
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, bucketSize);
-        // set members variables
-        bucketCounter = 0;
+        BucketScheduler scheduler = new BucketScheduler(bucketCoords);
         // start task
-        UI.taskStart("Rendering", 0, bucketCoords.length);
+        UI.taskStart("Rendering", 0, scheduler.getNumBuckets());
         Timer timer = new Timer();
         timer.start();
-        BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
-        for (int i = 0; i < renderThreads.length; i++) {
-            renderThreads[i] = new BucketThread(i);
-            renderThreads[i].setPriority(scene.getThreadPriority());
-            renderThreads[i].start();
-        }
-        for (int i = 0; i < renderThreads.length; i++) {
-            try {
-                renderThreads[i].join();
-            } catch (InterruptedException e) {
-                UI.printError(Module.BCKT, "Bucket processing thread %d of %d was interrupted", i + 1, renderThreads.length);
-            } finally {
-                renderThreads[i].updateStats();
-            }
-        }
+        BucketWorker[] workers = new BucketWorker[scene.getThreads()];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new BucketWorker(i);
+        boolean completed = scheduler.render(workers, scene.getThreadPriority());
         UI.taskStop();
         timer.end();
         UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
         display.imageEnd();
+        return completed;
     }
 
-    private class BucketThread extends Thread {
+    private class BucketWorker implements BucketScheduler.BucketWorker {
         private final int threadID;
         private final IntersectionState istate;
+        private final SampleBuffer samples;
 
-        BucketThread(int threadID) {
+        BucketWorker(int threadID) {
             this.threadID = threadID;
             istate = new IntersectionState();
+            samples = new SampleBuffer();
         }
 
-        @Override
-        public void run() {
-            while (true) {
-                int bx, by;
-                synchronized (BucketRenderer.this) {
-                    if (bucketCounter >= bucketCoords.length)
-                        return;
-                    UI.taskUpdate(bucketCounter);
-                    bx = bucketCoords[bucketCounter + 0];
-                    by = bucketCoords[bucketCounter + 1];
-                    bucketCounter += 2;
-                }
-                renderBucket(display, bx, by, threadID, istate);
-                if (UI.taskCanceled())
-                    return;
-            }
+        public void renderBucket(int bx, int by) {
+            BucketRenderer.this.renderBucket(display, bx, by, threadID, istate, samples);
         }
 
-        void updateStats() {
+        public void finish() {
             scene.accumulateStats(istate);
         }
     }
 
-    private void renderBucket(Display display, int bx, int by, int threadID, IntersectionState istate) {
+    private void renderBucket(Display display, int bx, int by, int threadID, IntersectionState istate, SampleBuffer samples) {
         // pixel sized extents
         int x0 = bx * bucketSize;
         int y0 = by * bucketSize;
@@ -214,9 +227,6 @@ public class BucketRenderer implements ImageSampler {
         // prepare bucket
         display.imagePrepare(x0, y0, bw, bh, threadID);
 
-        Color[] bucketRGB = new Color[bw * bh];
-        float[] bucketAlpha = new float[bw * bh];
-
         // subpixel extents
         int sx0 = x0 * subPixelSize - fs;
         int sy0 = y0 * subPixelSize - fs;
@@ -231,9 +241,11 @@ public class BucketRenderer implements ImageSampler {
             sbw++;
             sbh++;
         }
-        // allocate bucket memory
-        ImageSample[] samples = new ImageSample[sbw * sbh];
-        // allocate samples and compute jitter offsets
+        // reuse the thread's bucket memory
+        samples.prepare(sbw * sbh, bw * bh);
+        Color[] bucketRGB = samples.bucketRGB;
+        float[] bucketAlpha = samples.bucketAlpha;
+        // initialize samples and compute jitter offsets
         float invSubPixelSize = 1.0f / subPixelSize;
         for (int y = 0, index = 0; y < sbh; y++) {
             for (int x = 0; x < sbw; x++, index++) {
@@ -247,7 +259,24 @@ public class BucketRenderer implements ImageSampler {
                 float rx = (sx + dx) * invSubPixelSize;
                 float ry = (sy + dy) * invSubPixelSize;
                 ry = imageHeight - ry;
-                samples[index] = new ImageSample(rx, ry, i);
+                samples.init(index, rx, ry, i);
+            }
+        }
+        if (superSampling == 1) {
+            // every corner of the coarsest blocks gets sampled, so trace them
+            // up front in 4x4 groups of neighbours, which are far more coherent
+            // than the few corners missing from a single block
+            for (int y = 0; y < sbh; y += 4 * maxStepSize) {
+                for (int x = 0; x < sbw; x += 4 * maxStepSize) {
+                    int n = 0;
+                    for (int j = 0, sy = y; j < 4 && sy < sbh; j++, sy += maxStepSize)
+                        for (int i = 0, sx = x; i < 4 && sx < sbw; i++, sx += maxStepSize)
+                            samples.packetIndex[n++] = sx + sy * sbw;
+                    if (n > 1)
+                        computeSubPixels(samples, n, istate);
+                    else
+                        computeSubPixel(samples, samples.packetIndex[0], istate);
+                }
             }
         }
         for (int x = 0; x < sbw - 1; x += maxStepSize)
@@ -258,7 +287,7 @@ public class BucketRenderer implements ImageSampler {
             GenericBitmap bitmap = new GenericBitmap(sbw, sbh);
             for (int y = sbh - 1, index = 0; y >= 0; y--)
                 for (int x = 0; x < sbw; x++, index++)
-                    bitmap.writePixel(x, y, samples[index].c, samples[index].alpha);
+                    bitmap.writePixel(x, y, new Color(samples.r[index], samples.g[index], samples.b[index]), samples.alpha[index]);
             bitmap.save(String.format("bucket_%04d_%04d.png", bx, by));
         }
         if (displayAA) {
@@ -272,89 +301,231 @@ public class BucketRenderer implements ImageSampler {
                             int sx = x * subPixelSize + fs + i;
                             int sy = y * subPixelSize + fs + j;
                             int s = sx + sy * sbw;
-                            sampled += samples[s].sampled() ? 1 : 0;
+                            sampled += samples.sampled(s) ? 1 : 0;
                         }
                     }
-                    bucketRGB[index] = new Color(sampled * invArea);
+                    float v = sampled * invArea;
+                    bucketRGB[index].set(v, v, v);
                     bucketAlpha[index] = 1.0f;
                 }
             }
-        } else {
-            // filter samples into pixels
-            float cy = imageHeight - (y0 + 0.5f);
-            for (int y = 0, index = 0; y < bh; y++, cy--) {
-                float cx = x0 + 0.5f;
-                for (int x = 0; x < bw; x++, index++, cx++) {
-                    Color c = Color.black();
-                    float a = 0;
-                    float weight = 0.0f;
-                    for (int j = -fs, sy = y * subPixelSize; j <= fs; j++, sy++) {
-                        for (int i = -fs, sx = x * subPixelSize, s = sx + sy * sbw; i <= fs; i++, sx++, s++) {
-                            float dx = samples[s].rx - cx;
-                            if (Math.abs(dx) > fhs)
-                                continue;
-                            float dy = samples[s].ry - cy;
-                            if (Math.abs(dy) > fhs)
-                                continue;
-                            float f = filter.get(dx, dy);
-                            c.madd(f, samples[s].c);
-                            a += f * samples[s].alpha;
-                            weight += f;
+        } else if (filterWeightsX != null)
+            filterSeparable(samples, sbw, bw, bh);
+        else if (filterWeights != null)
+            filterFixed(samples, sbw, bw, bh);
+        else
+            filterJittered(samples, sbw, x0, y0, bw, bh);
+        // update pixels
+        display.imageUpdate(x0, y0, bw, bh, bucketRGB, bucketAlpha);
+    }
 
-                        }
+    /**
+     * Filter samples into pixels in two one dimensional passes. This requires
+     * a separable filter and samples at the same offsets for every pixel.
+     */
+    private void filterSeparable(SampleBuffer samples, int sbw, int bw, int bh) {
+        int fw = 2 * fs + 1;
+        int rows = (bh - 1) * subPixelSize + fw;
+        samples.prepareRows(rows * bw);
+        float[] sr = samples.r;
+        float[] sg = samples.g;
+        float[] sb = samples.b;
+        float[] salpha = samples.alpha;
+        float[] hr = samples.rowR;
+        float[] hg = samples.rowG;
+        float[] hb = samples.rowB;
+        float[] halpha = samples.rowAlpha;
+        // horizontal pass: filter each row of samples into pixel columns
+        for (int sy = 0, index = 0; sy < rows; sy++) {
+            for (int x = 0; x < bw; x++, index++) {
+                float cr = 0, cg = 0, cb = 0;
+                float a = 0;
+                for (int i = 0, s = x * subPixelSize + sy * sbw; i < fw; i++, s++) {
+                    float f = filterWeightsX[i];
+                    cr += f * sr[s];
+                    cg += f * sg[s];
+                    cb += f * sb[s];
+                    a += f * salpha[s];
+                }
+                hr[index] = cr;
+                hg[index] = cg;
+                hb[index] = cb;
+                halpha[index] = a;
+            }
+        }
+        // vertical pass: filter the columns into pixels
+        Color[] bucketRGB = samples.bucketRGB;
+        float[] bucketAlpha = samples.bucketAlpha;
+        for (int y = 0, index = 0; y < bh; y++) {
+            for (int x = 0; x < bw; x++, index++) {
+                float cr = 0, cg = 0, cb = 0;
+                float a = 0;
+                for (int j = 0, h = x + y * subPixelSize * bw; j < fw; j++, h += bw) {
+                    float f = filterWeightsY[j];
+                    cr += f * hr[h];
+                    cg += f * hg[h];
+                    cb += f * hb[h];
+                    a += f * halpha[h];
+                }
+                bucketRGB[index].set(cr * invFilterWeight, cg * invFilterWeight, cb * invFilterWeight);
+                bucketAlpha[index] = a * invFilterWeight;
+            }
+        }
+    }
+
+    /**
+     * Filter samples into pixels using precomputed weights. This requires
+     * samples at the same offsets for every pixel.
+     */
+    private void filterFixed(SampleBuffer samples, int sbw, int bw, int bh) {
+        int fw = 2 * fs + 1;
+        float[] sr = samples.r;
+        float[] sg = samples.g;
+        float[] sb = samples.b;
+        float[] salpha = samples.alpha;
+        Color[] bucketRGB = samples.bucketRGB;
+        float[] bucketAlpha = samples.bucketAlpha;
+        for (int y = 0, index = 0; y < bh; y++) {
+            for (int x = 0; x < bw; x++, index++) {
+                float cr = 0, cg = 0, cb = 0;
+                float a = 0;
+                for (int j = 0, w = 0, sy = y * subPixelSize; j < fw; j++, sy++) {
+                    for (int i = 0, s = x * subPixelSize + sy * sbw; i < fw; i++, s++, w++) {
+                        float f = filterWeights[w];
+                        cr += f * sr[s];
+                        cg += f * sg[s];
+                        cb += f * sb[s];
+                        a += f * salpha[s];
                     }
-                    float invWeight = 1.0f / weight;
-                    c.mul(invWeight);
-                    a *= invWeight;
-                    bucketRGB[index] = c;
-                    bucketAlpha[index] = a;
                 }
+                bucketRGB[index].set(cr * invFilterWeight, cg * invFilterWeight, cb * invFilterWeight);
+                bucketAlpha[index] = a * invFilterWeight;
+            }
+        }
+    }
+
+    /**
+     * Filter jittered samples into pixels. Sample offsets differ for every
+     * pixel, so the weights are looked up from the tabulated filter.
+     */
+    private void filterJittered(SampleBuffer samples, int sbw, int x0, int y0, int bw, int bh) {
+        float[] sr = samples.r;
+        float[] sg = samples.g;
+        float[] sb = samples.b;
+        float[] salpha = samples.alpha;
+        float[] srx = samples.rx;
+        float[] sry = samples.ry;
+        Color[] bucketRGB = samples.bucketRGB;
+        float[] bucketAlpha = samples.bucketAlpha;
+        float cy = imageHeight - (y0 + 0.5f);
+        for (int y = 0, index = 0; y < bh; y++, cy--) {
+            float cx = x0 + 0.5f;
+            for (int x = 0; x < bw; x++, index++, cx++) {
+                float cr = 0, cg = 0, cb = 0;
+                float a = 0;
+                float weight = 0.0f;
+                for (int j = -fs, sy = y * subPixelSize; j <= fs; j++, sy++) {
+                    for (int i = -fs, sx = x * subPixelSize, s = sx + sy * sbw; i <= fs; i++, sx++, s++) {
+                        float dx = srx[s] - cx;
+                        if (Math.abs(dx) > fhs)
+                            continue;
+                        float dy = sry[s] - cy;
+                        if (Math.abs(dy) > fhs)
+                            continue;
+                        float f = filterTable.get(dx, dy);
+                        cr += f * sr[s];
+                        cg += f * sg[s];
+                        cb += f * sb[s];
+                        a += f * salpha[s];
+                        weight += f;
+                    }
+                }
+                float invWeight = 1.0f / weight;
+                bucketRGB[index].set(cr * invWeight, cg * invWeight, cb * invWeight);
+                bucketAlpha[index] = a * invWeight;
             }
         }
-        // update pixels
-        display.imageUpdate(x0, y0, bw, bh, bucketRGB, bucketAlpha);
     }
 
-    private void computeSubPixel(ImageSample sample, IntersectionState istate) {
-        float x = sample.rx;
-        float y = sample.ry;
-        double q0 = QMC.halton(1, sample.i);
-        double q1 = QMC.halton(2, sample.i);
-        double q2 = QMC.halton(3, sample.i);
+    private void computeSubPixel(SampleBuffer samples, int index, IntersectionState istate) {
+        float x = samples.rx[index];
+        float y = samples.ry[index];
+        int instance = samples.i[index];
+        double q0 = QMC.halton(1, instance);
+        double q1 = QMC.halton(2, instance);
+        double q2 = QMC.halton(3, instance);
         if (superSampling > 1) {
             // multiple sampling
-            sample.add(scene.getRadiance(istate, x, y, q1, q2, q0, sample.i, 4, null));
+            samples.add(index, scene.getRadiance(istate, x, y, q1, q2, q0, instance, 4, null));
             for (int i = 1; i < superSampling; i++) {
                 double time = QMC.mod1(q0 + i * invSuperSampling);
                 double lensU = QMC.mod1(q1 + QMC.halton(0, i));
                 double lensV = QMC.mod1(q2 + QMC.halton(1, i));
-                sample.add(scene.getRadiance(istate, x, y, lensU, lensV, time, sample.i + i, 4, null));
+                samples.add(index, scene.getRadiance(istate, x, y, lensU, lensV, time, instance + i, 4, null));
             }
-            sample.scale((float) invSuperSampling);
+            samples.scale(index, (float) invSuperSampling);
         } else {
             // single sample
-            sample.set(scene.getRadiance(istate, x, y, q1, q2, q0, sample.i, 4, null));
+            samples.set(index, scene.getRadiance(istate, x, y, q1, q2, q0, instance, 4, null));
         }
     }
 
-    private void refineSamples(ImageSample[] samples, int sbw, int x, int y, int stepSize, float thresh, IntersectionState istate) {
+    /**
+     * Compute several single sampled subpixels at once. The subpixels are
+     * listed in the packet index array of the sample buffer.
+     */
+    private void computeSubPixels(SampleBuffer samples, int n, IntersectionState istate) {
+        for (int k = 0; k < n; k++) {
+            int index = samples.packetIndex[k];
+            int instance = samples.i[index];
+            samples.packetX[k] = samples.rx[index];
+            samples.packetY[k] = samples.ry[index];
+            samples.packetTime[k] = QMC.halton(1, instance);
+            samples.packetLensU[k] = QMC.halton(2, instance);
+            samples.packetLensV[k] = QMC.halton(3, instance);
+            samples.packetInstance[k] = instance;
+        }
+        scene.getRadiance(istate, samples.packetX, samples.packetY, samples.packetLensU, samples.packetLensV, samples.packetTime, samples.packetInstance, n, 4, null, samples.packetStates);
+        for (int k = 0; k < n; k++) {
+            samples.set(samples.packetIndex[k], samples.packetStates[k]);
+            samples.packetStates[k] = null;
+        }
+    }
+
+    private void refineSamples(SampleBuffer samples, int sbw, int x, int y, int stepSize, float thresh, IntersectionState istate) {
         int dx = stepSize;
         int dy = stepSize * sbw;
-        int i00 = x + y * sbw;
-        ImageSample s00 = samples[i00];
-        ImageSample s01 = samples[i00 + dy];
-        ImageSample s10 = samples[i00 + dx];
-        ImageSample s11 = samples[i00 + dx + dy];
-        if (!s00.sampled())
-            computeSubPixel(s00, istate);
-        if (!s01.sampled())
-            computeSubPixel(s01, istate);
-        if (!s10.sampled())
-            computeSubPixel(s10, istate);
-        if (!s11.sampled())
-            computeSubPixel(s11, istate);
+        int s00 = x + y * sbw;
+        int s01 = s00 + dy;
+        int s10 = s00 + dx;
+        int s11 = s00 + dx + dy;
+        if (superSampling == 1) {
+            // trace the missing corners of this block together
+            int n = 0;
+            if (!samples.sampled(s00))
+                samples.packetIndex[n++] = s00;
+            if (!samples.sampled(s01))
+                samples.packetIndex[n++] = s01;
+            if (!samples.sampled(s10))
+                samples.packetIndex[n++] = s10;
+            if (!samples.sampled(s11))
+                samples.packetIndex[n++] = s11;
+            if (n > 1)
+                computeSubPixels(samples, n, istate);
+            else if (n == 1)
+                computeSubPixel(samples, samples.packetIndex[0], istate);
+        } else {
+            if (!samples.sampled(s00))
+                computeSubPixel(samples, s00, istate);
+            if (!samples.sampled(s01))
+                computeSubPixel(samples, s01, istate);
+            if (!samples.sampled(s10))
+                computeSubPixel(samples, s10, istate);
+            if (!samples.sampled(s11))
+                computeSubPixel(samples, s11, istate);
+        }
         if (stepSize > minStepSize) {
-            if (s00.isDifferent(s01, thresh) || s00.isDifferent(s10, thresh) || s00.isDifferent(s11, thresh) || s01.isDifferent(s11, thresh) || s10.isDifferent(s11, thresh) || s01.isDifferent(s10, thresh)) {
+            if (samples.isDifferent(s00, s01, thresh) || samples.isDifferent(s00, s10, thresh) || samples.isDifferent(s00, s11, thresh) || samples.isDifferent(s01, s11, thresh) || samples.isDifferent(s10, s11, thresh) || samples.isDifferent(s01, s10, thresh)) {
                 stepSize >>= 1;
                 thresh *= 2;
                 refineSamples(samples, sbw, x, y, stepSize, thresh, istate);
@@ -369,101 +540,182 @@ public class BucketRenderer implements ImageSampler {
         float ds = 1.0f / stepSize;
         for (int i = 0; i <= stepSize; i++)
             for (int j = 0; j <= stepSize; j++)
-                if (!samples[x + i + (y + j) * sbw].processed())
-                    ImageSample.bilerp(samples[x + i + (y + j) * sbw], s00, s01, s10, s11, i * ds, j * ds);
+                if (!samples.processed[x + i + (y + j) * sbw])
+                    samples.bilerp(x + i + (y + j) * sbw, s00, s01, s10, s11, i * ds, j * ds);
     }
 
-    private static final class ImageSample {
-        float rx, ry;
-        int i, n;
-        Color c;
-        float alpha;
-        Instance instance;
-        Shader shader;
-        float nx, ny, nz;
-
-        ImageSample(float rx, float ry, int i) {
-            this.rx = rx;
-            this.ry = ry;
-            this.i = i;
-            n = 0;
-            c = null;
-            alpha = 0;
-            instance = null;
-            shader = null;
-            nx = ny = nz = 1;
+    /**
+     * Per-thread storage for the subpixel samples of a bucket and for the
+     * filtered pixels sent to the display. Samples are kept as parallel arrays
+     * which only grow, so rendering a bucket does not allocate anything once
+     * the buffer has reached the size of the largest bucket.
+     */
+    private static final class SampleBuffer {
+        float[] rx, ry;
+        int[] i, n;
+        float[] r, g, b;
+        float[] alpha;
+        Instance[] instance;
+        Shader[] shader;
+        float[] nx, ny, nz;
+        boolean[] processed;
+        Color[] bucketRGB;
+        float[] bucketAlpha;
+        float[] rowR, rowG, rowB;
+        float[] rowAlpha;
+        // samples traced together as a packet
+        int[] packetIndex;
+        float[] packetX, packetY;
+        double[] packetLensU, packetLensV, packetTime;
+        int[] packetInstance;
+        ShadingState[] packetStates;
+
+        SampleBuffer() {
+            allocateSamples(0);
+            packetIndex = new int[RayPacket.MAX_SIZE];
+            packetX = new float[RayPacket.MAX_SIZE];
+            packetY = new float[RayPacket.MAX_SIZE];
+            packetLensU = new double[RayPacket.MAX_SIZE];
+            packetLensV = new double[RayPacket.MAX_SIZE];
+            packetTime = new double[RayPacket.MAX_SIZE];
+            packetInstance = new int[RayPacket.MAX_SIZE];
+            packetStates = new ShadingState[RayPacket.MAX_SIZE];
+            bucketRGB = new Color[0];
+            bucketAlpha = new float[0];
+            prepareRows(0);
         }
 
-        final void set(ShadingState state) {
+        private void allocateSamples(int size) {
+            rx = new float[size];
+            ry = new float[size];
+            i = new int[size];
+            n = new int[size];
+            r = new float[size];
+            g = new float[size];
+            b = new float[size];
+            alpha = new float[size];
+            instance = new Instance[size];
+            shader = new Shader[size];
+            nx = new float[size];
+            ny = new float[size];
+            nz = new float[size];
+            processed = new boolean[size];
+        }
+
+        /**
+         * Make room for a bucket with the specified number of subpixel samples
+         * and pixels. The pixel arrays must have the exact size of the bucket
+         * for the display, so they are only reallocated when the bucket size
+         * changes (for buckets clipped by the image border).
+         */
+        final void prepare(int numSamples, int numPixels) {
+            if (rx.length < numSamples)
+                allocateSamples(numSamples);
+            if (bucketRGB.length != numPixels) {
+                bucketRGB = new Color[numPixels];
+                for (int k = 0; k < numPixels; k++)
+                    bucketRGB[k] = new Color();
+                bucketAlpha = new float[numPixels];
+            }
+        }
+
+        /**
+         * Make room for the intermediate results of a two pass filter.
+         */
+        final void prepareRows(int size) {
+            if (rowR == null || rowR.length < size) {
+                rowR = new float[size];
+                rowG = new float[size];
+                rowB = new float[size];
+                rowAlpha = new float[size];
+            }
+        }
+
+        final void init(int index, float rx, float ry, int i) {
+            this.rx[index] = rx;
+            this.ry[index] = ry;
+            this.i[index] = i;
+            n[index] = 0;
+            r[index] = g[index] = b[index] = 0;
+            alpha[index] = 0;
+            instance[index] = null;
+            shader[index] = null;
+            nx[index] = ny[index] = nz[index] = 1;
+            processed[index] = false;
+        }
+
+        final void set(int index, ShadingState state) {
             if (state == null)
-                c = Color.BLACK;
+                r[index] = g[index] = b[index] = 0;
             else {
-                c = state.getResult();
-                shader = state.getShader();
-                instance = state.getInstance();
+                Color c = state.getResult();
+                r[index] = c.getR();
+                g[index] = c.getG();
+                b[index] = c.getB();
+                shader[index] = state.getShader();
+                instance[index] = state.getInstance();
                 if (state.getNormal() != null) {
-                    nx = state.getNormal().x;
-                    ny = state.getNormal().y;
-                    nz = state.getNormal().z;
+                    nx[index] = state.getNormal().x;
+                    ny[index] = state.getNormal().y;
+                    nz[index] = state.getNormal().z;
                 }
-                alpha = state.getInstance() == null ? 0 : 1;
+                alpha[index] = state.getInstance() == null ? 0 : 1;
             }
-            n = 1;
+            n[index] = 1;
+            processed[index] = true;
         }
 
-        final void add(ShadingState state) {
-            if (n == 0)
-                c = Color.black();
+        final void add(int index, ShadingState state) {
             if (state != null) {
-                c.add(state.getResult());
-                alpha += state.getInstance() == null ? 0 : 1;
+                Color c = state.getResult();
+                r[index] += c.getR();
+                g[index] += c.getG();
+                b[index] += c.getB();
+                alpha[index] += state.getInstance() == null ? 0 : 1;
             }
-            n++;
-        }
-
-        final void scale(float s) {
-            c.mul(s);
-            alpha *= s;
+            n[index]++;
+            processed[index] = true;
         }
 
-        final boolean processed() {
-            return c != null;
+        final void scale(int index, float s) {
+            r[index] *= s;
+            g[index] *= s;
+            b[index] *= s;
+            alpha[index] *= s;
         }
 
-        final boolean sampled() {
-            return n > 0;
+        final boolean sampled(int index) {
+            return n[index] > 0;
         }
 
-        final boolean isDifferent(ImageSample sample, float thresh) {
-            if (instance != sample.instance)
+        final boolean isDifferent(int s0, int s1, float thresh) {
+            if (instance[s0] != instance[s1])
+                return true;
+            if (shader[s0] != shader[s1])
+                return true;
+            if (Math.abs(r[s0] - r[s1]) / (r[s0] + r[s1]) > thresh)
                 return true;
-            if (shader != sample.shader)
+            if (Math.abs(g[s0] - g[s1]) / (g[s0] + g[s1]) > thresh)
                 return true;
-            if (Color.hasContrast(c, sample.c, thresh))
+            if (Math.abs(b[s0] - b[s1]) / (b[s0] + b[s1]) > thresh)
                 return true;
-            if (Math.abs(alpha - sample.alpha) / (alpha + sample.alpha) > thresh)
+            if (Math.abs(alpha[s0] - alpha[s1]) / (alpha[s0] + alpha[s1]) > thresh)
                 return true;
             // only compare normals if this pixel has not been averaged
-            float dot = (nx * sample.nx + ny * sample.ny + nz * sample.nz);
+            float dot = (nx[s0] * nx[s1] + ny[s0] * ny[s1] + nz[s0] * nz[s1]);
             return dot < 0.9f;
         }
 
-        static final ImageSample bilerp(ImageSample result, ImageSample i00, ImageSample i01, ImageSample i10, ImageSample i11, float dx, float dy) {
+        final void bilerp(int result, int i00, int i01, int i10, int i11, float dx, float dy) {
             float k00 = (1.0f - dx) * (1.0f - dy);
             float k01 = (1.0f - dx) * dy;
             float k10 = dx * (1.0f - dy);
             float k11 = dx * dy;
-            Color c00 = i00.c;
-            Color c01 = i01.c;
-            Color c10 = i10.c;
-            Color c11 = i11.c;
-            Color c = Color.mul(k00, c00);
-            c.madd(k01, c01);
-            c.madd(k10, c10);
-            c.madd(k11, c11);
-            result.c = c;
-            result.alpha = k00 * i00.alpha + k01 * i01.alpha + k10 * i10.alpha + k11 * i11.alpha;
-            return result;
+            r[result] = k00 * r[i00] + k01 * r[i01] + k10 * r[i10] + k11 * r[i11];
+            g[result] = k00 * g[i00] + k01 * g[i01] + k10 * g[i10] + k11 * g[i11];
+            b[result] = k00 * b[i00] + k01 * b[i01] + k10 * b[i10] + k11 * b[i11];
+            alpha[result] = k00 * alpha[i00] + k01 * alpha[i01] + k10 * alpha[i10] + k11 * alpha[i11];
+            processed[result] = true;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+package org.sunflow.core.renderer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Hands out the buckets of an image to a group of render threads. Buckets are
+ * claimed through an atomic cursor over the sequence computed by a
+ * {@link org.sunflow.core.BucketOrder}, so they are still started in the
+ * requested order, but no lock is taken per bucket. Idle threads simply claim
+ * the next unrendered bucket, which keeps all threads busy until the end of
+ * the frame. Progress is reported to the {@link UI} in batches of buckets
+ * rather than once per bucket.
+ */
+public class BucketScheduler {
+    private final int[] bucketCoords;
+    private final int numBuckets;
+    private final int batchSize;
+    private final AtomicInteger nextBucket;
+    private final AtomicInteger doneBuckets;
+    private volatile boolean canceled;
+
+    /**
+     * Per-thread bucket processing callback. Each render thread owns exactly
+     * one worker, so implementations can safely keep thread local state (like
+     * an {@link org.sunflow.core.IntersectionState}) in instance fields.
+     */
+    public interface BucketWorker {
+        /**
+         * Render the bucket at the specified bucket coordinates.
+         * 
+         * @param bx bucket x coordinate
+         * @param by bucket y coordinate
+         */
+        void renderBucket(int bx, int by);
+
+        /**
+         * Called once from the main thread after the render thread running
+         * this worker has terminated. This is the place to accumulate
+         * statistics.
+         */
+        void finish();
+    }
+
+    /**
+     * Creates a scheduler over the given bucket sequence.
+     * 
+     * @param bucketCoords interleaved X, Y bucket coordinates as returned by
+     *            {@link org.sunflow.core.BucketOrder#getBucketSequence(int, int)}
+     */
+    public BucketScheduler(int[] bucketCoords) {
+        this.bucketCoords = bucketCoords;
+        numBuckets = bucketCoords.length / 2;
+        // report progress about a hundred times per frame
+        batchSize = Math.max(1, numBuckets / 100);
+        nextBucket = new AtomicInteger(0);
+        doneBuckets = new AtomicInteger(0);
+        canceled = false;
+    }
+
+    /**
+     * Get the total number of buckets handed out by this scheduler. This is
+     * the range that should be used when starting the matching {@link UI}
+     * task.
+     * 
+     * @return number of buckets
+     */
+    public int getNumBuckets() {
+        return numBuckets;
+    }
+
+    /**
+     * Render all buckets using one thread per worker. This method returns once
+     * all buckets have been rendered or the current task has been canceled.
+     * 
+     * @param workers per-thread bucket workers
+     * @param priority thread priority for the render threads
+     * @return <code>true</code> if all buckets were rendered,
+     *         <code>false</code> if rendering was canceled or interrupted
+     */
+    public boolean render(BucketWorker[] workers, int priority) {
+        nextBucket.set(0);
+        doneBuckets.set(0);
+        canceled = false;
+        WorkerThread[] threads = new WorkerThread[workers.length];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new WorkerThread(workers[i]);
+            threads[i].setPriority(priority);
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.BCKT, "Bucket processing thread %d of %d was interrupted", i + 1, threads.length);
+            } finally {
+                workers[i].finish();
+            }
+        }
+        return !canceled && doneBuckets.get() == numBuckets;
+    }
+
+    private void bucketDone() {
+        int done = doneBuckets.incrementAndGet();
+        if (done % batchSize == 0 || done == numBuckets) {
+            // only one thread per batch ever gets here, keeping the
+            // synchronized UI calls out of the per-bucket path
+            UI.taskUpdate(done);
+            if (UI.taskCanceled())
+                canceled = true;
+        }
+    }
+
+    private final class WorkerThread extends Thread {
+        private final BucketWorker worker;
+
+        WorkerThread(BucketWorker worker) {
+            this.worker = worker;
+        }
+
+        @Override
+        public void run() {
+            while (!canceled) {
+                int i = nextBucket.getAndIncrement();
+                if (i >= numBuckets)
+                    return;
+                worker.renderBucket(bucketCoords[2 * i + 0], bucketCoords[2 * i + 1]);
+                bucketDone();
+            }
+        }
+    }
+}
\ No newline at end of file
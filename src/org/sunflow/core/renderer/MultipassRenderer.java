@@ -26,7 +26,6 @@ public class MultipassRenderer implements ImageSampler {
     private String bucketOrderName;
     private BucketOrder bucketOrder;
     private int bucketSize;
-    private int bucketCounter;
     private int[] bucketCoords;
 
     // anti-aliasing
@@ -61,6 +60,7 @@ public class MultipassRenderer implements ImageSampler {
         // validate AA options
         numSamples = Math.max(1, numSamples);
         invNumSamples = 1.0f / numSamples;
+        scene.setSamplesPerPixel(numSamples);
         // prepare QMC sampling
         UI.printInfo(Module.BCKT, "Multipass renderer settings:");
         UI.printInfo(Module.BCKT, "  * Resolution:         %dx%d", imageWidth, imageHeight);
@@ -71,64 +71,41 @@ public class MultipassRenderer implements ImageSampler {
         return true;
     }
 
-    public void render(Display display) {
+    public boolean render(Display display) {
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, bucketSize);
-        // set members variables
-        bucketCounter = 0;
+        BucketScheduler scheduler = new BucketScheduler(bucketCoords);
         // start task
         Timer timer = new Timer();
         timer.start();
-        UI.taskStart("Rendering", 0, bucketCoords.length);
-        BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
-        for (int i = 0; i < renderThreads.length; i++) {
-            renderThreads[i] = new BucketThread(i);
-            renderThreads[i].setPriority(scene.getThreadPriority());
-            renderThreads[i].start();
-        }
-        for (int i = 0; i < renderThreads.length; i++) {
-            try {
-                renderThreads[i].join();
-            } catch (InterruptedException e) {
-                UI.printError(Module.BCKT, "Bucket processing thread %d of %d was interrupted", i + 1, renderThreads.length);
-            } finally {
-                renderThreads[i].updateStats();
-            }
-        }
+        UI.taskStart("Rendering", 0, scheduler.getNumBuckets());
+        BucketWorker[] workers = new BucketWorker[scene.getThreads()];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new BucketWorker(i);
+        boolean completed = scheduler.render(workers, scene.getThreadPriority());
         UI.taskStop();
         timer.end();
         UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
         display.imageEnd();
+        return completed;
     }
 
-    private class BucketThread extends Thread {
+    private class BucketWorker implements BucketScheduler.BucketWorker {
         private final int threadID;
         private final IntersectionState istate;
         private final ShadingCache cache;
 
-        BucketThread(int threadID) {
+        BucketWorker(int threadID) {
             this.threadID = threadID;
             istate = new IntersectionState();
             cache = shadingCache ? new ShadingCache() : null;
         }
 
-        @Override
-        public void run() {
-            while (true) {
-                int bx, by;
-                synchronized (MultipassRenderer.this) {
-                    if (bucketCounter >= bucketCoords.length)
-                        return;
-                    UI.taskUpdate(bucketCounter);
-                    bx = bucketCoords[bucketCounter + 0];
-                    by = bucketCoords[bucketCounter + 1];
-                    bucketCounter += 2;
-                }
-                renderBucket(display, bx, by, threadID, istate, cache);
-            }
+        public void renderBucket(int bx, int by) {
+            MultipassRenderer.this.renderBucket(display, bx, by, threadID, istate, cache);
         }
 
-        void updateStats() {
+        public void finish() {
             scene.accumulateStats(istate);
             if (shadingCache)
                 scene.accumulateStats(cache);
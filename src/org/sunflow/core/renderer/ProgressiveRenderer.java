@@ -35,7 +35,7 @@ public class ProgressiveRenderer implements ImageSampler {
         return true;
     }
 
-    public void render(Display display) {
+    public boolean render(Display display) {
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, 0);
         // create first bucket
@@ -71,6 +71,9 @@ public class ProgressiveRenderer implements ImageSampler {
         t.end();
         UI.printInfo(Module.IPR, "Rendering time: %s", t.toString());
         display.imageEnd();
+        synchronized (this) {
+            return counter >= counterMax;
+        }
     }
 
     private class SmallBucketThread extends Thread {
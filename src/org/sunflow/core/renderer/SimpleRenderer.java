@@ -16,7 +16,7 @@ public class SimpleRenderer implements ImageSampler {
     private Display display;
     private int imageWidth, imageHeight;
     private int numBucketsX, numBucketsY;
-    private int bucketCounter, numBuckets;
+    private int numBuckets;
 
     public boolean prepare(Options options, Scene scene, int w, int h) {
         this.scene = scene;
@@ -28,52 +28,39 @@ public class SimpleRenderer implements ImageSampler {
         return true;
     }
 
-    public void render(Display display) {
+    public boolean render(Display display) {
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, 32);
-        // set members variables
-        bucketCounter = 0;
+        // buckets are visited in scanline order
+        int[] bucketCoords = new int[2 * numBuckets];
+        for (int i = 0; i < numBuckets; i++) {
+            bucketCoords[2 * i + 0] = i % numBucketsX;
+            bucketCoords[2 * i + 1] = i / numBucketsX;
+        }
+        BucketScheduler scheduler = new BucketScheduler(bucketCoords);
         // start task
         Timer timer = new Timer();
         timer.start();
-        BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
-        for (int i = 0; i < renderThreads.length; i++) {
-            renderThreads[i] = new BucketThread();
-            renderThreads[i].start();
-        }
-        for (int i = 0; i < renderThreads.length; i++) {
-            try {
-                renderThreads[i].join();
-            } catch (InterruptedException e) {
-                UI.printError(Module.BCKT, "Bucket processing thread %d of %d was interrupted", i + 1, renderThreads.length);
-            } finally {
-                renderThreads[i].updateStats();
-            }
-        }
+        UI.taskStart("Rendering", 0, scheduler.getNumBuckets());
+        BucketWorker[] workers = new BucketWorker[scene.getThreads()];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new BucketWorker();
+        boolean completed = scheduler.render(workers, Thread.NORM_PRIORITY);
+        UI.taskStop();
         timer.end();
         UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
         display.imageEnd();
+        return completed;
     }
 
-    private class BucketThread extends Thread {
+    private class BucketWorker implements BucketScheduler.BucketWorker {
         private final IntersectionState istate = new IntersectionState();
 
-        @Override
-        public void run() {
-            while (true) {
-                int bx, by;
-                synchronized (SimpleRenderer.this) {
-                    if (bucketCounter >= numBuckets)
-                        return;
-                    by = bucketCounter / numBucketsX;
-                    bx = bucketCounter % numBucketsX;
-                    bucketCounter++;
-                }
-                renderBucket(bx, by, istate);
-            }
+        public void renderBucket(int bx, int by) {
+            SimpleRenderer.this.renderBucket(bx, by, istate);
         }
 
-        void updateStats() {
+        public void finish() {
             scene.accumulateStats(istate);
         }
     }
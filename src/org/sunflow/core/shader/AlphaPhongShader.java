@@ -21,9 +21,9 @@ public class AlphaPhongShader extends PhongShader implements AlphaShader {
         return super.update(pl,api);
     }
 
-    public Color getRadiance(ShadingState state) {
-        Color phong = super.getRadiance(state);
-        return Color.blend(phong, state.traceTransparency(), transparency);
+    public void getRadiance(ShadingState state, Color result) {
+        super.getRadiance(state, result);
+        Color.blend(result, state.traceTransparency(), transparency, result);
     }
 
     public Color getOpacity(ShadingState state) {
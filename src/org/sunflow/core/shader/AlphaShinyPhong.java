@@ -26,17 +26,12 @@ public class AlphaShinyPhong extends ShinyPhongShader implements AlphaShader {
         return true && super.update(pl, api);
     }
 
-    public Color getRadiance(ShadingState state) {
-        Color result = super.getRadiance(state);
+    public void getRadiance(ShadingState state, Color result) {
+        super.getRadiance(state, result);
         if (alpha != null) {
             float a = getAlpha(state);
-            if (a < 1.0f) {
-                return Color.blend(state.traceTransparency(),result,a);
-            } else {
-                return result;
-            }
-        } else {
-          return result;
+            if (a < 1.0f)
+                Color.blend(state.traceTransparency(), result, a, result);
         }
     }
 
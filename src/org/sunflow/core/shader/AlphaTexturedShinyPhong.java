@@ -25,6 +25,6 @@ public class AlphaTexturedShinyPhong extends AlphaShinyPhong {
     }
 
     public Color getDiffuse(ShadingState state) {
-        return tex.getPixel(state.getUV().x, state.getUV().y);
+        return tex.getPixel(state.getUV().x, state.getUV().y, state.getUVFootprint());
     }
 }
@@ -2,11 +2,11 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
-import org.sunflow.core.Shader;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 
-public class AmbientOcclusionShader implements Shader {
+public class AmbientOcclusionShader implements RadianceShader {
     private Color bright;
     private Color dark;
     private int samples;
@@ -40,7 +40,14 @@ public class AmbientOcclusionShader implements Shader {
     }
 
     public Color getRadiance(ShadingState state) {
-        return state.occlusion(samples, maxDist, getBrightColor(state), dark);
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
+        result.set(Color.BLACK);
+        state.addOcclusion(samples, maxDist, getBrightColor(state), dark, result);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
@@ -3,14 +3,14 @@ package org.sunflow.core.shader;
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.LightSample;
 import org.sunflow.core.ParameterList;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.Ray;
-import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Vector3;
 
-public class AnisotropicWardShader implements Shader {
+public class AnisotropicWardShader implements RadianceShader {
     private Color rhoD; // diffuse reflectance
     private Color rhoS; // specular reflectance
     private float alphaX;
@@ -38,14 +38,14 @@ public class AnisotropicWardShader implements Shader {
         return rhoD;
     }
 
-    private float brdf(Vector3 i, Vector3 o, OrthoNormalBasis basis) {
+    private float brdf(Vector3 i, Vector3 o, OrthoNormalBasis basis, Vector3 h) {
         float fr = 4 * (float) Math.PI * alphaX * alphaY;
         float p = basis.untransformZ(i) * basis.untransformZ(o);
         if (p > 0)
             fr *= (float) Math.sqrt(p);
         else
             fr = 0;
-        Vector3 h = Vector3.add(i, o, new Vector3());
+        Vector3.add(i, o, h);
         basis.untransform(h);
         float hx = h.x / alphaX;
         hx *= hx;
@@ -58,25 +58,37 @@ public class AnisotropicWardShader implements Shader {
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         // make sure we are on the right side of the material
         state.faceforward();
         OrthoNormalBasis onb = state.getBasis();
         // direct lighting and caustics
         state.initLightSamples();
         state.initCausticSamples();
-        Color lr = Color.black();
+        result.set(Color.BLACK);
         // compute specular contribution
         if (state.includeSpecular()) {
-            Vector3 in = state.getRay().getDirection().negate(new Vector3());
+            Ray ray = state.getRay();
+            Vector3 in = new Vector3(-ray.dx, -ray.dy, -ray.dz);
+            Vector3 h = new Vector3();
+            Vector3 o = new Vector3();
             for (LightSample sample : state) {
                 float cosNL = sample.dot(state.getNormal());
-                float fr = brdf(in, sample.getShadowRay().getDirection(), onb);
-                lr.madd(cosNL * fr, sample.getSpecularRadiance());
+                Ray shadowRay = sample.getShadowRay();
+                o.set(shadowRay.dx, shadowRay.dy, shadowRay.dz);
+                float fr = brdf(in, o, onb, h);
+                result.madd(cosNL * fr, sample.getSpecularRadiance());
             }
 
             // indirect lighting - specular
             if (numRays > 0) {
                 int n = state.getDepth() == 0 ? numRays : 1;
+                Ray r = null;
                 for (int i = 0; i < n; i++) {
                     // specular indirect lighting
                     double r1 = state.getRandom(i, 0, n);
@@ -110,13 +122,11 @@ public class AnisotropicWardShader implements Shader {
                     float sinTheta = (float) Math.sin(theta);
                     float cosTheta = (float) Math.cos(theta);
 
-                    Vector3 h = new Vector3();
                     h.x = sinTheta * cosPhi;
                     h.y = sinTheta * sinPhi;
                     h.z = cosTheta;
                     onb.transform(h);
 
-                    Vector3 o = new Vector3();
                     float ih = Vector3.dot(h, in);
                     o.x = 2 * ih * h.x - in.x;
                     o.y = 2 * ih * h.y - in.y;
@@ -126,15 +136,17 @@ public class AnisotropicWardShader implements Shader {
                     float ni = onb.untransformZ(in);
                     float w = ih * cosTheta * cosTheta * cosTheta * (float) Math.sqrt(Math.abs(no / ni));
 
-                    Ray r = new Ray(state.getPoint(), o);
-                    lr.madd(w / n, state.traceGlossy(r, i));
+                    if (r == null)
+                        r = new Ray(state.getPoint(), o);
+                    else
+                        r.set(state.getPoint(), o);
+                    result.madd(w / n, state.traceGlossy(r, i));
                 }
             }
-            lr.mul(rhoS);
+            result.mul(rhoS);
         }
         // add diffuse contribution
-        lr.add(state.diffuse(getDiffuse(state)));
-        return lr;
+        state.addDiffuse(getDiffuse(state), result);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
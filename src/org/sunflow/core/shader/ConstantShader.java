@@ -2,11 +2,11 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
-import org.sunflow.core.Shader;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 
-public class ConstantShader implements Shader {
+public class ConstantShader implements RadianceShader {
     private Color c;
 
     public ConstantShader() {
@@ -22,6 +22,10 @@ public class ConstantShader implements Shader {
         return c;
     }
 
+    public void getRadiance(ShadingState state, Color result) {
+        result.set(c);
+    }
+
     public void scatterPhoton(ShadingState state, Color power) {
     }
 }
\ No newline at end of file
@@ -2,14 +2,14 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.Ray;
-import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Vector3;
 
-public class DiffuseShader implements Shader {
+public class DiffuseShader implements RadianceShader {
     private Color diff;
 
     public DiffuseShader() {
@@ -26,12 +26,19 @@ public class DiffuseShader implements Shader {
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         // make sure we are on the right side of the material
         state.faceforward();
         // setup lighting
         state.initLightSamples();
         state.initCausticSamples();
-        return state.diffuse(getDiffuse(state));
+        result.set(Color.BLACK);
+        state.addDiffuse(getDiffuse(state), result);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
@@ -2,13 +2,14 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.Ray;
-import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
+import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
-public class GlassShader implements Shader {
+public class GlassShader implements RadianceShader {
     private float eta; // refraction index ratio
     private float f0; // fresnel normal incidence
     private Color color;
@@ -33,35 +34,45 @@ public class GlassShader implements Shader {
     }
 
     public Color getRadiance(ShadingState state) {
-        if (!state.includeSpecular())
-            return Color.BLACK;
-        Vector3 reflDir = new Vector3();
-        Vector3 refrDir = new Vector3();
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
+        if (!state.includeSpecular()) {
+            result.set(Color.BLACK);
+            return;
+        }
         state.faceforward();
         float cos = state.getCosND();
         boolean inside = state.isBehind();
         float neta = inside ? eta : 1.0f / eta;
+        Point3 p = state.getPoint();
+        Vector3 n = state.getNormal();
+        Ray ray = state.getRay();
 
         float dn = 2 * cos;
-        reflDir.x = (dn * state.getNormal().x) + state.getRay().getDirection().x;
-        reflDir.y = (dn * state.getNormal().y) + state.getRay().getDirection().y;
-        reflDir.z = (dn * state.getNormal().z) + state.getRay().getDirection().z;
+        float reflX = (dn * n.x) + ray.dx;
+        float reflY = (dn * n.y) + ray.dy;
+        float reflZ = (dn * n.z) + ray.dz;
 
         // refracted ray
         float arg = 1 - (neta * neta * (1 - (cos * cos)));
         boolean tir = arg < 0;
+        float refrX, refrY, refrZ;
         if (tir)
-            refrDir.x = refrDir.y = refrDir.z = 0;
+            refrX = refrY = refrZ = 0;
         else {
             float nK = (neta * cos) - (float) Math.sqrt(arg);
-            refrDir.x = (neta * state.getRay().dx) + (nK * state.getNormal().x);
-            refrDir.y = (neta * state.getRay().dy) + (nK * state.getNormal().y);
-            refrDir.z = (neta * state.getRay().dz) + (nK * state.getNormal().z);
+            refrX = (neta * ray.dx) + (nK * n.x);
+            refrY = (neta * ray.dy) + (nK * n.y);
+            refrZ = (neta * ray.dz) + (nK * n.z);
         }
 
         // compute Fresnel terms
-        float cosTheta1 = Vector3.dot(state.getNormal(), reflDir);
-        float cosTheta2 = -Vector3.dot(state.getNormal(), refrDir);
+        float cosTheta1 = (n.x * reflX) + (n.y * reflY) + (n.z * reflZ);
+        float cosTheta2 = -((n.x * refrX) + (n.y * refrY) + (n.z * refrZ));
 
         float pPara = (cosTheta1 - eta * cosTheta2) / (cosTheta1 + eta * cosTheta2);
         float pPerp = (eta * cosTheta1 - cosTheta2) / (eta * cosTheta1 + cosTheta2);
@@ -72,18 +83,20 @@ public class GlassShader implements Shader {
         if (inside && absorptionDistance > 0) {
             // this ray is inside the object and leaving it
             // compute attenuation that occured along the ray
-            absorbtion = Color.mul(-state.getRay().getMax() / absorptionDistance, absorptionColor.copy().opposite()).exp();
-            if (absorbtion.isBlack())
-                return Color.BLACK; // nothing goes through
+            absorbtion = new Color(absorptionColor).opposite().mul(-ray.getMax() / absorptionDistance).exp();
+            if (absorbtion.isBlack()) {
+                result.set(Color.BLACK); // nothing goes through
+                return;
+            }
         }
         // refracted ray
-        Color ret = Color.black();
-        if (!tir) {
-            ret.madd(kt, state.traceRefraction(new Ray(state.getPoint(), refrDir), 0)).mul(color);
-        }
+        result.set(Color.BLACK);
+        if (!tir)
+            result.madd(kt, state.traceRefraction(new Ray(p.x, p.y, p.z, refrX, refrY, refrZ), 0)).mul(color);
         if (!inside || tir)
-            ret.add(Color.mul(kr, state.traceReflection(new Ray(state.getPoint(), reflDir), 0)).mul(color));
-        return absorbtion != null ? ret.mul(absorbtion) : ret;
+            result.madd(kr, state.traceReflection(new Ray(p.x, p.y, p.z, reflX, reflY, reflZ), 0), color);
+        if (absorbtion != null)
+            result.mul(absorbtion);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
@@ -2,20 +2,26 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
-import org.sunflow.core.Shader;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.Vector3;
 
-public class IDShader implements Shader {
+public class IDShader implements RadianceShader {
     public boolean update(ParameterList pl, SunflowAPI api) {
         return true;
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         Vector3 n = state.getNormal();
         float f = n == null ? 1.0f : Math.abs(state.getRay().dot(n));
-        return new Color(state.getInstance().hashCode()).mul(f);
+        result.setRGB(state.getInstance().hashCode()).mul(f);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
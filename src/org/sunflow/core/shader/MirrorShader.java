@@ -2,13 +2,14 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.Ray;
-import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
+import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
-public class MirrorShader implements Shader {
+public class MirrorShader implements RadianceShader {
     private Color color;
 
     public MirrorShader() {
@@ -21,26 +22,30 @@ public class MirrorShader implements Shader {
     }
 
     public Color getRadiance(ShadingState state) {
-        if (!state.includeSpecular())
-            return Color.BLACK;
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
+        if (!state.includeSpecular()) {
+            result.set(Color.BLACK);
+            return;
+        }
         state.faceforward();
         float cos = state.getCosND();
         float dn = 2 * cos;
-        Vector3 refDir = new Vector3();
-        refDir.x = (dn * state.getNormal().x) + state.getRay().getDirection().x;
-        refDir.y = (dn * state.getNormal().y) + state.getRay().getDirection().y;
-        refDir.z = (dn * state.getNormal().z) + state.getRay().getDirection().z;
-        Ray refRay = new Ray(state.getPoint(), refDir);
+        Point3 p = state.getPoint();
+        Vector3 n = state.getNormal();
+        Ray ray = state.getRay();
+        Ray refRay = new Ray(p.x, p.y, p.z, (dn * n.x) + ray.dx, (dn * n.y) + ray.dy, (dn * n.z) + ray.dz);
 
         // compute Fresnel term
         cos = 1 - cos;
         float cos2 = cos * cos;
         float cos5 = cos2 * cos2 * cos;
-        Color ret = Color.white();
-        ret.sub(color);
-        ret.mul(cos5);
-        ret.add(color);
-        return ret.mul(state.traceReflection(refRay, 0));
+        result.set(Color.WHITE).sub(color).mul(cos5).add(color);
+        result.mul(state.traceReflection(refRay, 0));
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
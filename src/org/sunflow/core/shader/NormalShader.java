@@ -2,24 +2,32 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
-import org.sunflow.core.Shader;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.Vector3;
 
-public class NormalShader implements Shader {
+public class NormalShader implements RadianceShader {
     public boolean update(ParameterList pl, SunflowAPI api) {
         return true;
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         Vector3 n = state.getNormal();
-        if (n == null)
-            return Color.BLACK;
+        if (n == null) {
+            result.set(Color.BLACK);
+            return;
+        }
         float r = (n.x + 1) * 0.5f;
         float g = (n.y + 1) * 0.5f;
         float b = (n.z + 1) * 0.5f;
-        return new Color(r, g, b);
+        result.set(r, g, b);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
@@ -2,12 +2,12 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
-import org.sunflow.core.Shader;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.Vector3;
 
-public class PrimIDShader implements Shader {
+public class PrimIDShader implements RadianceShader {
     private static final Color[] BORDERS = { Color.RED, Color.GREEN,
             Color.BLUE, Color.YELLOW, Color.CYAN, Color.MAGENTA };
 
@@ -16,9 +16,15 @@ public class PrimIDShader implements Shader {
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         Vector3 n = state.getNormal();
         float f = n == null ? 1.0f : Math.abs(state.getRay().dot(n));
-        return BORDERS[state.getPrimitiveID() % BORDERS.length].copy().mul(f);
+        result.set(BORDERS[state.getPrimitiveID() % BORDERS.length]).mul(f);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
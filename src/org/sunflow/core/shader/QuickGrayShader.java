@@ -2,14 +2,14 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.Ray;
-import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Vector3;
 
-public class QuickGrayShader implements Shader {
+public class QuickGrayShader implements RadianceShader {
     public QuickGrayShader() {
     }
 
@@ -18,18 +18,26 @@ public class QuickGrayShader implements Shader {
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         if (state.getNormal() == null) {
             // if this shader has been applied to an infinite instance because
             // of shader overrides
             // run the default shader, otherwise, just shade black
-            return state.getShader() != this ? state.getShader().getRadiance(state) : Color.BLACK;
+            result.set(state.getShader() != this ? state.getShader().getRadiance(state) : Color.BLACK);
+            return;
         }
         // make sure we are on the right side of the material
         state.faceforward();
         // setup lighting
         state.initLightSamples();
         state.initCausticSamples();
-        return state.diffuse(Color.GRAY);
+        result.set(Color.BLACK);
+        state.addDiffuse(Color.GRAY, result);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
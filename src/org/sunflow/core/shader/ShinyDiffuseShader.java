@@ -2,14 +2,15 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.Ray;
-import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.OrthoNormalBasis;
+import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
-public class ShinyDiffuseShader implements Shader {
+public class ShinyDiffuseShader implements RadianceShader {
     private Color diff;
     private float refl;
 
@@ -29,33 +30,36 @@ public class ShinyDiffuseShader implements Shader {
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         // make sure we are on the right side of the material
         state.faceforward();
         // direct lighting
         state.initLightSamples();
         state.initCausticSamples();
         Color d = getDiffuse(state);
-        Color lr = state.diffuse(d);
+        result.set(Color.BLACK);
+        state.addDiffuse(d, result);
         if (!state.includeSpecular())
-            return lr;
+            return;
         float cos = state.getCosND();
         float dn = 2 * cos;
-        Vector3 refDir = new Vector3();
-        refDir.x = (dn * state.getNormal().x) + state.getRay().getDirection().x;
-        refDir.y = (dn * state.getNormal().y) + state.getRay().getDirection().y;
-        refDir.z = (dn * state.getNormal().z) + state.getRay().getDirection().z;
-        Ray refRay = new Ray(state.getPoint(), refDir);
+        Point3 p = state.getPoint();
+        Vector3 n = state.getNormal();
+        Ray ray = state.getRay();
+        Ray refRay = new Ray(p.x, p.y, p.z, (dn * n.x) + ray.dx, (dn * n.y) + ray.dy, (dn * n.z) + ray.dz);
+
         // compute Fresnel term
         cos = 1 - cos;
         float cos2 = cos * cos;
         float cos5 = cos2 * cos2 * cos;
-
-        Color ret = Color.white();
-        Color r = d.copy().mul(refl);
-        ret.sub(r);
-        ret.mul(cos5);
-        ret.add(r);
-        return lr.add(ret.mul(state.traceReflection(refRay, 0)));
+        Color fresnel = Color.mul(refl, d);
+        Color.blend(fresnel, Color.WHITE, cos5, fresnel);
+        result.madd(fresnel, state.traceReflection(refRay, 0));
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
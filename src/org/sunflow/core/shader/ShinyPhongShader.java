@@ -5,6 +5,7 @@ import org.sunflow.core.ParameterList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
+import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
 public class ShinyPhongShader extends PhongShader {
@@ -22,29 +23,23 @@ public class ShinyPhongShader extends PhongShader {
     }
 
     @Override
-    public Color getRadiance(ShadingState state) {
-        Color result = super.getRadiance(state);
+    public void getRadiance(ShadingState state, Color result) {
+        super.getRadiance(state, result);
 
         Color d = getDiffuse(state);
         float cos = state.getCosND();
         float dn = 2 * cos;
-        Vector3 refDir = new Vector3();
-        refDir.x = (dn * state.getNormal().x) + state.getRay().getDirection().x;
-        refDir.y = (dn * state.getNormal().y) + state.getRay().getDirection().y;
-        refDir.z = (dn * state.getNormal().z) + state.getRay().getDirection().z;
-        Ray refRay = new Ray(state.getPoint(), refDir);
+        Point3 p = state.getPoint();
+        Vector3 n = state.getNormal();
+        Ray ray = state.getRay();
+        Ray refRay = new Ray(p.x, p.y, p.z, (dn * n.x) + ray.dx, (dn * n.y) + ray.dy, (dn * n.z) + ray.dz);
 
         // compute Fresnel term
         cos = 1 - cos;
         float cos2 = cos * cos;
         float cos5 = cos2 * cos2 * cos;
-
-        Color ret = Color.white();
-        Color r = d.copy().mul(refl);
-        ret.sub(r);
-        ret.mul(cos5);
-        ret.add(r);
-
-        return result.add(ret.mul(state.traceReflection(refRay, 0)));
+        Color fresnel = Color.mul(refl, d);
+        Color.blend(fresnel, Color.WHITE, cos5, fresnel);
+        result.madd(fresnel, state.traceReflection(refRay, 0));
     }
 }
@@ -2,17 +2,24 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
-import org.sunflow.core.Shader;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 
-public class SimpleShader implements Shader {
+public class SimpleShader implements RadianceShader {
     public boolean update(ParameterList pl, SunflowAPI api) {
         return true;
     }
 
     public Color getRadiance(ShadingState state) {
-        return new Color(Math.abs(state.getRay().dot(state.getNormal())));
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
+        float f = Math.abs(state.getRay().dot(state.getNormal()));
+        result.set(f, f, f);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
@@ -28,7 +28,11 @@ public class TexturedConstantShader extends ConstantShader {
         return getDiffuse(state);
     }
 
+    public void getRadiance(ShadingState state, Color result) {
+        result.set(getDiffuse(state));
+    }
+
     public Color getDiffuse(ShadingState state) {
-        return tex.getPixel(state.getUV().x, state.getUV().y);
+        return tex.getPixel(state.getUV().x, state.getUV().y, state.getUVFootprint());
     }
 }
@@ -29,9 +29,9 @@ public class TexturedDiffuseShader extends DiffuseShader {
         if (a < 1f) {
           return Color.blend(
               super.getDiffuse(state),
-              tex.getPixel(state.getUV().x, state.getUV().y), a );
+              tex.getPixel(state.getUV().x, state.getUV().y, state.getUVFootprint()), a );
         } else {
-          return tex.getPixel(state.getUV().x, state.getUV().y);
+          return tex.getPixel(state.getUV().x, state.getUV().y, state.getUVFootprint());
         }
     }
 }
@@ -24,6 +24,6 @@ public class TexturedShinyPhongShader extends ShinyPhongShader {
 
     @Override
     public Color getDiffuse(ShadingState state) {
-        return tex.getPixel(state.getUV().x, state.getUV().y).mul(super.getDiffuse(state));
+        return tex.getPixel(state.getUV().x, state.getUV().y, state.getUVFootprint()).mul(super.getDiffuse(state));
     }
 }
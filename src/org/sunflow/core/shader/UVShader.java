@@ -2,19 +2,26 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
-import org.sunflow.core.Shader;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 
-public class UVShader implements Shader {
+public class UVShader implements RadianceShader {
     public boolean update(ParameterList pl, SunflowAPI api) {
         return true;
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         if (state.getUV() == null)
-            return Color.BLACK;
-        return new Color(state.getUV().x, state.getUV().y, 0);
+            result.set(Color.BLACK);
+        else
+            result.set(state.getUV().x, state.getUV().y, 0);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
@@ -2,17 +2,18 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.Ray;
-import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.core.Texture;
 import org.sunflow.core.TextureCache;
 import org.sunflow.image.Color;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.OrthoNormalBasis;
+import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
-public class UberShader implements Shader {
+public class UberShader implements RadianceShader {
     private Color diff;
     private Color spec;
     private Texture diffmap;
@@ -48,43 +49,45 @@ public class UberShader implements Shader {
     }
 
     public Color getDiffuse(ShadingState state) {
-        return diffmap == null ? diff : Color.blend(diff, diffmap.getPixel(state.getUV().x, state.getUV().y), diffBlend);
+        return diffmap == null ? diff : Color.blend(diff, diffmap.getPixel(state.getUV().x, state.getUV().y, state.getUVFootprint()), diffBlend);
     }
 
     public Color getSpecular(ShadingState state) {
-        return specmap == null ? spec : Color.blend(spec, specmap.getPixel(state.getUV().x, state.getUV().y), specBlend);
+        return specmap == null ? spec : Color.blend(spec, specmap.getPixel(state.getUV().x, state.getUV().y, state.getUVFootprint()), specBlend);
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         // make sure we are on the right side of the material
         state.faceforward();
         // direct lighting
         state.initLightSamples();
         state.initCausticSamples();
         Color d = getDiffuse(state);
-        Color lr = state.diffuse(d);
+        result.set(Color.BLACK);
+        state.addDiffuse(d, result);
         if (!state.includeSpecular())
-            return lr;
+            return;
         if (glossyness == 0) {
             float cos = state.getCosND();
             float dn = 2 * cos;
-            Vector3 refDir = new Vector3();
-            refDir.x = (dn * state.getNormal().x) + state.getRay().getDirection().x;
-            refDir.y = (dn * state.getNormal().y) + state.getRay().getDirection().y;
-            refDir.z = (dn * state.getNormal().z) + state.getRay().getDirection().z;
-            Ray refRay = new Ray(state.getPoint(), refDir);
+            Point3 p = state.getPoint();
+            Vector3 n = state.getNormal();
+            Ray ray = state.getRay();
+            Ray refRay = new Ray(p.x, p.y, p.z, (dn * n.x) + ray.dx, (dn * n.y) + ray.dy, (dn * n.z) + ray.dz);
             // compute Fresnel term
             cos = 1 - cos;
             float cos2 = cos * cos;
             float cos5 = cos2 * cos2 * cos;
-            Color spec = getSpecular(state);
-            Color ret = Color.white();
-            ret.sub(spec);
-            ret.mul(cos5);
-            ret.add(spec);
-            return lr.add(ret.mul(state.traceReflection(refRay, 0)));
+            Color fresnel = Color.blend(getSpecular(state), Color.WHITE, cos5);
+            result.madd(fresnel, state.traceReflection(refRay, 0));
         } else
-            return lr.add(state.specularPhong(getSpecular(state), 2 / glossyness, numSamples));
+            state.addSpecularPhong(getSpecular(state), 2 / glossyness, numSamples, result);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
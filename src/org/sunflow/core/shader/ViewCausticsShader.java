@@ -3,24 +3,29 @@ package org.sunflow.core.shader;
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.LightSample;
 import org.sunflow.core.ParameterList;
-import org.sunflow.core.Shader;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 
-public class ViewCausticsShader implements Shader {
+public class ViewCausticsShader implements RadianceShader {
     public boolean update(ParameterList pl, SunflowAPI api) {
         return true;
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         state.faceforward();
         state.initCausticSamples();
         // integrate a diffuse function
-        Color lr = Color.black();
+        result.set(Color.BLACK);
         for (LightSample sample : state)
-            lr.madd(sample.dot(state.getNormal()), sample.getDiffuseRadiance());
-        return lr.mul(1.0f / (float) Math.PI);
-
+            result.madd(sample.dot(state.getNormal()), sample.getDiffuseRadiance());
+        result.mul(1.0f / (float) Math.PI);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
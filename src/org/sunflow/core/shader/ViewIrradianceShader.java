@@ -2,18 +2,24 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
-import org.sunflow.core.Shader;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 
-public class ViewIrradianceShader implements Shader {
+public class ViewIrradianceShader implements RadianceShader {
     public boolean update(ParameterList pl, SunflowAPI api) {
         return true;
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         state.faceforward();
-        return new Color().set(state.getIrradiance(Color.WHITE)).mul(1.0f / (float) Math.PI);
+        result.set(state.getIrradiance(Color.WHITE)).mul(1.0f / (float) Math.PI);
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
@@ -2,13 +2,13 @@ package org.sunflow.core.shader;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
-import org.sunflow.core.Shader;
+import org.sunflow.core.RadianceShader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.Point3;
 
-public class WireframeShader implements Shader {
+public class WireframeShader implements RadianceShader {
     private Color lineColor;
     private Color fillColor;
     private float width;
@@ -41,9 +41,17 @@ public class WireframeShader implements Shader {
     }
 
     public Color getRadiance(ShadingState state) {
+        Color result = new Color();
+        getRadiance(state, result);
+        return result;
+    }
+
+    public void getRadiance(ShadingState state, Color result) {
         Point3[] p = new Point3[3];
-        if (!state.getTrianglePoints(p))
-            return getFillColor(state);
+        if (!state.getTrianglePoints(p)) {
+            result.set(getFillColor(state));
+            return;
+        }
         // transform points into camera space
         Point3 center = state.getPoint();
         Matrix4 w2c = state.getWorldToCamera();
@@ -65,10 +73,12 @@ public class WireframeShader implements Shader {
             float n = 1.0f / (float) Math.sqrt(projx * projx + projy * projy + projz * projz);
             // check angular width
             float dot = projx * center.x + projy * center.y + projz * center.z;
-            if (dot * n * cn >= cosWidth)
-                return getLineColor(state);
+            if (dot * n * cn >= cosWidth) {
+                result.set(getLineColor(state));
+                return;
+            }
         }
-        return getFillColor(state);
+        result.set(getFillColor(state));
     }
 
     public void scatterPhoton(ShadingState state, Color power) {
@@ -11,4 +11,42 @@ public abstract class Bitmap {
     public abstract Color readColor(int x, int y);
 
     public abstract float readAlpha(int x, int y);
+
+    /**
+     * Reads the specified pixel into an array as four consecutive floats:
+     * red, green, blue and alpha. The values are the same as the ones
+     * returned by {@link #readColor(int, int)} and
+     * {@link #readAlpha(int, int)}, but no objects are allocated. Formats
+     * should override the default implementation, which is based on those
+     * two methods.
+     * 
+     * @param x x coordinate of the pixel
+     * @param y y coordinate of the pixel
+     * @param rgba array receiving the pixel
+     * @param offset index of the red component in the array
+     */
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        Color c = readColor(x, y);
+        rgba[offset + 0] = c.getR();
+        rgba[offset + 1] = c.getG();
+        rgba[offset + 2] = c.getB();
+        rgba[offset + 3] = readAlpha(x, y);
+    }
+
+    /**
+     * Reads a rectangle of pixels into an array, row by row, with four floats
+     * per pixel as in {@link #readRGBA(int, int, float[], int)}. The
+     * rectangle must be inside the bitmap.
+     * 
+     * @param x x coordinate of the first pixel
+     * @param y y coordinate of the first pixel
+     * @param width width of the rectangle
+     * @param height height of the rectangle
+     * @param rgba array receiving <code>4 * width * height</code> values
+     */
+    public void readRGBA(int x, int y, int width, int height, float[] rgba) {
+        for (int j = 0, offset = 0; j < height; j++)
+            for (int i = 0; i < width; i++, offset += 4)
+                readRGBA(x + i, y + j, rgba, offset);
+    }
 }
\ No newline at end of file
@@ -69,6 +69,16 @@ public interface BitmapWriter {
      */
     public abstract void writeTile(int x, int y, int w, int h, Color[] color, float[] alpha) throws IOException;
 
+    /**
+     * Checks if this writer encodes or writes each tile to the file as soon
+     * as it is received. Writers which only copy tiles into a buffer encoded
+     * on close return <code>false</code>, since their tiles are not worth
+     * handing to another thread.
+     * 
+     * @return <code>true</code> if tiles are encoded or written individually
+     */
+    public abstract boolean encodesTiles();
+
     /**
      * Close the file, this completes the bitmap writing process.
      * 
@@ -132,6 +132,18 @@ public final class Color {
         return (r + g + b) / 3.0f;
     }
 
+    public final float getR() {
+        return r;
+    }
+
+    public final float getG() {
+        return g;
+    }
+
+    public final float getB() {
+        return b;
+    }
+
     public final float[] getRGB() {
         return new float[] { r, g, b };
     }
@@ -238,6 +250,13 @@ public final class Color {
         return this;
     }
 
+    public final Color madd(float s, Color c1, Color c2) {
+        r += s * c1.r * c2.r;
+        g += s * c1.g * c2.g;
+        b += s * c1.b * c2.b;
+        return this;
+    }
+
     public final Color sub(Color c) {
         r -= c.r;
         g -= c.g;
@@ -353,6 +372,13 @@ public final class Color {
         return dest;
     }
 
+    public final Color addBlend(Color c1, Color c2, Color t) {
+        r += (1.0f - t.r) * c1.r + t.r * c2.r;
+        g += (1.0f - t.g) * c1.g + t.g * c2.g;
+        b += (1.0f - t.b) * c1.b + t.b * c2.b;
+        return this;
+    }
+
     public static final boolean hasContrast(Color c1, Color c2, float thresh) {
         if (Math.abs(c1.r - c2.r) / (c1.r + c2.r) > thresh)
             return true;
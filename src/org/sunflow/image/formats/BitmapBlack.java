@@ -23,4 +23,9 @@ public class BitmapBlack extends Bitmap {
     public float readAlpha(int x, int y) {
         return 0;
     }
+
+    @Override
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        rgba[offset + 0] = rgba[offset + 1] = rgba[offset + 2] = rgba[offset + 3] = 0;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+package org.sunflow.image.formats;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.system.ByteUtil;
+
+/**
+ * Chooses the smallest in-memory format able to store a decoded image without
+ * loss. This lets readers of high precision formats decode to floats, while
+ * images which do not use the extra precision or range are stored as 8 bit,
+ * 16 bit or half float channels.
+ */
+public final class BitmapFactory {
+    // must match the constants used by the formats to expand their channels
+    private static final float INV255 = 1.0f / 255;
+    private static final float INV65535 = 1.0f / 65535;
+
+    private BitmapFactory() {
+    }
+
+    /**
+     * Create a bitmap from the specified pixels, stored as four consecutive
+     * floats per pixel: red, green, blue and alpha. Every channel read back
+     * from the returned bitmap is equal to the original value.
+     * 
+     * @param w width in pixels
+     * @param h height in pixels
+     * @param rgba pixel data, which may be kept by the returned bitmap
+     * @return the most compact bitmap for these pixels
+     */
+    public static Bitmap create(int w, int h, float[] rgba) {
+        boolean opaque = true, grey = true;
+        boolean bytes = true, shorts = true, halves = true;
+        for (int i = 0; i < rgba.length; i += 4) {
+            opaque &= rgba[i + 3] == 1;
+            grey &= rgba[i] == rgba[i + 1] && rgba[i] == rgba[i + 2];
+            for (int j = 0; j < 4; j++) {
+                float v = rgba[i + j];
+                bytes &= isByte(v);
+                shorts &= isShort(v);
+                halves &= j == 3 || isHalf(v);
+            }
+            if (!bytes && !shorts && !halves)
+                break;
+        }
+        int n = w * h;
+        if (bytes) {
+            int channels = (grey ? 1 : 3) + (opaque ? 0 : 1);
+            byte[] data = new byte[channels * n];
+            for (int i = 0, index = 0; i < n; i++) {
+                for (int j = 0; j < 3; j += grey ? 3 : 1)
+                    data[index++] = (byte) Math.round(rgba[4 * i + j] * 255);
+                if (!opaque)
+                    data[index++] = (byte) Math.round(rgba[4 * i + 3] * 255);
+            }
+            if (grey)
+                return opaque ? new BitmapG8(w, h, data) : new BitmapGA8(w, h, data);
+            return opaque ? new BitmapRGB8(w, h, data) : new BitmapRGBA8(w, h, data);
+        }
+        if (opaque && (shorts || halves)) {
+            int channels = shorts && grey ? 1 : 3;
+            short[] data = new short[channels * n];
+            for (int i = 0, index = 0; i < n; i++) {
+                for (int j = 0; j < 3; j += channels == 1 ? 3 : 1)
+                    data[index++] = (short) (shorts ? Math.round(rgba[4 * i + j] * 65535) : ByteUtil.floatToHalf(rgba[4 * i + j]));
+            }
+            if (!shorts)
+                return new BitmapRGBHalf(w, h, data);
+            return grey ? new BitmapG16(w, h, data) : new BitmapRGB16(w, h, data);
+        }
+        return new GenericBitmap(w, h, rgba);
+    }
+
+    private static boolean isByte(float v) {
+        return v >= 0 && v <= 1 && Math.round(v * 255) * INV255 == v;
+    }
+
+    private static boolean isShort(float v) {
+        return v >= 0 && v <= 1 && Math.round(v * 65535) * INV65535 == v;
+    }
+
+    private static boolean isHalf(float v) {
+        return ByteUtil.halfToFloat(ByteUtil.floatToHalf(v)) == v;
+    }
+}
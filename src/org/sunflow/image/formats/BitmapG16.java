@@ -0,0 +1,53 @@
+package org.sunflow.image.formats;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.Color;
+
+public class BitmapG16 extends Bitmap {
+    private int w, h;
+    private short[] data;
+
+    public BitmapG16(int w, int h, short[] data) {
+        this.w = w;
+        this.h = h;
+        this.data = data;
+    }
+
+    @Override
+    public int getWidth() {
+        return w;
+    }
+
+    @Override
+    public int getHeight() {
+        return h;
+    }
+
+    @Override
+    public Color readColor(int x, int y) {
+        return new Color((data[x + y * w] & 0xFFFF) * INV65535);
+    }
+
+    @Override
+    public float readAlpha(int x, int y) {
+        return 1;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        float v = (data[x + y * w] & 0xFFFF) * INV65535;
+        rgba[offset + 0] = rgba[offset + 1] = rgba[offset + 2] = v;
+        rgba[offset + 3] = 1;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, int width, int height, float[] rgba) {
+        for (int j = 0, offset = 0; j < height; j++) {
+            for (int i = 0, index = x + (y + j) * w; i < width; i++, index++, offset += 4) {
+                float v = (data[index] & 0xFFFF) * INV65535;
+                rgba[offset + 0] = rgba[offset + 1] = rgba[offset + 2] = v;
+                rgba[offset + 3] = 1;
+            }
+        }
+    }
+}
\ No newline at end of file
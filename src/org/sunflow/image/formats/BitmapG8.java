@@ -32,4 +32,22 @@ public class BitmapG8 extends Bitmap {
     public float readAlpha(int x, int y) {
         return 1;
     }
+
+    @Override
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        float v = (data[x + y * w] & 0xFF) * INV255;
+        rgba[offset + 0] = rgba[offset + 1] = rgba[offset + 2] = v;
+        rgba[offset + 3] = 1;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, int width, int height, float[] rgba) {
+        for (int j = 0, offset = 0; j < height; j++) {
+            for (int i = 0, index = x + (y + j) * w; i < width; i++, index++, offset += 4) {
+                float v = (data[index] & 0xFF) * INV255;
+                rgba[offset + 0] = rgba[offset + 1] = rgba[offset + 2] = v;
+                rgba[offset + 3] = 1;
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -7,6 +7,12 @@ public class BitmapGA8 extends Bitmap {
     private int w, h;
     private byte[] data;
 
+    public BitmapGA8(int w, int h, byte[] data) {
+        this.w = w;
+        this.h = h;
+        this.data = data;
+    }
+
     @Override
     public int getWidth() {
         return w;
@@ -26,4 +32,23 @@ public class BitmapGA8 extends Bitmap {
     public float readAlpha(int x, int y) {
         return (data[2 * (x + y * w) + 1] & 0xFF) * INV255;
     }
+
+    @Override
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        int index = 2 * (x + y * w);
+        float v = (data[index + 0] & 0xFF) * INV255;
+        rgba[offset + 0] = rgba[offset + 1] = rgba[offset + 2] = v;
+        rgba[offset + 3] = (data[index + 1] & 0xFF) * INV255;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, int width, int height, float[] rgba) {
+        for (int j = 0, offset = 0; j < height; j++) {
+            for (int i = 0, index = 2 * (x + (y + j) * w); i < width; i++, index += 2, offset += 4) {
+                float v = (data[index + 0] & 0xFF) * INV255;
+                rgba[offset + 0] = rgba[offset + 1] = rgba[offset + 2] = v;
+                rgba[offset + 3] = (data[index + 1] & 0xFF) * INV255;
+            }
+        }
+    }
 }
\ No newline at end of file
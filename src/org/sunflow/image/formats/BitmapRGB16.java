@@ -0,0 +1,60 @@
+package org.sunflow.image.formats;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.Color;
+
+public class BitmapRGB16 extends Bitmap {
+    private int w, h;
+    private short[] data;
+
+    public BitmapRGB16(int w, int h, short[] data) {
+        this.w = w;
+        this.h = h;
+        this.data = data;
+    }
+
+    @Override
+    public int getWidth() {
+        return w;
+    }
+
+    @Override
+    public int getHeight() {
+        return h;
+    }
+
+    @Override
+    public Color readColor(int x, int y) {
+        int index = 3 * (x + y * w);
+        float r = (data[index + 0] & 0xFFFF) * INV65535;
+        float g = (data[index + 1] & 0xFFFF) * INV65535;
+        float b = (data[index + 2] & 0xFFFF) * INV65535;
+        return new Color(r, g, b);
+    }
+
+    @Override
+    public float readAlpha(int x, int y) {
+        return 1;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        int index = 3 * (x + y * w);
+        rgba[offset + 0] = (data[index + 0] & 0xFFFF) * INV65535;
+        rgba[offset + 1] = (data[index + 1] & 0xFFFF) * INV65535;
+        rgba[offset + 2] = (data[index + 2] & 0xFFFF) * INV65535;
+        rgba[offset + 3] = 1;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, int width, int height, float[] rgba) {
+        for (int j = 0, offset = 0; j < height; j++) {
+            for (int i = 0, index = 3 * (x + (y + j) * w); i < width; i++, index += 3, offset += 4) {
+                rgba[offset + 0] = (data[index + 0] & 0xFFFF) * INV65535;
+                rgba[offset + 1] = (data[index + 1] & 0xFFFF) * INV65535;
+                rgba[offset + 2] = (data[index + 2] & 0xFFFF) * INV65535;
+                rgba[offset + 3] = 1;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -36,4 +36,25 @@ public class BitmapRGB8 extends Bitmap {
     public float readAlpha(int x, int y) {
         return 1;
     }
+
+    @Override
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        int index = 3 * (x + y * w);
+        rgba[offset + 0] = (data[index + 0] & 0xFF) * INV255;
+        rgba[offset + 1] = (data[index + 1] & 0xFF) * INV255;
+        rgba[offset + 2] = (data[index + 2] & 0xFF) * INV255;
+        rgba[offset + 3] = 1;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, int width, int height, float[] rgba) {
+        for (int j = 0, offset = 0; j < height; j++) {
+            for (int i = 0, index = 3 * (x + (y + j) * w); i < width; i++, index += 3, offset += 4) {
+                rgba[offset + 0] = (data[index + 0] & 0xFF) * INV255;
+                rgba[offset + 1] = (data[index + 1] & 0xFF) * INV255;
+                rgba[offset + 2] = (data[index + 2] & 0xFF) * INV255;
+                rgba[offset + 3] = 1;
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -36,4 +36,21 @@ public class BitmapRGBA8 extends Bitmap {
     public float readAlpha(int x, int y) {
         return (data[4 * (x + y * w) + 3] & 0xFF) * INV255;
     }
+
+    @Override
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        int index = 4 * (x + y * w);
+        rgba[offset + 0] = (data[index + 0] & 0xFF) * INV255;
+        rgba[offset + 1] = (data[index + 1] & 0xFF) * INV255;
+        rgba[offset + 2] = (data[index + 2] & 0xFF) * INV255;
+        rgba[offset + 3] = (data[index + 3] & 0xFF) * INV255;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, int width, int height, float[] rgba) {
+        for (int j = 0, offset = 0; j < height; j++) {
+            for (int i = 0, index = 4 * (x + (y + j) * w); i < 4 * width; i++)
+                rgba[offset++] = (data[index + i] & 0xFF) * INV255;
+        }
+    }
 }
\ No newline at end of file
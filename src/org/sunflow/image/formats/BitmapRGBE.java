@@ -53,4 +53,28 @@ public class BitmapRGBE extends Bitmap {
     public float readAlpha(int x, int y) {
         return 1;
     }
+
+    @Override
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        int rgbe = data[x + y * w];
+        float f = EXPONENT[rgbe & 0xFF];
+        rgba[offset + 0] = f * ((rgbe >>> 24) + 0.5f);
+        rgba[offset + 1] = f * (((rgbe >> 16) & 0xFF) + 0.5f);
+        rgba[offset + 2] = f * (((rgbe >> 8) & 0xFF) + 0.5f);
+        rgba[offset + 3] = 1;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, int width, int height, float[] rgba) {
+        for (int j = 0, offset = 0; j < height; j++) {
+            for (int i = 0, index = x + (y + j) * w; i < width; i++, index++, offset += 4) {
+                int rgbe = data[index];
+                float f = EXPONENT[rgbe & 0xFF];
+                rgba[offset + 0] = f * ((rgbe >>> 24) + 0.5f);
+                rgba[offset + 1] = f * (((rgbe >> 16) & 0xFF) + 0.5f);
+                rgba[offset + 2] = f * (((rgbe >> 8) & 0xFF) + 0.5f);
+                rgba[offset + 3] = 1;
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+package org.sunflow.image.formats;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.Color;
+import org.sunflow.system.ByteUtil;
+
+public class BitmapRGBHalf extends Bitmap {
+    private int w, h;
+    private short[] data;
+
+    public BitmapRGBHalf(int w, int h, short[] data) {
+        this.w = w;
+        this.h = h;
+        this.data = data;
+    }
+
+    @Override
+    public int getWidth() {
+        return w;
+    }
+
+    @Override
+    public int getHeight() {
+        return h;
+    }
+
+    @Override
+    public Color readColor(int x, int y) {
+        int index = 3 * (x + y * w);
+        float r = ByteUtil.halfToFloat(data[index + 0]);
+        float g = ByteUtil.halfToFloat(data[index + 1]);
+        float b = ByteUtil.halfToFloat(data[index + 2]);
+        return new Color(r, g, b);
+    }
+
+    @Override
+    public float readAlpha(int x, int y) {
+        return 1;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        int index = 3 * (x + y * w);
+        rgba[offset + 0] = ByteUtil.halfToFloat(data[index + 0]);
+        rgba[offset + 1] = ByteUtil.halfToFloat(data[index + 1]);
+        rgba[offset + 2] = ByteUtil.halfToFloat(data[index + 2]);
+        rgba[offset + 3] = 1;
+    }
+
+    @Override
+    public void readRGBA(int x, int y, int width, int height, float[] rgba) {
+        for (int j = 0, offset = 0; j < height; j++) {
+            for (int i = 0, index = 3 * (x + (y + j) * w); i < width; i++, index += 3, offset += 4) {
+                rgba[offset + 0] = ByteUtil.halfToFloat(data[index + 0]);
+                rgba[offset + 1] = ByteUtil.halfToFloat(data[index + 1]);
+                rgba[offset + 2] = ByteUtil.halfToFloat(data[index + 2]);
+                rgba[offset + 3] = 1;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -11,20 +11,32 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 /**
- * This is a generic and inefficient bitmap format which may be used for
- * debugging purposes (dumping small images), when memory usage is not a
- * concern.
+ * This is a generic bitmap format which may be used for debugging purposes
+ * (dumping small images). Pixels are stored as four floats each, so memory
+ * usage is high.
  */
 public class GenericBitmap extends Bitmap {
     private int w, h;
-    private Color[] color;
-    private float[] alpha;
+    private float[] rgba;
 
     public GenericBitmap(int w, int h) {
         this.w = w;
         this.h = h;
-        color = new Color[w * h];
-        alpha = new float[w * h];
+        rgba = new float[4 * w * h];
+    }
+
+    /**
+     * Creates a bitmap from existing pixel data, stored as four consecutive
+     * floats per pixel: red, green, blue and alpha.
+     * 
+     * @param w width in pixels
+     * @param h height in pixels
+     * @param rgba pixel data
+     */
+    public GenericBitmap(int w, int h, float[] rgba) {
+        this.w = w;
+        this.h = h;
+        this.rgba = rgba;
     }
 
     @Override
@@ -39,17 +51,32 @@ public class GenericBitmap extends Bitmap {
 
     @Override
     public Color readColor(int x, int y) {
-        return color[x + y * w];
+        int index = 4 * (x + y * w);
+        return new Color(rgba[index], rgba[index + 1], rgba[index + 2]);
     }
 
     @Override
     public float readAlpha(int x, int y) {
-        return alpha[x + y * w];
+        return rgba[4 * (x + y * w) + 3];
+    }
+
+    @Override
+    public void readRGBA(int x, int y, float[] rgba, int offset) {
+        System.arraycopy(this.rgba, 4 * (x + y * w), rgba, offset, 4);
+    }
+
+    @Override
+    public void readRGBA(int x, int y, int width, int height, float[] rgba) {
+        for (int j = 0; j < height; j++)
+            System.arraycopy(this.rgba, 4 * (x + (y + j) * w), rgba, 4 * j * width, 4 * width);
     }
 
     public void writePixel(int x, int y, Color c, float a) {
-        color[x + y * w] = c;
-        alpha[x + y * w] = a;
+        int index = 4 * (x + y * w);
+        rgba[index + 0] = c.getR();
+        rgba[index + 1] = c.getG();
+        rgba[index + 2] = c.getB();
+        rgba[index + 3] = a;
     }
 
     public void save(String filename) {
@@ -62,6 +89,13 @@ public class GenericBitmap extends Bitmap {
         try {
             writer.openFile(filename);
             writer.writeHeader(w, h, Math.max(w, h));
+            // the writers take tiles of colors
+            Color[] color = new Color[w * h];
+            float[] alpha = new float[w * h];
+            for (int i = 0; i < color.length; i++) {
+                color[i] = new Color(rgba[4 * i], rgba[4 * i + 1], rgba[4 * i + 2]);
+                alpha[i] = rgba[4 * i + 3];
+            }
             writer.writeTile(0, 0, w, h, color, alpha);
             writer.closeFile();
         } catch (IOException e) {
@@ -0,0 +1,282 @@
+package org.sunflow.image.readers;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.BitmapReader;
+import org.sunflow.image.formats.BitmapFactory;
+import org.sunflow.system.ByteUtil;
+
+/**
+ * Reads OpenEXR files in scanline or tiled form, without compression or
+ * compressed with RLE, ZIPS or ZIP. Only the R, G, B and A channels (or Y for
+ * greyscale images) are read. Tiled files may contain mipmaps, but only the
+ * full resolution level is read.
+ */
+public class EXRBitmapReader implements BitmapReader {
+    private static final int OE_MAGIC = 20000630;
+    private static final int OE_EXR_VERSION = 2;
+    private static final int OE_TILED_FLAG = 0x00000200;
+    private static final int OE_DEEP_FLAG = 0x00000800;
+    private static final int OE_MULTIPART_FLAG = 0x00001000;
+    private static final int UINT = 0;
+    private static final int HALF = 1;
+    private static final int FLOAT = 2;
+    private static final int NO_COMPRESSION = 0;
+    private static final int RLE_COMPRESSION = 1;
+    private static final int ZIPS_COMPRESSION = 2;
+    private static final int ZIP_COMPRESSION = 3;
+    private static final String[] COMPRESSION_NAMES = { "none", "rle",
+            "zips", "zip", "piz", "pxr24", "b44", "b44a", "dwaa", "dwab" };
+
+    public Bitmap load(String filename, boolean isLinear) throws IOException, BitmapFormatException {
+        // EXR files always store linear data, so the flag is ignored
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            ByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return load(buf);
+        } catch (BufferUnderflowException e) {
+            throw new BitmapFormatException("Unexpected end of file");
+        } catch (IllegalArgumentException e) {
+            throw new BitmapFormatException("Invalid offset in file");
+        } finally {
+            file.close();
+        }
+    }
+
+    private Bitmap load(ByteBuffer buf) throws BitmapFormatException {
+        if (buf.getInt() != OE_MAGIC)
+            throw new BitmapFormatException("Invalid magic number");
+        int version = buf.getInt();
+        if ((version & 0xFF) != OE_EXR_VERSION)
+            throw new BitmapFormatException("Unsupported version: " + (version & 0xFF));
+        if ((version & (OE_DEEP_FLAG | OE_MULTIPART_FLAG)) != 0)
+            throw new BitmapFormatException("Deep and multi-part files are not supported");
+        boolean tiled = (version & OE_TILED_FLAG) != 0;
+
+        // parse the attributes we need, skip the others
+        // the samples are stored in the order of the sorted channel names
+        TreeMap<String, Integer> channels = new TreeMap<String, Integer>();
+        int compression = NO_COMPRESSION;
+        int xMin = 0, yMin = 0, xMax = -1, yMax = -1;
+        int tileWidth = 0, tileHeight = 0;
+        for (String name = readString(buf); name.length() > 0; name = readString(buf)) {
+            readString(buf); // attribute type
+            int size = buf.getInt();
+            int end = buf.position() + size;
+            if (name.equals("channels")) {
+                for (String channel = readString(buf); channel.length() > 0; channel = readString(buf)) {
+                    int type = buf.getInt();
+                    buf.getInt(); // pLinear and reserved bytes
+                    int xSampling = buf.getInt();
+                    int ySampling = buf.getInt();
+                    if (type < UINT || type > FLOAT)
+                        throw new BitmapFormatException("Invalid pixel type for channel " + channel);
+                    if (xSampling != 1 || ySampling != 1)
+                        throw new BitmapFormatException("Subsampled channels are not supported");
+                    channels.put(channel, type);
+                }
+            } else if (name.equals("compression"))
+                compression = buf.get() & 0xFF;
+            else if (name.equals("dataWindow")) {
+                xMin = buf.getInt();
+                yMin = buf.getInt();
+                xMax = buf.getInt();
+                yMax = buf.getInt();
+            } else if (name.equals("tiles")) {
+                tileWidth = buf.getInt();
+                tileHeight = buf.getInt();
+            }
+            buf.position(end);
+        }
+        if (compression > ZIP_COMPRESSION)
+            throw new BitmapFormatException("Unsupported compression type: " + (compression < COMPRESSION_NAMES.length ? COMPRESSION_NAMES[compression] : compression));
+        int width = xMax - xMin + 1;
+        int height = yMax - yMin + 1;
+        if (width <= 0 || height <= 0)
+            throw new BitmapFormatException("Invalid data window");
+        if (tiled && (tileWidth <= 0 || tileHeight <= 0))
+            throw new BitmapFormatException("Invalid tile size");
+
+        // find where each channel goes, greyscale images only have Y
+        int numChannels = channels.size();
+        int[] channelIndex = new int[numChannels];
+        int[] channelType = new int[numChannels];
+        int[] channelSize = new int[numChannels];
+        boolean hasRGB = channels.containsKey("R") || channels.containsKey("G") || channels.containsKey("B");
+        int c = 0;
+        for (Map.Entry<String, Integer> e : channels.entrySet()) {
+            String channel = e.getKey();
+            if (channel.equals("R"))
+                channelIndex[c] = 0;
+            else if (channel.equals("G"))
+                channelIndex[c] = 1;
+            else if (channel.equals("B"))
+                channelIndex[c] = 2;
+            else if (channel.equals("A"))
+                channelIndex[c] = 3;
+            else if (channel.equals("Y") && !hasRGB)
+                channelIndex[c] = 4;
+            else
+                channelIndex[c] = -1;
+            channelType[c] = e.getValue();
+            channelSize[c] = channelType[c] == HALF ? 2 : 4;
+            c++;
+        }
+
+        // blocks are single scanlines, groups of scanlines or tiles
+        int blockWidth = tiled ? tileWidth : width;
+        int blockHeight = tiled ? tileHeight : (compression == ZIP_COMPRESSION ? 16 : 1);
+        int blocksX = (width + blockWidth - 1) / blockWidth;
+        int blocksY = (height + blockHeight - 1) / blockHeight;
+        // for mipmapped files, the tiles of the first level come first
+        long[] offsets = new long[blocksX * blocksY];
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] = buf.getLong();
+
+        int pixelSize = 0;
+        for (int size : channelSize)
+            pixelSize += size;
+        int maxBlockSize = blockWidth * blockHeight * pixelSize;
+        byte[] packed = new byte[maxBlockSize];
+        byte[] tmp = new byte[maxBlockSize];
+        byte[] block = new byte[maxBlockSize];
+        float[] rgba = new float[4 * width * height];
+        for (int i = 3; i < rgba.length; i += 4)
+            rgba[i] = 1;
+        for (long offset : offsets) {
+            if (offset <= 0 || offset >= buf.limit())
+                throw new BitmapFormatException("Missing image data");
+            buf.position((int) offset);
+            int bx, by;
+            if (tiled) {
+                bx = buf.getInt() * tileWidth;
+                by = buf.getInt() * tileHeight;
+                if (buf.getInt() != 0 || buf.getInt() != 0)
+                    throw new BitmapFormatException("Invalid tile level");
+            } else {
+                bx = 0;
+                by = buf.getInt() - yMin;
+            }
+            if (bx < 0 || bx >= width || by < 0 || by >= height)
+                throw new BitmapFormatException("Invalid block coordinates");
+            int bw = Math.min(blockWidth, width - bx);
+            int bh = Math.min(blockHeight, height - by);
+            int blockSize = bw * bh * pixelSize;
+            int packedSize = buf.getInt();
+            if (packedSize <= 0 || packedSize > blockSize)
+                throw new BitmapFormatException("Invalid block size");
+            buf.get(packed, 0, packedSize);
+            decompress(compression, packed, packedSize, tmp, block, blockSize);
+            // each line stores all samples of one channel after another
+            for (int y = 0, p = 0; y < bh; y++) {
+                // bitmaps are stored bottom up
+                int row = (height - 1 - (by + y)) * width + bx;
+                for (c = 0; c < numChannels; c++) {
+                    int index = channelIndex[c];
+                    int type = channelType[c];
+                    for (int x = 0; x < bw; x++, p += channelSize[c]) {
+                        if (index < 0)
+                            continue;
+                        float v;
+                        if (type == HALF)
+                            v = ByteUtil.halfToFloat((block[p] & 0xFF) | ((block[p + 1] & 0xFF) << 8));
+                        else if (type == FLOAT)
+                            v = Float.intBitsToFloat(ByteUtil.toInt(block, p));
+                        else
+                            v = ByteUtil.toInt(block, p) & 0xFFFFFFFFL;
+                        int pixel = 4 * (row + x);
+                        if (index == 4)
+                            rgba[pixel + 0] = rgba[pixel + 1] = rgba[pixel + 2] = v;
+                        else
+                            rgba[pixel + index] = v;
+                    }
+                }
+            }
+        }
+        return BitmapFactory.create(width, height, rgba);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        StringBuilder s = new StringBuilder();
+        for (byte b = buf.get(); b != 0; b = buf.get())
+            s.append((char) (b & 0xFF));
+        return s.toString();
+    }
+
+    private static void decompress(int compression, byte[] in, int inSize, byte[] tmp, byte[] out, int outSize) throws BitmapFormatException {
+        // blocks which did not get smaller are stored as is
+        if (inSize == outSize) {
+            System.arraycopy(in, 0, out, 0, outSize);
+            return;
+        }
+        switch (compression) {
+            case ZIPS_COMPRESSION:
+            case ZIP_COMPRESSION:
+                Inflater inf = new Inflater();
+                inf.setInput(in, 0, inSize);
+                try {
+                    if (inf.inflate(tmp, 0, outSize) != outSize)
+                        throw new BitmapFormatException("Invalid zip data");
+                } catch (DataFormatException e) {
+                    throw new BitmapFormatException("Invalid zip data: " + e.getMessage());
+                } finally {
+                    inf.end();
+                }
+                break;
+            case RLE_COMPRESSION:
+                if (rleUncompress(in, inSize, tmp, outSize) != outSize)
+                    throw new BitmapFormatException("Invalid rle data");
+                break;
+            default:
+                throw new BitmapFormatException("Invalid block size");
+        }
+
+        // undo the predictor ~ straight from ImfZipCompressor.cpp
+        for (int t = 1; t < outSize; t++)
+            tmp[t] = (byte) (tmp[t - 1] + tmp[t] - 128);
+
+        // undo the reordering, the two halves of the block are interleaved
+        int t1 = 0, t2 = (outSize + 1) / 2;
+        for (int outPtr = 0; outPtr < outSize;) {
+            out[outPtr++] = tmp[t1++];
+            if (outPtr < outSize)
+                out[outPtr++] = tmp[t2++];
+        }
+    }
+
+    private static int rleUncompress(byte[] in, int inLen, byte[] out, int outLen) {
+        int inRead = 0, outWrite = 0;
+        while (inRead < inLen) {
+            int count = in[inRead++];
+            if (count < 0) {
+                // uncompressable run
+                count = -count;
+                if (outWrite + count > outLen || inRead + count > inLen)
+                    return -1;
+                System.arraycopy(in, inRead, out, outWrite, count);
+                inRead += count;
+                outWrite += count;
+            } else {
+                // compressed run
+                count++;
+                if (outWrite + count > outLen || inRead >= inLen)
+                    return -1;
+                byte b = in[inRead++];
+                while (count-- > 0)
+                    out[outWrite++] = b;
+            }
+        }
+        return outWrite;
+    }
+}
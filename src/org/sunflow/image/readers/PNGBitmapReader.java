@@ -1,6 +1,7 @@
 package org.sunflow.image.readers;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
 
@@ -9,12 +10,18 @@ import javax.imageio.ImageIO;
 import org.sunflow.image.Bitmap;
 import org.sunflow.image.BitmapReader;
 import org.sunflow.image.Color;
+import org.sunflow.image.formats.BitmapFactory;
 import org.sunflow.image.formats.BitmapRGBA8;
+import org.sunflow.math.MathUtils;
 
 public class PNGBitmapReader implements BitmapReader {
+    private static final float INV65535 = 1.0f / 65535;
+
     public Bitmap load(String filename, boolean isLinear) throws IOException, BitmapFormatException {
         // regular image, load using Java api
         BufferedImage bi = ImageIO.read(new File(filename));
+        if (bi.getColorModel().getComponentSize(0) > 8)
+            return load16(bi, isLinear);
         int width = bi.getWidth();
         int height = bi.getHeight();
         byte[] pixels = new byte[4 * width * height];
@@ -36,4 +43,33 @@ public class PNGBitmapReader implements BitmapReader {
         }
         return new BitmapRGBA8(width, height, pixels);
     }
+
+    private Bitmap load16(BufferedImage bi, boolean isLinear) {
+        // 16 bit image, keep the extra precision, also when converting to
+        // linear space
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        int[] curve = null;
+        if (!isLinear) {
+            curve = new int[65536];
+            for (int i = 0; i < curve.length; i++)
+                curve[i] = MathUtils.clamp(Math.round(Color.NATIVE_SPACE.ungammaCorrect(i * INV65535) * 65535), 0, 65535);
+        }
+        Raster raster = bi.getRaster();
+        int bands = raster.getNumBands();
+        int[] samples = new int[bands * width];
+        float[] rgba = new float[4 * width * height];
+        for (int y = 0, index = 0; y < height; y++) {
+            raster.getPixels(0, height - 1 - y, width, 1, samples);
+            for (int x = 0, s = 0; x < width; x++, s += bands, index += 4) {
+                // greyscale images have one color band
+                for (int i = 0; i < 3; i++) {
+                    int v = samples[bands < 3 ? s : s + i];
+                    rgba[index + i] = (curve == null ? v : curve[v]) * INV65535;
+                }
+                rgba[index + 3] = (bands & 1) == 0 ? samples[s + bands - 1] * INV65535 : 1;
+            }
+        }
+        return BitmapFactory.create(width, height, rgba);
+    }
 }
\ No newline at end of file
@@ -2,7 +2,8 @@ package org.sunflow.image.writers;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.zip.Deflater;
 
 import org.sunflow.image.BitmapWriter;
@@ -27,6 +28,7 @@ public class EXRBitmapWriter implements BitmapWriter {
 
     private String filename;
     private RandomAccessFile file;
+    private FileChannel channel;
     private long[][] tileOffsets;
     private long tileOffsetsPosition;
     private int tilesX;
@@ -35,8 +37,6 @@ public class EXRBitmapWriter implements BitmapWriter {
     private int compression;
     private byte channelType;
     private int channelSize;
-    private byte[] tmpbuf;
-    private byte[] comprbuf;
 
     public EXRBitmapWriter() {
         // default settings
@@ -78,6 +78,7 @@ public class EXRBitmapWriter implements BitmapWriter {
     public void writeHeader(int width, int height, int tileSize) throws IOException, UnsupportedOperationException {
         file = new RandomAccessFile(filename, "rw");
         file.setLength(0);
+        channel = file.getChannel();
         if (tileSize <= 0)
             throw new UnsupportedOperationException("Can't use OpenEXR bitmap writer without buckets.");
         writeRGBAHeader(width, height, tileSize);
@@ -86,10 +87,18 @@ public class EXRBitmapWriter implements BitmapWriter {
     public void writeTile(int x, int y, int w, int h, Color[] color, float[] alpha) throws IOException {
         int tx = x / tileSize;
         int ty = y / tileSize;
-        writeEXRTile(tx, ty, w, h, color, alpha);
+        // compress outside of the lock, so tiles from several threads can be
+        // encoded in parallel
+        ByteBuffer data = encodeEXRTile(tx, ty, w, h, color, alpha);
+        appendEXRTile(tx, ty, data);
     }
 
-    public void closeFile() throws IOException {
+    public boolean encodesTiles() {
+        // every tile is compressed and appended to the file
+        return true;
+    }
+
+    public synchronized void closeFile() throws IOException {
         writeTileOffsets();
         file.close();
     }
@@ -186,14 +195,6 @@ public class EXRBitmapWriter implements BitmapWriter {
         tilesX = ((w + tileSize - 1) / tileSize);
         tilesY = ((h + tileSize - 1) / tileSize);
 
-        /*
-         * twice the space for the compressing buffer, as for ex. the compressor
-         * can actually increase the size of the data :) If that happens though,
-         * it is not saved into the file, but discarded
-         */
-        tmpbuf = new byte[tileSize * tileSize * channelSize * 4];
-        comprbuf = new byte[tileSize * tileSize * channelSize * 4 * 2];
-
         tileOffsets = new long[tilesX][tilesY];
 
         file.write("tiles".getBytes());
@@ -224,7 +225,15 @@ public class EXRBitmapWriter implements BitmapWriter {
                 file.write(ByteUtil.get8Bytes(tileOffsets[tx][ty]));
     }
 
-    private synchronized void writeEXRTile(int tileX, int tileY, int w, int h, Color[] tile, float[] alpha) throws IOException {
+    private synchronized void appendEXRTile(int tileX, int tileY, ByteBuffer data) throws IOException {
+        // tiles are appended in the order they are finished, the offset table
+        // tells readers where to find them
+        tileOffsets[tileX][tileY] = channel.position();
+        while (data.hasRemaining())
+            channel.write(data);
+    }
+
+    private ByteBuffer encodeEXRTile(int tileX, int tileY, int w, int h, Color[] tile, float[] alpha) {
         byte[] rgb;
 
         // setting comprSize to max integer so without compression things
@@ -241,17 +250,13 @@ public class EXRBitmapWriter implements BitmapWriter {
         if ((tileSize != tileRangeY) && (tileY == 0))
             System.out.print(" bad Y alignment ");
 
-        tileOffsets[tileX][tileY] = file.getFilePointer();
-
-        // the tile header: tile's x&y coordinate, levels x&y coordinate and
-        // tilesize
-        file.write(ByteUtil.get4Bytes(tileX));
-        file.write(ByteUtil.get4Bytes(tileY));
-        file.write(ByteUtil.get4Bytes(0));
-        file.write(ByteUtil.get4Bytes(0));
-
-        // just in case
-        Arrays.fill(tmpbuf, (byte) 0);
+        /*
+         * twice the space for the compressing buffer, as for ex. the compressor
+         * can actually increase the size of the data :) If that happens though,
+         * it is not saved into the file, but discarded
+         */
+        byte[] tmpbuf = new byte[tileRangeX * tileRangeY * channelSize * 4];
+        byte[] comprbuf = new byte[tileRangeX * tileRangeY * channelSize * 4 * 2];
 
         for (int ty = 0; ty < tileRangeY; ty++) {
             for (int tx = 0; tx < tileRangeX; tx++) {
@@ -290,15 +295,19 @@ public class EXRBitmapWriter implements BitmapWriter {
         if (compression != NO_COMPRESSION)
             comprSize = compress(compression, tmpbuf, writeSize, comprbuf);
 
-        // lastly, write the size of the tile and the tile itself
-        // (compressed or not)
-        if (comprSize < writeSize) {
-            file.write(ByteUtil.get4Bytes(comprSize));
-            file.write(comprbuf, 0, comprSize);
-        } else {
-            file.write(ByteUtil.get4Bytes(writeSize));
-            file.write(tmpbuf, 0, writeSize);
-        }
+        // the tile header: tile's x&y coordinate, levels x&y coordinate and
+        // tilesize, followed by the tile itself (compressed or not)
+        boolean compressed = comprSize < writeSize;
+        int size = compressed ? comprSize : writeSize;
+        ByteBuffer data = ByteBuffer.allocate(20 + size);
+        data.put(ByteUtil.get4Bytes(tileX));
+        data.put(ByteUtil.get4Bytes(tileY));
+        data.put(ByteUtil.get4Bytes(0));
+        data.put(ByteUtil.get4Bytes(0));
+        data.put(ByteUtil.get4Bytes(size));
+        data.put(compressed ? comprbuf : tmpbuf, 0, size);
+        data.flip();
+        return data;
     }
 
     private static final int compress(int tp, byte[] in, int inSize, byte[] out) {
@@ -34,6 +34,10 @@ public class HDRBitmapWriter implements BitmapWriter {
                 data[pixel] = tileData[index];
     }
 
+    public boolean encodesTiles() {
+        return false;
+    }
+
     public void closeFile() throws IOException {
         OutputStream f = new BufferedOutputStream(new FileOutputStream(filename));
         f.write("#?RGBE\n".getBytes());
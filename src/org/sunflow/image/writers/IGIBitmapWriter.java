@@ -42,6 +42,10 @@ public class IGIBitmapWriter implements BitmapWriter {
         }
     }
 
+    public boolean encodesTiles() {
+        return false;
+    }
+
     public void closeFile() throws IOException {
         OutputStream stream = new BufferedOutputStream(new FileOutputStream(filename));
         write32(stream, 66613373); // magic number
@@ -30,6 +30,10 @@ public class JPGBitmapWriter implements BitmapWriter {
                 image.setRGB(x + i, y + j, color[index].copy().toNonLinear().toRGB());
     }
 
+    public boolean encodesTiles() {
+        return false;
+    }
+
     public void closeFile() throws IOException {
         ImageIO.write(image, "jpg", new File(filename));
     }
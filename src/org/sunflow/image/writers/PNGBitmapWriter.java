@@ -30,6 +30,10 @@ public class PNGBitmapWriter implements BitmapWriter {
                 image.setRGB(x + i, y + j, color[index].copy().mul(1.0f / alpha[index]).toNonLinear().toRGBA(alpha[index]));
     }
 
+    public boolean encodesTiles() {
+        return false;
+    }
+
     public void closeFile() throws IOException {
         ImageIO.write(image, "png", new File(filename));
     }
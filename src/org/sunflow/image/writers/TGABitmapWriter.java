@@ -42,6 +42,10 @@ public class TGABitmapWriter implements BitmapWriter {
         }
     }
 
+    public boolean encodesTiles() {
+        return false;
+    }
+
     public void closeFile() throws IOException {
         // actually write the file from here
         OutputStream f = new BufferedOutputStream(new FileOutputStream(filename));
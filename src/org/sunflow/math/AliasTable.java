@@ -0,0 +1,120 @@
+package org.sunflow.math;
+
+/**
+ * Walker alias table for picking one of a fixed set of weighted elements in
+ * constant time. Every slot of the table holds the probability of keeping the
+ * element it was picked for, and an alternative element to use otherwise.
+ */
+public final class AliasTable {
+    private final float[] prob;
+    private final int[] alias;
+    private final double total;
+
+    /**
+     * Build an alias table for the specified weights, using Vose's algorithm.
+     * If all weights are 0, every element is picked with the same
+     * probability.
+     * 
+     * @param weights non-negative weight of each element, this array is not
+     *            referenced by the table
+     */
+    public AliasTable(float[] weights) {
+        int n = weights.length;
+        prob = new float[n];
+        alias = new int[n];
+        double sum = 0;
+        for (float w : weights)
+            sum += w;
+        total = sum;
+        if (!(sum > 0)) {
+            for (int i = 0; i < n; i++) {
+                prob[i] = 1;
+                alias[i] = i;
+            }
+            return;
+        }
+        // split elements into those below and above the average weight
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / sum;
+            if (scaled[i] < 1)
+                small[numSmall++] = i;
+            else
+                large[numLarge++] = i;
+        }
+        // fill each small slot up with one of the large elements
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+            prob[s] = (float) scaled[s];
+            alias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1;
+            if (scaled[l] < 1)
+                small[numSmall++] = l;
+            else
+                large[numLarge++] = l;
+        }
+        // whatever is left over is only off by rounding errors
+        while (numLarge > 0) {
+            int l = large[--numLarge];
+            prob[l] = 1;
+            alias[l] = l;
+        }
+        while (numSmall > 0) {
+            int s = small[--numSmall];
+            prob[s] = 1;
+            alias[s] = s;
+        }
+    }
+
+    /**
+     * Get the number of elements in the table.
+     * 
+     * @return number of elements
+     */
+    public int size() {
+        return prob.length;
+    }
+
+    /**
+     * Get the sum of all weights the table was built from.
+     * 
+     * @return sum of all weights
+     */
+    public float getTotal() {
+        return (float) total;
+    }
+
+    /**
+     * Pick an element with a probability proportional to its weight.
+     * 
+     * @param u uniform random number in [0,1)
+     * @return index of the picked element
+     */
+    public int sample(double u) {
+        double x = u * prob.length;
+        int i = Math.min((int) x, prob.length - 1);
+        return (x - i) < prob[i] ? i : alias[i];
+    }
+
+    /**
+     * Get a new uniform random number in [0,1) from the part of
+     * <code>u</code> which was not used up by {@link #sample(double)}. This
+     * can be used to pick a point within the sampled element.
+     * 
+     * @param u the random number which was passed to {@link #sample(double)}
+     * @return remaining random number in [0,1)
+     */
+    public double remap(double u) {
+        double x = u * prob.length;
+        int i = Math.min((int) x, prob.length - 1);
+        double f = x - i;
+        double p = prob[i];
+        double r = f < p ? f / p : (f - p) / (1 - p);
+        return Math.min(r, 1 - 1e-9);
+    }
+}
\ No newline at end of file
@@ -115,4 +115,29 @@ public class ByteUtil {
             return s | (e << 10) | (m >> 13);
         }
     }
+
+    public static final float halfToFloat(int h) {
+        // unpack the s, e and m of the half
+        int s = (h & 0x00008000) << 16;
+        int e = (h >> 10) & 0x0000001f;
+        int m = h & 0x000003ff;
+        if (e == 0) {
+            if (m == 0) {
+                // plus or minus zero
+                return Float.intBitsToFloat(s);
+            }
+            // denormalized half, renormalize it
+            while ((m & 0x00000400) == 0) {
+                m <<= 1;
+                e -= 1;
+            }
+            e += 1;
+            m &= ~0x00000400;
+        } else if (e == 31) {
+            // infinity or NAN, keep the significand bits
+            return Float.intBitsToFloat(s | 0x7f800000 | (m << 13));
+        }
+        // Assemble the float from s, e and m.
+        return Float.intBitsToFloat(s | ((e + (127 - 15)) << 23) | (m << 13));
+    }
 }
\ No newline at end of file
@@ -5,6 +5,10 @@ public final class Memory {
         return bytesToString(array == null ? 0 : 4 * array.length);
     }
 
+    public static final String sizeof(float[] array) {
+        return bytesToString(array == null ? 0 : 4 * array.length);
+    }
+
     public static final String bytesToString(long bytes) {
         if (bytes < 1024)
             return String.format("%db", bytes);